@@ -36,9 +36,10 @@ public class ContentualEq {
 
     /**
      * An auxiliary variable to avoid constructing the {@code XMLOutputter}
-     * object more than once.
+     * object more than once per thread. The outputter is not thread-safe.
      */
-    private static XMLOutputter g_xmlserializer = null;
+    private static final ThreadLocal<XMLOutputter> g_xmlserializer
+        = new ThreadLocal<XMLOutputter>();
 
     // CONSTRUCTORS
     //==============
@@ -75,19 +76,21 @@ public class ContentualEq {
     } // createXmlOutputter()
 
     /**
-     * Singleton and create once for the {@code XMLOutputter} object.
-     * If the class variable {@link #g_xmlserializer} has not been
-     * initialized yet, the variable is then initialized prior to returning
+     * Create once per thread for the {@code XMLOutputter} object.
+     * If the thread's value of {@link #g_xmlserializer} has not been
+     * initialized yet, it is then initialized prior to returning
      * it to the caller.
      *
-     * @return the initialized {@link #g_xmlserializer} variable.
+     * @return the thread's initialized {@code XMLOutputter}.
      */
     private static XMLOutputter get_xmlserializer() {
-        if (g_xmlserializer == null) {
+        XMLOutputter rval = g_xmlserializer.get();
+        if (rval == null) {
             // First call. Initialize
-            g_xmlserializer = new_xmloutputter();
+            rval = new_xmloutputter();
+            g_xmlserializer.set(rval);
         }
-        return g_xmlserializer;
+        return rval;
     } // get_xmlserializer()
 
     /**
@@ -0,0 +1,173 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.core;
+
+/**
+ * A table of interned ids. An id is looked up directly from a range of
+ * characters, so that a {@code String} is allocated only when the id
+ * is seen for the first time. The table uses open addressing with
+ * linear probing, and the hash of a range is the same as
+ * {@code String.hashCode()} of the corresponding string.<p>
+ *
+ * The table is not thread-safe. Each thread should use a table of its
+ * own; see {@link #get_local()}. The table only grows; the ids of
+ * a repository form a bounded set.
+ */
+public class IdTable
+{
+    // CLASS VARIABLES
+    //=================
+
+    /**
+     * Per-thread tables.
+     */
+    private static final ThreadLocal<IdTable> g_local
+        = new ThreadLocal<IdTable>();
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The interned ids; {@code null} for empty slots.
+     */
+    private String[] table;
+
+    /**
+     * Number of interned ids.
+     */
+    private int count;
+
+    // CONSTRUCTORS
+    //==============
+
+    public IdTable() {
+        table = new String[64];
+        count = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the thread's table. The table is created, if necessary.
+     */
+    public static IdTable get_local() {
+        IdTable rval = g_local.get();
+        if (rval == null) {
+            rval = new IdTable();
+            g_local.set(rval);
+        }
+        return rval;
+    } // get_local()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the interned id having the characters of the range.
+     *
+     * @param text the text containing the id
+     * @param begin the offset of the first character
+     * @param end the offset after the last character
+     * @return the interned id
+     */
+    public String intern(CharSequence text, int begin, int end) {
+        int hash = hash(text, begin, end);
+        int mask = table.length - 1;
+        int i = mix(hash) & mask;
+
+        while (table[i] != null) {
+            String s = table[i];
+            if ((s.hashCode() == hash) && region_equals(s, text, begin, end)) {
+                return s;
+            }
+            i = (i + 1) & mask;
+        } // while
+
+        // Not seen before
+        String rval = text.subSequence(begin, end).toString();
+        table[i] = rval;
+        count++;
+        if (count * 2 > table.length) {
+            rehash();
+        }
+        return rval;
+    } // intern()
+
+    /**
+     * Returns the number of interned ids.
+     */
+    public int size() {
+        return count;
+    } // size()
+
+    /**
+     * Returns {@code true} if the string has the characters of the range.
+     */
+    public static boolean region_equals(
+        String s,
+        CharSequence text,
+        int begin,
+        int end
+    ) {
+        int len = end - begin;
+        if (s.length() != len) {
+            return false;
+        }
+        for (int i = 0; i < len; i++) {
+            if (s.charAt(i) != text.charAt(begin + i)) {
+                return false;
+            }
+        }
+        return true;
+    } // region_equals()
+
+    // HELPER METHODS
+    //================
+
+    private static int hash(CharSequence text, int begin, int end) {
+        int h = 0;
+        for (int i = begin; i < end; i++) {
+            h = 31*h + text.charAt(i);
+        }
+        return h;
+    } // hash()
+
+    private static int mix(int h) {
+        h ^= (h >>> 16);
+        h *= 0x85ebca6b;
+        h ^= (h >>> 13);
+        return h;
+    } // mix()
+
+    private void rehash() {
+        String[] old = table;
+        table = new String[old.length * 2];
+        int mask = table.length - 1;
+        for (String s : old) {
+            if (s == null) {
+                continue;
+            }
+            int i = mix(s.hashCode()) & mask;
+            while (table[i] != null) {
+                i = (i + 1) & mask;
+            }
+            table[i] = s;
+        } // for
+    } // rehash()
+
+} // class IdTable
@@ -26,6 +26,7 @@ import org.jdom.Attribute;
 import org.jdom.Content;
 // xmlsnippets imports
 import xmlsnippets.util.XPathIdentification;
+import xmlsnippets.util.ElementWalker;
 import xmlsnippets.core.XidIdentification;
 import xmlsnippets.core.PidIdentification;
 
@@ -48,32 +49,89 @@ public class Normalization
     //===============
 
     /**
-     * Either creates an inclusion-by-xid element or normalizes
-     * the child element.
-     * @param child [in] the child element which is to be normalized
-     * @param map [out] collects information regarding mappings between
-     * the created inclusion-by-reference elements and their original
-     * counter-parts. If left {@code null} the informatino is not collected.
-     * The keys are elements in returned element, and the values are
-     * elements of the specified child element.
-     * @return Either a normalized child element or an inclusion-by-xid element.
+     * Returns an unparented, normalized deep-copy of the specified element.
+     * The element is walked with an {@link ElementWalker}, so the depth
+     * of the element is not limited by the call stack.
+     *
+     * @param elem [in] the element to be normalized
+     * @param map [out] a map which will be populated by the information
+     * regarding which elements were pruned and replaced with what. If
+     * {@code null} the information will not be collected.
+     * @return The normalized, unparented deep-copy.
+     *
+     * TODO: rename into normalize_content() ?
      */
-    private static Element normalize_child(
-        Element child,
+    public static Element normalize(
+        Element elem,
         Map<Element, Element> map
+
     ) {
-        // Return variable
-        Element rval = null;
+        Normalizer visitor = new Normalizer(map);
+        ElementWalker.get_local().walk(elem, visitor);
+        return visitor.rval;
+    } // normalize()
 
-        // Attempt identification
-        Xid xid = XidIdentification.get_xid(child);
-        String pid = PidIdentification.get_pid(child);
+    /**
+     * Makes the normalized copy. The value of each frame is the copy
+     * of the element, to which the copies of its content are added.
+     */
+    private static class Normalizer extends ElementWalker.Visitor {
 
-        if (xid != null) {
-            // It is a xidentified child. Return value will be
+        /**
+         * The mappings between the created inclusion-by-xid elements
+         * and their original counter-parts, or {@code null}.
+         */
+        private Map<Element, Element> map;
+
+        /**
+         * The copy of the root element.
+         */
+        public Element rval;
+
+        public Normalizer(Map<Element, Element> map) {
+            this.map = map;
+            rval = null;
+        } // ctor
+
+        /**
+         * Either creates an inclusion-by-xid element or starts
+         * a normalized copy of the element.
+         */
+        @Override
+        public Element enter(ElementWalker w, Element child) {
+            if (w.get_depth() == 0) {
+                // The element being normalized itself
+                rval = copy(child);
+                w.set_value(rval);
+                return child;
+            }
+
+            // A copy the child is made here and the copy is then added
+            // as a content to the parent's copy when the child is left.
+            // It does not matter whether the copy will be a referencing
+            // copy or a normalized copy.
+
+            // Attempt identification
+            Xid xid = XidIdentification.get_xid(child);
+
+            if (xid == null) {
+                // Otherwise, the child itself is unidentifiable.
+                // It can either be an inclusion-by-xid referencing copy,
+                // or just plain unxidentifiable element.
+
+                // If the element is just a plain unidentifiable element,
+                // nothing prevents its children to be identifiable again.
+                // Consequently, the element's contents must be normalized
+                w.set_value(copy(child));
+                return child;
+            } // if: not xidentified
+
+            // It is a xidentified child. The copy will be
             // a referencing copy.
+            String pid = PidIdentification.get_pid(child);
+
             // First, create an initial copy
-            rval = new Element(child.getName(), child.getNamespace());
+            Element rval = new Element(child.getName(), child.getNamespace());
 
             // Record the connection between "rval" and "child" into some
             // data structure. That information is needed later.
@@ -97,24 +155,34 @@ public class Normalization
             // TODO: Mark the inclusion-by-xid to be expanded automatically,
             // since it was automatically pruned.
             rval.setAttribute("expand", "true");
-        } else {
-            // Otherwise, the child itself is unidentifiable.
-            // It can either be an inclusion-by-xid referencing copy,
-            // or just plain unxidentifiable element.
 
-            // If the element is inclusion-by-xid, the reference
-            // should be verified at some point.
+            w.set_value(rval);
 
-            // If the element is just a plain unidentifiable element,
-            // nothing prevents its children to be identifiable again.
-            // Consequently, the element's contents must be recursively
-             // normalized
-            rval = normalize(child, map);
+            // The content is pruned
+            return null;
+        } // enter()
+
+        @Override
+        public void content(ElementWalker w, Content c) {
+            // Either Text, Comment, CDATA or something similar.
+            // Just make an identical copy of it.
+            ((Element) w.get_value()).addContent((Content) c.clone());
+        } // content()
+
+        @Override
+        public void leave(ElementWalker w, Element child) {
+            if (w.get_depth() == 0) {
+                return;
+            }
 
             // Determine if the normalized copy has @ref_xid attribute
             // implying that this is an inclusion-by-xid element.
             // If that is the case, mark the inclusion-by-xid unverified.
-            if (rval.getAttribute("ref_xid") != null) {
+            // A referencing copy has no content walked.
+            Element rval = (Element) w.get_value();
+            if ((w.get_source() != null)
+                && (rval.getAttribute("ref_xid") != null))
+            {
                 // TODO: Mark unverified. Mark the inclusion-by-xid not
                 // to be automatically expanded, since it was not pruned
                 // by the normalization.
@@ -125,62 +193,30 @@ public class Normalization
                     map.put(rval, child);
                 }
             } // if: the child was an ref-by-xid element
-        } // if-else
-        return rval;
-    } // normalize_child()
 
-    /**
-     * Returns an unparented, normalized deep-copy of the specified element.
-     *
-     * @param elem [in] the element to be normalized
-     * @param map [out] a map which will be populated by the information
-     * regarding which elements were pruned and replaced with what. If
-     * {@code null} the information will not be collected.
-     * @return The normalized, unparented deep-copy.
-     *
-     * TODO: rename into normalize_content() ?
-     */
-    public static Element normalize(
-        Element elem,
-        Map<Element, Element> map
+            // The copy is added only when it is complete. Adding
+            // an element is slower when the parent has ancestors.
+            ((Element) w.get_parent_value()).addContent(rval);
+        } // leave()
 
-    ) {
-        Element rval = null;
-        // Create an initial copy
-        rval = new Element(elem.getName(), elem.getNamespace());
-
-        // Clone attributes
-        List attributes = elem.getAttributes();
-        for (Object obj : attributes) {
-            Attribute a_orig = (Attribute) obj;
-            Attribute a_copy = (Attribute) a_orig.clone();
-            rval.setAttribute(a_copy);
-        } // for: each attr
-
-        // Clone content
-        List content = elem.getContent();
-        for (Object obj : content) {
-
-            if (obj instanceof Element) {
-                // This is a child element. It needs more careful inspection.
-                Element child = (Element) obj;
-                // A copy the child is made in normalize_child()
-                // and the copy is then added as a content to the current
-                // element. It does not matter whether the copy will be
-                // a referencing copy or a normalized copy.
-                rval.addContent(normalize_child(child, map));
-            }
-            else {
-                // Either Text, Comment, CDATA or something similar.
-                // Just make an identical copy of it.
-                Content content_orig = (Content) obj;
-                Content content_copy = (Content) content_orig.clone();
-                rval.addContent(content_copy);
-            } // if-else: instance of Element
-        } // for: each content object
-
-        return rval;
-    } // normalize()
+        /**
+         * Creates a copy of the element with its attributes.
+         */
+        private static Element copy(Element elem) {
+            Element rval = new Element(elem.getName(), elem.getNamespace());
+
+            // Clone attributes
+            List attributes = elem.getAttributes();
+            for (Object obj : attributes) {
+                Attribute a_orig = (Attribute) obj;
+                Attribute a_copy = (Attribute) a_orig.clone();
+                rval.setAttribute(a_copy);
+            } // for: each attr
+
+            return rval;
+        } // copy()
+
+    } // class Normalizer
 
     //========================================================================
     // TODO: The following code should probably belong to somewhere else
@@ -241,60 +277,62 @@ public class Normalization
     // NOTE:
     // An element with ref_xid shouldn't have xid?
     protected static List<RefXidRecord> build_normalization_table(
-        List<RefXidRecord> table,
+        final List<RefXidRecord> table,
         Element element
     ) {
-        for (Object obj : element.getContent()) {
-            if ((obj instanceof Element) == false) {
-                // Not a child, skip to next.
-                continue;
-            }
-            Element child = (Element) obj;
-            // Depth-first recurse
-            table = build_normalization_table(table, child);
-        } // for: each child
-
-        if (element.getAttribute("ref_xid") != null) {
-            // The element itself is a inclusion-by-xid.
-            // Create a record for the element
-            RefXidRecord record = new RefXidRecord(element);
-
-            // If no link_xid, returns null.
-            String linkxid = element.getAttributeValue("link_xid");
-            if (linkxid != null) {
-                record.xid = XidString.deserialize(linkxid);
-            } else {
-                record.xid = null;
+        // Depth-first; the records are in post-order
+        ElementWalker.get_local().walk(element, new ElementWalker.Visitor() {
+            @Override
+            public void leave(ElementWalker w, Element elem) {
+                add_record(table, elem);
             }
+        });
+        return table;
+    } // build_normalization_table()
 
-            // TODO:
-            // Pick the xid, if any? Actually I think it should be required
-            // that an element may have either ref_xid or xid, but not both.
-
-            // Pick the expand attribute
-            String expand = element.getAttributeValue("expand");
-
-            if (expand == null) {
-                record.expand = true;
-            }
-            else if (expand.equals("true")) {
-                record.expand = true;
-            } else if (expand.equals("false")) {
-                record.expand = false;
-            } else {
-                // Invalid value!
-                throw new RuntimeException(String.format(
-                    "%s: the attribute @expand must be either \"true\" or \"false\"",
-                    XPathIdentification.get_xpath(element)));
-            } // if-else
-
-            // Record is ready to be added
-            table.add(record);
-
-        } // if: the element is incl-by-xid
+    private static void add_record(
+        List<RefXidRecord> table,
+        Element element
+    ) {
+        if (element.getAttribute("ref_xid") == null) {
+            return;
+        }
+        // The element itself is a inclusion-by-xid.
+        // Create a record for the element
+        RefXidRecord record = new RefXidRecord(element);
+
+        // If no link_xid, returns null.
+        String linkxid = element.getAttributeValue("link_xid");
+        if (linkxid != null) {
+            record.xid = XidString.deserialize(linkxid);
+        } else {
+            record.xid = null;
+        }
+
+        // TODO:
+        // Pick the xid, if any? Actually I think it should be required
+        // that an element may have either ref_xid or xid, but not both.
+
+        // Pick the expand attribute
+        String expand = element.getAttributeValue("expand");
+
+        if (expand == null) {
+            record.expand = true;
+        }
+        else if (expand.equals("true")) {
+            record.expand = true;
+        } else if (expand.equals("false")) {
+            record.expand = false;
+        } else {
+            // Invalid value!
+            throw new RuntimeException(String.format(
+                "%s: the attribute @expand must be either \"true\" or \"false\"",
+                XPathIdentification.get_xpath(element)));
+        } // if-else
 
-        return table;
-    } // normalize_refs()
+        // Record is ready to be added
+        table.add(record);
+    } // add_record()
 
     public static void normalize_refs(List<RefXidRecord> table) {
         for (RefXidRecord record : table) {
@@ -0,0 +1,252 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.core;
+
+// core java
+import java.util.Map;
+import java.util.WeakHashMap;
+// jdom imports
+import org.jdom.Element;
+
+/**
+ * A pass-scoped cache of the xids computed by
+ * {@link XidIdentification#get_xid(Element, boolean, boolean)}.
+ * During a pass the xid of the same element is asked several times;
+ * the cache computes it once per element.<p>
+ *
+ * The cache belongs to the thread which began the pass, and the other
+ * threads are not affected. The elements are held weakly, so that the
+ * documents released during the pass are not kept alive.<p>
+ *
+ * An entry is dropped when {@link XidIdentification} modifies the xid
+ * of its element. An entry also remembers the identification attribute
+ * values it was computed from, and it is not used if any of them has
+ * been replaced since, so that direct modifications of the attributes
+ * are safe too. The cached xids are never handed out; each hit returns
+ * a fresh copy, because the callers are free to modify their xids.
+ */
+public class XidCache
+{
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * The xids of an element, and the attribute values they were
+     * computed from.
+     */
+    private static class Entry {
+        public String xidstring;
+        public String id;
+        public String revstring;
+        public String revspec;
+
+        /**
+         * The xids by the flags of the lookup; see {@link #slot}.
+         */
+        public Xid[] xids = new Xid[4];
+
+        /**
+         * Bit mask of the slots computed so far. A computed xid
+         * may be {@code null}.
+         */
+        public int known = 0;
+    } // class Entry
+
+    // CLASS VARIABLES
+    //=================
+
+    /**
+     * The cache of the current pass of each thread, if any.
+     */
+    private static final ThreadLocal<XidCache> g_current
+        = new ThreadLocal<XidCache>();
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The entries by element. JDOM elements are equal only to
+     * themselves, so this is an identity map.
+     */
+    private Map<Element, Entry> map;
+
+    /**
+     * The entry found by the latest successful {@link #contains}.
+     */
+    private Entry found;
+
+    /** Number of lookups answered from the cache. */
+    public int hits;
+
+    /** Number of lookups which had to be computed. */
+    public int misses;
+
+    /** Number of entries dropped because the element was modified. */
+    public int invalidations;
+
+    // CONSTRUCTORS
+    //==============
+
+    public XidCache() {
+        map = new WeakHashMap<Element, Entry>();
+        found = null;
+        hits = 0;
+        misses = 0;
+        invalidations = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Begins a pass on the current thread.
+     *
+     * @return the cache of the pass
+     */
+    public static XidCache begin() {
+        XidCache rval = new XidCache();
+        g_current.set(rval);
+        return rval;
+    } // begin()
+
+    /**
+     * Ends the pass of the current thread, if any.
+     */
+    public static void end() {
+        g_current.remove();
+    } // end()
+
+    /**
+     * Returns the cache of the current thread's pass, or {@code null}
+     * if no pass is going on.
+     */
+    public static XidCache get_current() {
+        return g_current.get();
+    } // get_current()
+
+    /**
+     * Drops the entry of an element from the current pass, if any.
+     * Called whenever the xid of the element is modified.
+     */
+    public static void invalidate(Element elem) {
+        XidCache cache = g_current.get();
+        if ((cache != null) && (cache.map.remove(elem) != null)) {
+            cache.invalidations++;
+        }
+    } // invalidate()
+
+    private static int slot(boolean allow_missing_rev, boolean require_new_xid) {
+        return (allow_missing_rev ? 1 : 0) | (require_new_xid ? 2 : 0);
+    } // slot()
+
+    private static Xid copy(Xid xid) {
+        if (xid == null) {
+            return null;
+        }
+        return (Xid) xid.clone();
+    } // copy()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns {@code true} if the xid of the element has been computed
+     * from the given attribute values with the given flags.
+     */
+    public boolean contains(
+        Element elem,
+        String xidstring, String id, String revstring, String revspec,
+        boolean allow_missing_rev, boolean require_new_xid
+    ) {
+        Entry entry = map.get(elem);
+        if ((entry == null) || (matches(entry,
+            xidstring, id, revstring, revspec) == false))
+        {
+            misses++;
+            return false;
+        }
+        if ((entry.known & (1 << slot(allow_missing_rev, require_new_xid)))
+            == 0)
+        {
+            misses++;
+            return false;
+        }
+        hits++;
+        found = entry;
+        return true;
+    } // contains()
+
+    /**
+     * Returns a copy of a cached xid. Must be called right after
+     * a successful call to {@link #contains} with the same arguments.
+     */
+    public Xid get(boolean allow_missing_rev, boolean require_new_xid) {
+        Xid rval = copy(found.xids[slot(allow_missing_rev, require_new_xid)]);
+        found = null;
+        return rval;
+    } // get()
+
+    /**
+     * Stores a copy of a computed xid.
+     */
+    public void put(
+        Element elem,
+        String xidstring, String id, String revstring, String revspec,
+        boolean allow_missing_rev, boolean require_new_xid,
+        Xid xid
+    ) {
+        Entry entry = map.get(elem);
+        if ((entry == null) || (matches(entry,
+            xidstring, id, revstring, revspec) == false))
+        {
+            entry = new Entry();
+            entry.xidstring = xidstring;
+            entry.id = id;
+            entry.revstring = revstring;
+            entry.revspec = revspec;
+            map.put(elem, entry);
+        }
+        int i = slot(allow_missing_rev, require_new_xid);
+        entry.xids[i] = copy(xid);
+        entry.known |= 1 << i;
+    } // put()
+
+    /**
+     * Prints the statistics.
+     */
+    public void report() {
+        int total = hits + misses;
+        System.out.printf(
+            "Xid cache: %d hits, %d misses (%.1f%% hit rate), %d invalidations\n",
+            hits, misses, total > 0 ? (hits * 100.0) / total : 0.0,
+            invalidations);
+    } // report()
+
+    /**
+     * The attribute values are compared by identity; a replaced value
+     * is a different object even if it is equal.
+     */
+    private static boolean matches(
+        Entry entry,
+        String xidstring, String id, String revstring, String revspec
+    ) {
+        return (entry.xidstring == xidstring) && (entry.id == id)
+            && (entry.revstring == revstring) && (entry.revspec == revspec);
+    } // matches()
+
+} // class XidCache
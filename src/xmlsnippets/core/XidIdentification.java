@@ -117,13 +117,44 @@ public class XidIdentification
         boolean allow_missing_rev,
         boolean require_new_xid
     ) {
-        Xid rval = null;
-
         String xidstring = elem.getAttributeValue(ATTR_XID);
         String id = elem.getAttributeValue(ATTR_ID);
         String revstring = elem.getAttributeValue(ATTR_REVSTRING);
         String revspec = elem.getAttributeValue(ATTR_REVSPEC);
 
+        XidCache cache = XidCache.get_current();
+        if (cache == null) {
+            return compute_xid(elem, xidstring, id, revstring, revspec,
+                allow_missing_rev, require_new_xid);
+        }
+
+        if (cache.contains(elem, xidstring, id, revstring, revspec,
+            allow_missing_rev, require_new_xid))
+        {
+            return cache.get(allow_missing_rev, require_new_xid);
+        }
+        Xid rval = compute_xid(elem, xidstring, id, revstring, revspec,
+            allow_missing_rev, require_new_xid);
+        cache.put(elem, xidstring, id, revstring, revspec,
+            allow_missing_rev, require_new_xid, rval);
+        return rval;
+    } // get_xid()
+
+    /**
+     * Computes the xid from the values of the identification attributes.
+     * Errors are thrown, and thus never cached.
+     */
+    private static Xid compute_xid(
+        Element elem,
+        String xidstring,
+        String id,
+        String revstring,
+        String revspec,
+        boolean allow_missing_rev,
+        boolean require_new_xid
+    ) {
+        Xid rval = null;
+
         if ((xidstring == null)
             & (id == null) && (revstring == null) && (revspec == null))
         {
@@ -208,7 +239,8 @@ public class XidIdentification
                     }
 
                     if (revstring != null) {
-                        xidstring = String.format("%s:%s@%s", left, revstring, right);
+                        xidstring = left + ':' + revstring
+                            + CHAR_ORG_INDICATOR + right;
                     } else {
                         //xidstring = id;
                         // (this is equal to default format)
@@ -226,7 +258,9 @@ public class XidIdentification
             if (xidstring == null) {
                 // Use default format
                 if (revstring != null) {
-                    xidstring = String.format("%s:%s", id, revstring);
+                    // Concatenated; String.format() would cost more
+                    // than the rest of the identification.
+                    xidstring = id + ':' + revstring;
                 } else {
                     xidstring = id;
                 }
@@ -291,7 +325,7 @@ public class XidIdentification
         } // if: revstring forced
 
         return rval;
-    } // get_xid()
+    } // compute_xid()
 
 
     /**
@@ -304,6 +338,7 @@ public class XidIdentification
      * @return The {@code elem} parameter for convenience.
      */
     public static Element unset_xid(Element elem) {
+        XidCache.invalidate(elem);
         elem.removeAttribute(ATTR_ID);
         elem.removeAttribute(ATTR_REVSTRING);
         elem.removeAttribute(ATTR_XID);
@@ -327,6 +362,8 @@ public class XidIdentification
      * @return The {@code elem} parameter for convenience.
      */
     public static Element set_xid(Element elem, Xid xid) {
+        XidCache.invalidate(elem);
+
         // Determine whether the element has a previous identification.
         // It has to be taken into account that the element may not
         // neccessarily have a previous @rev attribute value (nor @version).
@@ -393,6 +430,7 @@ public class XidIdentification
     } // set_xid()
 
     public static Element set_id(Element elem, String id) {
+        XidCache.invalidate(elem);
         elem.setAttribute(ATTR_ID, id);
         return elem;
     }
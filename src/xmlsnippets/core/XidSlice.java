@@ -0,0 +1,116 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.core;
+
+/**
+ * A reusable, mutable holder of a parsed xid. The id is not copied;
+ * it is recorded as a range of the parsed text. See
+ * {@link XidString#deserialize(CharSequence, int, int, boolean, XidSlice)}.
+ * The values of {@link #rev}, {@link #v_major} and {@link #v_minor}
+ * are the same as in {@link Xid}.
+ */
+public class XidSlice
+{
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The text which was parsed.
+     */
+    public CharSequence text;
+
+    /**
+     * The offset of the first character of the id in {@link #text}.
+     */
+    public int id_begin;
+
+    /**
+     * The offset after the last character of the id in {@link #text}.
+     */
+    public int id_end;
+
+    public int rev;
+    public int v_major;
+    public int v_minor;
+
+    // CONSTRUCTORS
+    //==============
+
+    public XidSlice() {
+        text = null;
+        id_begin = 0;
+        id_end = 0;
+        rev = Xid.REV_MISSING;
+        v_major = Xid.VERSION_INVALID;
+        v_minor = Xid.VERSION_INVALID;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns a copy of the id.
+     */
+    public String get_id() {
+        return text.subSequence(id_begin, id_end).toString();
+    } // get_id()
+
+    /**
+     * Returns the id interned in the given table, or a copy of it
+     * if the table is {@code null}.
+     */
+    public String get_id(IdTable ids) {
+        if (ids == null) {
+            return get_id();
+        }
+        return ids.intern(text, id_begin, id_end);
+    } // get_id()
+
+    /**
+     * Returns {@code true} if the id equals the given string.
+     */
+    public boolean id_equals(String id) {
+        return IdTable.region_equals(id, text, id_begin, id_end);
+    } // id_equals()
+
+    /**
+     * Creates a new {@code Xid} with the parsed values.
+     */
+    public Xid to_xid(IdTable ids) {
+        return new Xid(get_id(ids), rev, v_major, v_minor);
+    } // to_xid()
+
+    /**
+     * Copies the parsed values into an existing {@code Xid}, which can
+     * be used as a reusable look-up key. The id of the key is kept as
+     * is when it equals the parsed id.
+     *
+     * @param key the xid to fill
+     * @param ids the table where the id is interned, or {@code null}
+     * @return the key
+     */
+    public Xid copy_to(Xid key, IdTable ids) {
+        if ((key.id == null) || (id_equals(key.id) == false)) {
+            key.id = get_id(ids);
+        }
+        key.rev = rev;
+        key.v_major = v_major;
+        key.v_minor = v_minor;
+        return key;
+    } // copy_to()
+
+} // class XidSlice
@@ -152,29 +152,52 @@ public class XidString
         String text,
         boolean allow_missing_rev
     ) {
-        // Return variable
-        Xid rval = null;
-        // The picked id
-        String id = null;
-        // Multiple possible rev parts
-        String[] revpart = new String[3];
+        XidSlice slice = new XidSlice();
+        deserialize(text, 0, text.length(), allow_missing_rev, slice);
+        return new Xid(slice.get_id(), slice.rev, slice.v_major, slice.v_minor);
+    } // deserialize()
+
+    /**
+     * Parses a range of characters into a reusable holder. The syntax
+     * and the errors are the same as in {@link #deserialize(String)},
+     * but nothing is allocated unless the text is invalid. The id is
+     * recorded as a range of the text; see {@link XidSlice}.
+     *
+     * @param text the text containing the xid
+     * @param begin the offset of the first character
+     * @param end the offset after the last character
+     * @param allow_missing_rev whether the revision can be omitted
+     * @param into the holder which receives the parsed values
+     */
+    public static void deserialize(
+        CharSequence text,
+        int begin,
+        int end,
+        boolean allow_missing_rev,
+        XidSlice into
+    ) {
+        // The end of the id
+        int id_end = -1;
+        // Multiple possible rev parts; the begin and end offsets of each.
+        int begin0 = 0, end0 = 0;
+        int begin1 = 0, end1 = 0;
+        int begin2 = 0, end2 = 0;
         // Augment the DFA states with a variable; this corresponds
         // to multiplicating number of states related to this variable..
         int partnum = 0;
 
-        int from = 0;
+        int from = begin;
 
         int state = S_ID_EMPTY;
-        int len = text.length();
 
-        for (int i = 0; i < len; i++) {
+        for (int i = begin; i < end; i++) {
             char c = text.charAt(i);
 
             switch(state) {
                 case S_ID_EMPTY:
                     if (c == ':') {
                         throw new RuntimeException(String.format(
-                            "Unexpected colon \'%c\', at offset=%d in \"%s\"", c, i, text));
+                            "Unexpected colon \'%c\', at offset=%d in \"%s\"", c, i-begin, context(text, begin, end)));
                     } // if
 
                     // ** fall-through **
@@ -183,14 +206,14 @@ public class XidString
 
                 case S_ID:
                     if (c == ':') {
-                        id = text.substring(from, i);
+                        id_end = i;
                         from = i+1; // skips the colon
                         state = S_REVPART_EMPTY;
                     }
                     else if ((((int) c) & 0xff) >= 0x80) {
                         // Do not accept
                         throw new RuntimeException(String.format(
-                            "High-byte character \'%c\' at offset=%d in \"%s\"", c, i, text));
+                            "High-byte character \'%c\' at offset=%d in \"%s\"", c, i-begin, context(text, begin, end)));
                     }
                     else {
                         // Character is accepted
@@ -207,7 +230,7 @@ public class XidString
                     //
                     if (c == '.') {
                         throw new RuntimeException(String.format(
-                            "Unexpected dot \'%c\' at offset=%d in \"%s\"", c, i, text));
+                            "Unexpected dot \'%c\' at offset=%d in \"%s\"", c, i-begin, context(text, begin, end)));
                     } else {
                         // Switch to an acceptable state
                         state = S_REVPART;
@@ -217,7 +240,13 @@ public class XidString
                 case S_REVPART:
                     if (c == '.') {
                         // A new revpart begins; record the previous
-                        revpart[partnum] = text.substring(from, i);
+                        if (partnum == 0) {
+                            begin0 = from;
+                            end0 = i;
+                        } else {
+                            begin1 = from;
+                            end1 = i;
+                        } // if-else
                         // Reset the starting position
                         from = i+1;
                         // Increase the number of revparts
@@ -225,7 +254,7 @@ public class XidString
                         // Accept at most 3 parts.
                         if (partnum == 3) {
                             throw new RuntimeException(String.format(
-                                "Too deep; unexpected third dot \'%c\' at offset=%d in \"%s\"", c, i , text));
+                                "Too deep; unexpected third dot \'%c\' at offset=%d in \"%s\"", c, i-begin, context(text, begin, end)));
                         }
                         // Switch state back to an empty revpart
                         state = S_REVPART_AFTER_DOT;
@@ -245,13 +274,22 @@ public class XidString
         // only the id part is present. In that case, the state is manually
         // transit to the ending state which it should be...
         if (state == S_ID) {
-            id = text;
+            id_end = end;
             state = S_REVPART_EMPTY;
         } // if: no colon
 
         if (state == S_REVPART) {
             // The last revpart must always be stored manually..
-            revpart[partnum] = text.substring(from);
+            if (partnum == 0) {
+                begin0 = from;
+                end0 = end;
+            } else if (partnum == 1) {
+                begin1 = from;
+                end1 = end;
+            } else {
+                begin2 = from;
+                end2 = end;
+            } // if-else
             partnum++;
             state = S_COMPLETE;
         } // if: revpart
@@ -269,26 +307,28 @@ public class XidString
             }
             else if (state == S_ID) {
                 throw new RuntimeException(String.format(
-                    "Unexpected end of string: no colon nor revision present in \"%s\"", text));
+                    "Unexpected end of string: no colon nor revision present in \"%s\"", context(text, begin, end)));
             }
             else if (state == S_REVPART_EMPTY) {
                 throw new RuntimeException(String.format(
-                    "Unexpected end of string: no revision present in \"%s\"", text));
+                    "Unexpected end of string: no revision present in \"%s\"", context(text, begin, end)));
             }
             else if (state == S_REVPART_AFTER_DOT) {
                 throw new RuntimeException(String.format(
-                    "Unexpected end of string: the revstring cannot end to a dot in \"%s\"", text));
+                    "Unexpected end of string: the revstring cannot end to a dot in \"%s\"", context(text, begin, end)));
             }
             else {
                 // a fall-back safety guard
                 throw new RuntimeException(String.format(
-                    "Unexpected end of the string: \"%s\", state=%d", text, state));
+                    "Unexpected end of the string: \"%s\", state=%d", context(text, begin, end), state));
             } // if-else
         } // if-else: acceptable ending state
 
-        String revstring = null;
-        String majorstring = null;
-        String minorstring = null;
+        // The ranges of the revstring, majorstring and minorstring;
+        // a negative begin indicates that the part is not present.
+        int rev_begin = -1, rev_end = -1;
+        int major_begin = -1, major_end = -1;
+        int minor_begin = -1, minor_end = -1;
 
         int rev;
         int v_major = Xid.VERSION_INVALID;
@@ -297,11 +337,11 @@ public class XidString
         // then determine what kind of revision there is..
         if (partnum == 0) {
             // No revision at all
-            revstring = null;
         }
         else if (partnum == 1) {
             // A single revision number; it is interpreted as revstring.
-            revstring = revpart[0];
+            rev_begin = begin0;
+            rev_end = end0;
         }
         else if (partnum == 2) {
             // two revparts; either <v_major> '.' <rev>
@@ -310,75 +350,126 @@ public class XidString
             // Disambiguation is impossible in the general situation,
             // so this will be interpreted from now on always as
             //                   or <v_major> '.' <v_minor>
-            majorstring = revpart[0];
-            minorstring = revpart[1];
-            revstring = null;
+            major_begin = begin0;
+            major_end = end0;
+            minor_begin = begin1;
+            minor_end = end1;
         }
         else if (partnum == 3) {
             // This is parsed as <v_major> '.' <v_minor> '.' <rev>
-            majorstring = revpart[0];
-            minorstring = revpart[1];
-            revstring   = revpart[2];
+            major_begin = begin0;
+            major_end = end0;
+            minor_begin = begin1;
+            minor_end = end1;
+            rev_begin = begin2;
+            rev_end = end2;
         }
         else {
             // Should not happen
             throw new RuntimeException(String.format(
-                "The DFA somehow accepted more than three revparts; this shouldnt happen! The input text=\"%\"", text));
+                "The DFA somehow accepted more than three revparts; this shouldnt happen! The input text=\"%s\"", context(text, begin, end)));
         }
 
         // First, attempt to deserialize revstring
 
         // The revision is all integers, so no conversion error should occur.
-        if (revstring == null) {
+        if (rev_begin < 0) {
             if (allow_missing_rev == true) {
                 rev = Xid.REV_MISSING;
             } else {
                 // No rev in the revstring even though it is required.
                 throw new RuntimeException(String.format(
-                    "Unexpected end of string: no revision present in \"%s\"", text));
+                    "Unexpected end of string: no revision present in \"%s\"", context(text, begin, end)));
             } // if-else
         }
         else {
             // revstring not null
-            if (revstring.equals(REV_UNASSIGNED_STRING)) {
+            if ((rev_end - rev_begin == 1)
+                && (text.charAt(rev_begin) == REV_UNASSIGNED_STRING.charAt(0)))
+            {
                 rev = Xid.REV_UNASSIGNED;
             }
             else {
-                rev = parse_revspec_integer(revstring, text);
+                rev = parse_revspec_integer(
+                    text, rev_begin, rev_end, begin, end);
             }
         } // if-else
 
         // Second, attempt to deserialize v major and minor, if any
 
-        if (majorstring != null) {
-            v_major = parse_revspec_integer(majorstring, text);
+        if (major_begin >= 0) {
+            v_major = parse_revspec_integer(
+                text, major_begin, major_end, begin, end);
         }
-        if (minorstring != null) {
-            v_minor = parse_revspec_integer(minorstring, text);
+        if (minor_begin >= 0) {
+            v_minor = parse_revspec_integer(
+                text, minor_begin, minor_end, begin, end);
         }
 
-        return new Xid(id, rev, v_major, v_minor);
+        into.text = text;
+        into.id_begin = begin;
+        into.id_end = id_end;
+        into.rev = rev;
+        into.v_major = v_major;
+        into.v_minor = v_minor;
     } // deserialize()
 
-
-
+    /**
+     * Parses a range into a non-negative integer in the same manner as
+     * {@code Integer.parseInt()}, but without allocating anything.
+     */
     private static int parse_revspec_integer(
-        String input,
-        String context
+        CharSequence text,
+        int from,
+        int to,
+        int begin,
+        int end
     ) {
-        int rval;
-        try {
-            rval = Integer.parseInt(input);
-        } catch(NumberFormatException ex) {
+        boolean negative = false;
+        int i = from;
+        if ((i < to) && ((text.charAt(i) == '-') || (text.charAt(i) == '+'))) {
+            negative = (text.charAt(i) == '-');
+            i++;
+        }
+
+        // The largest magnitude accepted
+        long limit = negative ? -((long) Integer.MIN_VALUE) : Integer.MAX_VALUE;
+        long value = 0;
+        boolean valid = (i < to);
+        for (; valid && (i < to); i++) {
+            int digit = Character.digit(text.charAt(i), 10);
+            if (digit < 0) {
+                valid = false;
+                break;
+            }
+            value = (value * 10) + digit;
+            if (value > limit) {
+                valid = false;
+                break;
+            }
+        } // for
+
+        if (valid == false) {
             throw new RuntimeException(String.format(
-                "Unable to parse \"%s\" into an integer in revstring \"%s\"", input, context));
-        } // try-catch
+                "Unable to parse \"%s\" into an integer in revstring \"%s\"",
+                context(text, from, to), context(text, begin, end)));
+        }
+
+        int rval = (int) (negative ? -value : value);
         if (rval < 0) {
             throw new RuntimeException(String.format(
-                "The number \"%s\" should be a non-negative integer in revstring \"%s\"", input, context));
+                "The number \"%s\" should be a non-negative integer in revstring \"%s\"",
+                context(text, from, to), context(text, begin, end)));
         } // if: negative-valued rev
         return rval;
-    } // parse_revstring_integer()
+    } // parse_revspec_integer()
+
+    /**
+     * Returns the range as a string for the error messages.
+     */
+    private static String context(CharSequence text, int begin, int end) {
+        return text.subSequence(begin, end).toString();
+    } // context()
 
     public static boolean is_valid(String text) {
         boolean rval = true;
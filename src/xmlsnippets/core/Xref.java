@@ -158,17 +158,18 @@ public class Xref
 
     /**
      * Hash code corresponding to the overrided equals() method.
-     *
+     * All bits of both the base and the path contribute, so that
+     * xrefs differing only in the base revision are spread too.
      */
     @Override
     public int hashCode() {
         int rval = 0;
         if (base != null) {
-            rval = rval | (base.hashCode() & 0xffff000);
+            rval = base.hashCode();
         }
 
         if (path != null) {
-            rval = rval | (path.hashCode() & 0x0000fff);
+            rval = (rval * 31) + path.hashCode();
         }
 
         return rval;
@@ -96,21 +96,116 @@ public class XrefString
         String text,
         boolean allow_missing_rev
     ) {
-        // Split into parts
-        List<String> parts = split_string(text, PATH_DELIMITTER);
+        XidSlice base = new XidSlice();
+        List<String> path = new LinkedList<String>();
+        deserialize(text, 0, text.length(), allow_missing_rev,
+            base, path, null);
+
+        Xref rval = new Xref();
+        rval.base = base.to_xid(null);
+        rval.path = path;
+        return rval;
+    } // deserialize()
+
+    /**
+     * Parses a range of characters into reusable holders. The syntax and
+     * the errors are the same as in {@link #deserialize(String, boolean)},
+     * but the text is not split into a list of strings first. The base
+     * xid is parsed with
+     * {@link XidString#deserialize(CharSequence, int, int, boolean, XidSlice)}.
+     *
+     * @param text the text containing the xref
+     * @param begin the offset of the first character
+     * @param end the offset after the last character
+     * @param allow_missing_rev whether the base revision can be omitted
+     * @param base the holder which receives the base xid
+     * @param path the list which receives the property path; it is
+     * cleared first
+     * @param ids the table where the property ids are interned, or
+     * {@code null} to copy them.
+     */
+    public static void deserialize(
+        CharSequence text,
+        int begin,
+        int end,
+        boolean allow_missing_rev,
+        XidSlice base,
+        List<String> path,
+        IdTable ids
+    ) {
+        path.clear();
+
+        // The end of the base xid
+        int xid_end = -1;
+        int from = begin;
 
-        if (parts.size() == 0) {
+        // This is naive, doesn't account for surrogate pairs.
+        // TODO: Take surrogate pairs into account
+        for (int i = begin; i < end; i++) {
+            char c = text.charAt(i);
+            if (Character.isHighSurrogate(c)) {
+                // Read next
+                i++;
+                if (i == end) {
+                    throw new RuntimeException(String.format(
+                        "Reference ends with a high surrogate: %s",
+                        text.subSequence(begin, end)));
+                }
+                char d = text.charAt(i);
+                if (Character.isLowSurrogate(d)) {
+                    // We are good. Ignore it.
+                    continue;
+                } else {
+                    // Treat the high surrogate as the char
+                } // if-else: low surrogate
+            } // if-else: high surrogate
+
+            if (c == PATH_DELIMITTER) {
+                if (from == i) {
+                    throw new RuntimeException(String.format(
+                        "Reference contains an empty property id: %s",
+                        text.subSequence(begin, end)));
+                }
+                // split here; the first part is the base xid
+                if (xid_end < 0) {
+                    xid_end = i;
+                } else {
+                    add_part(text, from, i, path, ids);
+                }
+                from = i+1;
+            }
+        } // for
+
+        if (from >= end) {
             throw new RuntimeException(String.format(
-                "Empty reference"));
+                "Reference cannot end with the path delimitter character: %s",
+                text.subSequence(begin, end)));
         }
 
-        String xidstring = parts.remove(0);
-
-        Xid xid = XidString.deserialize(xidstring, allow_missing_rev);
+        // Otherwise, add the last part
+        if (xid_end < 0) {
+            xid_end = end;
+        } else {
+            add_part(text, from, end, path, ids);
+        }
 
-        return new Xref(xid, parts);
+        XidString.deserialize(text, begin, xid_end, allow_missing_rev, base);
     } // deserialize()
 
+    private static void add_part(
+        CharSequence text,
+        int from,
+        int to,
+        List<String> path,
+        IdTable ids
+    ) {
+        if (ids != null) {
+            path.add(ids.intern(text, from, to));
+        } else {
+            path.add(text.subSequence(from, to).toString());
+        }
+    } // add_part()
+
 
     public static List<String> split_string(String s, char delim) {
         int from = 0;
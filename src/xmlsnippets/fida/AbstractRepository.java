@@ -117,4 +117,12 @@ public interface AbstractRepository {
      */
     public Fida.Node get_latest_leaser(String id);
 
+    /**
+     * Returns the cache of xref resolutions for this repository.
+     * The repository must invalidate the cache whenever it adds a node.
+     *
+     * @return The cache, or {@code null} if resolutions are not cached.
+     */
+    public ResolutionCache get_resolution_cache();
+
 } // interface AbstractRepository
@@ -0,0 +1,429 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Semaphore;
+// jdom imports
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.Xref;
+import xmlsnippets.core.XrefString;
+import xmlsnippets.util.XMLFileHelper;
+import xmlsnippets.util.NamespacesBubbler;
+
+/**
+ * Resolves many xrefs or xids read line by line against one loaded
+ * repository. The lines are handed to a pool of worker threads through
+ * a bounded queue, and the results are written as they become ready,
+ * but in the input order. The number of requests between the next
+ * result to write and the last line read is bounded too, so that
+ * the results waiting for a slow one do not pile up. Each result is
+ * one line of JSON:
+ * <pre>
+ *   {"line":3,"input":"doc:1/title","status":"ok","xml":"&lt;head&gt;..."}
+ *   {"line":4,"input":"doc:9","status":"error","error":"No such element"}
+ * </pre>
+ * The line number refers to the input; empty lines are skipped.
+ * The repository must not be modified while the workers are running.
+ * If a worker dies, the batch fails instead of stopping short.
+ */
+public class BatchResolver {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Resolve xrefs and rebuild the results; like {@code resolve}.
+     */
+    public static final int MODE_RESOLVE = 1;
+
+    /**
+     * Output the payloads of xids as-is; like {@code output2}.
+     */
+    public static final int MODE_OUTPUT = 2;
+
+    /**
+     * Capacity of the queue per worker.
+     */
+    public static final int QUEUE_PER_WORKER = 16;
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * An input line handed to the workers. The last one in
+     * the queue has {@link #end} set.
+     */
+    protected static class Request {
+        public int line;
+        public String input;
+        public boolean end;
+    } // class Request
+
+    /**
+     * Takes requests from the queue until the end marker.
+     */
+    protected class Worker
+        extends Thread
+    {
+        public RenderCache cache;
+
+        public Worker(int num, RenderCache cache) {
+            super(String.format("fida-batch-%d", num));
+            this.cache = cache;
+        } // ctor
+
+        @Override
+        public void run() {
+            try {
+                while (true) {
+                    Request req = queue.take();
+                    if (req.end) {
+                        // Leave the marker for the other workers
+                        queue.put(req);
+                        break;
+                    }
+                    emit(req.line, process(req, cache));
+                } // while
+            } catch(InterruptedException ex) {
+                // Stop silently
+            } catch(Throwable ex) {
+                // The result of the request would never be written
+                fail(ex);
+            } // try-catch
+        } // run()
+    } // class Worker
+
+    // MEMBER VARIABLES
+    //==================
+
+    private AbstractRepository db;
+    private int mode;
+    private int bubble;
+    private PrintStream out;
+    private BlockingQueue<Request> queue;
+
+    /**
+     * Permits for the requests which have been read, but whose results
+     * have not been written yet. A permit is released when the result
+     * is written.
+     */
+    private Semaphore window;
+
+    /**
+     * Results waiting for the preceding ones, by line number.
+     */
+    private Map<Integer, String> pending;
+
+    /**
+     * The thread which reads the input; interrupted if a worker dies.
+     */
+    private Thread reader_thread;
+
+    /**
+     * What killed a worker, or {@code null}.
+     */
+    private Throwable failure;
+
+    /**
+     * The line numbers of the accepted requests in the input order.
+     */
+    private List<Integer> order;
+
+    /**
+     * Index into {@link #order} of the next result to write.
+     */
+    private int next_out;
+
+    /** Number of succesful results. */
+    public int ok;
+
+    /** Number of failed results. */
+    public int failed;
+
+    // CONSTRUCTORS
+    //==============
+
+    /**
+     * @param db the repository
+     * @param mode {@link #MODE_RESOLVE} or {@link #MODE_OUTPUT}
+     * @param bubble how the namespace declarations are bubbled
+     * @param out where the results are written
+     */
+    public BatchResolver(
+        AbstractRepository db,
+        int mode,
+        int bubble,
+        PrintStream out
+    ) {
+        this.db = db;
+        this.mode = mode;
+        this.bubble = bubble;
+        this.out = out;
+        queue = null;
+        window = null;
+        pending = new HashMap<Integer, String>();
+        reader_thread = null;
+        failure = null;
+        order = new ArrayList<Integer>();
+        next_out = 0;
+        ok = 0;
+        failed = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Quotes a string as a JSON string literal.
+     */
+    public static String json_string(String s) {
+        StringBuilder sb = new StringBuilder(s.length() + 16);
+        sb.append('"');
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            switch(c) {
+                case '"':  sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (c < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) c));
+                    } else {
+                        sb.append(c);
+                    }
+                    break;
+            } // switch
+        } // for
+        sb.append('"');
+        return sb.toString();
+    } // json_string()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Reads the input until its end, and writes the results.
+     *
+     * @param reader the input
+     * @param threads the number of workers
+     * @param cache_capacity the render cache capacity of each worker;
+     * zero disables the caches
+     * @return the render caches of the workers, for the statistics
+     */
+    public List<RenderCache> run(
+        BufferedReader reader,
+        int threads,
+        int cache_capacity
+    )
+        throws IOException
+    {
+        int capacity = threads * QUEUE_PER_WORKER;
+        queue = new ArrayBlockingQueue<Request>(capacity);
+        // The requests in the queue, in the workers, and waiting
+        window = new Semaphore(capacity + threads);
+        reader_thread = Thread.currentThread();
+
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads; i++) {
+            RenderCache cache = null;
+            if (cache_capacity > 0) {
+                cache = new RenderCache(cache_capacity);
+            }
+            Worker w = new Worker(i, cache);
+            // Must not keep the process alive if reading fails
+            w.setDaemon(true);
+            workers.add(w);
+            w.start();
+        } // for
+
+        try {
+            int line = 0;
+            String s = null;
+            while ((s = reader.readLine()) != null) {
+                line++;
+                s = s.trim();
+                if (s.length() == 0) {
+                    continue;
+                }
+                Request req = new Request();
+                req.line = line;
+                req.input = s;
+                // Blocks while too many results are not written yet
+                window.acquire();
+                synchronized(this) {
+                    order.add(line);
+                }
+                // Blocks while the queue is full
+                queue.put(req);
+            } // while
+
+            Request end = new Request();
+            end.end = true;
+            queue.put(end);
+
+            for (Worker w : workers) {
+                w.join();
+            }
+        } catch(InterruptedException ex) {
+            check_workers();
+            throw new RuntimeException("Batch interrupted", ex);
+        } // try-catch
+
+        check_workers();
+
+        out.flush();
+
+        List<RenderCache> rval = new ArrayList<RenderCache>();
+        for (Worker w : workers) {
+            if (w.cache != null) {
+                rval.add(w.cache);
+            }
+        } // for
+        return rval;
+    } // run()
+
+    /**
+     * Processes a single request into its result line.
+     */
+    protected String process(Request req, RenderCache cache) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("{\"line\":%d,\"input\":%s,",
+            req.line, json_string(req.input)));
+
+        try {
+            Element elem = null;
+            if (mode == MODE_RESOLVE) {
+                elem = resolve(req.input, cache);
+            } else {
+                elem = output(req.input);
+            }
+            String xml = XMLFileHelper.serialize_element_verbatim(elem);
+            sb.append(String.format("\"status\":\"ok\",\"xml\":%s}",
+                json_string(xml)));
+            count(true);
+        } catch(Exception ex) {
+            String msg = ex.getMessage();
+            if (msg == null) {
+                msg = ex.getClass().getName();
+            }
+            sb.append(String.format("\"status\":\"error\",\"error\":%s}",
+                json_string(msg)));
+            count(false);
+        } // try-catch
+
+        return sb.toString();
+    } // process()
+
+    private Element resolve(String input, RenderCache cache) {
+        Xref xref = null;
+        try {
+            xref = XrefString.deserialize(input, false);
+        } catch(RuntimeException ex) {
+            throw new RuntimeException(String.format(
+                "Syntax error: %s", ex.getMessage()));
+        }
+
+        Element elem = ResolutionLogic.resolve(xref, db);
+        if (elem == null) {
+            throw new RuntimeException("No such element");
+        }
+
+        // Denormalize. No special denormalization
+        elem = XidClient.denormalize(db, elem, null, null, cache);
+
+        if (bubble == XidClient.CmdArgs.BUBBLE_GREEDY) {
+            NamespacesBubbler.bubble_namespaces_greedy(elem);
+        } else if (bubble == XidClient.CmdArgs.BUBBLE_PRUDENT) {
+            NamespacesBubbler.bubble_namespaces_prudent(elem);
+        } // if-else
+
+        return elem;
+    } // resolve()
+
+    private Element output(String input) {
+        Xid xid = XidString.deserialize(input);
+        Fida.Node node = db.get_node(xid);
+        if (node == null) {
+            throw new RuntimeException(String.format(
+                "Cannot resolve payload xid=%s", XidString.serialize(xid)));
+        }
+        // The payload as-is; it is only read.
+        return node.get_payload_element();
+    } // output()
+
+    private synchronized void count(boolean success) {
+        if (success) {
+            ok++;
+        } else {
+            failed++;
+        }
+    } // count()
+
+    /**
+     * Writes the result, and any following results which were waiting
+     * for it, if it is the next one in the input order.
+     */
+    private synchronized void emit(int line, String result) {
+        pending.put(line, result);
+        while (next_out < order.size()) {
+            String s = pending.remove(order.get(next_out));
+            if (s == null) {
+                break;
+            }
+            out.println(s);
+            next_out++;
+            window.release();
+        } // while
+    } // emit()
+
+    /**
+     * Records the failure of a worker, and wakes up the reader.
+     */
+    private synchronized void fail(Throwable ex) {
+        if (failure == null) {
+            failure = ex;
+        }
+        reader_thread.interrupt();
+    } // fail()
+
+    /**
+     * Throws if a worker has died.
+     */
+    private synchronized void check_workers() {
+        if (failure != null) {
+            throw new RuntimeException(String.format(
+                "A worker failed; the results are incomplete: %s",
+                failure), failure);
+        }
+    } // check_workers()
+
+} // class BatchResolver
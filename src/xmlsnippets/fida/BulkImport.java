@@ -0,0 +1,405 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.FileReader;
+import java.io.OutputStreamWriter;
+import java.io.BufferedReader;
+import java.io.PrintWriter;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+// jdom imports
+import org.jdom.Document;
+// xmlsnippets imports
+import xmlsnippets.util.XMLFileHelper;
+import xmlsnippets.util.FileHelper;
+
+/**
+ * Building blocks for importing a large directory tree in batches.
+ * The files are parsed by a separate thread, and handed over to the
+ * ingesting thread through a bounded queue. When the queue is full,
+ * the parser blocks; this bounds the number of documents in memory.
+ * The ingestion itself modifies the repository, and is therefore done
+ * by a single thread only.<p>
+ *
+ * A batch is committed by first writing the rewritten files into
+ * temporary files, then recording them to a journal, then writing the
+ * repository, and finally moving the temporary files over the originals.
+ * The temporary files, the journal and the repository are each forced
+ * to the disk and moved into place whole, in this order, so a crash
+ * leaves every one of them either complete or absent.
+ * If the import is interrupted, the journal tells whether the batch
+ * made it into the repository. If it did, the moves are completed;
+ * otherwise the temporary files are discarded. Already committed files
+ * are tracked, so re-running the import continues where it stopped.
+ */
+public class BulkImport {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix appended to the repository file name to get the journal.
+     */
+    public static final String JOURNAL_SUFFIX = ".import";
+
+    /**
+     * Suffix of the temporary files written during a batch commit.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Suffix of the files that are imported.
+     */
+    public static final String XML_SUFFIX = ".xml";
+
+    /**
+     * Default capacity of the queue between the parser and the ingester.
+     */
+    public static final int DEFAULT_QUEUE_SIZE = 16;
+
+    /**
+     * Minimum interval between throughput reports, in milliseconds.
+     */
+    public static final long REPORT_INTERVAL = 2000;
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * A parsed file handed over from the parser to the ingester.
+     * The last one in the queue has {@link #end} set.
+     */
+    public static class Parsed {
+        /** Path relative to the repository base directory. */
+        public String path = null;
+        /** The parsed document, if succesful. */
+        public Document doc = null;
+        /** The failure, if unsuccesful. */
+        public Exception error = null;
+        /** Marks the end of the input. */
+        public boolean end = false;
+    } // class Parsed
+
+    /**
+     * Parses the files in the given order and puts them into the queue.
+     * This is the only thread using {@code XMLFileHelper}'s parser.
+     */
+    public static class Parser
+        extends Thread
+    {
+        private File basedir;
+        private List<String> paths;
+        private BlockingQueue<Parsed> queue;
+
+        public Parser(
+            File basedir,
+            List<String> paths,
+            BlockingQueue<Parsed> queue
+        ) {
+            super("fida-import-parser");
+            this.basedir = basedir;
+            this.paths = paths;
+            this.queue = queue;
+            // Must not keep the process alive if the ingester fails
+            setDaemon(true);
+        } // ctor
+
+        @Override
+        public void run() {
+            try {
+                for (String path : paths) {
+                    Parsed item = new Parsed();
+                    item.path = path;
+                    try {
+                        File file = new File(basedir, path);
+                        byte[] data = XMLFileHelper.read_file(file);
+                        item.doc = XMLFileHelper.deserialize_document(
+                            data, file);
+                    } catch(Exception ex) {
+                        item.error = ex;
+                    } // try-catch
+
+                    // Blocks while the queue is full
+                    queue.put(item);
+                    if (item.error != null) {
+                        return;
+                    }
+                } // for: each path
+
+                Parsed end = new Parsed();
+                end.end = true;
+                queue.put(end);
+            } catch(InterruptedException ex) {
+                // The ingester gave up; stop silently.
+            } // try-catch
+        } // run()
+    } // class Parser
+
+    /**
+     * Tracks and reports the throughput of the import.
+     */
+    public static class Meter {
+        private long started;
+        private long reported;
+        public int files;
+        public int nodes;
+
+        public Meter() {
+            started = System.currentTimeMillis();
+            reported = started;
+            files = 0;
+            nodes = 0;
+        } // ctor
+
+        /**
+         * Accounts a file and its nodes. Reports the throughput
+         * if enough time has passed since the previous report.
+         */
+        public void tick(int file_count, int node_count) {
+            files += file_count;
+            nodes += node_count;
+            long now = System.currentTimeMillis();
+            if (now - reported >= REPORT_INTERVAL) {
+                reported = now;
+                report("Imported");
+            }
+        } // tick()
+
+        public void report(String what) {
+            double secs = (System.currentTimeMillis() - started) / 1000.0;
+            if (secs <= 0.0) {
+                secs = 0.001;
+            }
+            System.out.printf(
+                "%s %d files, %d nodes in %.1fs (%.1f files/s, %.1f nodes/s)\n",
+                what, files, nodes, secs, files / secs, nodes / secs);
+        } // report()
+    } // class Meter
+
+    // CONSTRUCTORS
+    //==============
+
+    /**
+     * Construction is intentionally disabled.
+     */
+    private BulkImport() {
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the journal file corresponding to a repository file.
+     */
+    public static File get_journal_file(File repo_file) {
+        return new File(repo_file.getPath() + JOURNAL_SUFFIX);
+    } // get_journal_file()
+
+    /**
+     * Returns the temporary file used for a file during a batch commit.
+     */
+    public static File get_temp_file(File file) {
+        return new File(file.getPath() + TEMP_SUFFIX);
+    } // get_temp_file()
+
+    /**
+     * Collects the XML files under a directory recursively, in a stable
+     * sorted order. The paths are relative to the base directory.
+     *
+     * @param basedir the repository base directory
+     * @param dir the directory to walk; must be under basedir
+     * @param exclude relative paths of files and directories
+     * which are not collected
+     * @return the relative paths
+     */
+    public static List<String> walk(
+        File basedir,
+        File dir,
+        Set<String> exclude
+    ) {
+        File rel = null;
+        try {
+            if (basedir.getCanonicalFile().equals(dir.getCanonicalFile())) {
+                rel = null;
+            } else {
+                rel = FileHelper.getRelativePath(basedir, dir);
+                if (rel == null) {
+                    throw new RuntimeException(String.format(
+                        "%s: not under the repository directory",
+                        dir.getPath()));
+                }
+            } // if-else
+        } catch(IOException ex) {
+            throw new RuntimeException(String.format(
+                "%s: getRelativePath() failed", dir.getPath()), ex);
+        } // try-catch
+
+        List<String> rval = new ArrayList<String>();
+        walk(dir, rel, exclude, rval);
+        return rval;
+    } // walk()
+
+    private static void walk(
+        File dir,
+        File rel,
+        Set<String> exclude,
+        List<String> rval
+    ) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            throw new RuntimeException(String.format(
+                "%s: cannot list directory", dir.getPath()));
+        }
+        Arrays.sort(entries);
+
+        for (File f : entries) {
+            File path = (rel == null)
+                ? new File(f.getName()) : new File(rel, f.getName());
+            if (f.isDirectory()) {
+                if (exclude.contains(path.getPath()) == false) {
+                    walk(f, path, exclude, rval);
+                }
+                continue;
+            }
+            if (f.getName().endsWith(XML_SUFFIX) == false) {
+                continue;
+            }
+            if (exclude.contains(path.getPath())) {
+                continue;
+            }
+            rval.add(path.getPath());
+        } // for: each entry
+    } // walk()
+
+    /**
+     * Writes the journal for a batch whose temporary files are ready.
+     * The journal is written into a temporary file which is then moved
+     * into place, so it is never seen half-written.
+     *
+     * @param journal the journal file
+     * @param rev the revision of the batch commit
+     * @param paths the relative paths of the files in the batch
+     */
+    public static void write_journal(
+        File journal,
+        int rev,
+        List<String> paths
+    ) {
+        File tmp = get_temp_file(journal);
+        try {
+            PrintWriter pw = new PrintWriter(new OutputStreamWriter(
+                FileHelper.newSyncedOutputStream(tmp)));
+            pw.printf("%d\n", rev);
+            for (String path : paths) {
+                pw.printf("%s\n", path);
+            }
+            pw.close();
+            if (pw.checkError()) {
+                throw new RuntimeException("write failed");
+            }
+            FileHelper.replaceFile(tmp, journal);
+        } catch(Exception ex) {
+            tmp.delete();
+            throw new RuntimeException(String.format(
+                "%s: cannot write journal; %s",
+                journal.getPath(), ex.getMessage()), ex);
+        } // try-catch
+    } // write_journal()
+
+    /**
+     * Completes or discards an interrupted batch commit.
+     *
+     * @param basedir the repository base directory
+     * @param journal the journal file
+     * @param committed_rev the revision of the repository as read
+     * from the disk
+     * @return the paths whose temporary files were moved into place,
+     * or {@code null} if there was no interrupted batch.
+     */
+    public static List<String> recover(
+        File basedir,
+        File journal,
+        int committed_rev
+    ) {
+        // A journal which was not completely written is not in effect
+        get_temp_file(journal).delete();
+
+        if (journal.isFile() == false) {
+            return null;
+        }
+
+        int rev = -1;
+        List<String> paths = new ArrayList<String>();
+        try {
+            BufferedReader br = new BufferedReader(new FileReader(journal));
+            try {
+                rev = Integer.parseInt(br.readLine().trim());
+                String line = null;
+                while ((line = br.readLine()) != null) {
+                    if (line.length() > 0) {
+                        paths.add(line);
+                    }
+                } // while
+            } finally {
+                br.close();
+            } // try-finally
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot read journal; %s",
+                journal.getPath(), ex.getMessage()), ex);
+        } // try-catch
+
+        // The batch reached the repository if its revision is there.
+        boolean roll_forward = (rev <= committed_rev);
+        List<String> rval = new ArrayList<String>();
+
+        for (String path : paths) {
+            File file = new File(basedir, path);
+            File tmp = get_temp_file(file);
+            if (tmp.isFile() == false) {
+                // Already moved, or never written
+                continue;
+            }
+            if (roll_forward) {
+                try {
+                    FileHelper.replaceFile(tmp, file);
+                } catch(IOException ex) {
+                    throw new RuntimeException(String.format(
+                        "%s: cannot replace; %s",
+                        file.getPath(), ex.getMessage()), ex);
+                } // try-catch
+                rval.add(path);
+            } else {
+                tmp.delete();
+            }
+        } // for: each path
+
+        System.out.printf("Recovered an interrupted import of revision %d: %s\n",
+            rev, roll_forward ? "completed" : "discarded");
+
+        journal.delete();
+        return rval;
+    } // recover()
+
+} // class BulkImport
@@ -0,0 +1,248 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reconstructs every file of a revision into a directory. The files
+ * are rebuilt in parallel by a pool of worker threads. The workers share
+ * the repository, which must not be modified while they are running;
+ * the denormalization only reads the payload elements. Each worker
+ * has a render cache of its own.
+ */
+public class Checkout {
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * Takes the next file from the shared list until the list is
+     * exhausted or some worker has failed.
+     */
+    protected class Worker
+        extends Thread
+    {
+        public RenderCache cache;
+
+        public Worker(int num, RenderCache cache) {
+            super(String.format("fida-checkout-%d", num));
+            this.cache = cache;
+        } // ctor
+
+        @Override
+        public void run() {
+            while (error == null) {
+                int i = next.getAndIncrement();
+                if (i >= files.size()) {
+                    break;
+                }
+                Fida.File ff = files.get(i);
+                File file = new File(target, ff.path);
+                try {
+                    File parent = file.getParentFile();
+                    if (parent != null) {
+                        parent.mkdirs();
+                    }
+                    XidClient.write_manifestation(
+                        db, ff, file, bubble, streaming, cache, file_cache);
+                } catch(Exception ex) {
+                    fail(new RuntimeException(String.format(
+                        "%s: %s", ff.path, ex.getMessage()), ex));
+                    break;
+                } // try-catch
+                done.incrementAndGet();
+                bytes.addAndGet(file.length());
+            } // while
+        } // run()
+    } // class Worker
+
+    // MEMBER VARIABLES
+    //==================
+
+    private AbstractRepository db;
+    private List<Fida.File> files;
+    private File target;
+    private int bubble;
+    private boolean streaming;
+    private RenderedFileCache file_cache;
+
+    /** Index of the next file to take. */
+    private AtomicInteger next;
+
+    /** The first failure of any worker. */
+    private volatile RuntimeException error;
+
+    /** Number of files written. */
+    public AtomicInteger done;
+
+    /** Number of bytes written. */
+    public AtomicLong bytes;
+
+    // CONSTRUCTORS
+    //==============
+
+    /**
+     * @param db the repository
+     * @param files the files to reconstruct
+     * @param target the directory into which the files are written
+     * @param bubble how the namespace declarations are bubbled
+     * @param streaming whether the files are written without
+     * denormalized copies in memory
+     * @param file_cache the on-disk cache of rebuilt files, or {@code null}
+     */
+    public Checkout(
+        AbstractRepository db,
+        List<Fida.File> files,
+        File target,
+        int bubble,
+        boolean streaming,
+        RenderedFileCache file_cache
+    ) {
+        this.db = db;
+        this.files = files;
+        this.target = target;
+        this.bubble = bubble;
+        this.streaming = streaming;
+        this.file_cache = file_cache;
+        next = new AtomicInteger(0);
+        error = null;
+        done = new AtomicInteger(0);
+        bytes = new AtomicLong(0);
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the files present at a revision, sorted by path. Only
+     * the files under the given paths are returned, if any are given.
+     *
+     * @param fida the repository
+     * @param rev the revision
+     * @param filter relative paths of files or directories, or an empty
+     * list to select all files
+     * @return the files
+     */
+    public static List<Fida.File> select(
+        Fida.Repository fida,
+        int rev,
+        List<String> filter
+    ) {
+        // Normalize the dir-separators
+        List<String> prefixes = new ArrayList<String>();
+        for (String s : filter) {
+            prefixes.add(new File(s).getPath());
+        }
+
+        // The nearest revision of each path
+        Map<String, Fida.File> nearest = new TreeMap<String, Fida.File>();
+        for (Fida.Commit fc : fida.commits) {
+            if (fc.item_xid.rev > rev) {
+                continue;
+            }
+            for (Fida.File ff : fc.layout) {
+                Fida.File cur = nearest.get(ff.path);
+                if ((cur == null) || (ff.item_xid.rev > cur.item_xid.rev)) {
+                    nearest.put(ff.path, ff);
+                }
+            } // for: each file in a commit
+        } // for: each commit
+
+        List<Fida.File> rval = new ArrayList<Fida.File>();
+        for (Fida.File ff : nearest.values()) {
+            if (ff.action == Fida.ACTION_FILE_REMOVED) {
+                continue;
+            }
+            if ((prefixes.size() > 0) && (matches(ff.path, prefixes) == false)) {
+                continue;
+            }
+            rval.add(ff);
+        } // for
+        return rval;
+    } // select()
+
+    private static boolean matches(String path, List<String> prefixes) {
+        for (String prefix : prefixes) {
+            if (path.equals(prefix)
+                || path.startsWith(prefix + File.separator))
+            {
+                return true;
+            }
+        } // for
+        return false;
+    } // matches()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Runs the workers and waits for them to finish. If any of them
+     * fails, the rest stop after their current file, and the failure
+     * is thrown.
+     *
+     * @param threads the number of workers
+     * @param cache_capacity the render cache capacity of each worker;
+     * zero disables the caches
+     * @return the render caches of the workers, for the statistics
+     */
+    public List<RenderCache> run(int threads, int cache_capacity) {
+        List<Worker> workers = new ArrayList<Worker>();
+        for (int i = 0; i < threads; i++) {
+            RenderCache cache = null;
+            if (cache_capacity > 0) {
+                cache = new RenderCache(cache_capacity);
+            }
+            workers.add(new Worker(i, cache));
+        } // for
+
+        for (Worker w : workers) {
+            w.start();
+        }
+
+        List<RenderCache> rval = new ArrayList<RenderCache>();
+        try {
+            for (Worker w : workers) {
+                w.join();
+                if (w.cache != null) {
+                    rval.add(w.cache);
+                }
+            } // for
+        } catch(InterruptedException ex) {
+            fail(new RuntimeException("Checkout interrupted", ex));
+        } // try-catch
+
+        if (error != null) {
+            throw error;
+        }
+        return rval;
+    } // run()
+
+    private synchronized void fail(RuntimeException ex) {
+        if (error == null) {
+            error = ex;
+        }
+    } // fail()
+
+} // class Checkout
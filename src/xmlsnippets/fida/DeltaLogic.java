@@ -0,0 +1,421 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.List;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Content;
+import org.jdom.Attribute;
+import org.jdom.Namespace;
+import org.jdom.Text;
+import org.jdom.Comment;
+import org.jdom.ProcessingInstruction;
+import org.jdom.EntityRef;
+// xmlsnippets imports
+import xmlsnippets.util.CompactElement;
+import xmlsnippets.util.ElementWalker;
+
+/**
+ * Computes and applies tree deltas between two revisions of a payload
+ * element. A delta is an element which is stored in the repository
+ * instead of the payload container:
+ * <pre>
+ *   &lt;Delta xml:space="preserve"&gt;
+ *     &lt;Edit&gt;
+ *       &lt;Set a="new value"/&gt;
+ *       &lt;Unset b=""/&gt;
+ *       &lt;Descend at="3"/&gt;
+ *     &lt;/Edit&gt;
+ *     &lt;Edit&gt;
+ *       &lt;Splice head="1" tail="2"&gt;new content&lt;/Splice&gt;
+ *     &lt;/Edit&gt;
+ *   &lt;/Delta&gt;
+ * </pre>
+ * Each edit applies to one element along a path from the root. The
+ * attributes carried by {@code <Set>} are set or replaced, and the
+ * attributes carried by {@code <Unset>} are removed. If the order of
+ * the attributes changes, {@code <Reset>} carries all of them instead.
+ * The namespace declarations carried by {@code <Namespaces>} replace
+ * the additional namespaces of the element. Then either the
+ * content is spliced: everything but the first {@code head} and the
+ * last {@code tail} nodes is replaced with the content of the
+ * {@code <Splice>}; or the walk descends to the child at index
+ * {@code at}, to which the next edit applies.<p>
+ *
+ * The delta has {@code xml:space="preserve"}, so that the spliced
+ * content is serialized as is. The content is compared structurally,
+ * so the revisions must be in the same form, that is, either both or
+ * neither read from the repository file.
+ */
+public class DeltaLogic {
+
+    // CONSTRUCTORS
+    //==============
+
+    /**
+     * Construction is intentionally disabled.
+     */
+    private DeltaLogic() {
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Computes the delta which turns an element into another. Neither
+     * element is modified, and the delta does not share content with
+     * them.
+     *
+     * @param base the previous revision
+     * @param elem the next revision
+     * @return the delta, or {@code null} if the elements have different
+     * names, or if the delta cannot be serialized faithfully
+     */
+    public static Element diff(Element base, Element elem) {
+        if (same_name(base, elem) == false) {
+            return null;
+        }
+
+        Element rval = new Element(FidaXML.ELEM_FIDA_NODE_DELTA);
+        rval.setAttribute("space", "preserve", Namespace.XML_NAMESPACE);
+
+        Element a = base;
+        Element b = elem;
+        while (true) {
+            Element edit = new Element(FidaXML.ELEM_FIDA_DELTA_EDIT);
+            rval.addContent(edit);
+            diff_attributes(a, b, edit);
+            if (diff_namespaces(a, b, edit) == false) {
+                return null;
+            }
+
+            List<?> ca = a.getContent();
+            List<?> cb = b.getContent();
+            int na = ca.size();
+            int nb = cb.size();
+            int min = Math.min(na, nb);
+
+            // The unchanged nodes at both ends
+            int head = 0;
+            while ((head < min)
+                && content_equals(ca.get(head), cb.get(head)))
+            {
+                head++;
+            }
+            int tail = 0;
+            while ((tail < min-head)
+                && content_equals(ca.get(na-1-tail), cb.get(nb-1-tail)))
+            {
+                tail++;
+            }
+
+            if ((na == head+tail) && (nb == head+tail)) {
+                // The content is unchanged
+                break;
+            }
+
+            if ((na == head+tail+1) && (nb == head+tail+1)
+                && (ca.get(head) instanceof Element)
+                && (cb.get(head) instanceof Element)
+                && same_name((Element) ca.get(head), (Element) cb.get(head)))
+            {
+                // A single element has changed; descend into it
+                Element descend = new Element(FidaXML.ELEM_FIDA_DELTA_DESCEND);
+                descend.setAttribute(FidaXML.ATTR_FIDA_DELTA_DESCEND_AT,
+                    Integer.toString(head));
+                edit.addContent(descend);
+                a = (Element) ca.get(head);
+                b = (Element) cb.get(head);
+                continue;
+            } // if
+
+            Element splice = new Element(FidaXML.ELEM_FIDA_DELTA_SPLICE);
+            splice.setAttribute(FidaXML.ATTR_FIDA_DELTA_SPLICE_HEAD,
+                Integer.toString(head));
+            splice.setAttribute(FidaXML.ATTR_FIDA_DELTA_SPLICE_TAIL,
+                Integer.toString(tail));
+            for (int i = head; i < nb-tail; i++) {
+                Object obj = cb.get(i);
+                if (obj instanceof Element) {
+                    Element child = (Element) obj;
+                    if (has_space(child)) {
+                        // Would switch the formatting back on
+                        return null;
+                    }
+                    splice.addContent(
+                        CompactElement.compact(child).to_element());
+                } else {
+                    splice.addContent((Content) ((Content) obj).clone());
+                }
+            } // for
+            edit.addContent(splice);
+            break;
+        } // while
+
+        return rval;
+    } // diff()
+
+    /**
+     * Applies a delta to an element. The element is modified in place,
+     * and the spliced content is moved from the delta into it, so the
+     * delta can be applied only once.
+     *
+     * @param base the previous revision; modified to the next revision
+     * @param delta the delta
+     * @return the modified element
+     */
+    public static Element apply(Element base, Element delta) {
+        FidaXML.expect_name(delta, FidaXML.ELEM_FIDA_NODE_DELTA);
+
+        Element cur = base;
+        Element next = null;
+        for (Object obj : delta.getChildren()) {
+            Element edit = (Element) obj;
+            FidaXML.expect_name(edit, FidaXML.ELEM_FIDA_DELTA_EDIT);
+            if (cur == null) {
+                throw new RuntimeException(String.format(
+                    "%s: an edit after the content was spliced",
+                    FidaXML.get_addr(edit)));
+            }
+
+            for (Object o : edit.getChildren()) {
+                Element c = (Element) o;
+                String name = c.getName();
+                if (name.equals(FidaXML.ELEM_FIDA_DELTA_SET)) {
+                    for (Object a : c.getAttributes()) {
+                        cur.setAttribute((Attribute) ((Attribute) a).clone());
+                    }
+                }
+                else if (name.equals(FidaXML.ELEM_FIDA_DELTA_UNSET)) {
+                    for (Object a : c.getAttributes()) {
+                        Attribute attr = (Attribute) a;
+                        cur.removeAttribute(attr.getName(),
+                            attr.getNamespace());
+                    }
+                }
+                else if (name.equals(FidaXML.ELEM_FIDA_DELTA_RESET)) {
+                    cur.getAttributes().clear();
+                    for (Object a : c.getAttributes()) {
+                        cur.setAttribute((Attribute) ((Attribute) a).clone());
+                    }
+                }
+                else if (name.equals(FidaXML.ELEM_FIDA_DELTA_NAMESPACES)) {
+                    for (Object ns : cur.getAdditionalNamespaces().toArray()) {
+                        cur.removeNamespaceDeclaration((Namespace) ns);
+                    }
+                    for (Object ns : c.getAdditionalNamespaces()) {
+                        cur.addNamespaceDeclaration((Namespace) ns);
+                    }
+                }
+                else if (name.equals(FidaXML.ELEM_FIDA_DELTA_SPLICE)) {
+                    splice(cur, c);
+                    next = null;
+                }
+                else if (name.equals(FidaXML.ELEM_FIDA_DELTA_DESCEND)) {
+                    int at = get_index(c, FidaXML.ATTR_FIDA_DELTA_DESCEND_AT);
+                    Object child = null;
+                    if (at < cur.getContentSize()) {
+                        child = cur.getContent(at);
+                    }
+                    if ((child instanceof Element) == false) {
+                        throw new RuntimeException(String.format(
+                            "%s: there is no element at %d",
+                            FidaXML.get_addr(c), at));
+                    }
+                    next = (Element) child;
+                }
+                else {
+                    FidaXML.unexpected_child(c);
+                } // if-else
+            } // for: each operation
+
+            cur = next;
+            next = null;
+        } // for: each edit
+
+        return base;
+    } // apply()
+
+    // HELPER METHODS
+    //================
+
+    private static void diff_attributes(Element a, Element b, Element edit) {
+        Element set = new Element(FidaXML.ELEM_FIDA_DELTA_SET);
+        Element unset = new Element(FidaXML.ELEM_FIDA_DELTA_UNSET);
+
+        // The kept attributes stay in place, and the new ones are
+        // appended. Check that this gives the order of the next revision.
+        List<?> list = b.getAttributes();
+        int kept = 0;
+        boolean ordered = true;
+        for (Object obj : a.getAttributes()) {
+            Attribute attr = (Attribute) obj;
+            Attribute cur = b.getAttribute(attr.getName(), attr.getNamespace());
+            if (cur == null) {
+                unset.setAttribute(attr.getName(), "", attr.getNamespace());
+            } else {
+                if (list.get(kept) != cur) {
+                    ordered = false;
+                }
+                kept++;
+            }
+        } // for
+        for (int i = 0; i < list.size(); i++) {
+            Attribute attr = (Attribute) list.get(i);
+            Attribute old = a.getAttribute(attr.getName(), attr.getNamespace());
+            if ((old == null) && (i < kept)) {
+                ordered = false;
+            }
+            if ((old == null) || (old.getValue().equals(attr.getValue()) == false)) {
+                set.setAttribute((Attribute) attr.clone());
+            }
+        } // for
+
+        if (ordered == false) {
+            Element reset = new Element(FidaXML.ELEM_FIDA_DELTA_RESET);
+            for (Object obj : list) {
+                Attribute attr = (Attribute) obj;
+                reset.setAttribute((Attribute) attr.clone());
+            }
+            edit.addContent(reset);
+            return;
+        } // if
+
+        if (set.getAttributes().size() > 0) {
+            edit.addContent(set);
+        }
+        if (unset.getAttributes().size() > 0) {
+            edit.addContent(unset);
+        }
+    } // diff_attributes()
+
+    /**
+     * Adds the namespace declarations of the next revision, if they
+     * have changed. Returns {@code false} if they cannot be carried
+     * by an element without a namespace.
+     */
+    private static boolean diff_namespaces(Element a, Element b, Element edit) {
+        List<?> list = b.getAdditionalNamespaces();
+        if (list.equals(a.getAdditionalNamespaces())) {
+            return true;
+        }
+        Element namespaces = new Element(FidaXML.ELEM_FIDA_DELTA_NAMESPACES);
+        for (Object obj : list) {
+            Namespace ns = (Namespace) obj;
+            if (ns.getPrefix().length() == 0) {
+                // Would put the holder itself into the namespace
+                return false;
+            }
+            namespaces.addNamespaceDeclaration(ns);
+        }
+        edit.addContent(namespaces);
+        return true;
+    } // diff_namespaces()
+
+    private static void splice(Element cur, Element splice) {
+        int head = get_index(splice, FidaXML.ATTR_FIDA_DELTA_SPLICE_HEAD);
+        int tail = get_index(splice, FidaXML.ATTR_FIDA_DELTA_SPLICE_TAIL);
+        int size = cur.getContentSize();
+        if (head + tail > size) {
+            throw new RuntimeException(String.format(
+                "%s: cannot keep %d+%d of %d nodes",
+                FidaXML.get_addr(splice), head, tail, size));
+        }
+        for (int i = head; i < size-tail; i++) {
+            cur.removeContent(head);
+        }
+        cur.addContent(head, splice.removeContent());
+    } // splice()
+
+    private static int get_index(Element elem, String aname) {
+        String value = FidaXML.get_attr(elem, aname);
+        int rval;
+        try {
+            rval = Integer.parseInt(value);
+        } catch(NumberFormatException ex) {
+            rval = -1;
+        }
+        if (rval < 0) {
+            throw new RuntimeException(String.format(
+                "%s: expected a non-negative integer, but found \"%s\"",
+                FidaXML.get_addr(elem), value));
+        }
+        return rval;
+    } // get_index()
+
+    private static boolean same_name(Element a, Element b) {
+        return a.getName().equals(b.getName())
+            && a.getNamespace().equals(b.getNamespace());
+    } // same_name()
+
+    private static boolean content_equals(Object a, Object b) {
+        if (a.getClass() != b.getClass()) {
+            return false;
+        }
+        if (a instanceof Element) {
+            return CompactElement.compact((Element) a).equals(
+                CompactElement.compact((Element) b));
+        }
+        if (a instanceof Text) {
+            return ((Text) a).getText().equals(((Text) b).getText());
+        }
+        if (a instanceof Comment) {
+            return ((Comment) a).getText().equals(((Comment) b).getText());
+        }
+        if (a instanceof ProcessingInstruction) {
+            ProcessingInstruction pa = (ProcessingInstruction) a;
+            ProcessingInstruction pb = (ProcessingInstruction) b;
+            return pa.getTarget().equals(pb.getTarget())
+                && pa.getData().equals(pb.getData());
+        }
+        if (a instanceof EntityRef) {
+            EntityRef ea = (EntityRef) a;
+            EntityRef eb = (EntityRef) b;
+            return ea.getName().equals(eb.getName())
+                && equals(ea.getPublicID(), eb.getPublicID())
+                && equals(ea.getSystemID(), eb.getSystemID());
+        }
+        return false;
+    } // content_equals()
+
+    private static boolean equals(String a, String b) {
+        return (a == null) ? (b == null) : a.equals(b);
+    } // equals()
+
+    /**
+     * Returns {@code true} if the tree has an {@code xml:space}
+     * attribute, which would change how the spliced content is
+     * serialized.
+     */
+    private static boolean has_space(Element elem) {
+        final boolean[] found = new boolean[] { false };
+        ElementWalker.get_local().walk(elem, new ElementWalker.Visitor() {
+            @Override
+            public Element enter(ElementWalker w, Element e) {
+                if (e.getAttribute("space", Namespace.XML_NAMESPACE) != null) {
+                    found[0] = true;
+                    w.stop();
+                }
+                return e;
+            }
+        });
+        return found[0];
+    } // has_space()
+
+} // class DeltaLogic
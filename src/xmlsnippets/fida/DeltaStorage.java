@@ -0,0 +1,213 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+// jdom imports
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.util.CompactElement;
+
+/**
+ * The bookkeeping of delta-encoded payloads while the repository file
+ * is written or read. A node is stored as a delta against its previous
+ * revision (see {@link DeltaLogic}), except every {@code n}th revision
+ * of a lifeline, which is stored in full as a keyframe. The keyframes
+ * bound the number of deltas that must be replayed to reconstruct
+ * a payload from the file.<p>
+ *
+ * The payload elements of the recently written or read nodes are kept
+ * in a bounded cache, so that a delta is usually computed or applied
+ * without creating the previous revision from its compact form again.
+ * The nodes of a repository are written and read in the same order,
+ * oldest commit first, so the previous revision is always known.
+ */
+public class DeltaStorage {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Default maximum number of cached payload elements.
+     */
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    /**
+     * Default maximum number of revisions between keyframes.
+     */
+    public static final int DEFAULT_INTERVAL = 16;
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The maximum number of revisions between keyframes.
+     */
+    private int interval;
+
+    /**
+     * The number of deltas since the last keyframe of each written node.
+     */
+    private Map<Fida.Node, Integer> depths;
+
+    /**
+     * The nodes read so far by their internal xid.
+     */
+    private Map<Xid, Fida.Node> nodes;
+
+    /**
+     * The recently used payload elements.
+     */
+    private Map<Fida.Node, Element> cache;
+
+    /** Number of payloads written as deltas. */
+    public int deltas;
+
+    /** Number of payloads written in full. */
+    public int keyframes;
+
+    // CONSTRUCTORS
+    //==============
+
+    public DeltaStorage(int interval) {
+        this(interval, DEFAULT_CAPACITY);
+    } // ctor
+
+    public DeltaStorage(int interval, final int capacity) {
+        this.interval = interval;
+        depths = new HashMap<Fida.Node, Integer>();
+        nodes = new HashMap<Xid, Fida.Node>();
+        cache = new LinkedHashMap<Fida.Node, Element>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Fida.Node, Element> e) {
+                return size() > capacity;
+            }
+        };
+        deltas = 0;
+        keyframes = 0;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Computes the delta by which a node is written. The previous
+     * revision must have been passed to this method already.
+     *
+     * @param node the node to write
+     * @return the delta, or {@code null} if the payload is to be written
+     * in full
+     */
+    public Element encode(Fida.Node node) {
+        Element rval = null;
+        Element elem = get_element(node);
+
+        int depth = 0;
+        Fida.Node prev = (node.prev.size() == 1) ? node.prev.get(0) : null;
+        if ((prev != null) && node.loaded && prev.loaded
+            && depths.containsKey(prev))
+        {
+            depth = depths.get(prev) + 1;
+        }
+
+        if ((depth > 0) && (depth < interval)) {
+            rval = DeltaLogic.diff(get_element(prev), elem);
+            if ((rval != null) && (verify(prev, rval, elem) == false)) {
+                rval = null;
+            }
+        }
+
+        if (rval == null) {
+            depth = 0;
+            keyframes++;
+        } else {
+            deltas++;
+        }
+        depths.put(node, depth);
+        return rval;
+    } // encode()
+
+    /**
+     * Reconstructs the payload element of a node read as a delta.
+     * The previous revision must have been read already.
+     *
+     * @param prev_xid the internal xid of the previous revision
+     * @param delta the delta; the spliced content is moved out of it
+     * @return the payload element
+     */
+    public Element decode(Xid prev_xid, Element delta) {
+        Fida.Node prev = nodes.get(prev_xid);
+        if (prev == null) {
+            throw new RuntimeException(String.format(
+                "%s: the previous node %s has not been read",
+                FidaXML.get_addr(delta), prev_xid));
+        }
+        // The cached element of the previous revision is modified in
+        // place, so it is taken out of the cache. Should another revision
+        // follow the same node, the element is created again from
+        // the compact form.
+        Element base = cache.remove(prev);
+        if (base == null) {
+            base = prev.payload.to_element();
+        }
+        return DeltaLogic.apply(base, delta);
+    } // decode()
+
+    /**
+     * Records a node which has been read, and its payload element.
+     */
+    public void record(Fida.Node node, Element payload) {
+        nodes.put(node.item_xid, node);
+        cache.put(node, payload);
+    } // record()
+
+    // HELPER METHODS
+    //================
+
+    /**
+     * Returns the payload element of a written node. The element must
+     * not be modified.
+     */
+    private Element get_element(Fida.Node node) {
+        Element rval = cache.get(node);
+        if (rval == null) {
+            rval = node.payload.to_element();
+            cache.put(node, rval);
+        }
+        return rval;
+    } // get_element()
+
+    /**
+     * Returns {@code true} if the delta reproduces the payload exactly,
+     * and is smaller than the payload.
+     */
+    private boolean verify(Fida.Node prev, Element delta, Element elem) {
+        CompactElement expected = CompactElement.compact(elem);
+        CompactElement packed = CompactElement.compact(delta);
+        if (packed.get_heap_size() >= expected.get_heap_size()) {
+            return false;
+        }
+        Element copy = packed.to_element();
+        Element result = DeltaLogic.apply(prev.payload.to_element(), copy);
+        return CompactElement.compact(result).equals(expected);
+    } // verify()
+
+} // class DeltaStorage
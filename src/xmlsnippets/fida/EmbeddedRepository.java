@@ -0,0 +1,590 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.InputStream;
+import java.io.Reader;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.Stack;
+// jdom imports
+import org.jdom.Document;
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.XidIdentification;
+import xmlsnippets.util.XMLFileHelper;
+
+/**
+ * An in-process interface to a repository for programs which produce
+ * the XML documents in memory. The documents are given as streams or
+ * as JDOM documents; nothing needs to be written to the disk except
+ * the repository file itself.<p>
+ *
+ * All state is kept in the repository object. Several repositories can
+ * be used concurrently from different threads. The methods of a single
+ * repository object are synchronized, and only one commit at a time can
+ * be in progress. The repository file is not locked; the command-line
+ * client or another process must not modify it at the same time.<p>
+ *
+ * Typical usage:
+ * <pre>
+ *     EmbeddedRepository repo = EmbeddedRepository.open(file);
+ *     EmbeddedRepository.Transaction tx = repo.begin();
+ *     Document doc = tx.add("data/a.xml", input_stream);
+ *     int rev = tx.commit();
+ * </pre>
+ * During the commit the documents receive their revision numbers in
+ * place, exactly as the files do when committed with the command-line
+ * client. The recorded digest of a document is that of its verbatim
+ * serialization; see {@link XMLFileHelper#serialize_document_verbatim}.
+ */
+public class EmbeddedRepository {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Returned by {@link Transaction#commit()} when there was nothing
+     * to commit.
+     */
+    public static final int REV_UNCHANGED = -1;
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * A commit being built. The documents are collected first, and
+     * processed only when the transaction is committed. If any of them
+     * is rejected, nothing is committed.
+     */
+    public class Transaction {
+
+        /** The commit object being built. */
+        private Fida.Commit commit;
+
+        /** Set when committed or aborted. */
+        private boolean closed;
+
+        protected Transaction(Fida.Commit commit) {
+            this.commit = commit;
+            this.closed = false;
+        } // ctor
+
+        /**
+         * Starts tracking a new document parsed from a byte stream.
+         * The stream is not closed.
+         *
+         * @param path the path relative to the repository directory
+         * @param is the contents of the document
+         * @return the parsed document
+         */
+        public Document add(String path, InputStream is) {
+            return add(path, parse(path, is, null));
+        } // add()
+
+        /**
+         * Starts tracking a new document parsed from a character stream.
+         * The stream is not closed.
+         */
+        public Document add(String path, Reader reader) {
+            return add(path, parse(path, null, reader));
+        } // add()
+
+        /**
+         * Starts tracking a new document. The document is modified
+         * in place during the commit.
+         */
+        public Document add(String path, Document doc) {
+            synchronized (EmbeddedRepository.this) {
+                expect_open();
+                path = normalize_path(path);
+
+                if (get_tracked(path) != null) {
+                    throw new RuntimeException(String.format(
+                        "%s: already tracked!", path));
+                }
+
+                Fida.File ff = new_file(path, Fida.ACTION_FILE_ADDED);
+                ff.doc = doc;
+                return doc;
+            } // synchronized
+        } // add()
+
+        /**
+         * Records a new version of a tracked document parsed from
+         * a byte stream. The stream is not closed.
+         */
+        public Document update(String path, InputStream is) {
+            return update(path, parse(path, is, null));
+        } // update()
+
+        /**
+         * Records a new version of a tracked document parsed from
+         * a character stream. The stream is not closed.
+         */
+        public Document update(String path, Reader reader) {
+            return update(path, parse(path, null, reader));
+        } // update()
+
+        /**
+         * Records a new version of a tracked document. The document is
+         * modified in place during the commit.
+         */
+        public Document update(String path, Document doc) {
+            synchronized (EmbeddedRepository.this) {
+                expect_open();
+                path = normalize_path(path);
+
+                Fida.File prev = get_tracked(path);
+                if (prev == null) {
+                    throw new RuntimeException(String.format(
+                        "%s: file not tracked", path));
+                }
+
+                Fida.File ff = new_file(path, Fida.ACTION_FILE_UPDATED);
+                ff.prev = prev;
+                ff.doc = doc;
+                return doc;
+            } // synchronized
+        } // update()
+
+        /**
+         * Stops tracking a document.
+         */
+        public void remove(String path) {
+            synchronized (EmbeddedRepository.this) {
+                expect_open();
+                path = normalize_path(path);
+
+                Fida.File prev = get_tracked(path);
+                if (prev == null) {
+                    throw new RuntimeException(String.format(
+                        "%s: file not tracked", path));
+                }
+
+                Fida.File del = new_file(path, Fida.ACTION_FILE_REMOVED);
+                del.prev = prev;
+                del.digest = prev.digest;
+                del.root_xid = prev.root_xid;
+            } // synchronized
+        } // remove()
+
+        /**
+         * Processes the documents against the repository, and writes
+         * the repository file. If a document is rejected, the repository
+         * is left as it was, and the exception is rethrown; the documents
+         * may have been partially modified.
+         *
+         * @return the committed revision, or {@link #REV_UNCHANGED}
+         * if nothing was changed.
+         */
+        public int commit() {
+            synchronized (EmbeddedRepository.this) {
+                expect_open();
+                closed = true;
+                active = null;
+
+                try {
+                    return process();
+                } catch(RuntimeException ex) {
+                    // Undo everything done to the repository in memory
+                    reload();
+                    throw ex;
+                } // try-catch
+            } // synchronized
+        } // commit()
+
+        /**
+         * Discards the transaction.
+         */
+        public void abort() {
+            synchronized (EmbeddedRepository.this) {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                active = null;
+                // Only the uids and the revision have been consumed.
+                fida.next_commit = null;
+                fida.item_xid.rev--;
+            } // synchronized
+        } // abort()
+
+        // HELPER METHODS
+        //================
+
+        private void expect_open() {
+            if (closed) {
+                throw new RuntimeException(
+                    "The transaction is already closed");
+            }
+        } // expect_open()
+
+        private Fida.File new_file(String path, int action) {
+            for (Fida.File ff : commit.layout) {
+                if (ff.path.equals(path)) {
+                    throw new RuntimeException(String.format(
+                        "%s: already in the commit", path));
+                }
+            } // for
+
+            Fida.File ff = new Fida.File();
+            ff.item_xid = db.generate_xid("file");
+            ff.path = path;
+            ff.action = action;
+            ff.parent_commit = commit;
+            commit.layout.add(ff);
+            return ff;
+        } // new_file()
+
+        private int process() {
+            // Preprocess the whole set first, as the command-line
+            // client does, so that the highest revision is known.
+            for (Fida.File ff : commit.layout) {
+                if (ff.action == Fida.ACTION_FILE_REMOVED) {
+                    continue;
+                }
+                XidClient.preprocess(ff.doc.getRootElement(), db, fida);
+            } // for: each file
+
+            for (Fida.File ff : commit.layout) {
+                if (ff.action == Fida.ACTION_FILE_REMOVED) {
+                    continue;
+                }
+                Element root = ff.doc.getRootElement();
+
+                Map<Element, List<Stack<Xid>>> manifestations_map
+                    = new LinkedHashMap<Element, List<Stack<Xid>>>();
+                UpdateLogic.ingest(db, root, manifestations_map, null,
+                    options);
+
+                ff.root_xid = XidIdentification.get_xid(root);
+                if (ff.root_xid == null) {
+                    throw new RuntimeException(String.format(
+                        "%s: the root element must have a xid!", ff.path));
+                }
+                ff.manifestation = ManifestationTrie.intern(
+                    ManifestationTrie.build(manifestations_map.get(null)));
+            } // for: each file
+
+            XidClient.close_commit(fida, commit);
+            if (fida.state.modified == false) {
+                fida.next_commit = null;
+                fida.item_xid.rev--;
+                return REV_UNCHANGED;
+            } // if: nothing to commit
+
+            for (Fida.File ff : commit.layout) {
+                if (ff.action != Fida.ACTION_FILE_REMOVED) {
+                    try {
+                        ff.digest = XMLFileHelper.digest_document_verbatim(
+                            ff.doc, WorkingTreeIndex.DIGEST_ALGO);
+                    } catch(Exception ex) {
+                        throw new RuntimeException(String.format(
+                            "%s: cannot calculate digest; %s",
+                            ff.path, ex.getMessage()), ex);
+                    } // try-catch
+                } // if
+                // The caller owns the document
+                ff.doc = null;
+                if (ff.prev != null) {
+                    ff.prev.next.add(ff);
+                }
+            } // for: each file
+            FidaXML.build_total_tree(fida);
+
+            FidaXML.serialize(fida);
+            fida.state.modified = false;
+            fida.next_commit = null;
+
+            return fida.item_xid.rev;
+        } // process()
+    } // class Transaction
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The repository itself.
+     */
+    private Fida.Repository fida;
+
+    /**
+     * The glue between the update logic and the repository.
+     */
+    private XidClient.FidaRepository db;
+
+    /**
+     * The update options of this repository.
+     */
+    private UpdateLogic.Options options;
+
+    /**
+     * Ingest elements with unknown revisions, see "-force".
+     */
+    private boolean allow_unknowns;
+
+    /**
+     * Give new revisions to elements with unknown revisions, see "-unrev".
+     */
+    private boolean unrev_unknowns;
+
+    /**
+     * Resolve references without a revision, see "-autoref".
+     */
+    private boolean autoref;
+
+    /**
+     * The transaction in progress, if any.
+     */
+    private Transaction active;
+
+    // CONSTRUCTORS
+    //==============
+
+    protected EmbeddedRepository(Fida.Repository fida) {
+        allow_unknowns = false;
+        unrev_unknowns = false;
+        autoref = false;
+        active = null;
+        set_repository(fida);
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Creates a new empty repository file.
+     *
+     * @param file the repository file; must not exist
+     * @param name the name of the repository
+     * @return the opened repository
+     */
+    public static EmbeddedRepository create(File file, String name) {
+        if (file.exists()) {
+            throw new RuntimeException(String.format(
+                "Already exists: %s", file.getPath()));
+        }
+
+        Fida.Repository fida = new Fida.Repository();
+        fida.file = file;
+        fida.item_xid = new Xid(String.format(
+            "#repository!%s", name), 0);
+        FidaXML.build_total_tree(fida);
+        FidaXML.serialize(fida);
+
+        return new EmbeddedRepository(fida);
+    } // create()
+
+    /**
+     * Opens an existing repository file.
+     */
+    public static EmbeddedRepository open(File file) {
+        if (file.isFile() == false) {
+            throw new RuntimeException(String.format(
+                "Not a file or does not exist: %s", file.getPath()));
+        }
+        return new EmbeddedRepository(FidaXML.deserialize(file));
+    } // open()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the repository file.
+     */
+    public synchronized File get_file() {
+        return fida.file;
+    } // get_file()
+
+    /**
+     * Returns the latest committed revision.
+     */
+    public synchronized int get_revision() {
+        if (active != null) {
+            return fida.item_xid.rev-1;
+        }
+        return fida.item_xid.rev;
+    } // get_revision()
+
+    public synchronized void set_allow_unknowns(boolean value) {
+        allow_unknowns = value;
+        configure();
+    } // set_allow_unknowns()
+
+    public synchronized void set_unrev_unknowns(boolean value) {
+        unrev_unknowns = value;
+        configure();
+    } // set_unrev_unknowns()
+
+    public synchronized void set_autoref(boolean value) {
+        autoref = value;
+        configure();
+    } // set_autoref()
+
+    /**
+     * Begins a new commit.
+     */
+    public synchronized Transaction begin() {
+        if (active != null) {
+            throw new RuntimeException(
+                "Another commit is already in progress");
+        }
+
+        // The commit gets the next revision
+        fida.item_xid.rev++;
+        active = new Transaction(XidClient.allocate_commit(fida));
+        return active;
+    } // begin()
+
+    /**
+     * Returns the paths of the currently tracked documents.
+     */
+    public synchronized List<String> get_paths() {
+        List<String> rval = new ArrayList<String>();
+        for (Fida.File ff : fida.state.tree) {
+            rval.add(ff.path);
+        }
+        return rval;
+    } // get_paths()
+
+    /**
+     * Returns the root xid of a tracked document, or {@code null}
+     * if the path is not tracked.
+     */
+    public synchronized Xid get_root_xid(String path) {
+        Fida.File ff = get_tracked(normalize_path(path));
+        if (ff == null) {
+            return null;
+        }
+        return (Xid) ff.root_xid.clone();
+    } // get_root_xid()
+
+    /**
+     * Returns the node of a payload xid, or {@code null} if unknown.
+     * The node is the repository's own record and must not be modified.
+     */
+    public synchronized Fida.Node get_node(Xid xid) {
+        return db.get_node(xid);
+    } // get_node()
+
+    public synchronized Fida.Node get_node(String xidstring) {
+        return db.get_node(XidString.deserialize(xidstring));
+    } // get_node()
+
+    /**
+     * Returns a copy of the normalized payload element of a xid,
+     * or {@code null} if unknown.
+     */
+    public synchronized Element get_payload(Xid xid) {
+        Fida.Node node = db.get_node(xid);
+        if (node == null) {
+            return null;
+        }
+        return node.payload.to_element();
+    } // get_payload()
+
+    public synchronized Element get_payload(String xidstring) {
+        return get_payload(XidString.deserialize(xidstring));
+    } // get_payload()
+
+    /**
+     * Returns the node with the greatest revision and the given id,
+     * or {@code null} if the id is unknown.
+     */
+    public synchronized Fida.Node get_latest_node(String id) {
+        Fida.Node latest = null;
+        for (Map.Entry<Xid, Fida.Node> entry :
+            fida.state.externals.entrySet())
+        {
+            Xid xid = entry.getKey();
+            if (xid.id.equals(id) == false) {
+                continue;
+            }
+            if ((latest == null) || (xid.rev > latest.payload_xid.rev)) {
+                latest = entry.getValue();
+            }
+        } // for: each external xid
+        return latest;
+    } // get_latest_node()
+
+    // HELPER METHODS
+    //================
+
+    private void set_repository(Fida.Repository fida) {
+        this.fida = fida;
+        this.db = new XidClient.FidaRepository(fida);
+        this.options = new UpdateLogic.Options();
+        configure();
+    } // set_repository()
+
+    private void configure() {
+        fida.state.allow_unknowns = allow_unknowns;
+        fida.state.unrev_unknowns = unrev_unknowns;
+        fida.state.autoref = autoref;
+        options.ingest_unknowns = allow_unknowns;
+        options.unrev_unknowns = unrev_unknowns;
+    } // configure()
+
+    /**
+     * Throws away the in-memory state, and reads the repository again.
+     */
+    private void reload() {
+        set_repository(FidaXML.deserialize(fida.file));
+    } // reload()
+
+    private Fida.File get_tracked(String path) {
+        for (Fida.File ff : fida.state.tree) {
+            if (ff.path.equals(path)) {
+                return ff;
+            }
+        }
+        return null;
+    } // get_tracked()
+
+    private static String normalize_path(String path) {
+        File file = new File(path);
+        if (file.isAbsolute()) {
+            throw new RuntimeException(String.format(
+                "%s: the path must be relative to the repository", path));
+        }
+        return file.getPath();
+    } // normalize_path()
+
+    private static Document parse(
+        String path,
+        InputStream is,
+        Reader reader
+    ) {
+        try {
+            if (is != null) {
+                return XMLFileHelper.deserialize_document(is, null);
+            }
+            return XMLFileHelper.deserialize_document(reader, null);
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot parse; %s", path, ex.getMessage()), ex);
+        } // try-catch
+    } // parse()
+
+} // class EmbeddedRepository
@@ -17,9 +17,9 @@
 package xmlsnippets.fida;
 
 // java core imports
+import java.lang.ref.SoftReference;
 import java.util.List;
 import java.util.LinkedList;
-import java.util.Stack;
 import java.util.Date;
 import java.util.Map;
 import java.util.HashMap;
@@ -30,6 +30,8 @@ import org.jdom.Document;
 // xmlsnippets imports
 import xmlsnippets.core.Xid;
 import xmlsnippets.util.Digest;
+import xmlsnippets.util.CompactElement;
+import xmlsnippets.util.SubtreeTable;
 
 public class Fida {
 
@@ -111,6 +113,13 @@ public class Fida {
          */
          public Document doc;
 
+        /**
+         * If the file was ingested in streaming mode, the {@link #doc}
+         * is left {@code null}, and this holds the information needed
+         * to rewrite the file. Not stored to repository db.
+         */
+        public StreamingIngest stream;
+
         /**
          * The Digest for the XML document; used to track whether the document
          * is unmodified.
@@ -125,7 +134,7 @@ public class Fida {
         /**
          * How the root node is manifestated in this particular file
          */
-        public List<Stack<Xid>> manifestation;
+        public ManifestationTrie manifestation;
 
         /**
          * The commit which introduced this particular File.
@@ -142,6 +151,7 @@ public class Fida {
             next = new LinkedList<Fida.File>();
             path = null;
             doc = null;
+            stream = null;
             digest = null;
             root_xid = null;
             manifestation = null;
@@ -159,6 +169,23 @@ public class Fida {
         extends Item
     {
 
+        // NESTED CLASSES
+        //================
+
+        /**
+         * A payload element created from the compact form, and the index
+         * of its properties.
+         */
+        private static class Expansion {
+            public Element element;
+            public PidIndex index;
+
+            public Expansion(Element element) {
+                this.element = element;
+                index = null;
+            } // ctor
+        } // class Expansion
+
         // MEMBER VARIABLES
         //==================
 
@@ -193,9 +220,15 @@ public class Fida {
         public List<Fida.Node> next;
 
         /**
-         * The revisioned payload XML element
+         * The revisioned payload XML element in the compact form
          */
-        public Element payload_element;
+        public CompactElement payload;
+
+        /**
+         * The payload XML element and its property index; created from
+         * the compact form when needed. See {@link #get_payload_element()}.
+         */
+        private volatile SoftReference<Expansion> expansion;
 
         /**
          * The xid of the payload XML element
@@ -211,6 +244,13 @@ public class Fida {
          */
         public Commit parent_commit;
 
+        /**
+         * Set if the payload was read from the repository file. Only
+         * such payloads are in the form which the file reproduces, so
+         * only they are written as deltas. Not recorded into the database.
+         */
+        public boolean loaded;
+
 
         // CONSTRUCTORS
         //==============
@@ -219,14 +259,69 @@ public class Fida {
             prev = new LinkedList<Fida.Node>();
             prev_xid = new LinkedList<Xid>();
             next = new LinkedList<Fida.Node>();
-            payload_element = null;
+            payload = null;
+            expansion = null;
             payload_xid = null;
             parent_commit = null;
+            loaded = false;
         } // ctor
 
         // OTHER METHODS
         //===============
 
+        /**
+         * Returns the payload XML element. The element is created from
+         * the compact form when needed. It is only softly referenced,
+         * so the same element is returned until the garbage collector
+         * needs the memory; walking over every payload does not keep
+         * a full element of each one. It must not be modified.
+         */
+        public Element get_payload_element() {
+            return get_expansion().element;
+        } // get_payload_element()
+
+        /**
+         * Returns the index of the properties within the payload element.
+         * The index is created when first needed, and it is dropped
+         * together with the payload element it refers to. Not recorded
+         * into the database.
+         */
+        public PidIndex get_pid_index() {
+            Expansion e = get_expansion();
+            synchronized(e) {
+                if (e.index == null) {
+                    e.index = new PidIndex(e.element);
+                }
+                return e.index;
+            } // synchronized
+        } // get_pid_index()
+
+        /**
+         * Sets the payload XML element. The compact form is made of it,
+         * sharing the subtrees through the given table, and the element
+         * itself is kept as the payload element.
+         */
+        public void set_payload_element(Element elem, SubtreeTable subtrees) {
+            payload = CompactElement.compact(elem, subtrees);
+            expansion = new SoftReference<Expansion>(new Expansion(elem));
+        } // set_payload_element()
+
+        private Expansion get_expansion() {
+            SoftReference<Expansion> ref = expansion;
+            Expansion rval = (ref != null) ? ref.get() : null;
+            if (rval == null) {
+                synchronized(this) {
+                    ref = expansion;
+                    rval = (ref != null) ? ref.get() : null;
+                    if (rval == null) {
+                        rval = new Expansion(payload.to_element());
+                        expansion = new SoftReference<Expansion>(rval);
+                    }
+                } // synchronized
+            } // if
+            return rval;
+        } // get_expansion()
+
         public boolean containsNext(Fida.Node item) {
             Xid xid = item.payload_xid;
             for (Fida.Node cur : next) {
@@ -380,6 +475,29 @@ public class Fida {
          */
         public boolean autoref;
 
+        /**
+         * Flag signaling that the tracked files are ingested in streaming
+         * mode without building the whole document in memory.
+         */
+        public boolean streaming;
+
+        /**
+         * Memoized xref resolutions. Invalidated whenever a node is added.
+         */
+        public ResolutionCache resolutions;
+
+        /**
+         * The subtrees shared by the payloads of all nodes.
+         */
+        public SubtreeTable subtrees;
+
+        /**
+         * The maximum number of revisions between the payloads written
+         * in full, when the payloads are written as deltas against
+         * their previous revisions. Zero writes every payload in full.
+         */
+        public int keyframe_interval;
+
         // CONSTRUCTORS
         //==============
 
@@ -396,6 +514,10 @@ public class Fida {
             allow_unknowns = false;
             unrev_unknowns = false;
             autoref = false;
+            streaming = false;
+            resolutions = new ResolutionCache();
+            subtrees = new SubtreeTable();
+            keyframe_interval = 0;
         } // ctor
 
         public int new_uid() {
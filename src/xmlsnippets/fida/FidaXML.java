@@ -37,11 +37,15 @@ import org.jdom.Text;
 // xmlsnippets imports
 import xmlsnippets.core.Xid;
 import xmlsnippets.core.XidString;
+import xmlsnippets.core.XidSlice;
 import xmlsnippets.core.XidIdentification;
 import xmlsnippets.fida.Fida;
 import xmlsnippets.util.Digest;
 import xmlsnippets.util.XMLFileHelper;
 import xmlsnippets.util.XPathIdentification;
+import xmlsnippets.util.ElementWalker;
+import xmlsnippets.util.CompactElement;
+import xmlsnippets.util.SubtreeTable;
 
 
 /**
@@ -70,6 +74,12 @@ public class FidaXML {
     public static final String
         ATTR_FIDA_REPOSITORY_HEAD_XID_LINK      = "link";
 
+    public static final String
+        ELEM_FIDA_REPOSITORY_STORAGE            = "Storage";
+
+    public static final String
+        ATTR_FIDA_REPOSITORY_STORAGE_KEYFRAMES  = "keyframes";
+
     // Repository/Commit
 
     public static final String
@@ -137,15 +147,52 @@ public class FidaXML {
     public static final String
         ELEM_FIDA_NODE_PAYLOAD_CONTAINER        = "Payload";
 
+    // Repository/Commit/Nodes/Node/Delta
+
+    public static final String
+        ELEM_FIDA_NODE_DELTA                    = "Delta";
+
+    public static final String
+        ELEM_FIDA_DELTA_EDIT                    = "Edit";
+
+    public static final String
+        ELEM_FIDA_DELTA_SET                     = "Set";
+
+    public static final String
+        ELEM_FIDA_DELTA_UNSET                   = "Unset";
+
+    public static final String
+        ELEM_FIDA_DELTA_RESET                   = "Reset";
+
+    public static final String
+        ELEM_FIDA_DELTA_NAMESPACES              = "Namespaces";
+
+    public static final String
+        ELEM_FIDA_DELTA_SPLICE                  = "Splice";
+
+    public static final String
+        ATTR_FIDA_DELTA_SPLICE_HEAD             = "head";
+
+    public static final String
+        ATTR_FIDA_DELTA_SPLICE_TAIL             = "tail";
+
+    public static final String
+        ELEM_FIDA_DELTA_DESCEND                 = "Descend";
+
+    public static final String
+        ATTR_FIDA_DELTA_DESCEND_AT              = "at";
+
     // General purpose xid link
 
     // CLASS VARIABLES
     //=================
 
     /**
-     * Singleton object used to create and parse date strings.
+     * Per-thread object used to create and parse date strings.
+     * {@code SimpleDateFormat} is not thread-safe.
      */
-    private static DateFormat date_fmt = null;
+    private static final ThreadLocal<DateFormat> date_fmt
+        = new ThreadLocal<DateFormat>();
 
     // CONSTRUCTORS
     //==============
@@ -165,7 +212,8 @@ public class FidaXML {
             Document doc = new Document();
             Element root = serialize_repository(r);
             doc.setRootElement(root);
-            XMLFileHelper.serialize_document_formatted(doc, r.file);
+            // A partially written repository would be lost
+            XMLFileHelper.serialize_document_formatted_atomic(doc, r.file);
         } catch(Exception ex) {
             throw new RuntimeException(ex);
         }
@@ -203,10 +251,12 @@ public class FidaXML {
 
 
     protected static DateFormat get_date_fmt() {
-        if (date_fmt == null) {
-            date_fmt = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+        DateFormat rval = date_fmt.get();
+        if (rval == null) {
+            rval = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ssZ");
+            date_fmt.set(rval);
         }
-        return date_fmt;
+        return rval;
     } // get_date_fmt()
 
     protected static String serialize_date(Date date) {
@@ -241,9 +291,15 @@ public class FidaXML {
         // Serialize state
         rval.addContent(serialize_state(r.state));
 
+        // Payloads are written as deltas only if so requested
+        DeltaStorage storage = null;
+        if (r.state.keyframe_interval > 0) {
+            storage = new DeltaStorage(r.state.keyframe_interval);
+        }
+
         // Serialize all commits
         for (Fida.Commit commit : r.commits) {
-            rval.addContent(serialize_commit(commit));
+            rval.addContent(serialize_commit(commit, storage));
         } // for: each commit
 
         return rval;
@@ -259,6 +315,11 @@ public class FidaXML {
             rval.addContent(serialize_commit_head_link(state.head.item_xid));
         }
 
+        // Omitted when every payload is written in full
+        if (state.keyframe_interval > 0) {
+            rval.addContent(serialize_storage(state.keyframe_interval));
+        }
+
         return rval;
     } // serialize_state()
 
@@ -295,9 +356,29 @@ public class FidaXML {
         return rval;
     } // serialize_commit_head_link()
 
+    public static Element serialize_storage(
+        int keyframe_interval
+    ) {
+        Element rval = new Element(ELEM_FIDA_REPOSITORY_STORAGE);
+
+        rval.setAttribute(
+            ATTR_FIDA_REPOSITORY_STORAGE_KEYFRAMES,
+            Integer.toString(keyframe_interval)
+        );
+
+        return rval;
+    } // serialize_storage()
+
     // Repository/Commit
 
-    public static Element serialize_commit(Fida.Commit commit) {
+    /**
+     * @param storage the bookkeeping of the payloads written as deltas,
+     * or {@code null} if the payloads are written in full
+     */
+    public static Element serialize_commit(
+        Fida.Commit commit,
+        DeltaStorage storage
+    ) {
         Element rval = new Element(ELEM_FIDA_COMMIT);
 
         // Set internal xid
@@ -306,7 +387,7 @@ public class FidaXML {
         rval.addContent(serialize_commit_author(commit));
         rval.addContent(serialize_commit_date(commit));
         rval.addContent(serialize_commit_layout(commit.layout));
-        rval.addContent(serialize_commit_nodes(commit.nodes));
+        rval.addContent(serialize_commit_nodes(commit.nodes, storage));
 
         return rval;
     } // serialize_commit()
@@ -444,11 +525,11 @@ public class FidaXML {
     }
 
     public static Element serialize_file_manifestation(
-        List<Stack<Xid>> manifestation
+        ManifestationTrie manifestation
     ) {
         Element rval = new Element(ELEM_FIDA_FILE_MANIFESTATION);
 
-        for (Stack<Xid> unexpand : manifestation) {
+        for (Stack<Xid> unexpand : manifestation.to_list()) {
             rval.addContent(serialize_unexpand_entry(unexpand));
         } // for
 
@@ -469,17 +550,19 @@ public class FidaXML {
 
 
     public static Element serialize_commit_nodes(
-        List<Fida.Node> nodes
+        List<Fida.Node> nodes,
+        DeltaStorage storage
     ) {
         Element rval = new Element(ELEM_FIDA_COMMIT_NODES);
         for (Fida.Node node : nodes) {
-            rval.addContent(serialize_node(node));
+            rval.addContent(serialize_node(node, storage));
         }
         return rval;
     } // serialize_commit_nodes()
 
     public static Element serialize_node(
-        Fida.Node node
+        Fida.Node node,
+        DeltaStorage storage
     ) {
         Element rval = new Element(ELEM_FIDA_NODE);
 
@@ -494,7 +577,18 @@ public class FidaXML {
             ); // addContent()
         } // if
 
-        rval.addContent(serialize_node_payload(node));
+        // The payload is written either as a delta against the previous
+        // revision, or in full.
+        Element delta = null;
+        if (storage != null) {
+            delta = storage.encode(node);
+        }
+
+        if (delta != null) {
+            rval.addContent(delta);
+        } else {
+            rval.addContent(serialize_node_payload(node));
+        }
 
         return rval;
     } // serialize_node()
@@ -518,8 +612,8 @@ public class FidaXML {
     ) {
         Element rval = new Element(ELEM_FIDA_NODE_PAYLOAD_CONTAINER);
 
-        // Just embed a clone of the payload
-        Element unparented = (Element) node.payload_element.clone();
+        // Just embed a copy of the payload
+        Element unparented = node.payload.to_element();
 
         rval.addContent(unparented);
 
@@ -561,6 +655,12 @@ public class FidaXML {
         // Replacement state
         Fida.State state = null;
 
+        // The payload subtrees shared by all nodes
+        SubtreeTable subtrees = new SubtreeTable();
+
+        // The payloads read as deltas are reconstructed from these
+        DeltaStorage storage = new DeltaStorage(0);
+
         for (Object obj : elem.getContent()) {
             if (skip(obj)) continue;
             Element c = (Element) obj;
@@ -571,7 +671,7 @@ public class FidaXML {
                 state = deserialize_state(c);
             }
             else if (name.equals(ELEM_FIDA_COMMIT)) {
-                Fida.Commit commit = deserialize_commit(c);
+                Fida.Commit commit = deserialize_commit(c, subtrees, storage);
                 rval.commits.add(commit);
             }
             else {
@@ -583,6 +683,7 @@ public class FidaXML {
         expect_set(elem, ELEM_FIDA_REPOSITORY_STATE, state);
 
         rval.state = state;
+        state.subtrees = subtrees;
 
 
         return rval;
@@ -598,6 +699,7 @@ public class FidaXML {
 
         Long seed = null;
         Xid head_xid = null;
+        Integer keyframe_interval = null;
 
         for (Object obj : elem.getContent()) {
             if (skip(obj)) continue;
@@ -612,6 +714,10 @@ public class FidaXML {
                 head_xid = deserialize_xid_link(
                     c, ATTR_FIDA_REPOSITORY_HEAD_XID_LINK);
             }
+            else if (name.equals(ELEM_FIDA_REPOSITORY_STORAGE)) {
+                expect_unset(c, keyframe_interval);
+                keyframe_interval = deserialize_storage(c);
+            }
             else {
                 unexpected_child(c);
             }
@@ -623,6 +729,9 @@ public class FidaXML {
 
         rval.rng = new Random(seed);
         rval.head_xid = head_xid;
+        if (keyframe_interval != null) {
+            rval.keyframe_interval = keyframe_interval;
+        }
 
         return rval;
     } // deserialize_state()
@@ -645,11 +754,35 @@ public class FidaXML {
         return rval;
     } // deserialize_seed()
 
+    public static int deserialize_storage(Element elem) {
+        expect_name(elem, ELEM_FIDA_REPOSITORY_STORAGE);
+        expect_nochildren(elem);
+
+        String s = get_attr(elem, ATTR_FIDA_REPOSITORY_STORAGE_KEYFRAMES);
+        int rval;
+
+        try {
+            rval = Integer.parseInt(s);
+        } catch(Exception ex) {
+            rval = -1;
+        } // try-catch
+        if (rval < 0) {
+            throw new RuntimeException(String.format(
+                "%s: expected a non-negative integer, but found \"%s\"",
+                get_addr(elem), s));
+        }
+        return rval;
+    } // deserialize_storage()
+
     // Repository/Commit
     //========================================================================
 
 
-    public static Fida.Commit deserialize_commit(Element elem) {
+    public static Fida.Commit deserialize_commit(
+        Element elem,
+        SubtreeTable subtrees,
+        DeltaStorage storage
+    ) {
         Fida.Commit rval = new Fida.Commit();
 
         expect_name(elem, ELEM_FIDA_COMMIT);
@@ -678,7 +811,7 @@ public class FidaXML {
             }
             else if (name.equals(ELEM_FIDA_COMMIT_NODES)) {
                 expect_unset(c, nodes);
-                nodes = deserialize_commit_nodes(c);
+                nodes = deserialize_commit_nodes(c, subtrees, storage);
             }
             else {
                 unexpected_child(c);
@@ -757,7 +890,7 @@ public class FidaXML {
         Digest digest = null;
         Xid root_xid = null;
         Xid prev_xid = null;
-        List<Stack<Xid>> manifestation = null;
+        ManifestationTrie manifestation = null;
 
         for (Object obj : elem.getContent()) {
             if (skip(obj)) continue;
@@ -870,10 +1003,14 @@ public class FidaXML {
         return rval;
     } // deserialize_file_digest()
 
-    public static List<Stack<Xid>> deserialize_file_manifestation(
+    /**
+     * Deserializes the unexpand entries into a trie. Identical
+     * manifestations of different file revisions share the same trie.
+     */
+    public static ManifestationTrie deserialize_file_manifestation(
         Element elem
     ) {
-        List<Stack<Xid>> rval = new LinkedList<Stack<Xid>>();
+        List<Stack<Xid>> list = new LinkedList<Stack<Xid>>();
 
         expect_name(elem, ELEM_FIDA_FILE_MANIFESTATION);
 
@@ -885,14 +1022,14 @@ public class FidaXML {
             if (name.equals(ELEM_FIDA_UNEXPAND_ENTRY)) {
                 Stack<Xid> unexpand = null;
                 unexpand = deserialize_unexpand_entry(c);
-                rval.add(unexpand);
+                list.add(unexpand);
             }
             else {
                 unexpected_child(c);
             }
         } // for
 
-        return rval;
+        return ManifestationTrie.intern(ManifestationTrie.build(list));
     } // deserialize_file_manifestation()
 
     public static Stack<Xid> deserialize_unexpand_entry(Element elem) {
@@ -910,7 +1047,11 @@ public class FidaXML {
     //========================================================================
 
 
-    public static List<Fida.Node> deserialize_commit_nodes(Element elem) {
+    public static List<Fida.Node> deserialize_commit_nodes(
+        Element elem,
+        SubtreeTable subtrees,
+        DeltaStorage storage
+    ) {
         List<Fida.Node> rval = new LinkedList<Fida.Node>();
 
         expect_name(elem, ELEM_FIDA_COMMIT_NODES);
@@ -921,7 +1062,7 @@ public class FidaXML {
             String name = c.getName();
 
             if (name.equals(ELEM_FIDA_NODE)) {
-                Fida.Node node = deserialize_node(c);
+                Fida.Node node = deserialize_node(c, subtrees, storage);
                 rval.add(node);
             }
             else {
@@ -933,7 +1074,11 @@ public class FidaXML {
         return rval;
     } // deserialize_commit_nodes(9
 
-    public static Fida.Node deserialize_node(Element elem) {
+    public static Fida.Node deserialize_node(
+        Element elem,
+        SubtreeTable subtrees,
+        DeltaStorage storage
+    ) {
         Fida.Node rval = new Fida.Node();
 
         expect_name(elem, ELEM_FIDA_NODE);
@@ -941,6 +1086,7 @@ public class FidaXML {
         List<Xid> prev_xid = new LinkedList<Xid>();
         Xid payload_xid = null;
         Element payload_element = null;
+        Element delta = null;
 
         for (Object obj : elem.getContent()) {
             if (skip(obj)) continue;
@@ -956,18 +1102,40 @@ public class FidaXML {
                 expect_unset(c, payload_element);
                 payload_element = deserialize_payload_container(c);
             }
+            else if (name.equals(ELEM_FIDA_NODE_DELTA)) {
+                expect_unset(c, delta);
+                delta = c;
+            }
             else {
                 unexpected_child(c);
             } // if-else
         } /// for
 
+        if (delta != null) {
+            // Reconstruct the payload from the previous revision
+            expect_unset(delta, payload_element);
+            if (prev_xid.size() != 1) {
+                throw new RuntimeException(String.format(
+                    "%s: a delta needs a single previous node, but %d was found",
+                    get_addr(delta), prev_xid.size()));
+            }
+            payload_element = storage.decode(prev_xid.get(0), delta);
+        } // if
+
         expect_set(elem, ELEM_FIDA_NODE_PAYLOAD_CONTAINER, payload_element);
         payload_xid = get_xid(payload_element);
 
         rval.prev_xid = prev_xid;
-        rval.payload_element = payload_element;
+        // The payload is kept in the compact form only, so that
+        // the parsed repository document can be freed. The unchanged
+        // subtrees are shared with the other revisions.
+        rval.payload = CompactElement.compact(payload_element, subtrees);
         rval.payload_xid = payload_xid;
         rval.item_xid = get_xid(elem);
+        rval.loaded = true;
+
+        // The next revision may be a delta against this one
+        storage.record(rval, payload_element);
 
         return rval;
     } // deserialize_node()
@@ -1230,7 +1398,7 @@ public class FidaXML {
                 put_uid(map, fn);
                 // Discover all used uid's in link_xid attributes in
                 // the normalized payload content
-                build_link_xids(map, fn.payload_element);
+                build_link_xids(map, fn.payload);
 
             } // for: each node
         } // for
@@ -1239,34 +1407,61 @@ public class FidaXML {
     } // build_internals()
 
     /**
-     * Traverses a payload element recursively to find out all
+     * Traverses a payload element depth-first to find out all
      * used uid values in the {@code @link_xid} attributes.
      * @param map the map to which found uid values are recorded.
-     * @param elem the payload element that is recursively searched
+     * @param elem the payload element that is searched
      */
     public static void build_link_xids(
-        Map<Integer, Fida.Item> map,
+        final Map<Integer, Fida.Item> map,
         Element elem
     ) {
-        // Depth first
-        for (Object obj : elem.getContent()) {
-            if ((obj instanceof Element) == false) {
-                continue;
+        final XidSlice link_xid = new XidSlice();
+        ElementWalker.get_local().walk(elem, new ElementWalker.Visitor() {
+            @Override
+            public void leave(ElementWalker w, Element e) {
+                build_link_xid(map, e, link_xid);
             }
-            Element child = (Element) obj;
-            build_link_xids(map, child);
-        } // for
+        });
+    } // build_link_xids()
 
+    /**
+     * Finds out all used uid values in the {@code @link_xid} attributes
+     * of a payload in the compact form. No element is created.
+     * @param map the map to which found uid values are recorded.
+     * @param payload the payload that is searched
+     */
+    public static void build_link_xids(
+        final Map<Integer, Fida.Item> map,
+        CompactElement payload
+    ) {
+        final XidSlice link_xid = new XidSlice();
+        payload.scan_attributes("link_xid", new CompactElement.RangeVisitor() {
+            @Override
+            public void visit(CharSequence text, int begin, int end) {
+                XidString.deserialize(text, begin, end, false, link_xid);
+                int uid = get_uid(text, link_xid.id_begin, link_xid.id_end);
+                // Create an empty entry
+                put_uid(map, uid, null);
+            }
+        });
+    } // build_link_xids()
+
+    private static void build_link_xid(
+        Map<Integer, Fida.Item> map,
+        Element elem,
+        XidSlice link_xid
+    ) {
         String value = elem.getAttributeValue("link_xid");
         if (value != null) {
-            Xid link_xid = XidString.deserialize(value);
+            XidString.deserialize(value, 0, value.length(), false, link_xid);
 
-            int uid = get_uid(link_xid.id);
+            int uid = get_uid(value, link_xid.id_begin, link_xid.id_end);
             // Create an empty entry
 
             put_uid(map, uid, null);
         } // if
-    } // build_link_xids()
+    } // build_link_xid()
 
     /**
      * Resolved all backward links and produces the corresponding
@@ -1486,35 +1681,66 @@ public class FidaXML {
      * Deserializes the uid from the internal xid
      */
     private static int get_uid(String id) {
-        int from = id.indexOf('!') + 1;
-        if (from == -1)  {
-            throw new RuntimeException(String.format(
-                "Invalid internal xid.id; no exclamation mark: \"%s\"", id));
+        return get_uid(id, 0, id.length());
+    }
+
+    /**
+     * Deserializes the uid from an internal xid.id given as a range
+     * of characters. The uid is parsed in place; the semantics and
+     * the error messages are the same as with {@code Long.parseLong()}
+     * applied to the substring.
+     */
+    private static int get_uid(CharSequence text, int begin, int end) {
+        int from = begin;
+        for (int i = begin; i < end; i++) {
+            if (text.charAt(i) == '!') {
+                from = i + 1;
+                break;
+            }
         }
 
-        String uidstring = id.substring(from);
-        if (uidstring.length() > 8) {
+        int len = end - from;
+        if (len > 8) {
             throw new RuntimeException(String.format(
-                "Invalid internal xid uid; too long, max of 8 chars expected: \"%s\"", id));
+                "Invalid internal xid uid; too long, max of 8 chars expected: \"%s\"",
+                text.subSequence(begin, end)));
         }
-        else if (uidstring.length() == 0) {
+        else if (len == 0) {
             throw new RuntimeException(String.format(
-                "Invalid internal xid uid; it is empty: \"%s\"", id));
+                "Invalid internal xid uid; it is empty: \"%s\"",
+                text.subSequence(begin, end)));
         }
 
-        int rval;
-        try {
-            //rval = Integer.parseInt(uidstring, 16); // radix=16 (hex)
-            long tmp = Long.parseLong(uidstring, 16); // radix=16 (hex)
-            rval = (int) (tmp & 0x00000000ffffffff);
-
-        } catch(Exception ex) {
+        boolean negative = false;
+        int i = from;
+        char c = text.charAt(i);
+        if ((c == '-') || (c == '+')) {
+            negative = (c == '-');
+            i++;
+        }
+        if (i == end) {
             throw new RuntimeException(String.format(
-                "Invalid internal xid.id; either too long or not a hexadecimal at all: %s", id));
-        } // try-catch
+                "Invalid internal xid.id; either too long or not a hexadecimal at all: %s",
+                text.subSequence(begin, end)));
+        }
 
-        return rval;
-    }
+        // At most 8 hex digits; cannot overflow
+        long tmp = 0;
+        for (; i < end; i++) {
+            int digit = Character.digit(text.charAt(i), 16);
+            if (digit < 0) {
+                throw new RuntimeException(String.format(
+                    "Invalid internal xid.id; either too long or not a hexadecimal at all: %s",
+                    text.subSequence(begin, end)));
+            }
+            tmp = (tmp * 16) + digit;
+        } // for
+        if (negative) {
+            tmp = -tmp;
+        }
+
+        return (int) (tmp & 0x00000000ffffffff);
+    } // get_uid()
 
 
 
@@ -0,0 +1,421 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.HashSet;
+// jdom imports
+import org.jdom.Document;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.fida.XidClient.FidaRepository;
+
+/**
+ * Selects the files which an incremental migration has to read. The
+ * selection is made from the {@link ReferenceIndex}, so that the other
+ * files need not be parsed at all. The files are selected so that
+ * migrating them gives the same result as migrating the whole tree:
+ * <ul>
+ *   <li>the files without a valid summary in the index;
+ *   <li>the files having a reference whose target has a newer revision
+ *       present in the tree;
+ *   <li>for each such reference, a file where the newer revision is
+ *       present, so that the migration sees it in the graph;
+ *   <li>after a migration, the files where a node modified by the
+ *       migration is present. These may gain further modifications,
+ *       so the migration is then redone with them.
+ * </ul>
+ * A node is present in a file if the file has an element with its xid
+ * or a reference to it. The tree must not have uncommitted changes,
+ * which is verified from the stat data of each file.<p>
+ *
+ * In the sparse mode, the summaries are taken from the repository
+ * instead, and the selection starts from the requested files or xids.
+ * Since the other files are not known to be migrated, a file defining
+ * the target of each reference is selected too. The files outside the
+ * selection are not read at all.
+ */
+public class IncrementalMigration {
+
+    // MEMBER VARIABLES
+    //==================
+
+    private Fida.Repository fida;
+    private FidaRepository db;
+    private ReferenceIndex index;
+
+    /**
+     * The newest revisions; no reporting is done during selection.
+     */
+    private NewestRevisionMemo memo;
+
+    /**
+     * The tracked files.
+     */
+    private List<Fida.File> tree;
+
+    /**
+     * The summary of each tracked file.
+     */
+    private ReferenceIndex.Entry[] summary;
+
+    /**
+     * The documents already parsed for the selection; they are used
+     * by the first {@link #read()}.
+     */
+    private Document[] docs;
+
+    /**
+     * The selected files.
+     */
+    private boolean[] loaded;
+
+    /**
+     * The number of selected files.
+     */
+    private int loaded_count;
+
+    /**
+     * The files defining or referencing each xid.
+     */
+    private Map<Xid, List<Integer>> defs_at;
+    private Map<Xid, List<Integer>> refs_to;
+
+    /**
+     * The xids present in the selected files.
+     */
+    private Set<Xid> present;
+
+    /**
+     * The selected files whose references have not been examined.
+     */
+    private LinkedList<Integer> pending;
+
+    /**
+     * Set in the sparse mode, where the files are selected from the
+     * requested ones instead of from the files needing a migration.
+     */
+    private boolean sparse;
+
+    // CONSTRUCTORS
+    //==============
+
+    /**
+     * @param fida the repository
+     * @param db the wrapper of the repository
+     * @param index the reference index, or {@code null} in the sparse mode
+     */
+    public IncrementalMigration(
+        Fida.Repository fida,
+        FidaRepository db,
+        ReferenceIndex index
+    ) {
+        this.fida = fida;
+        this.db = db;
+        this.index = index;
+        memo = new NewestRevisionMemo();
+        tree = new ArrayList<Fida.File>(fida.state.tree);
+        summary = new ReferenceIndex.Entry[tree.size()];
+        docs = new Document[tree.size()];
+        loaded = new boolean[tree.size()];
+        loaded_count = 0;
+        defs_at = new HashMap<Xid, List<Integer>>();
+        refs_to = new HashMap<Xid, List<Integer>>();
+        present = new HashSet<Xid>();
+        pending = new LinkedList<Integer>();
+        sparse = false;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Makes the initial selection. The files without a valid summary
+     * are parsed and summarized.
+     */
+    public void select() {
+        Set<String> paths = new HashSet<String>();
+        for (int i = 0; i < tree.size(); i++) {
+            Fida.File ff = tree.get(i);
+            paths.add(ff.path);
+
+            ReferenceIndex.Entry entry = index.get(ff.path, ff.digest);
+            Fida.File newff = XidClient.read_tree_file(
+                fida, ff, entry == null);
+            if (entry == null) {
+                docs[i] = newff.doc;
+                entry = ReferenceIndex.summarize(ff.path, ff.digest, newff.doc);
+                index.put(entry);
+            }
+            set_summary(i, entry);
+        } // for: each tracked file
+        index.retain(paths);
+
+        for (int i = 0; i < tree.size(); i++) {
+            if (docs[i] != null) {
+                load(i);
+            }
+        } // for
+
+        for (int i = 0; i < tree.size(); i++) {
+            if (loaded[i]) {
+                continue;
+            }
+            for (Xid ref : summary[i].refs) {
+                Fida.Node newest = get_newer(ref);
+                if ((newest != null) && is_present(newest.payload_xid)) {
+                    load(i);
+                    break;
+                }
+            } // for: each ref
+        } // for: each file not selected
+
+        close();
+    } // select()
+
+    /**
+     * Makes the initial selection for a sparse migration of the given
+     * files. The summaries are taken from the repository.
+     *
+     * @param paths the paths relative to the repository base directory
+     */
+    public void select_sparse(List<String> paths) {
+        sparse = true;
+        summarize_tree();
+
+        for (String path : paths) {
+            load(get_index(path));
+        }
+
+        close();
+    } // select_sparse()
+
+    /**
+     * Makes the selection for listing the references to the given xids.
+     * The selected files are the ones referencing the xids, and a file
+     * where each newer revision of them has an element. The summaries
+     * are taken from the repository.
+     *
+     * @param set the xids
+     */
+    public void select_refs(Set<Xid> set) {
+        summarize_tree();
+
+        for (Xid xid : set) {
+            load_all(refs_to.get(xid));
+        }
+
+        for (Xid xid : set) {
+            Fida.Node newest = get_newer(xid);
+            if (newest == null) {
+                continue;
+            }
+            List<Integer> files = defs_at.get(newest.payload_xid);
+            if ((files == null) || (is_loaded(files))) {
+                continue;
+            }
+            load(files.get(0));
+        } // for: each xid
+    } // select_refs()
+
+    /**
+     * Reads the selected files in the order of the tree.
+     */
+    public Fida.Commit read() {
+        Fida.Commit rval = XidClient.allocate_commit(fida);
+        for (int i = 0; i < tree.size(); i++) {
+            if (loaded[i] == false) {
+                continue;
+            }
+            Fida.File ff = tree.get(i);
+            Fida.File newff = null;
+            if (docs[i] != null) {
+                newff = new Fida.File();
+                newff.path = ff.path;
+                newff.doc = docs[i];
+                // A migration modifies the document
+                docs[i] = null;
+            } else {
+                newff = XidClient.read_tree_file(fida, ff, true);
+            }
+            rval.layout.add(newff);
+        } // for
+        return rval;
+    } // read()
+
+    /**
+     * Selects the files where the nodes modified by a migration are
+     * present.
+     *
+     * @param graph the graph of the migration
+     * @return {@code true} if more files were selected, and the migration
+     * has to be redone.
+     */
+    public boolean expand(MigrationGraph graph) {
+        int before = loaded_count;
+        for (int node = 0; node < graph.get_node_count(); node++) {
+            if (graph.is_modified(node) == false) {
+                continue;
+            }
+            Xid xid = graph.get_xid(node);
+            load_all(defs_at.get(xid));
+            load_all(refs_to.get(xid));
+        } // for: each node
+        close();
+        return loaded_count > before;
+    } // expand()
+
+    public int get_loaded_count() {
+        return loaded_count;
+    }
+
+    public int get_file_count() {
+        return tree.size();
+    }
+
+    // HELPER METHODS
+    //================
+
+    /**
+     * Selects a file where the newer revision of each reference in the
+     * selected files is present, until there are no more such files.
+     */
+    private void close() {
+        while (pending.size() > 0) {
+            int i = pending.removeFirst();
+            for (Xid ref : summary[i].refs) {
+                if (sparse) {
+                    // The target may be modified by the migration
+                    // of the file defining it.
+                    List<Integer> files = defs_at.get(ref);
+                    if ((files != null) && (is_loaded(files) == false)) {
+                        load(files.get(0));
+                    }
+                } // if: sparse
+                Fida.Node newest = get_newer(ref);
+                if (newest == null) {
+                    continue;
+                }
+                Xid xid = newest.payload_xid;
+                if (present.contains(xid)) {
+                    continue;
+                }
+                List<Integer> files = defs_at.get(xid);
+                if (files == null) {
+                    files = refs_to.get(xid);
+                }
+                if (files != null) {
+                    load(files.get(0));
+                }
+            } // for: each ref
+        } // while
+    } // close()
+
+    /**
+     * Returns the newest revision of the referenced node, or {@code null}
+     * if the reference is already to the newest revision or unknown.
+     */
+    private Fida.Node get_newer(Xid ref) {
+        Fida.Node node = db.get_node(ref);
+        if (node == null) {
+            return null;
+        }
+        Fida.Node rval = memo.find(node);
+        if (rval == node) {
+            return null;
+        }
+        return rval;
+    } // get_newer()
+
+    /**
+     * Takes the summary of each tracked file from the repository.
+     */
+    private void summarize_tree() {
+        for (int i = 0; i < tree.size(); i++) {
+            set_summary(i, ReferenceIndex.summarize(db, tree.get(i)));
+        }
+    } // summarize_tree()
+
+    private void set_summary(int i, ReferenceIndex.Entry entry) {
+        summary[i] = entry;
+        for (Xid xid : entry.defs) {
+            add(defs_at, xid, i);
+        }
+        for (Xid xid : entry.refs) {
+            add(refs_to, xid, i);
+        }
+    } // set_summary()
+
+    private int get_index(String path) {
+        for (int i = 0; i < tree.size(); i++) {
+            if (tree.get(i).path.equals(path)) {
+                return i;
+            }
+        }
+        throw new RuntimeException(String.format(
+            "Not a tracked file: %s", path));
+    } // get_index()
+
+    private boolean is_loaded(List<Integer> files) {
+        for (int i : files) {
+            if (loaded[i]) {
+                return true;
+            }
+        }
+        return false;
+    } // is_loaded()
+
+    private boolean is_present(Xid xid) {
+        return defs_at.containsKey(xid) || refs_to.containsKey(xid);
+    } // is_present()
+
+    private void load(int i) {
+        if (loaded[i]) {
+            return;
+        }
+        loaded[i] = true;
+        loaded_count++;
+        present.addAll(summary[i].defs);
+        present.addAll(summary[i].refs);
+        pending.add(i);
+    } // load()
+
+    private void load_all(List<Integer> files) {
+        if (files == null) {
+            return;
+        }
+        for (int i : files) {
+            load(i);
+        }
+    } // load_all()
+
+    private static void add(Map<Xid, List<Integer>> map, Xid xid, int i) {
+        List<Integer> list = map.get(xid);
+        if (list == null) {
+            list = new ArrayList<Integer>(2);
+            map.put(xid, list);
+        }
+        list.add(i);
+    } // add()
+
+} // class IncrementalMigration
@@ -0,0 +1,281 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Stack;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.lang.ref.WeakReference;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+
+/**
+ * The unexpand paths of a manifestation as a trie. Each unexpand path
+ * is a sequence of link xids from the root of the manifestation down to
+ * the inclusion which is not expanded. The trie node reached by
+ * following a path is marked as unexpanded.<p>
+ *
+ * Descending one inclusion level during denormalization is a single
+ * child lookup with {@link #descend(Xid)}; the node reached is the
+ * manifestation filtered for the included subtree.<p>
+ *
+ * The tries are immutable once built. Equal tries read from
+ * the repository are interned, so that file revisions sharing the same
+ * manifestation share a single trie.
+ */
+public class ManifestationTrie {
+
+    // CONSTANTS
+    //===========
+
+    private static final Xid[] NO_LINKS = new Xid[0];
+    private static final ManifestationTrie[] NO_CHILDREN
+        = new ManifestationTrie[0];
+
+    /**
+     * The trie without unexpand paths. Must be initialized after
+     * the empty arrays above.
+     */
+    public static final ManifestationTrie EMPTY = new ManifestationTrie();
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The link xids of the children; parallel to {@link #children}.
+     * The arrays are only as long as needed.
+     */
+    private Xid[] links;
+
+    /**
+     * The children.
+     */
+    private ManifestationTrie[] children;
+
+    /**
+     * Whether an unexpand path ends here.
+     */
+    private boolean unexpanded;
+
+    /**
+     * Canonical string representation; calculated when first needed.
+     */
+    private String key;
+
+    /**
+     * Pool of the interned tries.
+     */
+    private static final Map<ManifestationTrie, WeakReference<ManifestationTrie>>
+        g_pool = new WeakHashMap<ManifestationTrie, WeakReference<ManifestationTrie>>();
+
+    // CONSTRUCTORS
+    //==============
+
+    private ManifestationTrie() {
+        links = NO_LINKS;
+        children = NO_CHILDREN;
+        unexpanded = false;
+        key = null;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Builds a trie from a list of unexpand stacks. The top of each stack
+     * is the outermost link xid. The stacks are not modified.
+     *
+     * @param list the unexpand stacks, or {@code null}
+     * @return the trie, or {@code null} if the list was {@code null}
+     */
+    public static ManifestationTrie build(List<Stack<Xid>> list) {
+        if (list == null) {
+            return null;
+        }
+        ManifestationTrie rval = new ManifestationTrie();
+        for (Stack<Xid> unexpand : list) {
+            ManifestationTrie node = rval;
+            for (int i = unexpand.size()-1; i >= 0; i--) {
+                node = node.add_child(unexpand.elementAt(i));
+            }
+            node.unexpanded = true;
+        } // for: each unexpand
+        return rval;
+    } // build()
+
+    /**
+     * Returns the interned trie equal to the given one. If there is
+     * none yet, the given trie becomes the interned one.
+     */
+    public static ManifestationTrie intern(ManifestationTrie trie) {
+        if (trie == null) {
+            return null;
+        }
+        synchronized(g_pool) {
+            WeakReference<ManifestationTrie> ref = g_pool.get(trie);
+            ManifestationTrie rval = (ref != null) ? ref.get() : null;
+            if (rval == null) {
+                g_pool.put(trie, new WeakReference<ManifestationTrie>(trie));
+                rval = trie;
+            }
+            return rval;
+        } // synchronized
+    } // intern()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the manifestation filtered for the subtree included
+     * through the given link xid.
+     *
+     * @param link_xid the link xid of the inclusion
+     * @return the child trie, or {@link #EMPTY} if no path goes there.
+     */
+    public ManifestationTrie descend(Xid link_xid) {
+        for (int i = 0; i < links.length; i++) {
+            if (links[i].equals(link_xid)) {
+                return children[i];
+            }
+        } // for
+        return EMPTY;
+    } // descend()
+
+    /**
+     * Returns {@code true} if an unexpand path ends at this node,
+     * that is, the inclusion leading here is not to be expanded.
+     */
+    public boolean is_unexpanded() {
+        return unexpanded;
+    } // is_unexpanded()
+
+    /**
+     * Returns {@code true} if there are no unexpand paths below.
+     */
+    public boolean is_empty() {
+        return links.length == 0;
+    } // is_empty()
+
+    /**
+     * Returns the number of unexpand paths below this node.
+     */
+    public int size() {
+        int rval = 0;
+        for (ManifestationTrie child : children) {
+            if (child.unexpanded) {
+                rval++;
+            }
+            rval += child.size();
+        } // for
+        return rval;
+    } // size()
+
+    /**
+     * Returns the unexpand paths below this node as stacks. The top
+     * of each stack is the outermost link xid.
+     */
+    public List<Stack<Xid>> to_list() {
+        List<Stack<Xid>> rval = new ArrayList<Stack<Xid>>();
+        collect(new ArrayList<Xid>(), rval);
+        return rval;
+    } // to_list()
+
+    /**
+     * Returns a canonical string of the trie. Equal tries have equal
+     * strings regardless of the order in which the paths were added.
+     */
+    public String get_key() {
+        if (key == null) {
+            String[] parts = new String[links.length];
+            for (int i = 0; i < links.length; i++) {
+                parts[i] = String.format("%s/%s%s",
+                    children[i].unexpanded ? "*" : "",
+                    XidString.serialize(links[i]),
+                    children[i].get_key());
+            }
+            Arrays.sort(parts);
+
+            StringBuilder sb = new StringBuilder();
+            if (parts.length > 0) {
+                sb.append('(');
+                for (String p : parts) {
+                    sb.append(p);
+                }
+                sb.append(')');
+            }
+            key = sb.toString();
+        } // if: not yet calculated
+        return key;
+    } // get_key()
+
+    @Override
+    public boolean equals(Object other) {
+        if (this == other) {
+            return true;
+        }
+        if ((other instanceof ManifestationTrie) == false) {
+            return false;
+        }
+        ManifestationTrie trie = (ManifestationTrie) other;
+        return (unexpanded == trie.unexpanded)
+            && get_key().equals(trie.get_key());
+    } // equals()
+
+    @Override
+    public int hashCode() {
+        return get_key().hashCode();
+    } // hashCode()
+
+    // HELPER METHODS
+    //================
+
+    private ManifestationTrie add_child(Xid link_xid) {
+        for (int i = 0; i < links.length; i++) {
+            if (links[i].equals(link_xid)) {
+                return children[i];
+            }
+        } // for
+
+        int n = links.length;
+        links = Arrays.copyOf(links, n+1);
+        children = Arrays.copyOf(children, n+1);
+        links[n] = link_xid;
+        children[n] = new ManifestationTrie();
+        return children[n];
+    } // add_child()
+
+    private void collect(List<Xid> path, List<Stack<Xid>> rval) {
+        for (int i = 0; i < links.length; i++) {
+            path.add(links[i]);
+            if (children[i].unexpanded) {
+                Stack<Xid> unexpand = new Stack<Xid>();
+                for (int j = path.size()-1; j >= 0; j--) {
+                    unexpand.push(path.get(j));
+                }
+                rval.add(unexpand);
+            }
+            children[i].collect(path, rval);
+            path.remove(path.size()-1);
+        } // for
+    } // collect()
+
+} // class ManifestationTrie
@@ -0,0 +1,727 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.BitSet;
+import java.util.concurrent.atomic.AtomicInteger;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidIdentification;
+import xmlsnippets.fida.XidClient.FidaRepository;
+import xmlsnippets.util.ElementWalker;
+
+/**
+ * A compact representation of the migration graph. It has the same
+ * nodes and edges as the graph of {@link MigrationLogic.GraphNode}s,
+ * but the nodes and the edges are identified by int ids, and their
+ * properties are kept in arrays indexed by the ids.<p>
+ *
+ * The edges are numbered in the order of their creation. The children
+ * of a node are stored as a compressed adjacency array, which is built
+ * by {@link #finish()}; the children never change during migration.
+ * The parents of a node change when the migration redirects an edge,
+ * so they are stored as a doubly-linked list threaded through the
+ * edge arrays. An edge is found by its source, destination and type
+ * with a single hash lookup.<p>
+ *
+ * The edges and the lists are in the same order as in the object graph
+ * built by {@link MigrationLogic#build_graph}, so the migration gives
+ * the same results. The manifestations of the nodes are not recorded,
+ * since the migration does not need them.
+ */
+public class MigrationGraph {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Missing node or edge id.
+     */
+    public static final int NONE = -1;
+
+    /**
+     * Initial capacity of the arrays.
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * Node ids by xid.
+     */
+    private Map<Xid, Integer> ids;
+
+    /** Number of nodes. */
+    private int nodes;
+
+    /** The xid of each node. */
+    private Xid[] node_xid;
+
+    /** The repository node of each node, or {@code null}. */
+    private Fida.Node[] node_fida;
+
+    /** The nodes modified by the migration. */
+    private BitSet modified;
+
+    /** The first and the last edge of each node's parents list. */
+    private int[] parent_head;
+    private int[] parent_tail;
+
+    /** Number of edges. */
+    private int edges;
+
+    /** The source and the destination node of each edge. */
+    private int[] edge_source;
+    private int[] edge_dest;
+
+    /**
+     * The type of each edge; either {@link MigrationLogic#EDGE_REFERENCE}
+     * or {@link MigrationLogic#EDGE_INCLUSION}. The types are distinct
+     * bits.
+     */
+    private byte[] edge_type;
+
+    /** The neighbours of each edge in its destination's parents list. */
+    private int[] parent_next;
+    private int[] parent_prev;
+
+    /**
+     * Open-addressed hash table from a packed (source, dest, type)
+     * key to the edge id. A slot is free if its value is {@link #NONE}.
+     */
+    private long[] edge_keys;
+    private int[] edge_ids;
+
+    /** Number of manifestations; they are recorded in creation order. */
+    private int manifs;
+    private int[] manif_edge;
+    private Attribute[] manif_attr;
+
+    /**
+     * The children of node n are the edges
+     * {@code children[child_start[n]]..children[child_start[n+1]-1]}.
+     * Built by {@link #finish()}.
+     */
+    private int[] child_start;
+    private int[] children;
+
+    /**
+     * The manifestations of edge e are the attributes
+     * {@code attrs[attr_start[e]]..attrs[attr_start[e+1]-1]}.
+     * Built by {@link #finish()}.
+     */
+    private int[] attr_start;
+    private Attribute[] attrs;
+
+    /**
+     * The root node of each file in the layout order, or {@link #NONE}
+     * if the root element has no xid.
+     */
+    public int[] roots;
+
+    /**
+     * The newest revisions found during the migration.
+     */
+    public NewestRevisionMemo newest;
+
+    // CONSTRUCTORS
+    //==============
+
+    public MigrationGraph() {
+        ids = new HashMap<Xid, Integer>();
+        nodes = 0;
+        node_xid = new Xid[INITIAL_CAPACITY];
+        node_fida = new Fida.Node[INITIAL_CAPACITY];
+        modified = new BitSet();
+        parent_head = new int[INITIAL_CAPACITY];
+        parent_tail = new int[INITIAL_CAPACITY];
+
+        edges = 0;
+        edge_source = new int[INITIAL_CAPACITY];
+        edge_dest = new int[INITIAL_CAPACITY];
+        edge_type = new byte[INITIAL_CAPACITY];
+        parent_next = new int[INITIAL_CAPACITY];
+        parent_prev = new int[INITIAL_CAPACITY];
+
+        edge_keys = new long[INITIAL_CAPACITY * 2];
+        edge_ids = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(edge_ids, NONE);
+
+        manifs = 0;
+        manif_edge = new int[INITIAL_CAPACITY];
+        manif_attr = new Attribute[INITIAL_CAPACITY];
+
+        child_start = null;
+        children = null;
+        attr_start = null;
+        attrs = null;
+        roots = null;
+        newest = null;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Builds the graph of the files of a commit. If several threads
+     * are configured with {@link MigrationLogic#g_threads}, the graph of
+     * each file is built separately by a pool of workers, and the graphs
+     * are merged in the order of the files. The result is the same.
+     *
+     * @param db the repository used for resolving xids to elements
+     * @param commit the files to graph
+     * @return the finished graph
+     */
+    public static MigrationGraph build(
+        final FidaRepository db,
+        Fida.Commit commit
+    ) {
+        final List<Fida.File> files = new ArrayList<Fida.File>(commit.layout);
+        MigrationGraph rval = new MigrationGraph();
+        rval.roots = new int[files.size()];
+        rval.newest = new NewestRevisionMemo();
+
+        int threads = MigrationLogic.g_threads;
+        if (threads > files.size()) {
+            threads = files.size();
+        }
+
+        if (threads <= 1) {
+            for (int i = 0; i < files.size(); i++) {
+                Fida.File ff = files.get(i);
+                try {
+                    rval.roots[i] = rval.add_element(
+                        db, NONE, ff.doc.getRootElement());
+                } catch(Exception ex) {
+                    // In the case of an error, halt execution immediately
+                    // with stack trace.
+                    ex.printStackTrace();
+                    throw new RuntimeException(String.format(
+                        "%s: %s", ff.path, ex.getMessage()), ex);
+                } // try-catch
+            } // for: each file in the commit layout
+            rval.finish();
+            return rval;
+        } // if: single thread
+
+        final MigrationGraph[] parts = new MigrationGraph[files.size()];
+        final String[] messages = new String[files.size()];
+        final Throwable[] errors = new Throwable[files.size()];
+        final AtomicInteger next = new AtomicInteger(0);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread(String.format("fida-graph-%d", i)) {
+                @Override
+                public void run() {
+                    int j;
+                    while ((j = next.getAndIncrement()) < files.size()) {
+                        MigrationGraph part = new MigrationGraph();
+                        XMLError.begin_capture();
+                        try {
+                            part.roots = new int[] { part.add_element(
+                                db, NONE, files.get(j).doc.getRootElement()) };
+                        } catch(Throwable ex) {
+                            // Errors too are handed over to the merging
+                            // thread.
+                            errors[j] = ex;
+                        } finally {
+                            messages[j] = XMLError.end_capture();
+                        } // try-catch-finally
+                        parts[j] = part;
+                    } // while
+                } // run()
+            };
+            workers.add(w);
+            w.start();
+        } // for
+
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch(InterruptedException ex) {
+            throw new RuntimeException("Graph building interrupted", ex);
+        } // try-catch
+
+        for (int i = 0; i < files.size(); i++) {
+            if (messages[i] != null) {
+                XMLError.print(messages[i]);
+            }
+            if (errors[i] != null) {
+                // In the case of an error, halt execution immediately
+                // with stack trace.
+                errors[i].printStackTrace();
+                String msg = errors[i].getMessage();
+                if (msg == null) {
+                    msg = errors[i].toString();
+                }
+                throw new RuntimeException(String.format(
+                    "%s: %s", files.get(i).path, msg), errors[i]);
+            } // if
+            if (parts[i] == null) {
+                throw new RuntimeException(String.format(
+                    "%s: the graph of the file was not built",
+                    files.get(i).path));
+            }
+            rval.roots[i] = rval.merge(parts[i], parts[i].roots[0]);
+            // Release early
+            parts[i] = null;
+        } // for: each file in the commit layout
+
+        rval.finish();
+        return rval;
+    } // build()
+
+    private static long edge_key(int source, int dest, int type) {
+        return ((long) source << 33) | ((long) dest << 2) | type;
+    } // edge_key()
+
+    private static int mix(long key) {
+        key ^= (key >>> 33);
+        key *= 0xff51afd7ed558ccdL;
+        key ^= (key >>> 33);
+        return (int) key;
+    } // mix()
+
+    // BUILDING METHODS
+    //==================
+
+    /**
+     * Returns the id of the node for an xid, creating the node
+     * if necessary.
+     */
+    public int add_node(FidaRepository db, Xid xid) {
+        Integer id = ids.get(xid);
+        if (id != null) {
+            return id.intValue();
+        }
+        // References can point to non-local items in which case
+        // there is no such Fida.Node in the database.
+        return create_node(xid, db.get_node(xid));
+    } // add_node()
+
+    /**
+     * Returns the id of the edge of the given type from the source to
+     * the destination, creating the edge if necessary. A new edge is
+     * appended to the destination's parents.
+     */
+    public int add_edge(int source, int dest, int type) {
+        long key = edge_key(source, dest, type);
+        int mask = edge_ids.length - 1;
+        int slot = mix(key) & mask;
+        while (edge_ids[slot] != NONE) {
+            if (edge_keys[slot] == key) {
+                return edge_ids[slot];
+            }
+            slot = (slot + 1) & mask;
+        } // while
+
+        if (edges == edge_source.length) {
+            int capacity = edges * 2;
+            edge_source = Arrays.copyOf(edge_source, capacity);
+            edge_dest = Arrays.copyOf(edge_dest, capacity);
+            edge_type = Arrays.copyOf(edge_type, capacity);
+            parent_next = Arrays.copyOf(parent_next, capacity);
+            parent_prev = Arrays.copyOf(parent_prev, capacity);
+        }
+
+        int rval = edges++;
+        edge_source[rval] = source;
+        edge_dest[rval] = dest;
+        edge_type[rval] = (byte) type;
+        link_parent(rval, dest);
+
+        edge_keys[slot] = key;
+        edge_ids[slot] = rval;
+        if (edges * 2 > edge_ids.length) {
+            rehash();
+        }
+        return rval;
+    } // add_edge()
+
+    /**
+     * Records a reference attribute as a manifestation of an edge.
+     */
+    public void add_manifestation(int edge, Attribute a) {
+        if (manifs == manif_edge.length) {
+            int capacity = manifs * 2;
+            manif_edge = Arrays.copyOf(manif_edge, capacity);
+            manif_attr = Arrays.copyOf(manif_attr, capacity);
+        }
+        manif_edge[manifs] = edge;
+        manif_attr[manifs] = a;
+        manifs++;
+    } // add_manifestation()
+
+    /**
+     * Adds an element and its descendants to the graph. This follows
+     * {@link MigrationLogic#build_graph_node} step by step.
+     *
+     * @param db the repository used for resolving xids to elements
+     * @param parent the nearest parent node, or {@link #NONE}
+     * @param element the element
+     * @return the node of the element, or the nearest parent node
+     * if the element has no xid
+     */
+    public int add_element(FidaRepository db, int parent, Element element) {
+        ElementAdder visitor = new ElementAdder(db, parent);
+        ElementWalker.get_local().walk(element, visitor);
+        return visitor.rval;
+    } // add_element()
+
+    /**
+     * Adds a single element to the graph without its children.
+     *
+     * @return the nearest parent node of the element's children
+     */
+    private int add_single(FidaRepository db, int parent, Element element) {
+        Xid xid = XidIdentification.get_xid(element);
+        if (xid != null) {
+            int dest = add_node(db, xid);
+            if (parent != NONE) {
+                add_edge(parent, dest, MigrationLogic.EDGE_INCLUSION);
+            }
+            parent = dest;
+        } // if: has xid
+
+        for (Object obj : element.getAttributes()) {
+            Attribute a = (Attribute) obj;
+            if (MigrationLogic.is_ref(a) == false) {
+                continue;
+            }
+
+            Xid ref = MigrationLogic.parse_reference(db, a);
+            if (ref == null) {
+                continue;
+            }
+
+            int ref_dest = add_node(db, ref);
+            if (parent == NONE) {
+                // Should never happen
+                continue;
+            }
+
+            int edge = add_edge(parent, ref_dest, MigrationLogic.EDGE_REFERENCE);
+            add_manifestation(edge, a);
+        } // for: each attr
+
+        return parent;
+    } // add_single()
+
+    /**
+     * Walks the elements for {@link #add_element}. The nearest parent
+     * node of each depth is kept in a stack of its own.
+     */
+    private class ElementAdder extends ElementWalker.Visitor {
+        private FidaRepository db;
+        private int[] parents;
+        public int rval;
+
+        public ElementAdder(FidaRepository db, int parent) {
+            this.db = db;
+            parents = new int[32];
+            parents[0] = parent;
+            rval = NONE;
+        } // ctor
+
+        @Override
+        public Element enter(ElementWalker w, Element elem) {
+            int depth = w.get_depth();
+            if (depth + 1 == parents.length) {
+                parents = Arrays.copyOf(parents, parents.length * 2);
+            }
+            // The nearest parent node of the element is at its depth,
+            // and the one of its children is stored at the next depth.
+            int node = add_single(db, parents[depth], elem);
+            parents[depth+1] = node;
+            if (depth == 0) {
+                rval = node;
+            }
+            return elem;
+        } // enter()
+    } // class ElementAdder
+
+    /**
+     * Merges another unfinished graph into this one. The nodes, the edges
+     * and the manifestations are added in the order of their creation
+     * in the other graph.
+     *
+     * @return the id of the given node of the other graph in this graph
+     */
+    public int merge(MigrationGraph other, int node) {
+        int[] map = new int[other.nodes];
+        for (int n = 0; n < other.nodes; n++) {
+            map[n] = add_node_as(other.node_xid[n], other.node_fida[n]);
+        }
+
+        int[] edge_map = new int[other.edges];
+        for (int e = 0; e < other.edges; e++) {
+            edge_map[e] = add_edge(
+                map[other.edge_source[e]],
+                map[other.edge_dest[e]],
+                other.edge_type[e]);
+        }
+
+        for (int i = 0; i < other.manifs; i++) {
+            add_manifestation(edge_map[other.manif_edge[i]], other.manif_attr[i]);
+        }
+
+        if (node == NONE) {
+            return NONE;
+        }
+        return map[node];
+    } // merge()
+
+    private int add_node_as(Xid xid, Fida.Node fida_node) {
+        Integer id = ids.get(xid);
+        if (id != null) {
+            return id.intValue();
+        }
+        // The repository was already consulted by the other graph
+        return create_node(xid, fida_node);
+    } // add_node_as()
+
+    private int create_node(Xid xid, Fida.Node fida_node) {
+        if (nodes == node_xid.length) {
+            int capacity = nodes * 2;
+            node_xid = Arrays.copyOf(node_xid, capacity);
+            node_fida = Arrays.copyOf(node_fida, capacity);
+            parent_head = Arrays.copyOf(parent_head, capacity);
+            parent_tail = Arrays.copyOf(parent_tail, capacity);
+        }
+
+        int rval = nodes++;
+        node_xid[rval] = (Xid) xid.clone();
+        node_fida[rval] = fida_node;
+        parent_head[rval] = NONE;
+        parent_tail[rval] = NONE;
+        ids.put(node_xid[rval], Integer.valueOf(rval));
+        return rval;
+    } // create_node()
+
+    /**
+     * Builds the compressed arrays of the children and the manifestations.
+     * No edges or manifestations can be added after this.
+     */
+    public void finish() {
+        // Counting sort of the edges by source;
+        // stable, so the children stay in the order of creation.
+        child_start = new int[nodes + 1];
+        for (int e = 0; e < edges; e++) {
+            child_start[edge_source[e] + 1]++;
+        }
+        for (int n = 0; n < nodes; n++) {
+            child_start[n + 1] += child_start[n];
+        }
+        children = new int[edges];
+        int[] fill = Arrays.copyOf(child_start, nodes);
+        for (int e = 0; e < edges; e++) {
+            children[fill[edge_source[e]]++] = e;
+        }
+
+        // The same for the manifestations by edge
+        attr_start = new int[edges + 1];
+        for (int i = 0; i < manifs; i++) {
+            attr_start[manif_edge[i] + 1]++;
+        }
+        for (int e = 0; e < edges; e++) {
+            attr_start[e + 1] += attr_start[e];
+        }
+        attrs = new Attribute[manifs];
+        fill = Arrays.copyOf(attr_start, edges);
+        for (int i = 0; i < manifs; i++) {
+            attrs[fill[manif_edge[i]]++] = manif_attr[i];
+        }
+
+        // Not needed anymore
+        manif_edge = null;
+        manif_attr = null;
+        edge_keys = null;
+        edge_ids = null;
+    } // finish()
+
+    private void rehash() {
+        long[] old_keys = edge_keys;
+        int[] old_ids = edge_ids;
+        edge_keys = new long[old_keys.length * 2];
+        edge_ids = new int[old_ids.length * 2];
+        Arrays.fill(edge_ids, NONE);
+        int mask = edge_ids.length - 1;
+        for (int i = 0; i < old_ids.length; i++) {
+            if (old_ids[i] == NONE) {
+                continue;
+            }
+            int slot = mix(old_keys[i]) & mask;
+            while (edge_ids[slot] != NONE) {
+                slot = (slot + 1) & mask;
+            }
+            edge_keys[slot] = old_keys[i];
+            edge_ids[slot] = old_ids[i];
+        } // for
+    } // rehash()
+
+    // QUERY METHODS
+    //===============
+
+    public int get_node_count() {
+        return nodes;
+    }
+
+    public int get_edge_count() {
+        return edges;
+    }
+
+    /**
+     * Returns the id of the node for an xid, or {@link #NONE}.
+     */
+    public int get_node(Xid xid) {
+        Integer id = ids.get(xid);
+        if (id == null) {
+            return NONE;
+        }
+        return id.intValue();
+    } // get_node()
+
+    public Xid get_xid(int node) {
+        return node_xid[node];
+    }
+
+    public Fida.Node get_fida_node(int node) {
+        return node_fida[node];
+    }
+
+    public boolean is_modified(int node) {
+        return modified.get(node);
+    }
+
+    public void set_modified(int node) {
+        modified.set(node);
+    }
+
+    public int get_source(int edge) {
+        return edge_source[edge];
+    }
+
+    public int get_dest(int edge) {
+        return edge_dest[edge];
+    }
+
+    public int get_type(int edge) {
+        return edge_type[edge];
+    }
+
+    /**
+     * Returns the index of the first child edge of a node
+     * in {@link #get_child(int)}.
+     */
+    public int get_children_begin(int node) {
+        return child_start[node];
+    }
+
+    /**
+     * Returns the index after the last child edge of a node
+     * in {@link #get_child(int)}.
+     */
+    public int get_children_end(int node) {
+        return child_start[node + 1];
+    }
+
+    /**
+     * Returns the child edge at the given index.
+     */
+    public int get_child(int index) {
+        return children[index];
+    }
+
+    /**
+     * Returns a copy of the parent edges of a node.
+     */
+    public int[] get_parents(int node) {
+        int count = 0;
+        for (int e = parent_head[node]; e != NONE; e = parent_next[e]) {
+            count++;
+        }
+        int[] rval = new int[count];
+        int i = 0;
+        for (int e = parent_head[node]; e != NONE; e = parent_next[e]) {
+            rval[i++] = e;
+        }
+        return rval;
+    } // get_parents()
+
+    /**
+     * Returns the manifestations of an edge as an unmodifiable list.
+     */
+    public List<Attribute> get_manifestations(int edge) {
+        return Collections.unmodifiableList(Arrays.asList(attrs).subList(
+            attr_start[edge], attr_start[edge + 1]));
+    } // get_manifestations()
+
+    /**
+     * Redirects an edge to another destination. The edge is removed from
+     * the parents of its current destination, and appended to the parents
+     * of the new one.
+     */
+    public void set_dest(int edge, int dest) {
+        unlink_parent(edge);
+        edge_dest[edge] = dest;
+        link_parent(edge, dest);
+    } // set_dest()
+
+    // HELPER METHODS
+    //================
+
+    private void link_parent(int edge, int dest) {
+        parent_prev[edge] = parent_tail[dest];
+        parent_next[edge] = NONE;
+        if (parent_tail[dest] == NONE) {
+            parent_head[dest] = edge;
+        } else {
+            parent_next[parent_tail[dest]] = edge;
+        }
+        parent_tail[dest] = edge;
+    } // link_parent()
+
+    private void unlink_parent(int edge) {
+        int dest = edge_dest[edge];
+        int prev = parent_prev[edge];
+        int next = parent_next[edge];
+        if (prev == NONE) {
+            parent_head[dest] = next;
+        } else {
+            parent_next[prev] = next;
+        }
+        if (next == NONE) {
+            parent_tail[dest] = prev;
+        } else {
+            parent_prev[next] = prev;
+        }
+    } // unlink_parent()
+
+} // class MigrationGraph
@@ -22,7 +22,11 @@ import java.util.LinkedList;
 import java.util.Map;
 import java.util.HashMap;
 import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.ArrayList;
 import java.util.Vector;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.io.File;
 
 // jdom
@@ -35,6 +39,7 @@ import org.jdom.Content;
 // fida
 import xmlsnippets.util.XMLFileHelper;
 import xmlsnippets.util.XPathIdentification;
+import xmlsnippets.util.ElementWalker;
 import xmlsnippets.fida.XidClient.FidaRepository;
 import xmlsnippets.fida.XidClient;
 import xmlsnippets.core.Xid;
@@ -176,6 +181,35 @@ public class MigrationLogic {
         }
     };
 
+    /**
+     * The graph of a single file, built by a worker thread
+     * to be merged into the whole graph.
+     */
+    protected static class PartialGraph {
+
+        /**
+         * The nodes in the order of their creation
+         */
+        public Map<Xid, GraphNode> graph
+            = new LinkedHashMap<Xid, GraphNode>();
+
+        /**
+         * The root node of the file
+         */
+        public GraphNode root = null;
+
+        /**
+         * The error messages produced while building
+         */
+        public String messages = null;
+
+        /**
+         * The failure, if any
+         */
+        public Throwable error = null;
+
+    }; // class PartialGraph
+
     // MEMBER VARIABLES
     //==================
 
@@ -213,6 +247,11 @@ public class MigrationLogic {
      */
     public static int g_mode = DEFAULT_MODE;
 
+    /**
+     * Number of threads used for building the graph.
+     */
+    public static int g_threads = 1;
+
     // CONSTRUCTORS
     //==============
 
@@ -240,6 +279,15 @@ public class MigrationLogic {
         Map<Xid, GraphNode> graph,
         Map<Fida.File, GraphNode> roots
     ) {
+        int threads = g_threads;
+        if (threads > commit.layout.size()) {
+            threads = commit.layout.size();
+        }
+        if (threads > 1) {
+            build_graph_parallel(db, commit, graph, roots, threads);
+            return;
+        }
+
         // Build a graph of the current tree/layout.
         // The graph is built by traversing through each file.
         for (Fida.File ff : commit.layout) {
@@ -262,6 +310,156 @@ public class MigrationLogic {
         } // for: each file in the commit layout
     } // build_graph()
 
+    /**
+     * Builds the graph of each file separately in worker threads, and
+     * then merges the partial graphs in the order of the files. The
+     * result is identical to the graph built sequentially: the nodes,
+     * the edges and the manifestations end up in the same order, and
+     * the error messages are printed in the same order.<p>
+     *
+     * The workers only read the repository and the files.
+     */
+    protected static void build_graph_parallel(
+        final FidaRepository db,
+        Fida.Commit commit,
+        Map<Xid, GraphNode> graph,
+        Map<Fida.File, GraphNode> roots,
+        int threads
+    ) {
+        final List<Fida.File> files = new ArrayList<Fida.File>(commit.layout);
+        final PartialGraph[] parts = new PartialGraph[files.size()];
+        final AtomicInteger next = new AtomicInteger(0);
+
+        List<Thread> workers = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            Thread w = new Thread(String.format("fida-graph-%d", i)) {
+                @Override
+                public void run() {
+                    int j;
+                    while ((j = next.getAndIncrement()) < files.size()) {
+                        PartialGraph part = null;
+                        try {
+                            part = build_partial_graph(db, files.get(j));
+                        } catch(Throwable ex) {
+                            // Record the failure for the merging thread
+                            part = new PartialGraph();
+                            part.error = ex;
+                        } // try-catch
+                        parts[j] = part;
+                    }
+                } // run()
+            };
+            workers.add(w);
+            w.start();
+        } // for
+
+        try {
+            for (Thread w : workers) {
+                w.join();
+            }
+        } catch(InterruptedException ex) {
+            throw new RuntimeException("Graph building interrupted", ex);
+        } // try-catch
+
+        for (int i = 0; i < parts.length; i++) {
+            Fida.File ff = files.get(i);
+            PartialGraph part = parts[i];
+            if (part == null) {
+                throw new RuntimeException(String.format(
+                    "%s: the graph of the file was not built", ff.path));
+            }
+            if (part.messages != null) {
+                XMLError.print(part.messages);
+            }
+
+            if (part.error != null) {
+                // In the case of an error, halt execution immediately
+                // with stack trace.
+                part.error.printStackTrace();
+                String msg = part.error.getMessage();
+                if (msg == null) {
+                    msg = part.error.toString();
+                }
+                throw new RuntimeException(String.format(
+                    "%s: %s", ff.path, msg), part.error);
+            } // if
+
+            GraphNode rootNode = merge_graph(db, graph, part);
+            roots.put(ff, rootNode);
+        } // for: each file in the commit layout
+    } // build_graph_parallel()
+
+    private static PartialGraph build_partial_graph(
+        FidaRepository db,
+        Fida.File ff
+    ) {
+        PartialGraph rval = new PartialGraph();
+        XMLError.begin_capture();
+        try {
+            Element root = ff.doc.getRootElement();
+            rval.root = build_graph_node(db, rval.graph, null, root);
+        } catch(Throwable ex) {
+            // Errors too, such as a stack overflow on a deep document,
+            // are handed over to the merging thread.
+            rval.error = ex;
+        } finally {
+            rval.messages = XMLError.end_capture();
+        } // try-catch-finally
+        return rval;
+    } // build_partial_graph()
+
+    /**
+     * Merges a partial graph into the whole graph. The nodes are merged
+     * in the order of their creation. The edges are connected first to
+     * their sources and then to their destinations, so that both the
+     * children and the parents lists keep the order of creation.
+     *
+     * @return the merged counterpart of the partial graph's root
+     */
+    private static GraphNode merge_graph(
+        FidaRepository db,
+        Map<Xid, GraphNode> graph,
+        PartialGraph part
+    ) {
+        Map<GraphNode, GraphNode> nodes
+            = new IdentityHashMap<GraphNode, GraphNode>();
+        for (Map.Entry<Xid, GraphNode> entry : part.graph.entrySet()) {
+            GraphNode n = entry.getValue();
+            GraphNode m = get_or_create_node(db, graph, entry.getKey(), null);
+            m.manifestations.addAll(n.manifestations);
+            nodes.put(n, m);
+        } // for: each node
+
+        // The merged edges which did not exist before
+        Map<GraphEdge, GraphEdge> created
+            = new IdentityHashMap<GraphEdge, GraphEdge>();
+        for (GraphNode n : part.graph.values()) {
+            GraphNode source = nodes.get(n);
+            for (GraphEdge e : n.children) {
+                GraphNode dest = nodes.get(e.dest);
+                GraphEdge merged = find_edge(source, dest, e.type);
+                if (merged == null) {
+                    merged = new GraphEdge(e.type, source, dest);
+                    source.children.add(merged);
+                    created.put(e, merged);
+                }
+                merged.manifestations.addAll(e.manifestations);
+            } // for: each edge
+        } // for: each node
+
+        for (GraphNode n : part.graph.values()) {
+            GraphNode dest = nodes.get(n);
+            for (GraphEdge e : n.parents) {
+                GraphEdge merged = created.get(e);
+                if (merged != null) {
+                    dest.parents.add(merged);
+                }
+            } // for: each edge
+        } // for: each node
+
+        return nodes.get(part.root);
+    } // merge_graph()
+
     /**
      * Build a {@code GraphNode} from the specified {@code Element}.
      *
@@ -271,6 +469,39 @@ public class MigrationLogic {
      * @param element [in] The element used to build {@code GraphNode}
      */
     public static GraphNode build_graph_node(
+        final FidaRepository db,
+        final Map<Xid, GraphNode> graph,
+        final GraphNode nearestParentNode,
+        Element element
+    ) {
+        // The value of each frame is the nearest xidentified node
+        // of the element, or null.
+        ElementWalker walker = ElementWalker.get_local();
+        final GraphNode[] rval = new GraphNode[1];
+        walker.walk(element, new ElementWalker.Visitor() {
+            @Override
+            public Element enter(ElementWalker w, Element elem) {
+                GraphNode parent = nearestParentNode;
+                if (w.get_depth() > 0) {
+                    parent = (GraphNode) w.get_parent_value();
+                }
+                GraphNode node = add_graph_element(db, graph, parent, elem);
+                if (w.get_depth() == 0) {
+                    rval[0] = node;
+                }
+                w.set_value(node);
+                return elem;
+            }
+        });
+        return rval[0];
+    } // build_graph_node()
+
+    /**
+     * Adds a single element to the graph without its children.
+     *
+     * @return the nearest xidentified node of the element's children
+     */
+    private static GraphNode add_graph_element(
         FidaRepository db,
         Map<Xid, GraphNode> graph,
         GraphNode nearestParentNode,
@@ -309,50 +540,11 @@ public class MigrationLogic {
                 continue; // ignore
             }
 
-            // Get the reference, and de-serialize.
-            // Rev is not allowed to be missing.
-            String path = a.getValue();
-
-            Xref xref = null;
-
-            try {
-                // Allow missing revision numbers
-                xref = XrefString.deserialize(path, true);
-            } catch(Exception ex) {
-                // Reference has some sort of syntax error
-                XMLError.printf(a,
-                    "Reference has syntax error; migration impossible.");
-                continue;
-            }
-
-            Xid ref = xref.base;
-
+            Xid ref = parse_reference(db, a);
             if (ref == null) {
-                // Reference has xid syntax error
-                XMLError.printf(a,
-                    "Reference has syntax error; migration impossible.");
-                continue;
-            }
-
-            if (ref.rev == Xid.REV_MISSING) {
-                // TODO: Error: reference has an id but no revision.
-                // Make it configurable whether to ignore silently or raise.
-                XMLError.printf(a,
-                    "Reference\'s base xid has missing revision number; not migrating.");
                 continue;
             }
 
-            // Resolve the node
-            Element target = ResolutionLogic.resolve(xref, db);
-            if (target == null) {
-                // TODO: Error: reference base is valid,
-                // but the properties path point to non-existent element.
-                // Make it configurable whether to ignore silently or raise.
-                XMLError.printf(a,
-                    "Reference\'s path cannot be resolved. Migrating anyway.");
-                //continue;
-            }
-
             // Resolve the reference destionation graph node.
             GraphNode ref_dest = get_or_create_node(db, graph, ref, null);
 
@@ -373,42 +565,79 @@ public class MigrationLogic {
 
         } // for each attr
 
-        // Finally, recursion
-        for (Object obj : element.getContent()) {
-            if ((obj instanceof Element) == false) {
-                continue;
-            }
-            // Recurse
-            Element c = (Element) obj;
-            build_graph_node(db, graph, nearestParentNode, c);
-        } // for
-
         return nearestParentNode;
-    } // build_graph()
+    } // add_graph_element()
+
+
+    /**
+     * Parses the value of a reference attribute for the graph, and
+     * reports the problems found. The reference does not need to be
+     * resolvable; that is only reported.
+     *
+     * @param db [in] The repository used for resolving the reference
+     * @param a [in] The reference attribute
+     * @return The base xid of the reference, or {@code null} if the
+     * reference cannot be migrated.
+     */
+    public static Xid parse_reference(
+        FidaRepository db,
+        Attribute a
+    ) {
+        // Get the reference, and de-serialize.
+        // Rev is not allowed to be missing.
+        String path = a.getValue();
+
+        Xref xref = null;
+
+        try {
+            // Allow missing revision numbers
+            xref = XrefString.deserialize(path, true);
+        } catch(Exception ex) {
+            // Reference has some sort of syntax error
+            XMLError.printf(a,
+                "Reference has syntax error; migration impossible.");
+            return null;
+        }
+
+        Xid ref = xref.base;
+
+        if (ref == null) {
+            // Reference has xid syntax error
+            XMLError.printf(a,
+                "Reference has syntax error; migration impossible.");
+            return null;
+        }
+
+        if (ref.rev == Xid.REV_MISSING) {
+            // TODO: Error: reference has an id but no revision.
+            // Make it configurable whether to ignore silently or raise.
+            XMLError.printf(a,
+                "Reference\'s base xid has missing revision number; not migrating.");
+            return null;
+        }
 
+        // Resolve the node
+        Element target = ResolutionLogic.resolve(xref, db);
+        if (target == null) {
+            // TODO: Error: reference base is valid,
+            // but the properties path point to non-existent element.
+            // Make it configurable whether to ignore silently or raise.
+            XMLError.printf(a,
+                "Reference\'s path cannot be resolved. Migrating anyway.");
+        }
+
+        return ref;
+    } // parse_reference()
 
     public static GraphEdge get_or_create_edge(
         GraphNode source,
         GraphNode dest,
         int type
     ) {
-        GraphEdge rval = null;
-
         // See if the source node already has an edge to the destination node.
-        boolean hasEdge = false;
-        for (GraphEdge edge : source.children) {
-            if (edge.type != type) {
-                // Skip other types of edges
-                continue;
-            }
-            if (edge.dest == dest) {
-                hasEdge = true;
-                rval = edge;
-                break;
-            }
-        } // for: each edge
+        GraphEdge rval = find_edge(source, dest, type);
 
-        if (hasEdge == false) {
+        if (rval == null) {
             // No such edge. Create the edge and connect the nodes.
             GraphEdge edge = new GraphEdge(type, source, dest);
             source.children.add(edge);
@@ -420,6 +649,23 @@ public class MigrationLogic {
         return rval;
     }
 
+    public static GraphEdge find_edge(
+        GraphNode source,
+        GraphNode dest,
+        int type
+    ) {
+        for (GraphEdge edge : source.children) {
+            if (edge.type != type) {
+                // Skip other types of edges
+                continue;
+            }
+            if (edge.dest == dest) {
+                return edge;
+            }
+        } // for: each edge
+        return null;
+    } // find_edge()
+
     public static GraphNode get_or_create_node(
         FidaRepository db,
         Map<Xid, GraphNode> graph,
@@ -778,84 +1024,293 @@ public class MigrationLogic {
         return next;
     }
 
+    // METHODS FOR MIGRATING A COMPACT GRAPH
+    //=======================================
+
+    /**
+     * Migrates the whole tree of a given node like
+     * {@link #migrate_node(Map, FidaRepository, Map, GraphNode)}.
+     */
+    public static void migrate_node(
+        MigrationGraph graph,
+        FidaRepository db,
+        Map<Attribute, Xref> map,
+        int node
+    ) {
+        int end = graph.get_children_end(node);
+        for (int i = graph.get_children_begin(node); i < end; i++) {
+            int edge = graph.get_child(i);
+            if (graph.get_type(edge) == EDGE_INCLUSION) {
+                // Recurse; depth-first
+                migrate_node(graph, db, map, graph.get_dest(edge));
+            } else {
+                // Otherwise see if the edge needs to be migrated.
+                migrate_edge(graph, db, map, edge);
+            }
+        } // for
+    } // migrate_node()
+
+    /**
+     * Migrates an edge like
+     * {@link #migrate_edge(Map, FidaRepository, Map, GraphEdge)}.
+     */
+    public static void migrate_edge(
+        MigrationGraph graph,
+        FidaRepository db,
+        Map<Attribute, Xref> map,
+        int edge
+    ) {
+        // Asserted: edge type is EDGE_REFERENCE
+        int dest = graph.get_dest(edge);
+        Fida.Node destNode = graph.get_fida_node(dest);
+
+        if (destNode == null) {
+            // Either a non-local element is referenced,
+            // or the reference is in error.
+            XMLError.printf(graph.get_manifestations(edge),
+                "Reference base xid=\"%s\" does not exist; migration impossible.",
+                XidString.serialize(graph.get_xid(dest)));
+            return;
+        }
+
+        Fida.Node newestNode = graph.newest.get(
+            destNode, graph.get_manifestations(edge));
+
+        // See if the newest revision of the element has
+        // any instances in the tree.
+        int newest = graph.get_node(newestNode.payload_xid);
+        if (newest == MigrationGraph.NONE) {
+            XMLError.printf(graph.get_manifestations(edge),
+                "Reference base xid=\"%s\" has a newer revision xid=\"%s\" which is not present in the repository head or chosen file set; migration impossible.",
+                XidString.serialize(graph.get_xid(dest)),
+                XidString.serialize(newestNode.payload_xid));
+            return;
+        }
+
+        boolean newestModified = graph.is_modified(newest);
+        if ((destNode == newestNode) && (newestModified == false)) {
+            // Already newest. Not migrating.
+            return;
+        }
+
+        // Serialize the new reference value
+        Xid xid = (Xid) newestNode.payload_xid.clone();
+        if (newestModified == true) {
+            // If modified, use hash mark
+            xid.rev = Xid.REV_UNASSIGNED;
+        }
+
+        // Traverse all manifestations of the current edge,
+        // and update the attribute values
+        for (Attribute a : graph.get_manifestations(edge)) {
+            // Do not allow missing revision numbers
+            Xref xref = XrefString.deserialize(a.getValue(), false);
+
+            // Replace the first binding using the base
+            xref.base = xid;
+
+            String val = XrefString.serialize(xref);
+            a.setValue(val);
+
+            // Record the migration to the log map
+            map.put(a, xref);
+        }
+
+        // Maintain the graph: move the edge to the parents
+        // of the new destination.
+        graph.set_dest(edge, newest);
+
+        // Propagate the modification of the source backwards,
+        // unless already done or in process.
+        int source = graph.get_source(edge);
+        if (graph.is_modified(source) == false) {
+            graph.set_modified(source);
+
+            // Propagate updates to references
+            // triggered by revising the source
+            backpropagate_node_modification(graph, db, map, source);
+
+            // Propagate modification to the parents, grand-parents,
+            // and so on, of the source.
+            int[] breadth = graph.get_parents(source);
+            while (breadth.length > 0) {
+                breadth = backpropagate_breadth(graph, db, map, breadth);
+            }
+        } // if: not yet modified
+    } // migrate_edge()
+
+    /**
+     * Migrates the references to a modified node like
+     * {@link #backpropagate_node_modification(Map, FidaRepository, Map, GraphNode)}.
+     */
+    public static void backpropagate_node_modification(
+        MigrationGraph graph,
+        FidaRepository db,
+        Map<Attribute, Xref> map,
+        int dest
+    ) {
+        // Copy the parents to avoid comodification.
+        int[] parents = graph.get_parents(dest);
+
+        for (int edge : parents) {
+            // Filter out other types except references
+            if (graph.get_type(edge) != EDGE_REFERENCE) {
+                continue;
+            }
+            migrate_edge(graph, db, map, edge);
+        } // for: each parent edge
+    } // backpropagate_node_modification()
+
+    /**
+     * Breadth-first backpropagation step like
+     * {@link #backpropagate_breadth(Map, FidaRepository, Map, Vector)}.
+     *
+     * @return The breadth for the next step
+     */
+    public static int[] backpropagate_breadth(
+        MigrationGraph graph,
+        FidaRepository db,
+        Map<Attribute, Xref> map,
+        int[] breadth
+    ) {
+        // breadth for the next step
+        int[] next = new int[breadth.length];
+        int count = 0;
+        for (int edge : breadth) {
+            // Follow only inclusions, because modifications
+            // propagate _upwards_ (to the parent) in the hierarchy.
+            if (graph.get_type(edge) != EDGE_INCLUSION) {
+                continue;
+            }
+
+            int source = graph.get_source(edge);
+            if (graph.is_modified(source)) {
+                // Already handled or in-process.
+                continue;
+            } // if
+
+            graph.set_modified(source);
+
+            backpropagate_node_modification(graph, db, map, source);
+
+            // Add all parents to the next step
+            int[] parents = graph.get_parents(source);
+            if (count + parents.length > next.length) {
+                next = Arrays.copyOf(next,
+                    Math.max(next.length * 2, count + parents.length));
+            }
+            System.arraycopy(parents, 0, next, count, parents.length);
+            count += parents.length;
+        } // for
+
+        return Arrays.copyOf(next, count);
+    } // backpropagate_breadth()
+
     /**
      * Returns the newest revision of the specified node by traversing
      * the "next" objects as far as possible until no more next.
+     *
+     * @param node the node
+     * @param edge the edge, or its manifestations, for the messages
      */
     public static Fida.Node get_newest_revision(
         Fida.Node node,
-        GraphEdge edge
+        Object edge
     ) {
         while (node.next.size() > 0) {
-            Fida.Node next = null;
-
-            if (node.next.size() > 1) {
-                // Multiple successors.
-
-                // Find the one with the same id, if any.
-                String cur_id = node.payload_xid.id;
-                StringBuilder sb = new StringBuilder();
-                int nc = 0;
-                for (Fida.Node fn : node.next) {
-                   if (nc > 0) {
-                       sb.append(' ');
-                   }
-                   nc++;
-                   sb.append(XidString.serialize(fn.payload_xid));
-
-                   String next_id = fn.payload_xid.id;
-                   if (cur_id.equals(next_id)) {
-                       // Use this
-                       next = fn;
-                       //break;
-                   }
-                }
-
-                switch(g_mode) {
-                    case MODE_CAUTIOUS:
-                        // Migrate no further.
-                        next = null;
-                        break;
-                    case MODE_SMART:
-                        // Use the one with the same id, if any.
-                        break;
-                    case MODE_RASH:
-                        // Use the one with the same id.
-                        // If no such node, use first available.
-                        if (next == null) {
-                            next = node.next.get(0);
-                        }
-                        break;
-                    default:
-                        throw new RuntimeException(String.format(
-                            "Unexpected g_mode: %d", g_mode));
-                } // switch
-
-                if (next == null) {
-                    // Cannot migrate further without assistance.
-                    if (g_report == true) {
-                        XMLError.info(edge,
-                            "Migration finished to xid=\"%s\"; has multiple successors: %s",
-                            XidString.serialize(node.payload_xid), sb.toString() );
-                   }
-                   return node;
-                }
-                if (g_report == true) {
-                    XMLError.info(edge,
-                        "Continuing from xid=\"%s\" to branch \"%s\"; source has multiple successors: %s",
-                        XidString.serialize(node.payload_xid),
-                        XidString.serialize(next.payload_xid),
-                        sb.toString() );
-                }
-            } else {
-                next = node.next.get(0);
+            Fida.Node next = get_next_revision(node, edge, g_report);
+            if (next == null) {
+                // Cannot migrate further without assistance.
+                return node;
             }
-
             node = next;
         }
         return node;
     }
 
+    /**
+     * Returns the successor of the specified node to which the migration
+     * continues, or {@code null} if the migration stops at the node.
+     * The choice between multiple successors depends on {@link #g_mode}.
+     *
+     * @param node the node
+     * @param edge the edge, or its manifestations, for the messages
+     * @param report whether the choice between multiple successors
+     * is reported
+     */
+    public static Fida.Node get_next_revision(
+        Fida.Node node,
+        Object edge,
+        boolean report
+    ) {
+        if (node.next.size() == 0) {
+            return null;
+        }
+        if (node.next.size() == 1) {
+            return node.next.get(0);
+        }
+
+        // Multiple successors.
+        Fida.Node next = null;
+
+        // Find the one with the same id, if any.
+        String cur_id = node.payload_xid.id;
+        StringBuilder sb = new StringBuilder();
+        int nc = 0;
+        for (Fida.Node fn : node.next) {
+           if (nc > 0) {
+               sb.append(' ');
+           }
+           nc++;
+           sb.append(XidString.serialize(fn.payload_xid));
+
+           String next_id = fn.payload_xid.id;
+           if (cur_id.equals(next_id)) {
+               // Use this
+               next = fn;
+               //break;
+           }
+        }
+
+        switch(g_mode) {
+            case MODE_CAUTIOUS:
+                // Migrate no further.
+                next = null;
+                break;
+            case MODE_SMART:
+                // Use the one with the same id, if any.
+                break;
+            case MODE_RASH:
+                // Use the one with the same id.
+                // If no such node, use first available.
+                if (next == null) {
+                    next = node.next.get(0);
+                }
+                break;
+            default:
+                throw new RuntimeException(String.format(
+                    "Unexpected g_mode: %d", g_mode));
+        } // switch
+
+        if (next == null) {
+            // Cannot migrate further without assistance.
+            if (report == true) {
+                XMLError.info(edge,
+                    "Migration finished to xid=\"%s\"; has multiple successors: %s",
+                    XidString.serialize(node.payload_xid), sb.toString() );
+           }
+           return null;
+        }
+        if (report == true) {
+            XMLError.info(edge,
+                "Continuing from xid=\"%s\" to branch \"%s\"; source has multiple successors: %s",
+                XidString.serialize(node.payload_xid),
+                XidString.serialize(next.payload_xid),
+                sb.toString() );
+        }
+        return next;
+    } // get_next_revision()
+
     public static boolean is_ref(Attribute a) {
         return is_ref(a.getName());
     }
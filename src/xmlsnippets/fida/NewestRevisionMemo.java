@@ -0,0 +1,143 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.Set;
+import java.util.IdentityHashMap;
+import java.util.Collections;
+
+/**
+ * Memoized results of {@link MigrationLogic#get_newest_revision}
+ * for a single migration run. When a lifeline is walked, every node
+ * on the walk is mapped directly to the newest revision found, in the
+ * manner of path compression. A later walk stops at the first node
+ * already mapped, so each lifeline is walked only once.<p>
+ *
+ * The results depend on {@link MigrationLogic#g_mode}, which must not
+ * change during the run. When {@link MigrationLogic#g_report} is set,
+ * the choices between multiple successors are reported for each edge;
+ * therefore the walks crossing such a choice are redone with reporting.
+ */
+public class NewestRevisionMemo {
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The newest revision of each walked node.
+     */
+    private Map<Fida.Node, Fida.Node> newest;
+
+    /**
+     * The walked nodes from which the walk crosses a node
+     * with multiple successors.
+     */
+    private Set<Fida.Node> branched;
+
+    // CONSTRUCTORS
+    //==============
+
+    public NewestRevisionMemo() {
+        newest = new IdentityHashMap<Fida.Node, Fida.Node>();
+        branched = Collections.newSetFromMap(
+            new IdentityHashMap<Fida.Node, Boolean>());
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the newest revision of the specified node like
+     * {@link MigrationLogic#get_newest_revision(Fida.Node, Object)}.
+     *
+     * @param node the node
+     * @param edge the edge, or its manifestations, for the messages
+     */
+    public Fida.Node get(Fida.Node node, Object edge) {
+        Fida.Node rval = newest.get(node);
+        if (rval == null) {
+            rval = walk(node);
+        }
+
+        if ((MigrationLogic.g_report == true) && branched.contains(node)) {
+            // Repeat the walk to report the choices for this edge.
+            return MigrationLogic.get_newest_revision(node, edge);
+        }
+
+        return rval;
+    } // get()
+
+    /**
+     * Returns the newest revision of the specified node without
+     * reporting anything.
+     */
+    public Fida.Node find(Fida.Node node) {
+        Fida.Node rval = newest.get(node);
+        if (rval == null) {
+            rval = walk(node);
+        }
+        return rval;
+    } // find()
+
+    /**
+     * Walks the lifeline from the node until the newest revision, or
+     * until a node already walked, and maps the nodes on the way.
+     */
+    private Fida.Node walk(Fida.Node node) {
+        List<Fida.Node> path = new ArrayList<Fida.Node>();
+        Fida.Node rval = null;
+        boolean crossed = false;
+
+        Fida.Node cur = node;
+        while (true) {
+            Fida.Node known = newest.get(cur);
+            if (known != null) {
+                rval = known;
+                crossed = branched.contains(cur);
+                break;
+            }
+
+            path.add(cur);
+            Fida.Node next
+                = MigrationLogic.get_next_revision(cur, null, false);
+            if (next == null) {
+                rval = cur;
+                break;
+            }
+            cur = next;
+        } // while
+
+        // Compress the path
+        for (int i = path.size()-1; i >= 0; i--) {
+            Fida.Node n = path.get(i);
+            if (n.next.size() > 1) {
+                crossed = true;
+            }
+            newest.put(n, rval);
+            if (crossed) {
+                branched.add(n);
+            }
+        } // for
+
+        return rval;
+    } // walk()
+
+} // class NewestRevisionMemo
@@ -0,0 +1,155 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+// jdom imports
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.XidSlice;
+import xmlsnippets.core.IdTable;
+import xmlsnippets.core.PidIdentification;
+
+/**
+ * Index of the properties (pids) within a payload element. A property
+ * scope is either the payload element itself or an element with a pid;
+ * the properties of a scope are the elements with a pid found below it
+ * without entering another scope. The index maps each scope to its
+ * properties, so that a property is found with a single hash lookup.<p>
+ *
+ * The properties of a scope are collected in the same order as in
+ * {@link ResolutionLogic#bfs_search(String, Element)}, and the first one
+ * of equally named properties wins, so the index gives the same answers.
+ * A scope is indexed when it is first looked up. Payload elements are
+ * never modified, so the index never becomes stale. The node keeps the
+ * index only as long as it keeps the payload element; the scopes looked
+ * up should therefore come from {@link #get_payload()} of the same index.
+ */
+public class PidIndex {
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The payload element.
+     */
+    private Element payload;
+
+    /**
+     * The indexed scopes.
+     */
+    private Map<Element, Map<String, Element>> scopes;
+
+    // CONSTRUCTORS
+    //==============
+
+    public PidIndex(Element payload) {
+        this.payload = payload;
+        scopes = new IdentityHashMap<Element, Map<String, Element>>();
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the index of a node, creating it if necessary.
+     */
+    public static PidIndex get(Fida.Node node) {
+        return node.get_pid_index();
+    } // get()
+
+    /**
+     * Returns the effective property name of an element, or {@code null}
+     * if the element does not have a pid. An empty pid means the element
+     * name, and "#" means the id of the included xid.
+     */
+    public static String get_property_name(Element elem) {
+        String rval = PidIdentification.get_pid(elem);
+        if (rval == null) {
+            return null;
+        }
+
+        if (rval.equals("")) {
+            rval = elem.getName();
+        } else if (rval.equals("#")) {
+            String s = elem.getAttributeValue("ref_xid");
+            if (s == null) {
+                throw new RuntimeException(String.format(
+                    "Database integrity violated, automatic property name specified, but the element has no ref_xid"));
+            }
+            // Only the id is needed; it is interned, not copied
+            XidSlice ref_xid = new XidSlice();
+            XidString.deserialize(s, 0, s.length(), false, ref_xid);
+            rval = ref_xid.get_id(IdTable.get_local());
+        } // if-else
+
+        return rval;
+    } // get_property_name()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the payload element of the index.
+     */
+    public Element get_payload() {
+        return payload;
+    } // get_payload()
+
+    /**
+     * Finds a property of a scope.
+     *
+     * @param scope the payload element, or a property element within it
+     * @param pid the property name
+     * @return the property element, or {@code null} if none.
+     */
+    public synchronized Element lookup(Element scope, String pid) {
+        Map<String, Element> map = scopes.get(scope);
+        if (map == null) {
+            map = new HashMap<String, Element>();
+            collect(scope, map);
+            scopes.put(scope, map);
+        }
+        return map.get(pid);
+    } // lookup()
+
+    // HELPER METHODS
+    //================
+
+    private static void collect(Element elem, Map<String, Element> map) {
+        for (Object obj : elem.getContent()) {
+            if ((obj instanceof Element) == false) {
+                continue;
+            }
+            Element child = (Element) obj;
+
+            String child_pid = get_property_name(child);
+            if (child_pid == null) {
+                // No new scope; the properties below belong to this one.
+                collect(child, map);
+            } else if (map.containsKey(child_pid) == false) {
+                // The first one wins
+                map.put(child_pid, child);
+            } // if-else
+        } // for: each content
+    } // collect()
+
+} // class PidIndex
@@ -0,0 +1,410 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Set;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.LinkedHashMap;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+import org.jdom.Document;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.XidIdentification;
+import xmlsnippets.core.Xref;
+import xmlsnippets.core.XrefString;
+import xmlsnippets.util.Digest;
+import xmlsnippets.util.XMLFileHelper;
+
+/**
+ * A summary of the xids defined and referenced in each tracked file.
+ * The index is stored as a separate file next to the repository db.
+ * An entry records the digest of the file it was taken from; the entry
+ * is valid as long as the file has the same digest. This lets the
+ * incremental migration decide which files need to be parsed at all.
+ */
+public class ReferenceIndex {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix appended to the repository file name to get the index file.
+     */
+    public static final String INDEX_SUFFIX = ".refs";
+
+    public static final String
+        ELEM_INDEX                              = "FidaRefIndex";
+
+    public static final String
+        ELEM_INDEX_ENTRY                        = "Entry";
+
+    public static final String
+        ATTR_ENTRY_PATH                         = "path";
+
+    public static final String
+        ATTR_ENTRY_ALGO                         = "algo";
+
+    public static final String
+        ATTR_ENTRY_DIGEST                       = "digest";
+
+    public static final String
+        ATTR_ENTRY_DEFS                         = "defs";
+
+    public static final String
+        ATTR_ENTRY_REFS                         = "refs";
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * The summary of a single file.
+     */
+    public static class Entry {
+
+        /** Path relative to the repository base directory. */
+        public String path;
+
+        /** The digest of the file contents the summary was taken from. */
+        public Digest digest;
+
+        /** The xids of the elements in the file. */
+        public List<Xid> defs;
+
+        /**
+         * The base xids of the references in the file which can be
+         * migrated; that is, the ones having a revision.
+         */
+        public List<Xid> refs;
+
+        public Entry() {
+            path = null;
+            digest = null;
+            defs = new ArrayList<Xid>();
+            refs = new ArrayList<Xid>();
+        } // ctor
+    } // class Entry
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The index file.
+     */
+    public File file;
+
+    /**
+     * The entries by path.
+     */
+    public Map<String, Entry> entries;
+
+    /**
+     * Set when the entries differ from the file.
+     */
+    public boolean modified;
+
+    // CONSTRUCTORS
+    //==============
+
+    public ReferenceIndex(File file) {
+        this.file = file;
+        entries = new LinkedHashMap<String, Entry>();
+        modified = false;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the index file corresponding to a repository file.
+     */
+    public static File get_index_file(File repo_file) {
+        return new File(repo_file.getPath() + INDEX_SUFFIX);
+    } // get_index_file()
+
+    /**
+     * Reads the index of the specified repository. If the index file
+     * does not exist, or it cannot be parsed, an empty index is returned
+     * and all files will be summarized again.
+     */
+    public static ReferenceIndex read(File repo_file) {
+        ReferenceIndex rval = new ReferenceIndex(get_index_file(repo_file));
+
+        if (rval.file.isFile() == false) {
+            // No index yet; the first write creates one.
+            return rval;
+        }
+
+        try {
+            Document doc = XMLFileHelper.deserialize_document(rval.file);
+            rval.deserialize(doc.getRootElement());
+        } catch(Exception ex) {
+            System.out.printf("Warning: ignoring unreadable index %s; %s\n",
+                rval.file.getPath(), ex.getMessage());
+            rval.entries.clear();
+            rval.modified = true;
+        } // try-catch
+
+        return rval;
+    } // read()
+
+    /**
+     * Summarizes a parsed file. The references are parsed in the same
+     * manner as in {@link MigrationLogic#parse_reference}, but no errors
+     * are reported.
+     *
+     * @param path the path relative to the base directory
+     * @param digest the digest of the file's contents
+     * @param doc the parsed contents
+     * @return the summary
+     */
+    public static Entry summarize(String path, Digest digest, Document doc) {
+        Set<Xid> defs = new LinkedHashSet<Xid>();
+        Set<Xid> refs = new LinkedHashSet<Xid>();
+        summarize(doc.getRootElement(), defs, refs);
+
+        Entry rval = new Entry();
+        rval.path = path;
+        rval.digest = digest;
+        rval.defs.addAll(defs);
+        rval.refs.addAll(refs);
+        return rval;
+    } // summarize()
+
+    private static void summarize(
+        Element elem,
+        Set<Xid> defs,
+        Set<Xid> refs
+    ) {
+        Xid xid = XidIdentification.get_xid(elem);
+        if (xid != null) {
+            defs.add(xid);
+        }
+
+        summarize_refs(elem, refs);
+
+        for (Object obj : elem.getContent()) {
+            if (obj instanceof Element) {
+                summarize((Element) obj, defs, refs);
+            }
+        } // for
+    } // summarize()
+
+    private static void summarize_refs(Element elem, Set<Xid> refs) {
+        for (Object obj : elem.getAttributes()) {
+            Attribute a = (Attribute) obj;
+            if (MigrationLogic.is_ref(a) == false) {
+                continue;
+            }
+            Xref xref = null;
+            try {
+                xref = XrefString.deserialize(a.getValue(), true);
+            } catch(Exception ex) {
+                // Syntax error; cannot be migrated.
+                continue;
+            }
+            if ((xref.base != null) && (xref.base.rev != Xid.REV_MISSING)) {
+                refs.add(xref.base);
+            }
+        } // for: each attr
+    } // summarize_refs()
+
+    /**
+     * Summarizes a tracked file from the repository without reading
+     * the file. The payload elements are walked from the file's root
+     * node along the inclusions. The summary equals the one taken from
+     * the file itself as long as the file has no uncommitted changes;
+     * manifestations are not applied, so the summary may have extra xids.
+     *
+     * @param db the repository
+     * @param ff the tracked file
+     * @return the summary, without a digest
+     */
+    public static Entry summarize(AbstractRepository db, Fida.File ff) {
+        Set<Xid> defs = new LinkedHashSet<Xid>();
+        Set<Xid> refs = new LinkedHashSet<Xid>();
+        summarize_node(db, ff.root_xid, defs, refs);
+
+        Entry rval = new Entry();
+        rval.path = ff.path;
+        rval.digest = ff.digest;
+        rval.defs.addAll(defs);
+        rval.refs.addAll(refs);
+        return rval;
+    } // summarize()
+
+    private static void summarize_node(
+        AbstractRepository db,
+        Xid xid,
+        Set<Xid> defs,
+        Set<Xid> refs
+    ) {
+        if (defs.add(xid) == false) {
+            // Already walked
+            return;
+        }
+        Fida.Node node = db.get_node(xid);
+        if (node == null) {
+            throw new RuntimeException(String.format(
+                "Cannot resolve payload xid=%s", XidString.serialize(xid)));
+        }
+        summarize_payload(db, node.get_payload_element(), defs, refs);
+    } // summarize_node()
+
+    private static void summarize_payload(
+        AbstractRepository db,
+        Element elem,
+        Set<Xid> defs,
+        Set<Xid> refs
+    ) {
+        summarize_refs(elem, refs);
+
+        for (Object obj : elem.getContent()) {
+            if ((obj instanceof Element) == false) {
+                continue;
+            }
+            Element c = (Element) obj;
+            String value = c.getAttributeValue("ref_xid");
+            if (value != null) {
+                // Inclusion-by-xid
+                summarize_node(db, XidString.deserialize(value), defs, refs);
+            } else {
+                summarize_payload(db, c, defs, refs);
+            }
+        } // for
+    } // summarize_payload()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the entry of a file if it was taken from the contents
+     * with the given digest; otherwise {@code null}.
+     */
+    public Entry get(String path, Digest digest) {
+        Entry entry = entries.get(path);
+        if ((entry == null) || (entry.digest.equals(digest) == false)) {
+            return null;
+        }
+        return entry;
+    } // get()
+
+    /**
+     * Records the summary of a file.
+     */
+    public void put(Entry entry) {
+        entries.put(entry.path, entry);
+        modified = true;
+    } // put()
+
+    /**
+     * Forgets the entries of the paths not in the given set.
+     */
+    public void retain(Set<String> paths) {
+        if (entries.keySet().retainAll(paths)) {
+            modified = true;
+        }
+    } // retain()
+
+    /**
+     * Writes the index back to disk, if it was modified.
+     */
+    public void write() {
+        if (modified == false) {
+            return;
+        }
+
+        try {
+            Document doc = new Document(serialize());
+            XMLFileHelper.serialize_document_formatted(doc, file);
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot write index; %s",
+                file.getPath(), ex.getMessage()), ex);
+        } // try-catch
+
+        modified = false;
+    } // write()
+
+    // HELPER METHODS
+    //================
+
+    protected Element serialize() {
+        Element rval = new Element(ELEM_INDEX);
+
+        for (Entry entry : entries.values()) {
+            Element c = new Element(ELEM_INDEX_ENTRY);
+            c.setAttribute(ATTR_ENTRY_PATH, entry.path);
+            c.setAttribute(ATTR_ENTRY_ALGO,
+                entry.digest.get_digest_algo());
+            c.setAttribute(ATTR_ENTRY_DIGEST, entry.digest.to_hexstring());
+            c.setAttribute(ATTR_ENTRY_DEFS, serialize_list(entry.defs));
+            c.setAttribute(ATTR_ENTRY_REFS, serialize_list(entry.refs));
+            rval.addContent(c);
+        } // for: each entry
+
+        return rval;
+    } // serialize()
+
+    protected void deserialize(Element elem) {
+        FidaXML.expect_name(elem, ELEM_INDEX);
+
+        for (Object obj : elem.getContent()) {
+            if (FidaXML.skip(obj)) continue;
+            Element c = (Element) obj;
+            FidaXML.expect_name(c, ELEM_INDEX_ENTRY);
+
+            Entry entry = new Entry();
+            entry.path = FidaXML.get_attr(c, ATTR_ENTRY_PATH);
+            entry.digest = new Digest();
+            entry.digest.set_hex(
+                FidaXML.get_attr(c, ATTR_ENTRY_ALGO),
+                FidaXML.get_attr(c, ATTR_ENTRY_DIGEST));
+            deserialize_list(FidaXML.get_attr(c, ATTR_ENTRY_DEFS), entry.defs);
+            deserialize_list(FidaXML.get_attr(c, ATTR_ENTRY_REFS), entry.refs);
+
+            entries.put(entry.path, entry);
+        } // for: each entry
+    } // deserialize()
+
+    private static String serialize_list(List<Xid> list) {
+        StringBuilder sb = new StringBuilder();
+        for (Xid xid : list) {
+            if (sb.length() > 0) {
+                sb.append(' ');
+            }
+            sb.append(XidString.serialize(xid));
+        }
+        return sb.toString();
+    } // serialize_list()
+
+    private static void deserialize_list(String s, List<Xid> list) {
+        for (String part : s.split(" ")) {
+            if (part.length() > 0) {
+                list.add(XidString.deserialize(part));
+            }
+        }
+    } // deserialize_list()
+
+} // class ReferenceIndex
@@ -0,0 +1,297 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.Iterator;
+import java.util.Map;
+import java.util.LinkedHashMap;
+// jdom imports
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.util.ElementWalker;
+
+/**
+ * A cache of denormalized payload subtrees. When the same payload
+ * is included in several places with the same (filtered) manifestation,
+ * its expansion is the same each time. The cache keeps the expansions
+ * keyed by the payload xid and the manifestation, so that the repeated
+ * expansions are produced by cloning.<p>
+ *
+ * The cached subtrees are kept in least-recently-used order. The capacity
+ * is measured in elements; when the total number of elements in the
+ * cached subtrees exceeds the capacity, the least recently used subtrees
+ * are evicted.<p>
+ *
+ * The subtrees are stored before any local information (the pid) of
+ * the including element is applied to them, and they are never handed
+ * out directly; each hit returns a fresh clone.<p>
+ *
+ * Most payloads are expanded only once, and storing them would cost
+ * a count and a clone for nothing. Therefore a subtree is admitted to
+ * the cache only when its key is offered for the second time; the first
+ * time only the key is remembered. The remembered keys are bounded
+ * separately, in least-recently-used order.
+ */
+public class RenderCache {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Default capacity in elements.
+     */
+    public static final int DEFAULT_CAPACITY = 200000;
+
+    /**
+     * Maximum number of remembered keys which have been offered once.
+     */
+    public static final int SEEN_CAPACITY = 65536;
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * A cached subtree together with its weight.
+     */
+    private static class Entry {
+        public Element elem;
+        public int weight;
+
+        public Entry(Element elem, int weight) {
+            this.elem = elem;
+            this.weight = weight;
+        } // ctor
+    } // class Entry
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The cached subtrees in access order.
+     */
+    private LinkedHashMap<String, Entry> map;
+
+    /**
+     * Maximum total weight of the cached subtrees.
+     */
+    private int capacity;
+
+    /**
+     * Current total weight of the cached subtrees.
+     */
+    private int weight;
+
+    /**
+     * The keys offered once but not yet admitted, in access order.
+     */
+    private LinkedHashMap<String, Boolean> seen;
+
+    /** Number of lookups which were found from the cache. */
+    public int hits;
+
+    /** Number of lookups which were not found from the cache. */
+    public int misses;
+
+    /** Number of subtrees evicted from the cache. */
+    public int evictions;
+
+    /** Number of subtrees not admitted on their first offer. */
+    public int skipped;
+
+    /**
+     * Number of subtrees cached in the other caches whose statistics
+     * have been added to this one.
+     */
+    private int other_size;
+
+    /**
+     * Number of elements cached in the other caches whose statistics
+     * have been added to this one.
+     */
+    private int other_weight;
+
+    // CONSTRUCTORS
+    //==============
+
+    public RenderCache(int capacity) {
+        this.capacity = capacity;
+        map = new LinkedHashMap<String, Entry>(16, 0.75f, true);
+        seen = new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+                return size() > SEEN_CAPACITY;
+            }
+        };
+        weight = 0;
+        hits = 0;
+        misses = 0;
+        evictions = 0;
+        skipped = 0;
+        other_size = 0;
+        other_weight = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Builds the cache key of a payload expansion. The key of the
+     * manifestation does not depend on the order of the unexpand paths.
+     * A {@code null} manifestation and an empty manifestation produce
+     * the same expansion, and therefore they have the same key.
+     *
+     * @param xid the payload xid of the expanded node
+     * @param manifestation the filtered manifestation, or {@code null}
+     * @return the key
+     */
+    public static String make_key(
+        Xid xid,
+        ManifestationTrie manifestation
+    ) {
+        String s = XidString.serialize(xid);
+        if (manifestation == null) {
+            return s;
+        }
+        return s + manifestation.get_key();
+    } // make_key()
+
+    /**
+     * Counts the elements in a subtree.
+     */
+    public static int count_elements(Element elem) {
+        final int[] rval = new int[1];
+        ElementWalker.get_local().walk(elem, new ElementWalker.Visitor() {
+            @Override
+            public Element enter(ElementWalker w, Element e) {
+                rval[0]++;
+                return e;
+            }
+        });
+        return rval[0];
+    } // count_elements()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns a clone of the cached subtree, or {@code null}
+     * if the key is not in the cache.
+     */
+    public Element get(String key) {
+        Entry entry = map.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        return (Element) entry.elem.clone();
+    } // get()
+
+    /**
+     * Stores a clone of a subtree, if its key has been offered before.
+     * Subtrees heavier than the whole capacity are not stored.
+     */
+    public void put(String key, Element elem) {
+        if (seen.remove(key) == null) {
+            // First offer; remember the key only
+            seen.put(key, Boolean.TRUE);
+            skipped++;
+            return;
+        }
+
+        int w = count_elements(elem);
+        if (w > capacity) {
+            return;
+        }
+
+        Entry old = map.put(key, new Entry((Element) elem.clone(), w));
+        if (old != null) {
+            weight -= old.weight;
+        }
+        weight += w;
+
+        // Evict in least-recently-used order
+        Iterator<Map.Entry<String, Entry>> iter = map.entrySet().iterator();
+        while ((weight > capacity) && iter.hasNext()) {
+            Map.Entry<String, Entry> eldest = iter.next();
+            weight -= eldest.getValue().weight;
+            iter.remove();
+            evictions++;
+        } // while
+    } // put()
+
+    /**
+     * Adds the statistics of another cache to this one. The subtrees
+     * cached in the other cache are included in the reported sizes.
+     */
+    public void add_statistics(RenderCache other) {
+        hits += other.hits;
+        misses += other.misses;
+        evictions += other.evictions;
+        skipped += other.skipped;
+        other_size += other.map.size() + other.other_size;
+        other_weight += other.weight + other.other_weight;
+    } // add_statistics()
+
+    /**
+     * Empties the cache. The statistics are retained.
+     */
+    public void clear() {
+        map.clear();
+        seen.clear();
+        weight = 0;
+    } // clear()
+
+    /**
+     * Returns the number of cached subtrees.
+     */
+    public int size() {
+        return map.size();
+    } // size()
+
+    /**
+     * Returns the total number of elements in the cached subtrees.
+     */
+    public int get_weight() {
+        return weight;
+    } // get_weight()
+
+    /**
+     * Returns the ratio of hits to all lookups.
+     */
+    public double get_hit_rate() {
+        int total = hits + misses;
+        if (total == 0) {
+            return 0.0;
+        }
+        return ((double) hits) / total;
+    } // get_hit_rate()
+
+    /**
+     * Prints the statistics.
+     */
+    public void report() {
+        System.out.printf(
+            "Render cache: %d hits, %d misses (%.1f%% hit rate), %d skipped, %d evictions, %d subtrees (%d elements) cached\n",
+            hits, misses, get_hit_rate() * 100.0, skipped, evictions,
+            map.size() + other_size, weight + other_weight);
+    } // report()
+
+} // class RenderCache
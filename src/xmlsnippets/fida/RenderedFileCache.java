@@ -0,0 +1,534 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Document;
+// xmlsnippets imports
+import xmlsnippets.core.XidString;
+import xmlsnippets.util.Digest;
+import xmlsnippets.util.XMLFileHelper;
+import xmlsnippets.util.FileHelper;
+
+/**
+ * An on-disk cache of rebuilt files. The cache is a directory next to
+ * the repository db. Each entry is keyed by the xid of the file record
+ * and the rebuild options which affect the output, and it records
+ * the size and the digest of the cached file.<p>
+ *
+ * A hit is verified against the recorded digest, and then the cached
+ * file is transferred to the destination by the file system without
+ * copying it through the Java heap. A corrupted entry is dropped and
+ * counted as a miss.<p>
+ *
+ * The total size of the cached files is bounded; when it is exceeded,
+ * the least recently used entries are evicted. The methods may be
+ * called from several threads at once.
+ */
+public class RenderedFileCache {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix appended to the repository file name to get the directory.
+     */
+    public static final String DIR_SUFFIX = ".rendered";
+
+    /**
+     * Name of the index file in the cache directory.
+     */
+    public static final String INDEX_NAME = "index.xml";
+
+    /**
+     * Suffix of the cached files.
+     */
+    public static final String FILE_SUFFIX = ".xml";
+
+    /**
+     * The digest algorithm used for the cached files.
+     */
+    public static final String DIGEST_ALGO = "md5";
+
+    /**
+     * Size of the buffer used for digest calculation.
+     */
+    public static final int BUFFER_SIZE = 64*1024;
+
+    public static final String
+        ELEM_CACHE                              = "FidaRenderCache";
+
+    public static final String
+        ELEM_CACHE_ENTRY                        = "Entry";
+
+    public static final String
+        ATTR_ENTRY_KEY                          = "key";
+
+    public static final String
+        ATTR_ENTRY_NAME                         = "name";
+
+    public static final String
+        ATTR_ENTRY_SIZE                         = "size";
+
+    public static final String
+        ATTR_ENTRY_USED                         = "used";
+
+    public static final String
+        ATTR_ENTRY_ALGO                         = "algo";
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * A cached file.
+     */
+    public static class Entry {
+        /** The cache key. */
+        public String key;
+        /** File name within the cache directory. */
+        public String name;
+        /** File size in bytes. */
+        public long size;
+        /** Value of the use counter when the entry was last used. */
+        public long used;
+        /** Digest of the file contents. */
+        public Digest digest;
+    } // class Entry
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The cache directory.
+     */
+    private File dir;
+
+    /**
+     * Maximum total size of the cached files in bytes.
+     */
+    private long capacity;
+
+    /**
+     * Current total size of the cached files in bytes.
+     */
+    private long size;
+
+    /**
+     * Incremented on each use; orders the entries by recency.
+     */
+    private long counter;
+
+    /**
+     * Mapping from keys to entries.
+     */
+    private Map<String, Entry> entries;
+
+    /**
+     * Indicates that the index should be written back to disk.
+     */
+    private boolean modified;
+
+    /** Number of requests served from the cache. */
+    public int hits;
+
+    /** Number of requests not served from the cache. */
+    public int misses;
+
+    /** Number of entries dropped because of a digest mismatch. */
+    public int corrupted;
+
+    /** Number of entries evicted. */
+    public int evictions;
+
+    // CONSTRUCTORS
+    //==============
+
+    public RenderedFileCache(File dir, long capacity) {
+        this.dir = dir;
+        this.capacity = capacity;
+        size = 0;
+        counter = 0;
+        entries = new LinkedHashMap<String, Entry>();
+        modified = false;
+        hits = 0;
+        misses = 0;
+        corrupted = 0;
+        evictions = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the cache directory corresponding to a repository file.
+     */
+    public static File get_cache_dir(File repo_file) {
+        return new File(repo_file.getPath() + DIR_SUFFIX);
+    } // get_cache_dir()
+
+    /**
+     * Opens the cache of the specified repository. If the index cannot
+     * be read, the cache starts empty.
+     */
+    public static RenderedFileCache open(File repo_file, long capacity) {
+        RenderedFileCache rval = new RenderedFileCache(
+            get_cache_dir(repo_file), capacity);
+
+        File index = rval.get_index_file();
+        if (index.isFile() == false) {
+            return rval;
+        }
+
+        try {
+            Document doc = XMLFileHelper.deserialize_document(index);
+            rval.deserialize(doc.getRootElement());
+            // The capacity may have been lowered since
+            rval.evict();
+        } catch(Exception ex) {
+            System.out.printf("Warning: ignoring unreadable render cache index %s; %s\n",
+                index.getPath(), ex.getMessage());
+            rval.entries.clear();
+            rval.size = 0;
+            rval.modified = true;
+        } // try-catch
+
+        return rval;
+    } // open()
+
+    /**
+     * Builds the cache key of a rebuilt file.
+     *
+     * @param ff the file record
+     * @param bubble how the namespace declarations are bubbled
+     * @return the key
+     */
+    public static String make_key(Fida.File ff, int bubble) {
+        return String.format("%s;bubble=%d",
+            XidString.serialize(ff.item_xid), bubble);
+    } // make_key()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Writes the cached file of a key to the destination.
+     *
+     * @param key the cache key
+     * @param dest the destination file
+     * @return {@code true} if the file was served from the cache,
+     * {@code false} if the caller has to rebuild it.
+     */
+    public boolean get(String key, File dest) {
+        Entry entry = lookup(key);
+        if (entry == null) {
+            return false;
+        }
+
+        File file = new File(dir, entry.name);
+        try {
+            Digest digest = calculate(file);
+            if (digest.equals(entry.digest) == false) {
+                drop(entry, true);
+                return false;
+            }
+            transfer(file, dest);
+        } catch(IOException ex) {
+            // Evicted by another thread, or otherwise unreadable.
+            drop(entry, false);
+            return false;
+        } // try-catch
+
+        return true;
+    } // get()
+
+    /**
+     * Stores a copy of a rebuilt file.
+     *
+     * @param key the cache key
+     * @param src the rebuilt file
+     */
+    public void put(String key, File src) {
+        if (src.length() > capacity) {
+            return;
+        }
+
+        Entry entry = new Entry();
+        entry.key = key;
+        entry.name = name_for(key);
+
+        File tmp = new File(dir, String.format("%s.%d.tmp",
+            entry.name, Thread.currentThread().getId()));
+        try {
+            dir.mkdirs();
+            entry.digest = calculate(src);
+            transfer(src, tmp);
+            entry.size = tmp.length();
+        } catch(IOException ex) {
+            tmp.delete();
+            System.out.printf("Warning: cannot cache %s; %s\n",
+                src.getPath(), ex.getMessage());
+            return;
+        } // try-catch
+
+        synchronized(this) {
+            try {
+                FileHelper.replaceFile(tmp, new File(dir, entry.name));
+            } catch(IOException ex) {
+                tmp.delete();
+                return;
+            } // try-catch
+
+            Entry old = entries.remove(key);
+            if (old != null) {
+                size -= old.size;
+            }
+            entry.used = ++counter;
+            entries.put(key, entry);
+            size += entry.size;
+            modified = true;
+            evict();
+        } // synchronized
+    } // put()
+
+    /**
+     * Writes the index back to disk, if it was modified.
+     */
+    public synchronized void write() {
+        if (modified == false) {
+            return;
+        }
+
+        File index = get_index_file();
+        File tmp = new File(index.getPath() + ".tmp");
+        try {
+            dir.mkdirs();
+            Document doc = new Document(serialize());
+            XMLFileHelper.serialize_document_formatted(doc, tmp);
+            FileHelper.replaceFile(tmp, index);
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot write render cache index; %s",
+                index.getPath(), ex.getMessage()), ex);
+        } // try-catch
+
+        modified = false;
+    } // write()
+
+    /**
+     * Prints the statistics.
+     */
+    public synchronized void report() {
+        System.out.printf(
+            "Rendered file cache: %d hits, %d misses, %d corrupted, %d evictions, %d files (%d bytes) cached\n",
+            hits, misses, corrupted, evictions, entries.size(), size);
+    } // report()
+
+    // HELPER METHODS
+    //================
+
+    private File get_index_file() {
+        return new File(dir, INDEX_NAME);
+    } // get_index_file()
+
+    /**
+     * Finds the entry and marks it used.
+     */
+    private synchronized Entry lookup(String key) {
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        entry.used = ++counter;
+        modified = true;
+        return entry;
+    } // lookup()
+
+    /**
+     * Forgets an entry that could not be served; turns its hit
+     * into a miss.
+     */
+    private synchronized void drop(Entry entry, boolean is_corrupted) {
+        hits--;
+        misses++;
+        if (is_corrupted) {
+            corrupted++;
+        }
+        if (entries.get(entry.key) == entry) {
+            entries.remove(entry.key);
+            size -= entry.size;
+            new File(dir, entry.name).delete();
+            modified = true;
+        }
+    } // drop()
+
+    /**
+     * Evicts the least recently used entries until the size is
+     * within the capacity. The caller must hold the lock.
+     */
+    private void evict() {
+        if (size <= capacity) {
+            return;
+        }
+
+        List<Entry> list = new ArrayList<Entry>(entries.values());
+        Collections.sort(list, new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return Long.compare(a.used, b.used);
+            }
+        });
+
+        for (Entry entry : list) {
+            if (size <= capacity) {
+                break;
+            }
+            entries.remove(entry.key);
+            size -= entry.size;
+            new File(dir, entry.name).delete();
+            evictions++;
+        } // for
+        modified = true;
+    } // evict()
+
+    /**
+     * Returns the file name of a key; the hex digest of the key.
+     */
+    private static String name_for(String key) {
+        try {
+            Digest d = Digest.create(DIGEST_ALGO, key.getBytes("UTF-8"));
+            return d.to_hexstring() + FILE_SUFFIX;
+        } catch(Exception ex) {
+            throw new RuntimeException(ex);
+        } // try-catch
+    } // name_for()
+
+    /**
+     * Calculates the digest of a file through a direct buffer.
+     */
+    private static Digest calculate(File file)
+        throws IOException
+    {
+        MessageDigest md = null;
+        try {
+            md = MessageDigest.getInstance(DIGEST_ALGO);
+        } catch(Exception ex) {
+            throw new RuntimeException(ex);
+        } // try-catch
+
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            FileChannel ch = fis.getChannel();
+            ByteBuffer buf = ByteBuffer.allocateDirect(BUFFER_SIZE);
+            while (ch.read(buf) != -1) {
+                buf.flip();
+                md.update(buf);
+                buf.clear();
+            } // while
+        } finally {
+            fis.close();
+        } // try-finally
+
+        return new Digest(DIGEST_ALGO, md.digest());
+    } // calculate()
+
+    /**
+     * Copies a file with {@code FileChannel.transferTo()}, which lets
+     * the operating system move the bytes directly between the files.
+     */
+    private static void transfer(File src, File dest)
+        throws IOException
+    {
+        FileInputStream fis = new FileInputStream(src);
+        try {
+            FileOutputStream fos = new FileOutputStream(dest);
+            try {
+                FileChannel in = fis.getChannel();
+                FileChannel out = fos.getChannel();
+                long pos = 0;
+                long len = in.size();
+                while (pos < len) {
+                    pos += in.transferTo(pos, len - pos, out);
+                }
+            } finally {
+                fos.close();
+            } // try-finally
+        } finally {
+            fis.close();
+        } // try-finally
+    } // transfer()
+
+    protected Element serialize() {
+        Element rval = new Element(ELEM_CACHE);
+
+        for (Entry entry : entries.values()) {
+            Element c = new Element(ELEM_CACHE_ENTRY);
+            c.setAttribute(ATTR_ENTRY_KEY, entry.key);
+            c.setAttribute(ATTR_ENTRY_NAME, entry.name);
+            c.setAttribute(ATTR_ENTRY_SIZE, Long.toString(entry.size));
+            c.setAttribute(ATTR_ENTRY_USED, Long.toString(entry.used));
+            c.setAttribute(ATTR_ENTRY_ALGO,
+                entry.digest.get_digest_algo());
+            c.setText(entry.digest.to_hexstring());
+            rval.addContent(c);
+        } // for: each entry
+
+        return rval;
+    } // serialize()
+
+    protected void deserialize(Element elem) {
+        FidaXML.expect_name(elem, ELEM_CACHE);
+
+        for (Object obj : elem.getContent()) {
+            if (FidaXML.skip(obj)) continue;
+            Element c = (Element) obj;
+            FidaXML.expect_name(c, ELEM_CACHE_ENTRY);
+
+            Entry entry = new Entry();
+            entry.key = FidaXML.get_attr(c, ATTR_ENTRY_KEY);
+            entry.name = FidaXML.get_attr(c, ATTR_ENTRY_NAME);
+            entry.size = Long.parseLong(FidaXML.get_attr(c, ATTR_ENTRY_SIZE));
+            entry.used = Long.parseLong(FidaXML.get_attr(c, ATTR_ENTRY_USED));
+            entry.digest = new Digest();
+            entry.digest.set_hex(
+                FidaXML.get_attr(c, ATTR_ENTRY_ALGO), c.getTextTrim());
+
+            entries.put(entry.key, entry);
+            size += entry.size;
+            if (entry.used > counter) {
+                counter = entry.used;
+            }
+        } // for: each entry
+    } // deserialize()
+
+} // class RenderedFileCache
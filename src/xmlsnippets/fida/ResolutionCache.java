@@ -0,0 +1,125 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.Map;
+import java.util.LinkedHashMap;
+// jdom imports
+import org.jdom.Element;
+// xmlsnippets imports
+import xmlsnippets.core.Xref;
+
+/**
+ * Memoized results of {@link ResolutionLogic#resolve(Xref, AbstractRepository)}.
+ * An xref whose base is a revisioned xid always resolves to the same
+ * element, because payload elements are never modified. However,
+ * an xref which could not be resolved may become resolvable when new
+ * nodes are added; therefore the repository invalidates the cache
+ * whenever a node is added.<p>
+ *
+ * The number of entries is bounded, and the least recently used
+ * entries are dropped. The methods may be called from several threads.
+ */
+public class ResolutionCache {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Default maximum number of entries.
+     */
+    public static final int DEFAULT_CAPACITY = 200000;
+
+    /**
+     * Returned by {@link #lookup(Xref)} for an xref which has not been
+     * resolved. Compared by identity; never returned as a resolution.
+     */
+    public static final Element UNKNOWN = new Element("unknown");
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The resolved elements. A resolution that failed is recorded
+     * as a {@code null} value.
+     */
+    private Map<Xref, Element> map;
+
+    /** Number of lookups which were found from the cache. */
+    public int hits;
+
+    /** Number of lookups which were not found from the cache. */
+    public int misses;
+
+    // CONSTRUCTORS
+    //==============
+
+    public ResolutionCache() {
+        this(DEFAULT_CAPACITY);
+    } // ctor
+
+    public ResolutionCache(final int capacity) {
+        map = new LinkedHashMap<Xref, Element>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Xref, Element> e) {
+                return size() > capacity;
+            }
+        };
+        hits = 0;
+        misses = 0;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the recorded resolution. The look-up is a single
+     * operation, so that the entry cannot be dropped or replaced by
+     * another thread in the middle of it.
+     *
+     * @param xref the xref
+     * @return the resolved element; {@code null} if the resolution
+     * failed; or {@link #UNKNOWN} if the xref has not been resolved
+     * since the last invalidation
+     */
+    public synchronized Element lookup(Xref xref) {
+        Element rval = map.get(xref);
+        if ((rval == null) && (map.containsKey(xref) == false)) {
+            misses++;
+            return UNKNOWN;
+        }
+        hits++;
+        return rval;
+    } // lookup()
+
+    /**
+     * Records a resolution. The xref is copied, since the caller may
+     * modify it afterwards.
+     */
+    public synchronized void put(Xref xref, Element elem) {
+        map.put((Xref) xref.clone(), elem);
+    } // put()
+
+    /**
+     * Forgets all resolutions.
+     */
+    public synchronized void invalidate() {
+        map.clear();
+    } // invalidate()
+
+} // class ResolutionCache
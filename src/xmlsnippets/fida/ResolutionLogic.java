@@ -25,9 +25,11 @@ import org.jdom.Element;
 // xmlsnippets
 import xmlsnippets.core.Xid;
 import xmlsnippets.core.XidString;
+import xmlsnippets.core.XidSlice;
+import xmlsnippets.core.IdTable;
 import xmlsnippets.core.Xref;
 import xmlsnippets.core.XrefString;
-import xmlsnippets.core.PidIdentification;
+import xmlsnippets.util.ElementWalker;
 
 
 /**
@@ -66,7 +68,7 @@ public class ResolutionLogic
             this.xid = null;
 
             if (node != null) {
-                this.element = node.payload_element;
+                this.element = node.get_payload_element();
                 this.node = node;
             } else {
                 this.element = null;
@@ -79,7 +81,7 @@ public class ResolutionLogic
             this.xid = xid;
 
             if (node != null) {
-                this.element = node.payload_element;
+                this.element = node.get_payload_element();
                 this.node = node;
             } else {
                 this.element = null;
@@ -117,13 +119,16 @@ public class ResolutionLogic
 
 
         ListIterator<String> iter = xref.path.listIterator();
-        Element elem = fromNode.payload_element;
+        PidIndex index = PidIndex.get(fromNode);
+        Element elem = index.get_payload();
 
         Element found = elem;
+        XidSlice ref_xid = new XidSlice();
+        Xid key = new Xid("", Xid.REV_MISSING);
         while (iter.hasNext()) {
             String pid = iter.next();
 
-            found = bfs_search(pid, elem);
+            found = index.lookup(elem, pid);
 
             if (found == null) {
                 bindings.add(new XrefBinding(pid));
@@ -134,14 +139,14 @@ public class ResolutionLogic
 
             if (s != null) {
                 // An inclusion-by-xid; resolve it
-                Xid ref_xid = XidString.deserialize(s);
-                Fida.Node node = db.get_node(ref_xid);
+                Fida.Node node = get_ref_node(db, s, ref_xid, key);
                 if (node == null) {
                     throw new RuntimeException(String.format(
                         "Database integrity violated, ref_xid not found: %s",
                         s));
                 }
-                found = node.payload_element;
+                index = PidIndex.get(node);
+                found = index.get_payload();
 
                 bindings.add(new XrefBinding(pid, node));
             } else {
@@ -154,19 +159,79 @@ public class ResolutionLogic
         return bindings;
     }
 
+    /**
+     * Resolves an xref. The result is memoized in the repository's
+     * resolution cache, if it has one.
+     */
     public static Element resolve(
         Xref xref,
         AbstractRepository db
     ) {
+        ResolutionCache cache = db.get_resolution_cache();
+        if (cache != null) {
+            Element cached = cache.lookup(xref);
+            if (cached != ResolutionCache.UNKNOWN) {
+                return cached;
+            }
+        } // if
+
+        Element rval = null;
         Xid base = xref.base;
         Fida.Node fromNode = db.get_node(base);
-        if (fromNode == null) {
-            return null;
+        if (fromNode != null) {
+            rval = resolve(xref.path.listIterator(), fromNode, db);
         }
 
-        //ListIterator<String>
+        if (cache != null) {
+            cache.put(xref, rval);
+        }
+        return rval;
+    } // resolve()
 
-        return resolve(xref.path.listIterator(), fromNode.payload_element, db);
+    /**
+     * Resolves a property path starting from the payload element of
+     * a node. Each step is a lookup from the pid index of the node
+     * which owns the current element.
+     */
+    public static Element resolve(
+        ListIterator<String> iter,
+        Fida.Node node,
+        AbstractRepository db
+    ) {
+        // The scopes are taken from the index, which holds them
+        PidIndex index = PidIndex.get(node);
+        Element elem = index.get_payload();
+        Element found = elem;
+        XidSlice ref_xid = new XidSlice();
+        Xid key = new Xid("", Xid.REV_MISSING);
+        while (iter.hasNext()) {
+            String pid = iter.next();
+
+            found = index.lookup(elem, pid);
+
+            if (found == null) {
+                // Stop search here
+                break;
+            }
+
+            String s = found.getAttributeValue("ref_xid");
+
+            if (s != null) {
+                // An inclusion-by-xid; resolve it
+                Fida.Node cur = get_ref_node(db, s, ref_xid, key);
+                if (cur == null) {
+                    throw new RuntimeException(String.format(
+                        "Database integrity violated, ref_xid not found: %s",
+                        s));
+                }
+                index = PidIndex.get(cur);
+                found = index.get_payload();
+            }
+
+            elem = found;
+        } // while: has next
+
+        return found;
     } // resolve()
 
     public static Element resolve(
@@ -176,6 +241,8 @@ public class ResolutionLogic
     ) {
 
         Element found = elem;
+        XidSlice ref_xid = new XidSlice();
+        Xid key = new Xid("", Xid.REV_MISSING);
         while (iter.hasNext()) {
             String pid = iter.next();
 
@@ -190,14 +257,13 @@ public class ResolutionLogic
 
             if (s != null) {
                 // An inclusion-by-xid; resolve it
-                Xid ref_xid = XidString.deserialize(s);
-                Fida.Node node = db.get_node(ref_xid);
+                Fida.Node node = get_ref_node(db, s, ref_xid, key);
                 if (node == null) {
                     throw new RuntimeException(String.format(
                         "Database integrity violated, ref_xid not found: %s",
                         s));
                 }
-                found = node.payload_element;
+                found = node.get_payload_element();
             }
 
             elem = found;
@@ -206,60 +272,73 @@ public class ResolutionLogic
         return found;
     }
 
+    /**
+     * Looks up the node of an inclusion-by-xid. The ref_xid is parsed
+     * into the given slice, and the look-up key is reused, so that
+     * nothing is allocated for an id seen before.
+     */
+    private static Fida.Node get_ref_node(
+        AbstractRepository db,
+        String s,
+        XidSlice ref_xid,
+        Xid key
+    ) {
+        XidString.deserialize(s, 0, s.length(), false, ref_xid);
+        return db.get_node(ref_xid.copy_to(key, IdTable.get_local()));
+    } // get_ref_node()
+
+    /**
+     * Searches the element depth-first for a child having the given
+     * property name. The elements having a property name of their own
+     * are not searched, since a property introduces a new scope.
+     */
     public static Element bfs_search(String pid, Element elem) {
         if (elem == null) {
             return null;
         }
 
-        Element found = null;
-        for (Object obj : elem.getContent()) {
-            if ((obj instanceof Element) == false) {
-                // Skip this
-                continue;
-            }
+        PropertySearch visitor = new PropertySearch(pid);
+        ElementWalker.get_local().walk(elem, visitor);
+        return visitor.found;
+    } // bfs_search()
 
-            // Otherwise check it.
-            Element child = (Element) obj;
-
-            // See if the child has the pid we are looking for
-            String child_pid = PidIdentification.get_pid(child);
-
-            // See if we are to use default value for the pid
-            if (child_pid != null) {
-                if (child_pid.equals("")) {
-                    child_pid = child.getName();
-                } else if (child_pid.equals("#")) {
-                    String s = child.getAttributeValue("ref_xid");
-                    if (s == null) {
-                        throw new RuntimeException(String.format(
-                            "Database integrity violated, automatic property name specified, but the element has no ref_xid"));
-                    }
-                    Xid ref_xid = XidString.deserialize(s);
-                    child_pid = ref_xid.id;
-                }
+    private static class PropertySearch extends ElementWalker.Visitor {
+        private String pid;
+        public Element found;
+
+        public PropertySearch(String pid) {
+            this.pid = pid;
+            found = null;
+        } // ctor
+
+        @Override
+        public Element enter(ElementWalker w, Element child) {
+            if (w.get_depth() == 0) {
+                return child;
             }
 
-            if ((child_pid != null) && (child_pid.equals(pid))) {
-                // Yes we found the one we are looking for.
-                found = child;
-            } else if (child_pid == null) {
+            // See if the child has the pid we are looking for.
+            // This also applies the default values for the pid.
+            String child_pid = PidIndex.get_property_name(child);
+
+            if (child_pid == null) {
                 // If it is an inclusion-by-xid, the inclusion is not
                 // followed, since the properties are local.
+                return child;
+            }
 
-                // If the element has a property name, then the element
-                // is not followed, since property introduces a new scope.
-
-                found = bfs_search(pid, child);
-            } // if-else
-
-            if (found != null) {
-                // Property found. Stop searching immediately.
-                break;
-            } // if: found
-        }
+            if (child_pid.equals(pid)) {
+                // Yes we found the one we are looking for.
+                // Stop searching immediately.
+                found = child;
+                w.stop();
+            }
 
-        return found;
-    }
+            // If the element has a property name, then the element
+            // is not followed, since property introduces a new scope.
+            return null;
+        } // enter()
+    } // class PropertySearch
 
 
 } // class Xid
\ No newline at end of file
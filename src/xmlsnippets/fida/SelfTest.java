@@ -0,0 +1,925 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Random;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+import org.jdom.Namespace;
+import org.jdom.Content;
+import org.jdom.Text;
+import org.jdom.Comment;
+import org.jdom.output.XMLOutputter;
+import org.jdom.output.Format;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.Xref;
+import xmlsnippets.core.XrefString;
+import xmlsnippets.core.XidSlice;
+import xmlsnippets.core.IdTable;
+import xmlsnippets.core.Normalization;
+import xmlsnippets.core.Normalization.RefXidRecord;
+import xmlsnippets.util.ElementWalker;
+import xmlsnippets.util.NamespacesBubbler;
+import xmlsnippets.fida.XidClient.FidaRepository;
+import xmlsnippets.fida.MigrationLogic.GraphNode;
+import xmlsnippets.fida.MigrationLogic.GraphEdge;
+
+/**
+ * Compares the optimized code paths with straightforward references
+ * on the files of the current tree. Each check runs both on the same
+ * input and compares the results; a difference is printed and counted
+ * as a failure. The repository and the files are only read.<p>
+ *
+ * In addition to the files, some checks use random trees. They are
+ * generated from a fixed seed, so every run uses the same trees.
+ */
+public class SelfTest {
+
+    // AUXILIARY CLASSES
+    //===================
+
+    /**
+     * The decisions and the log of a scripted walk. The same script is
+     * run by {@link ElementWalker} and by {@link ReferenceWalker}; the
+     * walkers only relay the callbacks. The decisions depend on the
+     * order in which the elements are first entered, so two walks
+     * agree as long as they visit in the same order.
+     */
+    private static class WalkScript {
+        /** Whether the nested counts use the reference. */
+        public boolean reference;
+        public StringBuilder log = new StringBuilder();
+        public Map<Element, Integer> numbers
+            = new IdentityHashMap<Element, Integer>();
+        /** The elements whose content an entered element may be redirected to. */
+        public List<Element> targets;
+        public int salt;
+        /** The event at which the walk is stopped; 0 for none. */
+        public int stop_at;
+        public int events = 0;
+        public boolean stopped = false;
+
+        public WalkScript(
+            boolean reference,
+            List<Element> targets,
+            int salt,
+            int stop_at
+        ) {
+            this.reference = reference;
+            this.targets = targets;
+            this.salt = salt;
+            this.stop_at = stop_at;
+        } // ctor
+
+        public int number(Element e) {
+            Integer rval = numbers.get(e);
+            if (rval == null) {
+                rval = numbers.size();
+                numbers.put(e, rval);
+            }
+            return rval;
+        } // number()
+
+        /**
+         * Prunes, redirects or walks the element. Some elements are
+         * counted by a nested walk.
+         */
+        public Element enter(Element e, int depth, Object parent_value) {
+            int n = number(e);
+            log.append(String.format("enter %d depth=%d parent=%s\n",
+                n, depth, parent_value));
+            step();
+            int h = (n * 31 + salt) % 12;
+            if (h == 0) {
+                return null;
+            }
+            if ((h == 1) && (depth < 6)) {
+                return targets.get((n + salt) % targets.size());
+            }
+            if (h == 2) {
+                log.append(String.format("count %d\n", reference
+                    ? ReferenceWalker.count_elements(e)
+                    : RenderCache.count_elements(e)));
+            }
+            return e;
+        } // enter()
+
+        public void content(Content c, int depth) {
+            log.append(String.format("content depth=%d %s %s\n",
+                depth, c.getClass().getSimpleName(), c.getValue()));
+            step();
+        } // content()
+
+        public void leave(Element e, Element source, int depth, Object value) {
+            log.append(String.format("leave %d depth=%d source=%s value=%s\n",
+                number(e), depth,
+                source == null ? "null" : String.valueOf(number(source)),
+                value));
+            step();
+        } // leave()
+
+        private void step() {
+            events++;
+            if (events == stop_at) {
+                stopped = true;
+            }
+        } // step()
+    } // class WalkScript
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * The seed of the random trees.
+     */
+    public static final long SEED = 20140101L;
+
+    /**
+     * The number of random trees.
+     */
+    public static final int RANDOM_TREES = 2000;
+
+    /**
+     * The prefixes used in the random trees. A small number of prefixes
+     * and URIs makes conflicts common.
+     */
+    private static final String[] PREFIXES = { "", "a", "b", "c" };
+
+    /**
+     * The namespace URIs used in the random trees.
+     */
+    private static final String[] URIS = { "urn:x", "urn:y", "urn:z" };
+
+    /**
+     * The number of random xid and xref strings.
+     */
+    public static final int RANDOM_STRINGS = 20000;
+
+    /**
+     * The pieces of the random xid and xref strings: the delimiters
+     * of the syntax, digits, and surrogate pairs as well as lone
+     * surrogates.
+     */
+    private static final String[] PIECES = {
+        "a", "id", "x-1", ":", ".", "#", "/", "!", " ",
+        "0", "1", "9", "12", "-3", "2147483648",
+        "\uD83D\uDE00", "\uD83D", "\uDE00"
+    };
+
+    /**
+     * The text around a string parsed as a range. It consists of the
+     * delimiters, so that a parser reading past the range would fail.
+     */
+    private static final String PADDING = "/:.#";
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The repository used for resolving xids.
+     */
+    private FidaRepository db;
+
+    /**
+     * The files of the current tree.
+     */
+    private Fida.Commit commit;
+
+    /**
+     * The number of threads for the parallel paths.
+     */
+    private int threads;
+
+    /**
+     * The ordinal of each element of the files, for the descriptions.
+     */
+    private Map<Element, Integer> ordinals;
+
+    /** Number of comparisons made. */
+    public int checks;
+
+    /** Number of comparisons which differed. */
+    public int failures;
+
+    // CONSTRUCTORS
+    //==============
+
+    public SelfTest(FidaRepository db, Fida.Commit commit, int threads) {
+        this.db = db;
+        this.commit = commit;
+        this.threads = threads;
+        ordinals = null;
+        checks = 0;
+        failures = 0;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Runs all checks and prints a summary.
+     *
+     * @return {@code true} if no differences were found
+     */
+    public boolean run() {
+        check_graph();
+        check_bubbler();
+        check_parsers();
+        check_walker();
+
+        System.out.printf("Self-test: %d checks, %d failures\n",
+            checks, failures);
+        return failures == 0;
+    } // run()
+
+    /**
+     * Builds the migration graph sequentially and with several threads.
+     * The nodes, the edges, their manifestations, their order and the
+     * printed messages must be the same.
+     */
+    protected void check_graph() {
+        String name = "build_graph_parallel";
+        int saved = MigrationLogic.g_threads;
+
+        Map<Xid, GraphNode> graph1 = new LinkedHashMap<Xid, GraphNode>();
+        Map<Fida.File, GraphNode> roots1
+            = new LinkedHashMap<Fida.File, GraphNode>();
+        Map<Xid, GraphNode> graph2 = new LinkedHashMap<Xid, GraphNode>();
+        Map<Fida.File, GraphNode> roots2
+            = new LinkedHashMap<Fida.File, GraphNode>();
+        String out1 = null;
+        String out2 = null;
+        try {
+            MigrationLogic.g_threads = 1;
+            out1 = build_graph(graph1, roots1);
+            MigrationLogic.g_threads = Math.max(threads, 2);
+            out2 = build_graph(graph2, roots2);
+        } finally {
+            MigrationLogic.g_threads = saved;
+        } // try-finally
+
+        expect(name, "output", out1, out2);
+        expect(name, "node count", graph1.size(), graph2.size());
+
+        Iterator<GraphNode> iter = graph2.values().iterator();
+        for (GraphNode n1 : graph1.values()) {
+            if (iter.hasNext() == false) {
+                break;
+            }
+            GraphNode n2 = iter.next();
+            if (expect(name, "node", describe(n1), describe(n2)) == false) {
+                // The rest would differ too
+                break;
+            }
+        } // for
+
+        for (Fida.File ff : commit.layout) {
+            expect(name, "root of " + ff.path,
+                describe_xid(roots1.get(ff)), describe_xid(roots2.get(ff)));
+        }
+    } // check_graph()
+
+    /**
+     * Bubbles the namespaces of each file and of the random trees with
+     * both {@link NamespacesBubbler} and {@link ReferenceBubbler}.
+     * The returned namespaces and the resulting trees must be the same.
+     */
+    protected void check_bubbler() {
+        List<Element> trees = new ArrayList<Element>();
+        List<String> names = new ArrayList<String>();
+        for (Fida.File ff : commit.layout) {
+            if (ff.doc != null) {
+                trees.add(ff.doc.getRootElement());
+                names.add(ff.path);
+            }
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_TREES; i++) {
+            trees.add(random_tree(random, 1 + random.nextInt(40)));
+            names.add(String.format("random tree %d", i));
+        }
+
+        for (int i = 0; i < trees.size(); i++) {
+            Element tree = trees.get(i);
+            String name = names.get(i);
+            String expected;
+            String actual;
+            Element e1 = (Element) tree.clone();
+            Element e2 = (Element) tree.clone();
+            try {
+                expected = describe(ReferenceBubbler.collect_namespaces(e1));
+            } catch(RuntimeException ex) {
+                expected = ex.toString();
+            }
+            try {
+                actual = describe(NamespacesBubbler.collect_namespaces(e2));
+            } catch(RuntimeException ex) {
+                actual = ex.toString();
+            }
+            expect("collect_namespaces", name, expected, actual);
+
+            try {
+                expected = describe(
+                    ReferenceBubbler.bubble_namespaces_greedy(e1))
+                    + serialize(e1);
+            } catch(RuntimeException ex) {
+                expected = ex.toString();
+            }
+            try {
+                actual = describe(
+                    NamespacesBubbler.bubble_namespaces_greedy(e2))
+                    + serialize(e2);
+            } catch(RuntimeException ex) {
+                actual = ex.toString();
+            }
+            expect("bubble_namespaces_greedy", name, expected, actual);
+
+            e1 = (Element) tree.clone();
+            e2 = (Element) tree.clone();
+            try {
+                NamespacesBubbler.Results r
+                    = ReferenceBubbler.bubble_namespaces_prudent(e1);
+                expected = describe(r.bubble) + describe(r.conflict)
+                    + serialize(e1);
+            } catch(RuntimeException ex) {
+                expected = ex.toString();
+            }
+            try {
+                NamespacesBubbler.Results r
+                    = NamespacesBubbler.bubble_namespaces_prudent(e2);
+                actual = describe(r.bubble) + describe(r.conflict)
+                    + serialize(e2);
+            } catch(RuntimeException ex) {
+                actual = ex.toString();
+            }
+            expect("bubble_namespaces_prudent", name, expected, actual);
+        } // for: each tree
+    } // check_bubbler()
+
+    /**
+     * Parses the attribute values of the files, their ids and revisions
+     * combined into xids, and random strings, as xids and xrefs with
+     * both {@link ReferenceParser} and the current parsers. The current
+     * parsers are used through the {@code String} methods and on
+     * a range of a longer text, with and without an {@link IdTable}.
+     * The results and the error messages must be the same.
+     */
+    protected void check_parsers() {
+        List<String> inputs = new ArrayList<String>();
+        for (Fida.File ff : commit.layout) {
+            if (ff.doc == null) {
+                continue;
+            }
+            final List<String> list = inputs;
+            ElementWalker.get_local().walk(ff.doc.getRootElement(),
+                new ElementWalker.Visitor() {
+                @Override
+                public Element enter(ElementWalker w, Element e) {
+                    for (Object obj : e.getAttributes()) {
+                        list.add(((Attribute) obj).getValue());
+                    }
+                    String id = e.getAttributeValue("id");
+                    String rev = e.getAttributeValue("rev");
+                    if ((id != null) && (rev != null)) {
+                        list.add(id + ":" + rev);
+                    }
+                    return e;
+                }
+            });
+        } // for
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_STRINGS; i++) {
+            inputs.add(random_string(random, random.nextInt(8)));
+        }
+
+        IdTable ids = new IdTable();
+        Xid key = new Xid("", 0);
+        for (String s : inputs) {
+            for (int i = 0; i < 2; i++) {
+                boolean allow = (i == 1);
+                String name = String.format("\"%s\" allow_missing_rev=%b",
+                    s, allow);
+
+                // Xids
+                String expected;
+                try {
+                    expected = describe(
+                        ReferenceParser.deserialize_xid(s, allow));
+                } catch(RuntimeException ex) {
+                    expected = ex.getMessage();
+                }
+                String actual;
+                try {
+                    actual = describe(XidString.deserialize(s, allow));
+                } catch(RuntimeException ex) {
+                    actual = ex.getMessage();
+                }
+                expect("XidString.deserialize", name, expected, actual);
+
+                String text = PADDING + s + PADDING;
+                int begin = PADDING.length();
+                int end = begin + s.length();
+                XidSlice slice = new XidSlice();
+                try {
+                    XidString.deserialize(text, begin, end, allow, slice);
+                    actual = describe(slice.to_xid(null));
+                    expect("XidSlice.to_xid", name, expected,
+                        describe(slice.to_xid(ids)));
+                    expect("XidSlice.copy_to", name, expected,
+                        describe(slice.copy_to(key, ids)));
+                    // The second time the id must come from the table
+                    expect("IdTable.intern", name, Boolean.TRUE,
+                        slice.get_id(ids) == slice.get_id(ids));
+                } catch(RuntimeException ex) {
+                    actual = ex.getMessage();
+                }
+                expect("XidString.deserialize range", name, expected, actual);
+
+                // Xrefs
+                try {
+                    expected = describe(
+                        ReferenceParser.deserialize_xref(s, allow));
+                } catch(IndexOutOfBoundsException ex) {
+                    // The reference reads past a trailing high surrogate;
+                    // the current parser reports it as an error instead.
+                    continue;
+                } catch(RuntimeException ex) {
+                    expected = ex.getMessage();
+                }
+                try {
+                    actual = describe(XrefString.deserialize(s, allow));
+                } catch(RuntimeException ex) {
+                    actual = ex.getMessage();
+                }
+                expect("XrefString.deserialize", name, expected, actual);
+
+                List<String> path = new ArrayList<String>();
+                try {
+                    XrefString.deserialize(text, begin, end, allow,
+                        slice, path, ids);
+                    actual = describe(new Xref(slice.to_xid(ids), path));
+                } catch(RuntimeException ex) {
+                    actual = ex.getMessage();
+                }
+                expect("XrefString.deserialize range", name, expected, actual);
+            } // for: each flag
+        } // for: each input
+    } // check_parsers()
+
+    /**
+     * Walks the files and random trees with {@link ElementWalker} and
+     * recursively with {@link ReferenceWalker}: a scripted walk, which
+     * prunes, redirects, nests and stops walks, and sets the values
+     * of the frames, must give the same events. The walks ported to
+     * {@link ElementWalker} must give the same results as the previous
+     * recursive code: the element count, the normalized copy and its map,
+     * and the normalization table of both the tree and the copy.
+     */
+    protected void check_walker() {
+        List<Element> trees = new ArrayList<Element>();
+        List<String> names = new ArrayList<String>();
+        for (Fida.File ff : commit.layout) {
+            if (ff.doc != null) {
+                trees.add(ff.doc.getRootElement());
+                names.add(ff.path);
+            }
+        }
+        Random random = new Random(SEED);
+        for (int i = 0; i < RANDOM_TREES; i++) {
+            trees.add(random_content_tree(random,
+                1 + random.nextInt(40), new ArrayList<Element>()));
+            names.add(String.format("random tree %d", i));
+        }
+        List<Element> targets = new ArrayList<Element>();
+        random_content_tree(random, 8, targets);
+
+        for (int i = 0; i < trees.size(); i++) {
+            Element tree = trees.get(i);
+            String name = names.get(i);
+            int stop_at = ((i % 2) == 0) ? 0 : 1 + random.nextInt(
+                3 * ReferenceWalker.count_elements(tree));
+
+            final WalkScript s1 = new WalkScript(true, targets, i, stop_at);
+            ReferenceWalker.walk(tree, new ReferenceWalker.Visitor() {
+                @Override
+                public Element enter(ReferenceWalker.Frame f, Element e) {
+                    Element rval = s1.enter(e, f.depth,
+                        (f.parent == null) ? null : f.parent.value);
+                    f.value = "v" + s1.number(e);
+                    stopped = s1.stopped;
+                    return rval;
+                }
+                @Override
+                public void content(ReferenceWalker.Frame f, Content c) {
+                    s1.content(c, f.depth);
+                    stopped = s1.stopped;
+                }
+                @Override
+                public void leave(ReferenceWalker.Frame f, Element e) {
+                    s1.leave(e, f.source, f.depth, f.value);
+                    if (f.parent != null) {
+                        f.parent.value = f.parent.value + "," + s1.number(e);
+                    }
+                    stopped = s1.stopped;
+                }
+            });
+            final WalkScript s2 = new WalkScript(false, targets, i, stop_at);
+            ElementWalker.get_local().walk(tree, new ElementWalker.Visitor() {
+                @Override
+                public Element enter(ElementWalker w, Element e) {
+                    Element rval = s2.enter(e, w.get_depth(),
+                        w.get_parent_value());
+                    w.set_value("v" + s2.number(e));
+                    if (s2.stopped) {
+                        w.stop();
+                    }
+                    return rval;
+                }
+                @Override
+                public void content(ElementWalker w, Content c) {
+                    s2.content(c, w.get_depth());
+                    if (s2.stopped) {
+                        w.stop();
+                    }
+                }
+                @Override
+                public void leave(ElementWalker w, Element e) {
+                    s2.leave(e, w.get_source(), w.get_depth(), w.get_value());
+                    if (w.get_depth() > 0) {
+                        w.set_parent_value(
+                            w.get_parent_value() + "," + s2.number(e));
+                    }
+                    if (s2.stopped) {
+                        w.stop();
+                    }
+                }
+            });
+            expect("ElementWalker", name, s1.log.toString(), s2.log.toString());
+
+            expect("count_elements", name,
+                ReferenceWalker.count_elements(tree),
+                RenderCache.count_elements(tree));
+
+            Element copy = null;
+            String expected;
+            String actual;
+            Map<Element, Element> map1 = new LinkedHashMap<Element, Element>();
+            Map<Element, Element> map2 = new LinkedHashMap<Element, Element>();
+            try {
+                copy = ReferenceWalker.normalize(tree, map1);
+                expected = serialize(copy) + describe(map1, copy, tree);
+            } catch(RuntimeException ex) {
+                expected = ex.toString();
+            }
+            try {
+                Element e = Normalization.normalize(tree, map2);
+                actual = serialize(e) + describe(map2, e, tree);
+            } catch(RuntimeException ex) {
+                actual = ex.toString();
+            }
+            expect("normalize", name, expected, actual);
+
+            expect("build_normalization_table", name,
+                describe_table(tree, true), describe_table(tree, false));
+            if (copy != null) {
+                expect("build_normalization_table", name + " normalized",
+                    describe_table(copy, true), describe_table(copy, false));
+            }
+        } // for: each tree
+    } // check_walker()
+
+    // HELPER METHODS
+    //================
+
+    /**
+     * Generates a random tree whose elements and attributes are in
+     * random namespaces, and which has random namespace declarations.
+     * Declarations which jdom refuses are left out.
+     */
+    private static Element random_tree(Random random, int size) {
+        List<Element> elems = new ArrayList<Element>();
+        for (int i = 0; i < size; i++) {
+            Element e = new Element("e", random_namespace(random));
+            int n = random.nextInt(3);
+            for (int j = 0; j < n; j++) {
+                try {
+                    e.addNamespaceDeclaration(random_namespace(random));
+                } catch(RuntimeException ex) {
+                    // Conflicts with the element's own namespace
+                }
+            }
+            if (random.nextInt(4) == 0) {
+                try {
+                    e.setAttribute("t", "v", random_namespace(random));
+                } catch(RuntimeException ex) {
+                    // Default namespace or a conflicting prefix
+                }
+            }
+            if (i > 0) {
+                elems.get(random.nextInt(elems.size())).addContent(e);
+            }
+            elems.add(e);
+        } // for
+        return elems.get(0);
+    } // random_tree()
+
+    /**
+     * Generates a random tree with text and comments, and with the
+     * attributes which the normalization looks at, valid or not.
+     *
+     * @param elems receives the elements of the tree
+     */
+    private static Element random_content_tree(
+        Random random,
+        int size,
+        List<Element> elems
+    ) {
+        String[] revs = { "1", "2", "#" };
+        String[] expands = { "true", "false", "maybe" };
+        for (int i = 0; i < size; i++) {
+            Element e = new Element("e");
+            if (random.nextInt(3) == 0) {
+                e.setAttribute("id", "i" + random.nextInt(4));
+                // Mostly valid; an invalid xid fails the normalization
+                int n = random.nextInt(40);
+                if (n > 3) {
+                    e.setAttribute("rev", revs[n % revs.length]);
+                } else if (n > 0) {
+                    e.setAttribute("rev", "x");
+                }
+            } else if (random.nextInt(10) == 0) {
+                e.setAttribute("xid", "k:" + random.nextInt(3));
+            }
+            if (random.nextInt(6) == 0) {
+                e.setAttribute("ref_xid", "r:" + random.nextInt(3));
+                if (random.nextInt(2) == 0) {
+                    e.setAttribute("expand",
+                        expands[random.nextInt(expands.length)]);
+                }
+                if (random.nextInt(2) == 0) {
+                    e.setAttribute("link_xid", "l:" + random.nextInt(3));
+                }
+            }
+            if (random.nextInt(6) == 0) {
+                e.setAttribute("a", "p" + random.nextInt(3));
+            }
+            if (i > 0) {
+                Element parent = elems.get(random.nextInt(elems.size()));
+                int n = random.nextInt(4);
+                if (n == 0) {
+                    parent.addContent(new Text("t" + i));
+                } else if (n == 1) {
+                    parent.addContent(new Comment("c" + i));
+                }
+                parent.addContent(e);
+            }
+            elems.add(e);
+        } // for
+        return elems.get(0);
+    } // random_content_tree()
+
+    private static String random_string(Random random, int size) {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(PIECES[random.nextInt(PIECES.length)]);
+        }
+        return sb.toString();
+    } // random_string()
+
+    private static Namespace random_namespace(Random random) {
+        int i = random.nextInt(PREFIXES.length * URIS.length + 1);
+        if (i == PREFIXES.length * URIS.length) {
+            return Namespace.NO_NAMESPACE;
+        }
+        return Namespace.getNamespace(
+            PREFIXES[i % PREFIXES.length], URIS[i / PREFIXES.length]);
+    } // random_namespace()
+
+    private static String serialize(Element elem) {
+        return new XMLOutputter(Format.getRawFormat()).outputString(elem);
+    } // serialize()
+
+    private static String describe(List<Namespace> list) {
+        StringBuilder sb = new StringBuilder();
+        sb.append('[');
+        for (Namespace ns : list) {
+            sb.append(' ').append(ns.getPrefix()).append('=');
+            sb.append(ns.getURI());
+        }
+        sb.append(" ]");
+        return sb.toString();
+    } // describe()
+
+    /**
+     * Describes the map of a normalization by the positions of the
+     * elements in the copy and in the original.
+     */
+    private static String describe(
+        Map<Element, Element> map,
+        Element copy,
+        Element orig
+    ) {
+        Map<Element, Integer> copies = number_elements(copy);
+        Map<Element, Integer> origs = number_elements(orig);
+        StringBuilder sb = new StringBuilder();
+        sb.append(" map=[");
+        for (Map.Entry<Element, Element> entry : map.entrySet()) {
+            sb.append(' ').append(copies.get(entry.getKey()));
+            sb.append("->").append(origs.get(entry.getValue()));
+        }
+        sb.append(" ]");
+        return sb.toString();
+    } // describe()
+
+    /**
+     * Builds and describes the normalization table of a tree by
+     * the positions of the elements.
+     *
+     * @param reference whether to use {@link ReferenceWalker}
+     */
+    private static String describe_table(Element tree, boolean reference) {
+        List<RefXidRecord> table;
+        try {
+            if (reference) {
+                table = ReferenceWalker.build_normalization_table(
+                    new LinkedList<RefXidRecord>(), tree);
+            } else {
+                table = Normalization.build_normalization_table(tree);
+            }
+        } catch(RuntimeException ex) {
+            return ex.toString();
+        }
+        Map<Element, Integer> numbers = number_elements(tree);
+        StringBuilder sb = new StringBuilder();
+        for (RefXidRecord record : table) {
+            sb.append(String.format("%s expand=%b xid=%s\n",
+                numbers.get(record.element), record.expand,
+                (record.xid == null) ? "null" : describe(record.xid)));
+        }
+        return sb.toString();
+    } // describe_table()
+
+    /**
+     * Returns the position of each element of a tree in document order.
+     */
+    private static Map<Element, Integer> number_elements(Element tree) {
+        final Map<Element, Integer> rval
+            = new IdentityHashMap<Element, Integer>();
+        ElementWalker.get_local().walk(tree, new ElementWalker.Visitor() {
+            @Override
+            public Element enter(ElementWalker w, Element e) {
+                rval.put(e, rval.size());
+                return e;
+            }
+        });
+        return rval;
+    } // number_elements()
+
+    private static String describe(Xid xid) {
+        return String.format("id=%s rev=%d v=%d.%d",
+            xid.id, xid.rev, xid.v_major, xid.v_minor);
+    } // describe()
+
+    private static String describe(Xref xref) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(describe(xref.base));
+        sb.append(" path=").append(xref.path);
+        return sb.toString();
+    } // describe()
+
+    /**
+     * Builds the graph with the current number of threads.
+     *
+     * @return the printed messages, followed by the error, if any
+     */
+    private String build_graph(
+        Map<Xid, GraphNode> graph,
+        Map<Fida.File, GraphNode> roots
+    ) {
+        String error = "";
+        XMLError.begin_capture();
+        try {
+            MigrationLogic.build_graph(db, commit, graph, roots);
+        } catch(RuntimeException ex) {
+            error = String.format("error: %s\n", ex.getMessage());
+        } finally {
+            error = XMLError.end_capture() + error;
+        } // try-catch-finally
+        return error;
+    } // build_graph()
+
+    /**
+     * Compares a result with its reference.
+     *
+     * @return {@code true} if they are equal
+     */
+    private boolean expect(
+        String check,
+        String what,
+        Object expected,
+        Object actual
+    ) {
+        checks++;
+        if ((expected == null) ? (actual == null) : expected.equals(actual)) {
+            return true;
+        }
+        failures++;
+        System.out.printf("%s: %s differs\n", check, what);
+        System.out.printf("    reference: %s\n", expected);
+        System.out.printf("    optimized: %s\n", actual);
+        return false;
+    } // expect()
+
+    private String describe(GraphNode node) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(describe_xid(node));
+        sb.append(node.fidaNode != null ? " node" : " no-node");
+        sb.append(" manifestations=[");
+        for (Element e : node.manifestations) {
+            sb.append(' ').append(describe(e));
+        }
+        sb.append(" ] children=[");
+        for (GraphEdge edge : node.children) {
+            sb.append(' ').append(describe(edge));
+        }
+        sb.append(" ] parents=[");
+        for (GraphEdge edge : node.parents) {
+            sb.append(' ').append(describe(edge));
+        }
+        sb.append(" ]");
+        return sb.toString();
+    } // describe()
+
+    private String describe(GraphEdge edge) {
+        StringBuilder sb = new StringBuilder();
+        sb.append(describe_xid(edge.source));
+        sb.append(edge.type == MigrationLogic.EDGE_INCLUSION ? ">" : "->");
+        sb.append(describe_xid(edge.dest));
+        for (Attribute a : edge.manifestations) {
+            sb.append(' ').append(describe(a.getParent()));
+            sb.append('@').append(a.getQualifiedName());
+        }
+        return sb.toString();
+    } // describe()
+
+    private static String describe_xid(GraphNode node) {
+        if ((node == null) || (node.xid == null)) {
+            return "null";
+        }
+        return XidString.serialize(node.xid);
+    } // describe_xid()
+
+    /**
+     * Describes an element by its position among the elements
+     * of the files.
+     */
+    private String describe(Element elem) {
+        if (ordinals == null) {
+            ordinals = new IdentityHashMap<Element, Integer>();
+            for (Fida.File ff : commit.layout) {
+                if (ff.doc == null) {
+                    continue;
+                }
+                ElementWalker.get_local().walk(ff.doc.getRootElement(),
+                    new ElementWalker.Visitor() {
+                    @Override
+                    public Element enter(ElementWalker w, Element e) {
+                        ordinals.put(e, ordinals.size());
+                        return e;
+                    }
+                });
+            } // for
+        } // if
+        Integer ordinal = ordinals.get(elem);
+        if (ordinal == null) {
+            return elem.getQualifiedName() + "#?";
+        }
+        return elem.getQualifiedName() + "#" + ordinal;
+    } // describe()
+
+} // class SelfTest
@@ -0,0 +1,755 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.Writer;
+import java.io.BufferedWriter;
+import java.io.OutputStreamWriter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+import org.jdom.Namespace;
+import org.jdom.Text;
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.EntityRef;
+import org.jdom.ProcessingInstruction;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidString;
+import xmlsnippets.core.PidIdentification;
+import xmlsnippets.util.XMLFileHelper;
+import xmlsnippets.util.NamespacesBubbler;
+import xmlsnippets.util.NamespacesBubbler.NamespaceTable;
+
+/**
+ * Writes a denormalized manifestation directly into a file without
+ * building the denormalized tree in memory. The stored payloads are
+ * walked, and the inclusions-by-xid are expanded on the fly, exactly
+ * as {@link XidClient#denormalize} does. The output is the same as that
+ * of {@link XMLFileHelper#serialize_document_formatted} applied to the
+ * denormalized tree.<p>
+ *
+ * Namespace bubbling is done in a pre-pass over the same walk. The pre-pass
+ * records the additional namespace declarations of each output element
+ * by its pre-order ordinal; only the elements which receive declarations
+ * are stored. The write pass then looks them up by the same ordinal.
+ */
+public class StreamingDenormalizer {
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * An element of the denormalized tree. It is the copy the in-memory
+     * denormalizer would have made; here it is only a reference to the
+     * source element plus the modifications of the copy.
+     */
+    protected static class View {
+        /** The source element, a payload element or a part of one. */
+        public Element source;
+        /** The manifestation filtered for the children. */
+        public ManifestationTrie manifestation;
+        /** The link_xid attribute is omitted. */
+        public boolean unexpanded;
+        /** The pid to set, or {@code null}. */
+        public String pid;
+    } // class View
+
+    /**
+     * Gives access to the escaping and the leaf printing of
+     * {@code XMLOutputter}, so that the output is formatted identically.
+     */
+    private static class Printer
+        extends XMLOutputter
+    {
+        public Printer(Format fmt) {
+            super(fmt);
+        } // ctor
+
+        public Format get_current() {
+            return currentFormat;
+        }
+
+        public void set_current(Format fmt) {
+            currentFormat = fmt;
+        }
+
+        public Format get_preserve() {
+            return preserveFormat;
+        }
+
+        public void print(Writer out, Comment c) throws IOException {
+            printComment(out, c);
+        }
+
+        public void print(Writer out, CDATA c) throws IOException {
+            printCDATA(out, c);
+        }
+
+        public void print(Writer out, EntityRef e) throws IOException {
+            printEntityRef(out, e);
+        }
+
+        public void print(Writer out, ProcessingInstruction pi)
+            throws IOException
+        {
+            printProcessingInstruction(out, pi);
+        }
+    } // class Printer
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The repository used to resolve the inclusions.
+     */
+    private AbstractRepository db;
+
+    /**
+     * Namespace bubbling mode, one of {@code CmdArgs.BUBBLE_*}.
+     */
+    private int bubble;
+
+    /**
+     * Additional namespace declarations by the element's ordinal.
+     */
+    private Map<Integer, List<Namespace>> additional;
+
+    /**
+     * Ordinal of the next element in the walk.
+     */
+    private int ordinal;
+
+    /**
+     * Whether the walk reports the unexpanded inclusions.
+     */
+    private boolean report;
+
+    /**
+     * The output formatting.
+     */
+    private Printer printer;
+
+    /**
+     * The namespace declarations in scope; prefixes and uris in pairs.
+     */
+    private List<String> scope;
+
+    // CONSTRUCTORS
+    //==============
+
+    public StreamingDenormalizer(AbstractRepository db, int bubble) {
+        this.db = db;
+        this.bubble = bubble;
+        additional = new HashMap<Integer, List<Namespace>>();
+        printer = new Printer(XMLFileHelper.new_formatting_format());
+        scope = new ArrayList<String>();
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Denormalizes a payload element and writes it into a file
+     * as the root element of the document.
+     *
+     * @param root the payload element
+     * @param manifestation the unexpand paths, or {@code null}
+     * @param file the output file
+     */
+    public void write(
+        Element root,
+        ManifestationTrie manifestation,
+        File file
+    )
+        throws IOException
+    {
+        View view = new View();
+        view.source = root;
+        view.manifestation = manifestation;
+
+        // Pre-pass
+        additional.clear();
+        ordinal = 0;
+        report = true;
+        if (bubble == XidClient.CmdArgs.BUBBLE_GREEDY) {
+            bubble_greedy(view);
+            report = false;
+        } else if (bubble == XidClient.CmdArgs.BUBBLE_PRUDENT) {
+            bubble_prudent(view);
+            report = false;
+        } // if-else
+
+        Format fmt = printer.getFormat();
+        Writer out = new BufferedWriter(new OutputStreamWriter(
+            new FileOutputStream(file), fmt.getEncoding()));
+        try {
+            ordinal = 0;
+            scope.clear();
+            printer.set_current(fmt);
+
+            // Same as XMLOutputter.output(Document, Writer)
+            out.write(String.format(
+                "<?xml version=\"1.0\" encoding=\"%s\"?>", fmt.getEncoding()));
+            out.write(fmt.getLineSeparator());
+            print_element(out, view, 0);
+            newline(out);
+            out.write(fmt.getLineSeparator());
+        } finally {
+            out.close();
+        } // try-finally
+    } // write()
+
+    // WALK
+    //======
+
+    /**
+     * Resolves a child element of the denormalized tree. This is the
+     * same logic as in the in-memory denormalization, except that
+     * nothing is copied.
+     */
+    protected View resolve_child(
+        Element child,
+        ManifestationTrie manifestation
+    ) {
+        View rval = new View();
+        rval.manifestation = manifestation;
+        rval.pid = PidIdentification.get_pid(child);
+
+        String refstring = child.getAttributeValue("ref_xid");
+        if (refstring == null) {
+            rval.source = child;
+            return rval;
+        }
+
+        // Inclusion-by-xid
+        Xid ref_xid = XidString.deserialize(refstring);
+        String value = child.getAttributeValue("link_xid");
+        if (value == null) {
+            throw new RuntimeException(String.format(
+                "ref_xid element does not have a link_xid attribute"));
+        } // if
+        Xid link_xid = XidString.deserialize(value);
+
+        boolean expand = true;
+        if (manifestation != null) {
+            rval.manifestation = manifestation.descend(link_xid);
+            if (rval.manifestation.is_unexpanded()) {
+                expand = false;
+                if (report) {
+                    System.out.printf("Not expanding: %s\n",
+                        XidString.serialize(link_xid));
+                }
+            } // if
+        } // if: there is a manifestation
+
+        if (expand == false) {
+            rval.source = child;
+            rval.unexpanded = true;
+            return rval;
+        }
+
+        Fida.Node target_node = db.get_node(ref_xid);
+        if (target_node == null) {
+            throw new RuntimeException(String.format(
+                "Cannot resolve payload xid=%s", XidString.serialize(ref_xid)));
+        }
+        rval.source = target_node.get_payload_element();
+        return rval;
+    } // resolve_child()
+
+    /**
+     * Returns the attributes of the denormalized copy.
+     */
+    protected static List<Attribute> get_attributes(View view) {
+        List<Attribute> rval = new ArrayList<Attribute>();
+        boolean has_pid = false;
+
+        for (Object obj : view.source.getAttributes()) {
+            Attribute a = (Attribute) obj;
+            if (view.unexpanded && (a.getNamespace() == Namespace.NO_NAMESPACE)
+                && a.getName().equals("link_xid"))
+            {
+                continue;
+            }
+            if ((view.pid != null) && (a.getNamespace() == Namespace.NO_NAMESPACE)
+                && a.getName().equals(PidIdentification.ATTR_PID))
+            {
+                a = new Attribute(PidIdentification.ATTR_PID, view.pid);
+                has_pid = true;
+            }
+            rval.add(a);
+        } // for: each attribute
+
+        if ((view.pid != null) && (has_pid == false)) {
+            // Prepended, see PidIdentification.set_pid()
+            rval.add(0, new Attribute(PidIdentification.ATTR_PID, view.pid));
+        }
+
+        return rval;
+    } // get_attributes()
+
+    // NAMESPACE PRE-PASS
+    //====================
+
+    /**
+     * The same as {@link NamespacesBubbler#bubble_namespaces_prudent}.
+     * Only the root receives declarations.
+     */
+    protected void bubble_prudent(View root) {
+        NamespaceTable all = new NamespaceTable();
+        collect_namespaces(root, all);
+
+        List<Namespace> bubble = new LinkedList<Namespace>();
+        for (Namespace ns : all.get_namespaces()) {
+            if (all.contains_similar(ns) == false) {
+                bubble.add(ns);
+            }
+        } // for
+
+        if (bubble.size() > 0) {
+            additional.put(0, bubble);
+        }
+    } // bubble_prudent()
+
+    private void collect_namespaces(View view, NamespaceTable table) {
+        ordinal++;
+        Namespace ns = view.source.getNamespace();
+        if (ns.getPrefix().equals("") == false) {
+            table.add(ns);
+        }
+
+        for (Object obj : view.source.getContent()) {
+            if (obj instanceof Element) {
+                collect_namespaces(
+                    resolve_child((Element) obj, view.manifestation), table);
+            }
+        } // for: each child
+    } // collect_namespaces()
+
+    /**
+     * The same as {@link NamespacesBubbler#bubble_namespaces_greedy}.
+     */
+    protected List<Namespace> bubble_greedy(View view) {
+        int self = ordinal++;
+
+        Map<Integer, List<Namespace>> map
+            = new LinkedHashMap<Integer, List<Namespace>>();
+        for (Object obj : view.source.getContent()) {
+            if ((obj instanceof Element) == false) {
+                continue;
+            }
+            int child = ordinal;
+            map.put(child, bubble_greedy(
+                resolve_child((Element) obj, view.manifestation)));
+        } // for: each child
+
+        // All different namespaces in the children
+        NamespaceTable set = new NamespaceTable();
+        for (List<Namespace> list : map.values()) {
+            for (Namespace a : list) {
+                set.add(a);
+            }
+        } // for
+
+        // The copy has no declarations of its own
+        List<Namespace> pset = new LinkedList<Namespace>();
+        pset.add(view.source.getNamespace());
+        NamespaceTable ptable = new NamespaceTable(pset);
+
+        // The ones which do not conflict
+        NamespaceTable bubble = new NamespaceTable();
+        for (Namespace ns1 : set.get_namespaces()) {
+            if ((set.contains_similar(ns1) == false)
+                && (ptable.contains_similar(ns1) == false))
+            {
+                bubble.add(ns1);
+            }
+        } // for
+
+        // Remove the bubbling ones from the children
+        for (Map.Entry<Integer, List<Namespace>> entry : map.entrySet()) {
+            List<Namespace> decls = additional.get(entry.getKey());
+            if (decls == null) {
+                continue;
+            }
+            for (Namespace ns : entry.getValue()) {
+                if (bubble.contains_same(ns)) {
+                    // As Element.removeNamespaceDeclaration()
+                    decls.remove(ns);
+                }
+            } // for
+            if (decls.size() == 0) {
+                additional.remove(entry.getKey());
+            }
+        } // for: each child
+
+        List<Namespace> rval = new LinkedList<Namespace>();
+        for (Namespace ns : bubble.get_namespaces()) {
+            if (ptable.contains_same(ns) == false) {
+                List<Namespace> decls = additional.get(self);
+                if (decls == null) {
+                    decls = new ArrayList<Namespace>();
+                    additional.put(self, decls);
+                }
+                decls.add(ns);
+                rval.add(ns);
+            }
+        } // for
+
+        rval.addAll(pset);
+        return rval;
+    } // bubble_greedy()
+
+    // OUTPUT
+    //========
+    // These follow XMLOutputter of jdom v1.1.3 step by step.
+
+    private void print_element(Writer out, View view, int level)
+        throws IOException
+    {
+        Element elem = view.source;
+        List<Attribute> attributes = get_attributes(view);
+        List<Namespace> decls = additional.get(ordinal++);
+        List<?> content = elem.getContent();
+
+        Format previous = printer.get_current();
+        String space = elem.getAttributeValue("space", Namespace.XML_NAMESPACE);
+        if ("default".equals(space)) {
+            printer.set_current(printer.getFormat());
+        } else if ("preserve".equals(space)) {
+            printer.set_current(printer.get_preserve());
+        }
+
+        out.write("<");
+        out.write(elem.getQualifiedName());
+
+        int mark = scope.size();
+
+        // The element's namespace
+        Namespace ns = elem.getNamespace();
+        if (ns != Namespace.XML_NAMESPACE) {
+            if ((ns != Namespace.NO_NAMESPACE) || (get_uri("") != null)) {
+                print_namespace(out, ns);
+            }
+        } // if
+
+        // Additional namespaces
+        if (decls != null) {
+            for (Namespace d : decls) {
+                print_namespace(out, d);
+            }
+        } // if
+
+        // Attributes
+        for (Attribute a : attributes) {
+            Namespace ans = a.getNamespace();
+            if ((ans != Namespace.NO_NAMESPACE)
+                && (ans != Namespace.XML_NAMESPACE))
+            {
+                print_namespace(out, ans);
+            }
+            out.write(" ");
+            out.write(a.getQualifiedName());
+            out.write("=\"");
+            out.write(printer.escapeAttributeEntities(a.getValue()));
+            out.write("\"");
+        } // for: each attribute
+
+        int start = skip_leading_white(content, 0);
+        int size = content.size();
+        if (start >= size) {
+            if (printer.get_current().getExpandEmptyElements()) {
+                out.write("></");
+                out.write(elem.getQualifiedName());
+                out.write(">");
+            } else {
+                out.write(" />");
+            }
+        } else {
+            out.write(">");
+            if (next_non_text(content, start) < size) {
+                newline(out);
+                print_content_range(out, view, content, start, size, level+1);
+                newline(out);
+                indent(out, level);
+            } else {
+                print_text_range(out, content, start, size);
+            }
+            out.write("</");
+            out.write(elem.getQualifiedName());
+            out.write(">");
+        } // if-else
+
+        while (scope.size() > mark) {
+            scope.remove(scope.size()-1);
+        }
+        printer.set_current(previous);
+    } // print_element()
+
+    private void print_content_range(
+        Writer out,
+        View view,
+        List<?> content,
+        int start,
+        int end,
+        int level
+    )
+        throws IOException
+    {
+        int index = start;
+        while (index < end) {
+            boolean first_node = (index == start);
+            Object next = content.get(index);
+
+            if ((next instanceof Text) || (next instanceof EntityRef)) {
+                int first = skip_leading_white(content, index);
+                index = next_non_text(content, first);
+                if (first < index) {
+                    if (first_node == false) {
+                        newline(out);
+                    }
+                    indent(out, level);
+                    print_text_range(out, content, first, index);
+                }
+                continue;
+            } // if: text
+
+            if (first_node == false) {
+                newline(out);
+            }
+            indent(out, level);
+
+            if (next instanceof Comment) {
+                printer.print(out, (Comment) next);
+            } else if (next instanceof Element) {
+                View child = resolve_child((Element) next, view.manifestation);
+                print_element(out, child, level);
+            } else if (next instanceof ProcessingInstruction) {
+                printer.print(out, (ProcessingInstruction) next);
+            }
+            index++;
+        } // while
+    } // print_content_range()
+
+    private void print_text_range(
+        Writer out,
+        List<?> content,
+        int start,
+        int end
+    )
+        throws IOException
+    {
+        Format.TextMode mode = printer.get_current().getTextMode();
+        String previous = null;
+
+        start = skip_leading_white(content, start);
+        if (start >= content.size()) {
+            return;
+        }
+        end = skip_trailing_white(content, end);
+
+        for (int i = start; i < end; i++) {
+            Object node = content.get(i);
+            String next = null;
+            if (node instanceof Text) {
+                next = ((Text) node).getText();
+            } else if (node instanceof EntityRef) {
+                next = "&" + ((EntityRef) node).getValue() + ";";
+            } else {
+                throw new IllegalStateException(
+                    "Should see only CDATA, Text, or EntityRef");
+            }
+
+            if ((next == null) || next.equals("")) {
+                continue;
+            }
+
+            if ((previous != null)
+                && ((mode == Format.TextMode.NORMALIZE)
+                || (mode == Format.TextMode.TRIM)))
+            {
+                if (ends_with_white(previous) || starts_with_white(next)) {
+                    out.write(" ");
+                }
+            } // if
+
+            if (node instanceof CDATA) {
+                printer.print(out, (CDATA) node);
+            } else if (node instanceof EntityRef) {
+                printer.print(out, (EntityRef) node);
+            } else {
+                String str = next;
+                if (mode == Format.TextMode.NORMALIZE) {
+                    str = Text.normalizeString(str);
+                } else if (mode == Format.TextMode.TRIM) {
+                    str = str.trim();
+                }
+                out.write(printer.escapeElementEntities(str));
+            } // if-else
+
+            // The unnormalized text is used for the whitespace check
+            previous = next;
+        } // for
+    } // print_text_range()
+
+    private void print_namespace(Writer out, Namespace ns)
+        throws IOException
+    {
+        String prefix = ns.getPrefix();
+        String uri = ns.getURI();
+
+        if (uri.equals(get_uri(prefix))) {
+            // Already declared
+            return;
+        }
+
+        out.write(" xmlns");
+        if (prefix.equals("") == false) {
+            out.write(":");
+            out.write(prefix);
+        }
+        out.write("=\"");
+        out.write(printer.escapeAttributeEntities(uri));
+        out.write("\"");
+
+        scope.add(prefix);
+        scope.add(uri);
+    } // print_namespace()
+
+    private String get_uri(String prefix) {
+        for (int i = scope.size()-2; i >= 0; i -= 2) {
+            if (scope.get(i).equals(prefix)) {
+                return scope.get(i+1);
+            }
+        } // for
+        return null;
+    } // get_uri()
+
+    private void newline(Writer out) throws IOException {
+        Format fmt = printer.get_current();
+        if (fmt.getIndent() != null) {
+            out.write(fmt.getLineSeparator());
+        }
+    } // newline()
+
+    private void indent(Writer out, int level) throws IOException {
+        String indent = printer.get_current().getIndent();
+        if ((indent == null) || indent.equals("")) {
+            return;
+        }
+        for (int i = 0; i < level; i++) {
+            out.write(indent);
+        }
+    } // indent()
+
+    private boolean is_trimming() {
+        Format.TextMode mode = printer.get_current().getTextMode();
+        return (mode == Format.TextMode.TRIM_FULL_WHITE)
+            || (mode == Format.TextMode.NORMALIZE)
+            || (mode == Format.TextMode.TRIM);
+    } // is_trimming()
+
+    private int skip_leading_white(List<?> content, int start) {
+        if (start < 0) {
+            start = 0;
+        }
+        int index = start;
+        int size = content.size();
+        if (is_trimming()) {
+            while (index < size) {
+                if (is_all_whitespace(content.get(index)) == false) {
+                    return index;
+                }
+                index++;
+            } // while
+        } // if
+        return index;
+    } // skip_leading_white()
+
+    private int skip_trailing_white(List<?> content, int start) {
+        int size = content.size();
+        if (start > size) {
+            start = size;
+        }
+        int index = start;
+        if (is_trimming()) {
+            while (index >= 0) {
+                if (is_all_whitespace(content.get(index-1)) == false) {
+                    break;
+                }
+                index--;
+            } // while
+        } // if
+        return index;
+    } // skip_trailing_white()
+
+    private static int next_non_text(List<?> content, int start) {
+        if (start < 0) {
+            start = 0;
+        }
+        int index = start;
+        int size = content.size();
+        while (index < size) {
+            Object node = content.get(index);
+            if (((node instanceof Text) || (node instanceof EntityRef))
+                == false)
+            {
+                return index;
+            }
+            index++;
+        } // while
+        return size;
+    } // next_non_text()
+
+    private static boolean is_all_whitespace(Object obj) {
+        if ((obj instanceof Text) == false) {
+            return false;
+        }
+        String s = ((Text) obj).getText();
+        for (int i = 0; i < s.length(); i++) {
+            if (org.jdom.Verifier.isXMLWhitespace(s.charAt(i)) == false) {
+                return false;
+            }
+        } // for
+        return true;
+    } // is_all_whitespace()
+
+    private static boolean starts_with_white(String s) {
+        return (s != null) && (s.length() > 0)
+            && org.jdom.Verifier.isXMLWhitespace(s.charAt(0));
+    } // starts_with_white()
+
+    private static boolean ends_with_white(String s) {
+        return (s != null) && (s.length() > 0)
+            && org.jdom.Verifier.isXMLWhitespace(s.charAt(s.length()-1));
+    } // ends_with_white()
+
+} // class StreamingDenormalizer
@@ -0,0 +1,724 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Stack;
+// java security imports
+import java.security.MessageDigest;
+import java.security.DigestOutputStream;
+// stax imports
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamConstants;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+import org.jdom.Namespace;
+import org.jdom.Text;
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.ProcessingInstruction;
+import org.jdom.EntityRef;
+import org.jdom.output.Format;
+import org.jdom.output.XMLOutputter;
+// xmlsnippets imports
+import xmlsnippets.core.Xid;
+import xmlsnippets.core.XidIdentification;
+import xmlsnippets.core.PidIdentification;
+import xmlsnippets.util.Digest;
+import xmlsnippets.util.FileHelper;
+import xmlsnippets.util.XMLFileHelper;
+
+/**
+ * Ingests an XML document without building the whole document in memory.
+ * The document is parsed incrementally. Each element is preprocessed
+ * and ingested as soon as its end tag is seen. A xidentified element
+ * is then replaced in its parent by a childless stub which carries only
+ * the identification attributes; that is all the parent's normalization
+ * needs. Consequently, only the elements on the current path from the
+ * root and their not-yet-ingested content are kept in memory.<p>
+ *
+ * The revisions filled in during the ingestion are recorded as attribute
+ * amendments keyed by the ordinal of the element's start tag. The file
+ * is written back by a second streaming pass, which applies the
+ * amendments to the corresponding start tags.
+ */
+public class StreamingIngest {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix of the temporary file used while rewriting.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
+
+    /**
+     * Parser property for reporting CDATA sections as separate events.
+     */
+    private static final String PROPERTY_REPORT_CDATA
+        = "http://java.sun.com/xml/stream/properties/report-cdata-event";
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * An element whose end tag has not been seen yet.
+     */
+    private static class Frame {
+        /** The element being built. */
+        public Element elem;
+        /** Ordinal of the element's start tag in document order. */
+        public int ordinal;
+        /** Copies of the attributes as they were in the file. */
+        public List<Attribute> original;
+        /** The property scope for the children of the element. */
+        public Map<String, Element> scope;
+    } // class Frame
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The link to the repository.
+     */
+    private AbstractRepository db;
+
+    /**
+     * The file being ingested.
+     */
+    private File file;
+
+    /**
+     * Amended attribute lists, keyed by start tag ordinal.
+     */
+    private Map<Integer, List<Attribute>> amendments;
+
+    /**
+     * The root element's xid after ingestion.
+     */
+    public Xid root_xid;
+
+    /**
+     * How the root node is manifestated in the file.
+     */
+    public List<Stack<Xid>> manifestation;
+
+    /**
+     * Number of elements seen.
+     */
+    public int elements;
+
+    /**
+     * Greatest nesting depth seen.
+     */
+    public int max_depth;
+
+    // CONSTRUCTORS
+    //==============
+
+    public StreamingIngest(AbstractRepository db, File file) {
+        this.db = db;
+        this.file = file;
+        amendments = new HashMap<Integer, List<Attribute>>();
+        root_xid = null;
+        manifestation = null;
+        elements = 0;
+        max_depth = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Creates a reader for a file. External entities are not loaded,
+     * similarly to the DOM parsing in {@code XMLFileHelper}.
+     */
+    private static XMLStreamReader new_reader(InputStream is)
+        throws Exception
+    {
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        factory.setProperty(XMLInputFactory.IS_NAMESPACE_AWARE, Boolean.TRUE);
+        factory.setProperty(
+            XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        // Keep CDATA sections apart from text, if the parser can do it
+        try {
+            factory.setProperty(PROPERTY_REPORT_CDATA, Boolean.TRUE);
+        } catch(IllegalArgumentException ex) {
+            // Not supported; CDATA is then reported as text.
+        } // try-catch
+        return factory.createXMLStreamReader(is);
+    } // new_reader()
+
+    /**
+     * Scans a file for the highest revision number in use without
+     * ingesting anything. This is needed when unknown xids are allowed,
+     * because the repository's revision must be raised BEFORE any new
+     * xid receives its revision number.
+     */
+    public static void prescan(File file) {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            XMLStreamReader reader = new_reader(is);
+            while (reader.hasNext()) {
+                if (reader.next() != XMLStreamConstants.START_ELEMENT) {
+                    continue;
+                }
+                // Only the attributes are needed
+                Element elem = new Element(reader.getLocalName());
+                for (int i = 0; i < reader.getAttributeCount(); i++) {
+                    String uri = reader.getAttributeNamespace(i);
+                    if ((uri != null) && (uri.length() > 0)) {
+                        continue;
+                    }
+                    elem.setAttribute(
+                        reader.getAttributeLocalName(i),
+                        reader.getAttributeValue(i));
+                } // for: each attribute
+
+                Xid xid = XidIdentification.get_xid(elem, true);
+                if ((xid != null) && (xid.rev >= 0)) {
+                    XidClient.update_repository_revision(xid);
+                }
+            } // while
+            reader.close();
+        } catch(RuntimeException ex) {
+            throw ex;
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: %s", file.getPath(), ex.getMessage()), ex);
+        } finally {
+            close(is);
+        } // try-catch-finally
+    } // prescan()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Parses and ingests the file. After this call {@link #root_xid}
+     * and {@link #manifestation} are set.
+     */
+    public void ingest() {
+        InputStream is = null;
+        try {
+            is = new BufferedInputStream(new FileInputStream(file));
+            XMLStreamReader reader = new_reader(is);
+            ingest(reader);
+            reader.close();
+        } catch(RuntimeException ex) {
+            throw ex;
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: %s", file.getPath(), ex.getMessage()), ex);
+        } finally {
+            close(is);
+        } // try-catch-finally
+    } // ingest()
+
+    /**
+     * Writes the file back with the amendments applied. The output is
+     * written to a temporary file which then replaces the original one.
+     * The digest is calculated while writing. If there are no amendments,
+     * the file is left untouched and only its digest is calculated.
+     *
+     * @param algo_name the digest algorithm's name
+     * @return the digest of the resulting file
+     */
+    public Digest rewrite(String algo_name) {
+        if (amendments.size() == 0) {
+            try {
+                return Digest.create(algo_name, file);
+            } catch(Exception ex) {
+                throw new RuntimeException(String.format(
+                    "%s: cannot calculate digest; %s",
+                    file.getPath(), ex.getMessage()), ex);
+            } // try-catch
+        } // if: nothing to amend
+
+        File tmp = new File(file.getPath() + TEMP_SUFFIX);
+        InputStream is = null;
+        OutputStream os = null;
+        MessageDigest md = null;
+        try {
+            md = MessageDigest.getInstance(algo_name);
+            is = new BufferedInputStream(new FileInputStream(file));
+            os = new BufferedOutputStream(new DigestOutputStream(
+                new FileOutputStream(tmp), md));
+            rewrite(is, os);
+            os.close();
+            os = null;
+        } catch(RuntimeException ex) {
+            tmp.delete();
+            throw ex;
+        } catch(Exception ex) {
+            tmp.delete();
+            throw new RuntimeException(String.format(
+                "%s: cannot rewrite; %s", file.getPath(), ex.getMessage()), ex);
+        } finally {
+            close(is);
+            close(os);
+        } // try-catch-finally
+
+        try {
+            FileHelper.replaceFile(tmp, file);
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot replace; %s", file.getPath(), ex.getMessage()), ex);
+        } // try-catch
+        return new Digest(algo_name, md.digest());
+    } // rewrite()
+
+    // HELPER METHODS
+    //================
+
+    private void ingest(XMLStreamReader reader)
+        throws Exception
+    {
+        Stack<Frame> stack = new Stack<Frame>();
+        Map<Element, List<Stack<Xid>>> manifestations_map
+            = new LinkedHashMap<Element, List<Stack<Xid>>>();
+
+        while (reader.hasNext()) {
+            int type = reader.next();
+
+            if (type == XMLStreamConstants.START_ELEMENT) {
+                Element elem = new_element(reader);
+                Frame parent = stack.empty() ? null : stack.peek();
+
+                Frame frame = new Frame();
+                frame.elem = elem;
+                frame.ordinal = elements++;
+                frame.original = copy_attributes(elem);
+                frame.scope = UpdateLogic.open_scope(
+                    elem, parent == null ? null : parent.scope);
+
+                if (parent != null) {
+                    parent.elem.addContent(elem);
+                }
+                stack.push(frame);
+                if (stack.size() > max_depth) {
+                    max_depth = stack.size();
+                }
+            }
+            else if (type == XMLStreamConstants.END_ELEMENT) {
+                Frame frame = stack.pop();
+                Frame parent = stack.empty() ? null : stack.peek();
+                end_element(frame, parent, manifestations_map);
+            }
+            else if (stack.empty()) {
+                // Content outside the root element is not ingested;
+                // the rewriter copies it as such.
+                continue;
+            }
+            else if ((type == XMLStreamConstants.CHARACTERS)
+                || (type == XMLStreamConstants.SPACE))
+            {
+                add_text(stack.peek().elem, reader.getText());
+            }
+            else if (type == XMLStreamConstants.CDATA) {
+                stack.peek().elem.addContent(new CDATA(reader.getText()));
+            }
+            else if (type == XMLStreamConstants.COMMENT) {
+                stack.peek().elem.addContent(new Comment(reader.getText()));
+            }
+            else if (type == XMLStreamConstants.PROCESSING_INSTRUCTION) {
+                stack.peek().elem.addContent(new ProcessingInstruction(
+                    reader.getPITarget(), reader.getPIData()));
+            } // if-else
+        } // while
+
+        // Whatever remained keyed to null belongs to the root
+        manifestation = manifestations_map.get(null);
+    } // ingest()
+
+    private void end_element(
+        Frame frame,
+        Frame parent,
+        Map<Element, List<Stack<Xid>>> manifestations_map
+    ) {
+        Element elem = frame.elem;
+        Map<String, Element> parent_scope
+            = (parent == null) ? null : parent.scope;
+
+        // The same steps as in the in-memory commit, but one element
+        // at a time: preprocess, record the pid, and ingest.
+        XidClient.preprocess_element(elem, db);
+        UpdateLogic.register_pid(elem, parent_scope);
+        UpdateLogic.ingest_element(db, elem, manifestations_map);
+
+        Xid xid = XidIdentification.get_xid(elem);
+
+        // Record the attribute changes for the rewriter
+        if (attributes_equal(frame.original, elem) == false) {
+            amendments.put(frame.ordinal, copy_attributes(elem));
+        }
+
+        if (parent == null) {
+            // This is the root.
+            root_xid = xid;
+            return;
+        }
+
+        // A xidentified element is not needed anymore; it is replaced
+        // by a stub which is enough for normalizing the parent.
+        Element key = elem;
+        if (xid != null) {
+            Element stub = new_stub(elem);
+            int index = parent.elem.indexOf(elem);
+            parent.elem.setContent(index, stub);
+            key = stub;
+        } // if
+
+        // Reassign the key of the manifestations mapped to the null key,
+        // just like UpdateLogic.ingest() does after each child.
+        List<Stack<Xid>> nulstack = manifestations_map.remove(null);
+        if (nulstack != null) {
+            manifestations_map.put(key, nulstack);
+        } // if
+    } // end_element()
+
+    /**
+     * Creates a childless copy of a xidentified element carrying only
+     * the identification attributes.
+     */
+    private static Element new_stub(Element elem) {
+        Element stub = new Element(elem.getName(), elem.getNamespace());
+        String[] anames = {
+            XidIdentification.ATTR_XID,
+            XidIdentification.ATTR_ID,
+            XidIdentification.ATTR_REVSTRING,
+            XidIdentification.ATTR_REVSPEC,
+            PidIdentification.ATTR_PID
+        };
+        for (String aname : anames) {
+            String value = elem.getAttributeValue(aname);
+            if (value != null) {
+                stub.setAttribute(aname, value);
+            }
+        } // for
+        return stub;
+    } // new_stub()
+
+    private static Element new_element(XMLStreamReader reader) {
+        Element elem = new Element(
+            reader.getLocalName(),
+            get_namespace(reader.getPrefix(), reader.getNamespaceURI()));
+
+        // Additional namespace declarations
+        for (int i = 0; i < reader.getNamespaceCount(); i++) {
+            Namespace ns = get_namespace(
+                reader.getNamespacePrefix(i), reader.getNamespaceURI(i));
+            if (ns.getPrefix().equals(elem.getNamespacePrefix())) {
+                continue;
+            }
+            elem.addNamespaceDeclaration(ns);
+        } // for
+
+        for (int i = 0; i < reader.getAttributeCount(); i++) {
+            Namespace ns = get_namespace(
+                reader.getAttributePrefix(i),
+                reader.getAttributeNamespace(i));
+            elem.setAttribute(new Attribute(
+                reader.getAttributeLocalName(i),
+                reader.getAttributeValue(i),
+                ns));
+        } // for
+
+        return elem;
+    } // new_element()
+
+    private static Namespace get_namespace(String prefix, String uri) {
+        if (prefix == null) {
+            prefix = "";
+        }
+        if (uri == null) {
+            uri = "";
+        }
+        return Namespace.getNamespace(prefix, uri);
+    } // get_namespace()
+
+    private static void add_text(Element elem, String text) {
+        // Merge adjacent text chunks
+        int size = elem.getContentSize();
+        if (size > 0) {
+            Object last = elem.getContent(size-1);
+            if ((last instanceof Text) && ((last instanceof CDATA) == false)) {
+                ((Text) last).append(text);
+                return;
+            }
+        } // if
+        elem.addContent(new Text(text));
+    } // add_text()
+
+    private static List<Attribute> copy_attributes(Element elem) {
+        List<Attribute> rval = new ArrayList<Attribute>();
+        for (Object obj : elem.getAttributes()) {
+            rval.add((Attribute) ((Attribute) obj).clone());
+        }
+        return rval;
+    } // copy_attributes()
+
+    private static boolean attributes_equal(
+        List<Attribute> original,
+        Element elem
+    ) {
+        List<?> current = elem.getAttributes();
+        if (original.size() != current.size()) {
+            return false;
+        }
+        for (Attribute a : original) {
+            String value = elem.getAttributeValue(
+                a.getName(), a.getNamespace());
+            if (a.getValue().equals(value) == false) {
+                return false;
+            }
+        } // for
+        return true;
+    } // attributes_equal()
+
+    /**
+     * Copies the document with the amendments applied. The output is
+     * byte for byte what {@code XMLFileHelper} writes for the same
+     * document: the verbatim {@code XMLOutputter} is used for escaping
+     * and for everything else than the tags, and the tags are written
+     * by the same rules as the outputter writes them. That is, empty
+     * elements as {@code <e />}, and the namespace of the element first,
+     * then the other declarations, and then the attributes; a declaration
+     * which is already in scope is omitted.
+     */
+    private void rewrite(InputStream is, OutputStream os)
+        throws Exception
+    {
+        XMLStreamReader reader = new_reader(is);
+
+        Format fmt = XMLFileHelper.new_verbatim_format();
+        XMLOutputter xo = new XMLOutputter(fmt);
+        Writer writer = new OutputStreamWriter(os, fmt.getEncoding());
+
+        writer.write(String.format("<?xml version=\"1.0\" encoding=\"%s\"?>",
+            fmt.getEncoding()));
+        writer.write(fmt.getLineSeparator());
+
+        // The declared namespaces, and the scope size of each open element
+        List<Namespace> scope = new ArrayList<Namespace>();
+        Stack<Integer> marks = new Stack<Integer>();
+
+        int ordinal = 0;
+        int type = reader.next();
+        while (type != XMLStreamConstants.END_DOCUMENT) {
+            if (type == XMLStreamConstants.START_ELEMENT) {
+                List<Attribute> amended = amendments.get(ordinal);
+                ordinal++;
+
+                // Capture the start tag before looking ahead
+                String qname = qualified_name(
+                    reader.getPrefix(), reader.getLocalName());
+                Namespace elem_ns = get_namespace(
+                    reader.getPrefix(), reader.getNamespaceURI());
+                List<Namespace> namespaces = new ArrayList<Namespace>();
+                for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                    Namespace ns = get_namespace(
+                        reader.getNamespacePrefix(i),
+                        reader.getNamespaceURI(i));
+                    // The builder does not add the element's own namespace
+                    if (ns.equals(elem_ns) == false) {
+                        namespaces.add(ns);
+                    }
+                } // for
+                if (amended == null) {
+                    amended = new ArrayList<Attribute>();
+                    for (int i = 0; i < reader.getAttributeCount(); i++) {
+                        amended.add(new Attribute(
+                            reader.getAttributeLocalName(i),
+                            reader.getAttributeValue(i),
+                            get_namespace(
+                                reader.getAttributePrefix(i),
+                                reader.getAttributeNamespace(i))));
+                    } // for
+                } // if: not amended
+
+                marks.push(scope.size());
+                writer.write('<');
+                writer.write(qname);
+                if ((elem_ns != Namespace.NO_NAMESPACE)
+                    || (get_uri(scope, "") != null))
+                {
+                    write_namespace(writer, xo, scope, elem_ns);
+                }
+                for (Namespace ns : namespaces) {
+                    write_namespace(writer, xo, scope, ns);
+                }
+                for (Attribute a : amended) {
+                    if (a.getNamespace() != Namespace.NO_NAMESPACE) {
+                        write_namespace(writer, xo, scope, a.getNamespace());
+                    }
+                    writer.write(' ');
+                    writer.write(a.getQualifiedName());
+                    writer.write("=\"");
+                    writer.write(xo.escapeAttributeEntities(a.getValue()));
+                    writer.write('"');
+                } // for
+
+                // An element without content is written as an empty tag
+                type = reader.next();
+                if (type == XMLStreamConstants.END_ELEMENT) {
+                    writer.write(" />");
+                    end_scope(scope, marks);
+                    type = reader.next();
+                } else {
+                    writer.write('>');
+                }
+                // The look-ahead event is handled on the next round
+                continue;
+            }
+
+            switch(type) {
+                case XMLStreamConstants.END_ELEMENT:
+                    writer.write("</");
+                    writer.write(qualified_name(
+                        reader.getPrefix(), reader.getLocalName()));
+                    writer.write('>');
+                    end_scope(scope, marks);
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.SPACE:
+                    // The builder drops the text outside the root
+                    if (marks.size() > 0) {
+                        writer.write(xo.escapeElementEntities(
+                            reader.getText()));
+                    }
+                    break;
+                case XMLStreamConstants.CDATA:
+                    xo.output(new CDATA(reader.getText()), writer);
+                    break;
+                case XMLStreamConstants.COMMENT:
+                    xo.output(new Comment(reader.getText()), writer);
+                    break;
+                case XMLStreamConstants.PROCESSING_INSTRUCTION:
+                    xo.output(new ProcessingInstruction(
+                        reader.getPITarget(), nonull(reader.getPIData())),
+                        writer);
+                    break;
+                case XMLStreamConstants.DTD:
+                    writer.write(reader.getText());
+                    writer.write(fmt.getLineSeparator());
+                    break;
+                case XMLStreamConstants.ENTITY_REFERENCE:
+                    xo.output(new EntityRef(reader.getLocalName()), writer);
+                    break;
+                default:
+                    break;
+            } // switch
+            type = reader.next();
+        } // while
+
+        writer.write(fmt.getLineSeparator());
+        writer.flush();
+        reader.close();
+    } // rewrite()
+
+    /**
+     * Writes a namespace declaration unless it is already in scope,
+     * and adds it to the scope.
+     */
+    private static void write_namespace(
+        Writer writer,
+        XMLOutputter xo,
+        List<Namespace> scope,
+        Namespace ns
+    )
+        throws Exception
+    {
+        if ((ns == Namespace.XML_NAMESPACE)
+            || ns.getURI().equals(get_uri(scope, ns.getPrefix())))
+        {
+            return;
+        }
+        writer.write(" xmlns");
+        if (ns.getPrefix().length() > 0) {
+            writer.write(':');
+            writer.write(ns.getPrefix());
+        }
+        writer.write("=\"");
+        writer.write(xo.escapeAttributeEntities(ns.getURI()));
+        writer.write('"');
+        scope.add(ns);
+    } // write_namespace()
+
+    /**
+     * Returns the uri bound to a prefix in the scope, or {@code null}.
+     */
+    private static String get_uri(List<Namespace> scope, String prefix) {
+        for (int i = scope.size()-1; i >= 0; i--) {
+            Namespace ns = scope.get(i);
+            if (ns.getPrefix().equals(prefix)) {
+                return ns.getURI();
+            }
+        } // for
+        return null;
+    } // get_uri()
+
+    /**
+     * Drops the declarations of the element which ended from the scope.
+     */
+    private static void end_scope(List<Namespace> scope, Stack<Integer> marks) {
+        int mark = marks.pop();
+        while (scope.size() > mark) {
+            scope.remove(scope.size()-1);
+        }
+    } // end_scope()
+
+    private static String qualified_name(String prefix, String local) {
+        if ((prefix == null) || (prefix.length() == 0)) {
+            return local;
+        }
+        return prefix + ":" + local;
+    } // qualified_name()
+
+    private static String nonull(String s) {
+        return s != null ? s : "";
+    } // nonull()
+
+    private static void close(java.io.Closeable c) {
+        if (c == null) {
+            return;
+        }
+        try {
+            c.close();
+        } catch(Exception ex) {
+            // ignore
+        } // try-catch
+    } // close()
+
+} // class StreamingIngest
@@ -58,6 +58,36 @@ public class UpdateLogic {
      */
     public static boolean g_opt_ingest_unknowns = false;
 
+    // NESTED CLASSES
+    //================
+
+    /**
+     * The update options of a single ingestion. The command-line client
+     * uses the configuration variables above; the embedded API passes
+     * its own options, so that repositories do not share any state.
+     */
+    public static class Options {
+        /** See {@link UpdateLogic#g_opt_unrev_unknowns}. */
+        public boolean unrev_unknowns;
+        /** See {@link UpdateLogic#g_opt_ingest_unknowns}. */
+        public boolean ingest_unknowns;
+
+        public Options() {
+            unrev_unknowns = false;
+            ingest_unknowns = false;
+        } // ctor
+
+        /**
+         * Returns the options set in the configuration variables.
+         */
+        public static Options from_config() {
+            Options rval = new Options();
+            rval.unrev_unknowns = g_opt_unrev_unknowns;
+            rval.ingest_unknowns = g_opt_ingest_unknowns;
+            return rval;
+        } // from_config()
+    } // class Options
+
     // CONSTRUCTORS
     //==============
 
@@ -82,9 +112,65 @@ public class UpdateLogic {
         Map<Element, List<Stack<Xid>>> manifestations_map,
         Map<String, Element> properties
     ) {
+        ingest(db, elem, manifestations_map, properties,
+            Options.from_config());
+    } // ingest()
+
+    /**
+     * Same as above, but with explicitly given update options instead
+     * of the configuration variables.
+     */
+    public static void ingest(
+        AbstractRepository db,
+        Element elem,
+        Map<Element, List<Stack<Xid>>> manifestations_map,
+        Map<String, Element> properties,
+        Options opt
+    ) {
 
         // If the element is a named property,
         // the property name should go to the parent's scope, if any
+        register_pid(elem, properties);
+
+        // If the current XML Element is a xidentified element,
+        // create a new scope for properties
+        Map<String, Element> local_properties = open_scope(elem, properties);
+
+        // Depth-first recursion to the child elements
+        for (Object obj : elem.getContent()) {
+            if ((obj instanceof Element) == false) {
+                // Not an Element object. Skip
+                continue;
+            } // if: not an element
+
+            // Depth-first recursion
+            Element child = (Element) obj;
+
+            ingest(db, child, manifestations_map, local_properties, opt);
+            // Debug the manifestations_map
+
+            // Reassign the key of the manifestations mapped to the null key
+            List<Stack<Xid>> nulstack = manifestations_map.remove(null);
+            if (nulstack != null) {
+                manifestations_map.put(child, nulstack);
+            } // if
+        } // for: each child object
+
+        // After all children are processed, process the node itself.
+        ingest_element(db, elem, manifestations_map, opt);
+    }
+
+    /**
+     * Records the property id of the element, if any, to the scope
+     * of the parent.
+     *
+     * @param elem the element
+     * @param properties the scope of the parent, or {@code null}
+     */
+    protected static void register_pid(
+        Element elem,
+        Map<String, Element> properties
+    ) {
         String pid = PidIdentification.get_pid(elem);
 
         // Pick the element's xid if any
@@ -125,10 +211,25 @@ public class UpdateLogic {
             properties.put(pid, elem);
 
         } // if: has pid
+    } // register_pid()
 
+    /**
+     * Returns the property scope for the children of the element.
+     * A xidentified or a named element creates a new scope; otherwise
+     * the inherited scope is used.
+     *
+     * @param elem the element
+     * @param properties the scope of the parent, or {@code null}
+     * @return the scope for the children
+     */
+    protected static Map<String, Element> open_scope(
+        Element elem,
+        Map<String, Element> properties
+    ) {
+        String pid = PidIdentification.get_pid(elem);
+        // Missing revision is allowed; it is only tested for presence.
+        Xid xid = XidIdentification.get_xid(elem, true);
 
-        // If the current XML Element is a xidentified element,
-        // create a new scope for properties
         Map<String, Element> local_properties = null;
 
         // TODO: If the XML element has a property id set,
@@ -142,30 +243,8 @@ public class UpdateLogic {
             local_properties = properties;
         } // if-else
 
-
-        // Depth-first recursion to the child elements
-        for (Object obj : elem.getContent()) {
-            if ((obj instanceof Element) == false) {
-                // Not an Element object. Skip
-                continue;
-            } // if: not an element
-
-            // Depth-first recursion
-            Element child = (Element) obj;
-
-            ingest(db, child, manifestations_map, local_properties);
-            // Debug the manifestations_map
-
-            // Reassign the key of the manifestations mapped to the null key
-            List<Stack<Xid>> nulstack = manifestations_map.remove(null);
-            if (nulstack != null) {
-                manifestations_map.put(child, nulstack);
-            } // if
-        } // for: each child object
-
-        // After all children are processed, process the node itself.
-        ingest_element(db, elem, manifestations_map);
-    }
+        return local_properties;
+    } // open_scope()
 
     private static Xid process_xid_rename(Xid xid) {
         Xid org_xid = null;
@@ -207,10 +286,19 @@ public class UpdateLogic {
         }
     }
 
-    private static void ingest_element(
+    protected static void ingest_element(
         AbstractRepository db,
         Element elem,
         Map<Element, List<Stack<Xid>>> manifestations_map
+    ) {
+        ingest_element(db, elem, manifestations_map, Options.from_config());
+    } // ingest_element()
+
+    protected static void ingest_element(
+        AbstractRepository db,
+        Element elem,
+        Map<Element, List<Stack<Xid>>> manifestations_map,
+        Options opt
     ) {
         // The element should now have a valid xid, either as (@id, @rev) pair
         // or as @xid. If this throws an exception, it is an indication of
@@ -331,7 +419,7 @@ public class UpdateLogic {
         // is unknown (= not new and not old) and they are to be re-revisioned.
         if ((item == null)
             && (allow_new == false)
-            && (g_opt_unrev_unknowns))
+            && (opt.unrev_unknowns))
         {
             // Get a new revision, since unknowns are unrev'd
             db.set_new_revision(xid);
@@ -357,12 +445,12 @@ public class UpdateLogic {
 
             // Calcualte the normalization table for the older instance
             List<Normalization.RefXidRecord> oldtable = null;
-            oldtable = Normalization.build_normalization_table(item.payload_element);
+            oldtable = Normalization.build_normalization_table(item.get_payload_element());
 
             // See if the current and the olde instance are contentually
             // equivalent.
 
-            if (nodes_equal(normal, item.payload_element, oldtable)) {
+            if (nodes_equal(normal, item.get_payload_element(), oldtable)) {
                 // The nodes ARE contentually equal. The current instance
                 // has been already stored either into the repository
                 // or into the current commit set. Because it is already
@@ -430,11 +518,11 @@ public class UpdateLogic {
                 // records or in the current commit set.
 
                 // Build normalization table for the inclusion-by-xid elements.
-                oldtable = Normalization.build_normalization_table(newitem.payload_element);
+                oldtable = Normalization.build_normalization_table(newitem.get_payload_element());
 
                 // Determine the contentual equivalence of the current
                 // and oler instance of this xid.
-                if (nodes_equal(normal, newitem.payload_element, oldtable)) {
+                if (nodes_equal(normal, newitem.get_payload_element(), oldtable)) {
                     // The current and the older instance of this xid
                     // are contentually equal. The current instance is already
                     // then recorded, and does not need to be recorded twice.
@@ -594,7 +682,7 @@ public class UpdateLogic {
             if (allow_new == false) {
                 // Unexisting xid wasn't allowed. See if there is
                 // an overriding policy in effect..
-                if (g_opt_ingest_unknowns == true) {
+                if (opt.ingest_unknowns == true) {
                     // It can be added.
                     // This may abruptly jump the repository's revision
                     // number.
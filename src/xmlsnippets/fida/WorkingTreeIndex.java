@@ -0,0 +1,441 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.fida;
+
+// java core imports
+import java.io.File;
+import java.io.IOException;
+import java.util.Map;
+import java.util.LinkedHashMap;
+import java.util.concurrent.TimeUnit;
+// java nio imports
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Document;
+// xmlsnippets imports
+import xmlsnippets.util.Digest;
+import xmlsnippets.util.XMLFileHelper;
+
+/**
+ * A cache of the stat data of the tracked files in the working tree.
+ * The index is stored as a separate file next to the repository db.
+ * For each tracked path it records the file size, the modification
+ * time, the inode number and the last known digest. If the stat data
+ * of a file matches the recorded one, the recorded digest is used
+ * instead of reading the whole file.<p>
+ *
+ * Racy timestamps are handled in the same manner as in git. If a file
+ * was modified within the same timestamp granularity in which the index
+ * was written, the stat data cannot tell whether the file was modified
+ * after the digest was taken. Such entries are never trusted; their
+ * digest is always recalculated.
+ */
+public class WorkingTreeIndex {
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix appended to the repository file name to get the index file.
+     */
+    public static final String INDEX_SUFFIX = ".index";
+
+    /**
+     * The digest algorithm used for the working files.
+     */
+    public static final String DIGEST_ALGO = "md5";
+
+    public static final String
+        ELEM_INDEX                              = "FidaIndex";
+
+    public static final String
+        ELEM_INDEX_ENTRY                        = "Entry";
+
+    public static final String
+        ATTR_ENTRY_PATH                         = "path";
+
+    public static final String
+        ATTR_ENTRY_SIZE                         = "size";
+
+    public static final String
+        ATTR_ENTRY_MTIME                        = "mtime";
+
+    public static final String
+        ATTR_ENTRY_INODE                        = "inode";
+
+    public static final String
+        ATTR_ENTRY_ALGO                         = "algo";
+
+    /**
+     * Value used for the inode number when the file system does not
+     * provide one.
+     */
+    public static final long INODE_UNKNOWN      = -1;
+
+    // NESTED CLASSES
+    //================
+
+    /**
+     * The recorded stat data of a single tracked file.
+     */
+    public static class Entry {
+
+        /** Path relative to the repository base directory. */
+        public String path;
+
+        /** File size in bytes. */
+        public long size;
+
+        /** Last modification time in nanoseconds since the epoch. */
+        public long mtime;
+
+        /** Inode number, or {@link #INODE_UNKNOWN}. */
+        public long inode;
+
+        /** The digest of the file contents at the time of the stat. */
+        public Digest digest;
+
+        public Entry() {
+            path = null;
+            size = 0;
+            mtime = 0;
+            inode = INODE_UNKNOWN;
+            digest = null;
+        } // ctor
+
+        /**
+         * Returns {@code true} if the stat data matches the other entry.
+         */
+        public boolean stat_equals(Entry other) {
+            return (size == other.size)
+                && (mtime == other.mtime)
+                && (inode == other.inode);
+        } // stat_equals()
+    } // class Entry
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The index file.
+     */
+    public File file;
+
+    /**
+     * Modification time of the index file when it was read, in
+     * nanoseconds. Entries modified at or after this instant are racy.
+     */
+    public long timestamp;
+
+    /**
+     * Mapping from relative paths to the recorded entries.
+     */
+    public Map<String, Entry> entries;
+
+    /**
+     * Indicates that the index should be written back to disk.
+     */
+    public boolean modified;
+
+    /**
+     * Number of files whose digest was calculated by reading the file.
+     */
+    public int hashed;
+
+    /**
+     * Number of files whose digest was taken from the index.
+     */
+    public int skipped;
+
+    // CONSTRUCTORS
+    //==============
+
+    public WorkingTreeIndex(File file) {
+        this.file = file;
+        timestamp = 0;
+        entries = new LinkedHashMap<String, Entry>();
+        modified = false;
+        hashed = 0;
+        skipped = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the index file corresponding to a repository file.
+     */
+    public static File get_index_file(File repo_file) {
+        return new File(repo_file.getPath() + INDEX_SUFFIX);
+    } // get_index_file()
+
+    /**
+     * Reads the index of the specified repository. If the index file
+     * does not exist, or it cannot be parsed, an empty index is returned
+     * and all digests will be recalculated.
+     */
+    public static WorkingTreeIndex read(File repo_file) {
+        WorkingTreeIndex rval = new WorkingTreeIndex(
+            get_index_file(repo_file));
+
+        if (rval.file.isFile() == false) {
+            // No index yet; the first write creates one.
+            return rval;
+        }
+
+        try {
+            Entry stamp = stat(rval.file);
+            Document doc = XMLFileHelper.deserialize_document(rval.file);
+            rval.deserialize(doc.getRootElement());
+            rval.timestamp = stamp.mtime;
+        } catch(Exception ex) {
+            System.out.printf("Warning: ignoring unreadable index %s; %s\n",
+                rval.file.getPath(), ex.getMessage());
+            rval.entries.clear();
+            rval.timestamp = 0;
+            rval.modified = true;
+        } // try-catch
+
+        return rval;
+    } // read()
+
+    /**
+     * Reads the stat data of a file. The digest is left {@code null}.
+     */
+    public static Entry stat(File file)
+        throws IOException
+    {
+        Path p = file.toPath();
+        BasicFileAttributes attrs
+            = Files.readAttributes(p, BasicFileAttributes.class);
+
+        Entry rval = new Entry();
+        rval.size = attrs.size();
+        rval.mtime = attrs.lastModifiedTime().to(TimeUnit.NANOSECONDS);
+
+        try {
+            Object ino = Files.getAttribute(p, "unix:ino");
+            rval.inode = ((Number) ino).longValue();
+        } catch(Exception ex) {
+            // Not a unix file system; inode cannot be used.
+            rval.inode = INODE_UNKNOWN;
+        } // try-catch
+
+        return rval;
+    } // stat()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Returns the current stat data of a tracked file. If the stat data
+     * matches the recorded entry, and the entry is not racy, the returned
+     * entry carries the recorded digest. Otherwise, its digest is
+     * {@code null}, and the caller must calculate it from the contents
+     * and pass it to {@link #update(Entry, Digest)}.<p>
+     *
+     * The stat data is taken before the contents are read, so that a
+     * concurrent modification can only make the entry look outdated.
+     *
+     * @param basedir the repository base directory
+     * @param path the path relative to the base directory
+     * @return the current stat data of the file
+     */
+    public Entry probe(File basedir, String path) {
+        Entry cur = null;
+        try {
+            cur = stat(new File(basedir, path));
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot stat; %s\n", path, ex.getMessage()), ex);
+        } // try-catch
+        cur.path = path;
+
+        Entry entry = entries.get(path);
+        if ((entry != null)
+            && entry.stat_equals(cur)
+            && (is_racy(entry) == false))
+        {
+            skipped++;
+            cur.digest = entry.digest;
+        } // if: stat data matches
+
+        return cur;
+    } // probe()
+
+    /**
+     * Records the digest calculated for an entry returned by
+     * {@link #probe(File, String)}.
+     *
+     * @param cur the entry returned by probe
+     * @param digest the digest of the file's contents
+     * @return the digest
+     */
+    public Digest update(Entry cur, Digest digest) {
+        hashed++;
+        cur.digest = digest;
+        put(cur.path, cur);
+        return digest;
+    } // update()
+
+    /**
+     * Returns the digest of a tracked file. If the stat data of the file
+     * matches the recorded entry, and the entry is not racy, the recorded
+     * digest is returned without reading the file. Otherwise, the digest
+     * is calculated and the entry is updated.
+     *
+     * @param basedir the repository base directory
+     * @param path the path relative to the base directory
+     * @return the digest of the file
+     */
+    public Digest get_digest(File basedir, String path) {
+        Entry cur = probe(basedir, path);
+        if (cur.digest != null) {
+            return cur.digest;
+        }
+
+        // Otherwise, the file has to be read.
+        Digest digest = null;
+        try {
+            digest = Digest.create(DIGEST_ALGO, new File(basedir, path));
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot calculate digest; %s\n",
+                path, ex.getMessage()), ex);
+        } // try-catch
+
+        return update(cur, digest);
+    } // get_digest()
+
+    /**
+     * Records a known digest for a file that was just written or read.
+     * The stat data is read from the file system.
+     *
+     * @param basedir the repository base directory
+     * @param path the path relative to the base directory
+     * @param digest the digest of the file's current contents
+     */
+    public void record(File basedir, String path, Digest digest) {
+        Entry cur = null;
+        try {
+            cur = stat(new File(basedir, path));
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot stat; %s\n", path, ex.getMessage()), ex);
+        } // try-catch
+        cur.digest = digest;
+        put(path, cur);
+    } // record()
+
+    /**
+     * Forgets the entry of a path.
+     */
+    public void remove(String path) {
+        if (entries.remove(path) != null) {
+            modified = true;
+        }
+    } // remove()
+
+    /**
+     * Forgets all entries; every digest will be recalculated.
+     */
+    public void clear() {
+        entries.clear();
+        modified = true;
+    } // clear()
+
+    /**
+     * Returns {@code true} if the entry was modified within the same
+     * timestamp granularity in which the index was written. The stat data
+     * of such an entry cannot be trusted.
+     */
+    public boolean is_racy(Entry entry) {
+        return entry.mtime >= timestamp;
+    } // is_racy()
+
+    /**
+     * Writes the index back to disk, if it was modified.
+     */
+    public void write() {
+        if (modified == false) {
+            return;
+        }
+
+        try {
+            Document doc = new Document(serialize());
+            XMLFileHelper.serialize_document_formatted(doc, file);
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot write index; %s",
+                file.getPath(), ex.getMessage()), ex);
+        } // try-catch
+
+        modified = false;
+    } // write()
+
+    // HELPER METHODS
+    //================
+
+    private void put(String path, Entry entry) {
+        entry.path = path;
+        entries.put(path, entry);
+        modified = true;
+    } // put()
+
+    protected Element serialize() {
+        Element rval = new Element(ELEM_INDEX);
+
+        for (Entry entry : entries.values()) {
+            Element c = new Element(ELEM_INDEX_ENTRY);
+            c.setAttribute(ATTR_ENTRY_PATH, entry.path);
+            c.setAttribute(ATTR_ENTRY_SIZE, Long.toString(entry.size));
+            c.setAttribute(ATTR_ENTRY_MTIME, Long.toString(entry.mtime));
+            c.setAttribute(ATTR_ENTRY_INODE, Long.toString(entry.inode));
+            c.setAttribute(ATTR_ENTRY_ALGO,
+                entry.digest.get_digest_algo());
+            c.setText(entry.digest.to_hexstring());
+            rval.addContent(c);
+        } // for: each entry
+
+        return rval;
+    } // serialize()
+
+    protected void deserialize(Element elem) {
+        FidaXML.expect_name(elem, ELEM_INDEX);
+
+        for (Object obj : elem.getContent()) {
+            if (FidaXML.skip(obj)) continue;
+            Element c = (Element) obj;
+            FidaXML.expect_name(c, ELEM_INDEX_ENTRY);
+
+            Entry entry = new Entry();
+            entry.path = FidaXML.get_attr(c, ATTR_ENTRY_PATH);
+            entry.size = Long.parseLong(FidaXML.get_attr(c, ATTR_ENTRY_SIZE));
+            entry.mtime = Long.parseLong(FidaXML.get_attr(c, ATTR_ENTRY_MTIME));
+            entry.inode = Long.parseLong(FidaXML.get_attr(c, ATTR_ENTRY_INODE));
+            entry.digest = new Digest();
+            entry.digest.set_hex(
+                FidaXML.get_attr(c, ATTR_ENTRY_ALGO), c.getTextTrim());
+
+            entries.put(entry.path, entry);
+        } // for: each entry
+    } // deserialize()
+
+} // class WorkingTreeIndex
@@ -16,6 +16,9 @@
 
 package xmlsnippets.fida;
 
+// core java
+import java.util.List;
+
 // jdom
 import org.jdom.Element;
 import org.jdom.Attribute;
@@ -33,6 +36,13 @@ public class XMLError {
 
     public static boolean g_quiet = false;
 
+    /**
+     * Messages of the current thread are collected here instead of
+     * being printed, if set. See {@link #begin_capture()}.
+     */
+    private static final ThreadLocal<StringBuilder> g_capture
+        = new ThreadLocal<StringBuilder>();
+
 
     // MEMBER VARIABLES
     //==================
@@ -65,8 +75,7 @@ public class XMLError {
             return;
         }
 
-        System.out.printf(format("ERROR", obj, fmt, args));
-        System.out.printf("\n");
+        emit(format("ERROR", obj, fmt, args));
     }
 
     public static void info(
@@ -78,8 +87,54 @@ public class XMLError {
             return;
         }
 
-        System.out.printf(format("INFO", obj, fmt, args));
-        System.out.printf("\n");
+        emit(format("INFO", obj, fmt, args));
+    }
+
+    /**
+     * Starts collecting the messages of the current thread instead of
+     * printing them. This allows worker threads to produce their messages
+     * in a deterministic order.
+     */
+    public static void begin_capture() {
+        g_capture.set(new StringBuilder());
+    }
+
+    /**
+     * Stops collecting the messages of the current thread.
+     *
+     * @return the messages collected since {@link #begin_capture()}
+     */
+    public static String end_capture() {
+        StringBuilder sb = g_capture.get();
+        g_capture.remove();
+        if (sb == null) {
+            return "";
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Prints messages which were captured earlier, or adds them to
+     * the messages currently being captured.
+     */
+    public static void print(String messages) {
+        StringBuilder sb = g_capture.get();
+        if (sb != null) {
+            sb.append(messages);
+        } else {
+            System.out.print(messages);
+        }
+    }
+
+    private static void emit(String msg) {
+        StringBuilder sb = g_capture.get();
+        if (sb != null) {
+            sb.append(String.format(msg));
+            sb.append("\n");
+        } else {
+            System.out.printf(msg);
+            System.out.printf("\n");
+        }
     }
 
     private static String format(
@@ -94,8 +149,14 @@ public class XMLError {
         //System.out.printf("%s:\n", filename);
 
         if (obj instanceof GraphEdge) {
-            GraphEdge edge = (GraphEdge) obj;
-            for (Attribute a : edge.manifestations) {
+            // The manifestations of the edge
+            obj = ((GraphEdge) obj).manifestations;
+        }
+
+        if (obj instanceof List) {
+            // Manifestations of an edge
+            for (Object item : (List) obj) {
+                Attribute a = (Attribute) item;
                 String filename = get_filename(a);
                 sb.append(String.format(
                     "URI:   %s\n", filename));
@@ -18,18 +18,26 @@ package xmlsnippets.fida;
 
 // java core imports
 import java.io.File;
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.io.FileInputStream;
+import java.io.IOException;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.LinkedList;
+import java.util.ArrayList;
 import java.util.Map;
 import java.util.LinkedHashMap;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.Vector;
 import java.util.Stack;
 import java.util.Set;
 import java.util.HashSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ArrayBlockingQueue;
 
 // jdom imports
 import org.jdom.Element;
@@ -43,6 +51,7 @@ import xmlsnippets.BuildInfo;
 import xmlsnippets.core.Xid;
 import xmlsnippets.core.XidString;
 import xmlsnippets.core.XidIdentification;
+import xmlsnippets.core.XidCache;
 import xmlsnippets.core.PidIdentification;
 import xmlsnippets.core.Xref;
 import xmlsnippets.core.XrefString;
@@ -54,6 +63,8 @@ import xmlsnippets.util.XPathDebugger;
 import xmlsnippets.util.Digest;
 import xmlsnippets.util.NamespacesBubbler;
 import xmlsnippets.util.FileHelper;
+import xmlsnippets.util.ElementWalker;
+import xmlsnippets.util.SubtreeTable;
 
 // fida imports
 import xmlsnippets.fida.Fida;
@@ -101,6 +112,14 @@ public class XidClient
         public boolean onscreen_flag = false;
         public boolean list_flag = false;
         public boolean autoref_flag = false;
+        public boolean stream_flag = false;
+        public int render_cache = RenderCache.DEFAULT_CAPACITY;
+        public boolean cachestats_flag = false;
+        public boolean xidcache_flag = false;
+        public int threads = Runtime.getRuntime().availableProcessors();
+        public long file_cache = 0;
+        public int batch_files = 0;
+        public int batch_nodes = 0;
         public int bubble = BUBBLE_PRUDENT;
         public boolean removeall_flag = false;
         public String repo_filename = DEFAULT_FIDA_REPOSITORY;
@@ -108,6 +127,8 @@ public class XidClient
         public String command_arg = null;
         public int migration_mode = MigrationLogic.DEFAULT_MODE;
         public boolean migration_report = false;
+        public boolean incremental_flag = false;
+        public boolean sparse_flag = false;
     } // class CmdArgs
 
     // BRIDGE TO THE BACKEND REPOSITORY DATA STRUCTURE
@@ -118,6 +139,22 @@ public class XidClient
      */
     private static Fida.Repository g_fida = null;
 
+    /**
+     * The working tree index; stat data cache of the tracked files.
+     */
+    private static WorkingTreeIndex g_index = null;
+
+    /**
+     * Cache of denormalized subtrees shared by all denormalizations
+     * during the execution; {@code null} if disabled.
+     */
+    private static RenderCache g_render_cache = null;
+
+    /**
+     * On-disk cache of rebuilt files; {@code null} if disabled.
+     */
+    private static RenderedFileCache g_file_cache = null;
+
     /**
      * The details how the interface {@code AbstractRepository}
      * maps (or identifies) into the terms of the implementation
@@ -212,8 +249,9 @@ public class XidClient
                 node.prev.add(prev);
             }
 
-            // Set payload content
-            node.payload_element = payload;
+            // Set payload content, sharing the unchanged subtrees
+            // with the earlier revisions
+            node.set_payload_element(payload, db.state.subtrees);
 
             // Record the payload xid to the node object
             node.payload_xid = payload_xid;
@@ -222,11 +260,13 @@ public class XidClient
             node.parent_commit = db.next_commit;
 
             // Add the administrative node to the nodes set of the next commit
-            g_fida.next_commit.nodes.add(node);
+            db.next_commit.nodes.add(node);
 
             // Remember to put the payload element's xid into the externals
             // hash map so that it is marked as taken and it can be resolved.
             db.state.externals.put(payload_xid, node);
+            // A previously unresolvable xref may now resolve
+            db.state.resolutions.invalidate();
 
             // Return the created administrative node
             return node;
@@ -239,7 +279,6 @@ public class XidClient
 
             // Loop through all root nodes in the current tree.
             for (Fida.File ff: db.state.tree) {
-                // TODO: Use db instead of g_fida. Replace the method call.
                 Element e = resolve_payload_xid(ff.root_xid);
 
                 rval = get_latest_leaser(e, id);
@@ -251,101 +290,124 @@ public class XidClient
             return rval;
         } // get_latest_leaser()
 
+        @Override
+        public ResolutionCache get_resolution_cache() {
+            return db.state.resolutions;
+        } // get_resolution_cache()
+
         // HELPER METHODS
         //================
 
         private Fida.Node get_latest_leaser(Element elem, String id) {
-            // Return variable
-            Fida.Node rval = null;
+            LeaserSearch visitor = new LeaserSearch(id);
+            ElementWalker.get_local().walk(elem, visitor);
+            return visitor.rval;
+        } // get_latest_leaser()
 
-            // Loop through all child elements of the current element
-            // and call this method recursively on them.
-            for (Object obj : elem.getContent()) {
-                // If not a child, skip
-                if ((obj instanceof Element) == false) {
-                    continue;
+        /**
+         * Looks for the latest leaser of a lifeline designator in
+         * a payload element and in the expansions of its inclusions.
+         * The value of each frame is the latest leaser found so far
+         * in the element's subtree.
+         */
+        private class LeaserSearch extends ElementWalker.Visitor {
+            private String id;
+            public Fida.Node rval;
+
+            public LeaserSearch(String id) {
+                this.id = id;
+                rval = null;
+            } // ctor
+
+            @Override
+            public Element enter(ElementWalker w, Element c) {
+                if (w.get_depth() == 0) {
+                    return c;
                 }
 
-                // Cast
-                Element c = (Element) obj;
-
-                // The target element into which the recursion is made
-                Element target = null;
-
                 // If the element is an inclusion-by-xid, this returns
                 // the xid reference.
                 Xid ref_xid = get_ref_xid(c);
 
                 // If the element is an inclusion-by-xid, the resolved
-                // payload XML element of the xid reference is the target
-                // of the recursion, otherwise it is the current child
-                // element itself.
+                // payload XML element of the xid reference is walked,
+                // otherwise it is the current child element itself.
                 if (ref_xid != null) {
-                    // TODO: replace this method call
-                    target = resolve_payload_xid(ref_xid);
-                } else {
-                    target = c;
+                    return resolve_payload_xid(ref_xid);
+                }
+                return c;
+            } // enter()
+
+            @Override
+            public void leave(ElementWalker w, Element c) {
+                // The leaser found from the children
+                Fida.Node found = (Fida.Node) w.get_value();
+
+                // Process the current payload XML element
+                //=========================================
+                Element elem = w.get_source();
+
+                // See if the current payload element has a matching id.
+                Xid xid = XidIdentification.get_xid(elem);
+
+                // See if the current payload XML is identified and if it is,
+                // then determine whether it uses the same lifeline designator
+                // that is being requested.
+                if ((xid != null) && xid.id.equals(id)) {
+                    // Yes, the lifeline designator matches.
+
+                    // If this instance of the data object is not the latest
+                    // instance available in its lifeline, then the presence of
+                    // this xid cannot be used to conclude whether the lifeline
+                    // designator is currently leased or not. (For instance, data
+                    // object's newer revision, which is not present in the current
+                    // tree, may use a different lifeline designator).
+
+                    // Get the administrative entry
+                    Fida.Node match = get_node(xid);
+
+                    // If the data object does NOT have successors, then this
+                    // data object may be the current leaser of the lifeline
+                    // designator.
+                    if (match.next.size() == 0) {
+                        found = newer(found, match);
+                    } // if: does not have a next.
+                } // if: the data object has the specified lifeline designator.
+
+                if (w.get_depth() == 0) {
+                    rval = found;
+                } else if (found != null) {
+                    // If a leaser of the lifeline designator was found
+                    // from the element, and it is newer than the currently
+                    // latest leaser of the parent, update the parent's.
+                    w.set_parent_value(
+                        newer((Fida.Node) w.get_parent_value(), found));
                 } // if-else
+            } // leave()
+
+            /**
+             * Returns the match, if there was no previous match or
+             * the match is newer than it. Otherwise, returns the
+             * previous match.
+             */
+            private Fida.Node newer(Fida.Node prev, Fida.Node match) {
+                if ((prev == null)
+                    || (prev.payload_xid.rev < match.payload_xid.rev))
+                {
+                    return match;
+                }
+                return prev;
+            } // newer()
+        } // class LeaserSearch
 
-                // Recurse
-                Fida.Node match = null;
-                match = get_latest_leaser(target, id);
-
-                // If a leaser of the lifeline designator was found
-                // from the recursion target, and it is newer than
-                // the currently latest leaser, update the return value.
-                if (match != null) {
-                    if (rval == null) {
-                        rval = match;
-                    } else if (rval.payload_xid.rev < match.payload_xid.rev) {
-                        // Update
-                        rval = match;
-                    } // if
-                } // if: recursion target had a leaser
-            } // for: each child element
-
-            // Process the current XML element
-            //=================================
-
-            // See if the current payload element has a matching id.
-            Xid xid = XidIdentification.get_xid(elem);
-
-            // See if the current payload XML is identified and if it is,
-            // then determine whether it uses the same lifeline designator
-            // that is being requested.
-            if ((xid != null) && xid.id.equals(id)) {
-                // Yes, the lifeline designator matches.
-
-                // If this instance of the data object is not the latest
-                // instance available in its lifeline, then the presence of
-                // this xid cannot be used to conclude whether the lifeline
-                // designator is currently leased or not. (For instance, data
-                // object's newer revision, which is not present in the current
-                // tree, may use a different lifeline designator).
-
-                // Get the administrative entry
-                Fida.Node match = get_node(xid);
-
-                // If the data object does NOT have successors, then this
-                // data object may be the current leaser of the lifeline
-                // designator.
-                if (match.next.size() == 0) {
-                    // The object does not have any successors.
-                    // This was the leaser of the lifeline designator
-                    // at that time. If that time was a newer point in time
-                    // than the previous match, then the return value is
-                    // updated. Also, if there was no previous match,
-                    // this forms the base line.
-                    if ((rval == null)
-                        || (rval.payload_xid.rev < match.payload_xid.rev))
-                    {
-                        rval = match;
-                    } // if update
-                } // if: does not have a next.
-            } // if: the data object has the specified lifeline designator.
-
-            return rval;
-        } // get_latest_leaser()
+        private Element resolve_payload_xid(Xid xid) {
+            Fida.Node node = get_node(xid);
+            if (node == null) {
+                throw new RuntimeException(String.format(
+                    "Cannot resolve payload xid=%s", XidString.serialize(xid)));
+            }
+            return node.get_payload_element();
+        } // resolve_payload_xid()
     } // class FidaRepository
 
     //========================================================================
@@ -382,6 +444,7 @@ public class XidClient
         } // if
 
         g_fida = FidaXML.deserialize(file);
+        g_index = WorkingTreeIndex.read(file);
     } // read_fida_repository()
 
     /**
@@ -463,12 +526,19 @@ public class XidClient
      *
      */
     public static Fida.Commit allocate_commit() {
+        return allocate_commit(g_fida);
+    } // allocate_commit()
+
+    /**
+     * Same as above, but for the given repository.
+     */
+    public static Fida.Commit allocate_commit(Fida.Repository fida) {
 
         // Create a new commit object.
         Fida.Commit next_commit = new Fida.Commit();
 
         // Assign a proper xid and uid to it.
-        next_commit.item_xid = generate_xid("commit");
+        next_commit.item_xid = new FidaRepository(fida).generate_xid("commit");
 
         // Set the user name. TODO: Something more sensible
         // could certainly be used here.
@@ -478,7 +548,7 @@ public class XidClient
         // next_commit.date = new Date()
 
         // Make the repository conscious about the next commit
-        g_fida.next_commit = next_commit;
+        fida.next_commit = next_commit;
 
         return next_commit;
     } // allocate_commit()
@@ -493,8 +563,15 @@ public class XidClient
      * @param rev Revision number which must be guaranteed to be past number.
      */
     public static void update_repository_revision(Xid xid) {
-        if (g_fida.item_xid.rev < xid.rev) {
-            g_fida.item_xid.rev = xid.rev;
+        update_repository_revision(g_fida, xid);
+    } // update_repository_revision()
+
+    public static void update_repository_revision(
+        Fida.Repository fida,
+        Xid xid
+    ) {
+        if (fida.item_xid.rev < xid.rev) {
+            fida.item_xid.rev = xid.rev;
         }
     } // update_repository_revision()
 
@@ -565,9 +642,50 @@ public class XidClient
                 else if (option.equals("list")) {
                     rval.list_flag = true;
                 }
+                else if (option.equals("incremental")) {
+                    rval.incremental_flag = true;
+                }
+                else if (option.equals("sparse")) {
+                    rval.sparse_flag = true;
+                }
                 else if (option.equals("autoref")) {
                     rval.autoref_flag = true;
                 }
+                else if (option.equals("stream")) {
+                    rval.stream_flag = true;
+                }
+                else if (option.equals("batch")) {
+                    i++;
+                    expect_arg(args, i);
+                    rval.batch_files = Integer.parseInt(args[i]);
+                }
+                else if (option.equals("batchnodes")) {
+                    i++;
+                    expect_arg(args, i);
+                    rval.batch_nodes = Integer.parseInt(args[i]);
+                }
+                else if (option.equals("cache")) {
+                    i++;
+                    expect_arg(args, i);
+                    rval.render_cache = Integer.parseInt(args[i]);
+                }
+                else if (option.equals("cachestats")) {
+                    rval.cachestats_flag = true;
+                }
+                else if (option.equals("xidcache")) {
+                    rval.xidcache_flag = true;
+                }
+                else if (option.equals("threads")) {
+                    i++;
+                    expect_arg(args, i);
+                    rval.threads = Integer.parseInt(args[i]);
+                }
+                else if (option.equals("filecache")) {
+                    i++;
+                    expect_arg(args, i);
+                    // In megabytes
+                    rval.file_cache = Long.parseLong(args[i]) * 1024 * 1024;
+                }
                 else if (option.equals("cautious")) {
                     rval.migration_mode = MigrationLogic.MODE_CAUTIOUS;
                 }
@@ -690,6 +808,22 @@ public class XidClient
                 System.out.printf("Warning: autoref=true.\n");
                 g_fida.state.autoref = true;
             }
+            if (cmd_args.stream_flag == true) {
+                g_fida.state.streaming = true;
+            }
+            if (cmd_args.render_cache > 0) {
+                g_render_cache = new RenderCache(cmd_args.render_cache);
+            }
+            MigrationLogic.g_threads = cmd_args.threads;
+            XidCache xid_cache = null;
+            if (cmd_args.xidcache_flag == true) {
+                // The whole command is a single pass
+                xid_cache = XidCache.begin();
+            }
+            if (cmd_args.file_cache > 0) {
+                g_file_cache = RenderedFileCache.open(
+                    g_fida.file, cmd_args.file_cache);
+            }
 
             if (command.equals("add")) {
                 if (cmd_args.rest_args.size() == 0) {
@@ -700,15 +834,26 @@ public class XidClient
             else if (command.equals("remove")) {
                 remove_files(cmd_args.rest_args);
             }
+            else if (command.equals("import")) {
+                import_files(cmd_args.rest_args,
+                    cmd_args.batch_files, cmd_args.batch_nodes);
+            }
             else if (command.equals("update")) {
                 update_files();
             }
             else if (command.equals("status")) {
                 display_status();
             }
+            else if (command.equals("refresh")) {
+                refresh_index();
+            }
             else if (command.equals("rebuild")) {
                 rebuild_file(cmd_args.rest_args, cmd_args.bubble);
             }
+            else if (command.equals("checkout")) {
+                checkout_files(cmd_args.rest_args, cmd_args.bubble,
+                    cmd_args.threads, cmd_args.render_cache);
+            }
             else if (command.equals("output")) {
                 output_xid(cmd_args.rest_args, cmd_args.bubble);
             }
@@ -721,6 +866,14 @@ public class XidClient
             else if (command.equals("resolve2")) {
                 resolve_xref(cmd_args.rest_args, cmd_args.bubble, false);
             }
+            else if (command.equals("batchresolve")) {
+                batch_resolve(cmd_args.rest_args, BatchResolver.MODE_RESOLVE,
+                    cmd_args.bubble, cmd_args.threads, cmd_args.render_cache);
+            }
+            else if (command.equals("batchoutput")) {
+                batch_resolve(cmd_args.rest_args, BatchResolver.MODE_OUTPUT,
+                    cmd_args.bubble, cmd_args.threads, cmd_args.render_cache);
+            }
             else if (command.equals("fileinfo")) {
                 get_file_info(cmd_args.rest_args);
             }
@@ -743,6 +896,15 @@ public class XidClient
             else if (command.equals("lifelines")) {
                 display_lifelines();
             }
+            else if (command.equals("stats")) {
+                display_stats();
+            }
+            else if (command.equals("selftest")) {
+                self_test(cmd_args.threads);
+            }
+            else if (command.equals("setstorage")) {
+                set_repository_storage(cmd_args.rest_args);
+            }
             else if (command.equals("setversion")) {
                 set_repository_version(cmd_args.rest_args);
             }
@@ -759,6 +921,8 @@ public class XidClient
                     cmd_args.list_flag,
                     cmd_args.migration_mode,
                     cmd_args.migration_report,
+                    cmd_args.incremental_flag,
+                    cmd_args.sparse_flag,
                     true
                 );
             }
@@ -769,17 +933,38 @@ public class XidClient
                     cmd_args.list_flag,
                     cmd_args.migration_mode,
                     cmd_args.migration_report,
+                    cmd_args.incremental_flag,
+                    cmd_args.sparse_flag,
                     false
                 );
             }
             else if (command.equals("listrefs")) {
-                list_refs(cmd_args.rest_args, cmd_args.migration_mode);
+                list_refs(cmd_args.rest_args, cmd_args.migration_mode,
+                    cmd_args.sparse_flag);
             }
             else {
                 throw new RuntimeException(String.format(
                     "Error: unknown command \"%s\"", command));
             } // if-else known command?
 
+            if ((cmd_args.cachestats_flag == true)
+                && (g_render_cache != null))
+            {
+                g_render_cache.report();
+            }
+            if (g_file_cache != null) {
+                if (cmd_args.cachestats_flag == true) {
+                    g_file_cache.report();
+                }
+                g_file_cache.write();
+            }
+            if (xid_cache != null) {
+                if (cmd_args.cachestats_flag == true) {
+                    xid_cache.report();
+                }
+                XidCache.end();
+            }
+
             // Re-serialize the ingested files and the repository
             //====================================================
 
@@ -792,6 +977,7 @@ public class XidClient
                 for (Fida.File rewriteff : g_fida.next_commit.layout) {
                     if (rewriteff.action == Fida.ACTION_FILE_REMOVED) {
                         // Delete the file?
+                        g_index.remove(rewriteff.path);
                         continue;
                     } // if
 
@@ -799,20 +985,25 @@ public class XidClient
                     //File f = new File(rewriteff.path);
                     Document doc = rewriteff.doc;
                     try {
-                        XMLFileHelper.serialize_document_verbatim(doc, f);
+                        // The digest for the updated file is calculated
+                        // from the bytes while they are being written.
+                        if (rewriteff.stream != null) {
+                            // Ingested in streaming mode; no doc.
+                            rewriteff.digest = rewriteff.stream.rewrite(
+                                WorkingTreeIndex.DIGEST_ALGO);
+                        } else {
+                            rewriteff.digest = XMLFileHelper.serialize_document_verbatim(
+                                doc, f, WorkingTreeIndex.DIGEST_ALGO);
+                        } // if-else
+                    } catch(RuntimeException ex) {
+                        throw ex;
                     } catch(Exception ex) {
                         throw new RuntimeException(ex);
                     } // try-catch
 
-                    // Calculate the digest for the updated file
-
-                    try {
-                        rewriteff.digest = Digest.create("md5", f);
-                    } catch(Exception ex) {
-                        throw new RuntimeException(String.format(
-                            "%s: cannot calculate digest; %s\n",
-                            f.getPath(), ex.getMessage()), ex);
-                    } // try-catch
+                    // Remember the stat data of the rewritten file
+                    g_index.record(g_fida.file.getParentFile(),
+                        rewriteff.path, rewriteff.digest);
                 } // for: each file the commit set
             }
             // This is separate from the above for the reason that
@@ -832,6 +1023,10 @@ public class XidClient
                     g_fida.item_xid.rev);
             } // if
 
+            // The index is written last, so that the files rewritten
+            // above have older timestamps than the index itself.
+            g_index.write();
+
         } catch(Exception ex) {
             String msg = ex.getMessage();
             if ((msg == null) || (cmd_args.debug_flag == true)) {
@@ -868,10 +1063,20 @@ public class XidClient
         System.out.printf("    -onscreen                      write to screen, not to disk\n");
         System.out.printf("    -list                          list ref attr details during migrate2\n");
         System.out.printf("    -autoref                       populate refs with no revs\n");
+        System.out.printf("    -stream                        ingest and rebuild without loading files\n");
+        System.out.printf("    -batch <n>                     import commits every n files\n");
+        System.out.printf("    -batchnodes <m>                import commits every m nodes\n");
+        System.out.printf("    -cache <n>                     render cache size in elements, 0 disables\n");
+        System.out.printf("    -cachestats                    display cache statistics\n");
+        System.out.printf("    -xidcache                      compute the xid of an element once per command\n");
+        System.out.printf("    -threads <n>                   number of worker threads\n");
+        System.out.printf("    -filecache <mb>                cache rebuilt files on disk, up to mb\n");
         System.out.printf("    -cautious                      cautious ref migration\n");
         System.out.printf("    -smart                         smart ref migration\n");
         System.out.printf("    -rash                          rash ref migration\n");
         System.out.printf("    -report                        report ref migration decisions\n");
+        System.out.printf("    -incremental                   migrate2 reads only the files it needs\n");
+        System.out.printf("    -sparse                        migrate2/listrefs read only dependent files\n");
         System.out.printf("\n");
         System.out.printf("Commands:\n");
         System.out.printf("\n");
@@ -879,6 +1084,7 @@ public class XidClient
         System.out.printf("    init                           creates a new repository\n");
         System.out.printf("    add <file1> [file2] ...        start tracking files\n");
         System.out.printf("    remove <file1> [file2] ...     drop files from tracking\n");
+        System.out.printf("    import [dir]                   start tracking all xml files in dir\n");
         System.out.printf("    update <file1> [file2] ...     update repository\n");
         System.out.printf("    migrate                        migrate inclusions in tracked files\n");
         System.out.printf("    migrate2 [file1] ...           migrate references in tracked files\n");
@@ -890,19 +1096,26 @@ public class XidClient
         System.out.printf("\n");
         System.out.printf("  Miscellaneous:\n");
         System.out.printf("    status                         display status of tracked files\n");
+        System.out.printf("    refresh                        re-read all tracked files into the index\n");
         System.out.printf("    fileinfo <rev> <path>          display file record details\n");
         System.out.printf("    commitinfo <rev>               display commit details\n");
         System.out.printf("    nodeinfo <xid>                 display node details\n");
         System.out.printf("    tree                           display currently tracked files\n");
         System.out.printf("    lifelines                      display lifelines of the XML elements\n");
+        System.out.printf("    stats                          display payload sharing statistics\n");
+        System.out.printf("    selftest                       compare optimized paths to references\n");
+        System.out.printf("    setstorage full | delta [n]    store payloads in full or as deltas\n");
         System.out.printf("    listrefs [to_xid] ...          display reference attribute details\n");
         System.out.printf("    version                        display version details\n");
         System.out.printf("\n");
         System.out.printf("    rebuild <rev> <path> <file>    rebuilds archived file record to a file\n");
+        System.out.printf("    checkout <rev> <dir> [path]... rebuilds all files of a revision into dir\n");
         System.out.printf("    output <xid>                   rebuilds the given xid on screen\n");
         System.out.printf("    output2 <xid>                  displays the given xid on screen\n");
         System.out.printf("    resolve <xref>                 rebuilds the resolved xref on screen\n");
         System.out.printf("    resolve2 <xref>                displays the resolved xref on screen\n");
+        System.out.printf("    batchresolve [file]            rebuilds xrefs read from file or stdin\n");
+        System.out.printf("    batchoutput [file]             displays xids read from file or stdin\n");
     } // display_help()
 
     public static void display_version(List<String> args) {
@@ -929,6 +1142,73 @@ public class XidClient
 
     }
 
+    //=========================================================================
+    // Reading working files
+    //=========================================================================
+
+    /**
+     * Reads a tracked working file into memory, calculates the digest
+     * of the contents and records it to the index.
+     *
+     * @param entry the stat data returned by the index
+     * @return the contents of the file
+     */
+    protected static byte[] read_working_file(WorkingTreeIndex.Entry entry) {
+        File file = new File(g_fida.file.getParentFile(), entry.path);
+        byte[] data = null;
+        try {
+            data = XMLFileHelper.read_file(file);
+            g_index.update(entry, Digest.create(
+                WorkingTreeIndex.DIGEST_ALGO, data));
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot calculate digest; %s\n",
+                entry.path, ex.getMessage()), ex);
+        } // try-catch
+        return data;
+    } // read_working_file()
+
+    /**
+     * Calculates the digest of a tracked working file without loading
+     * it into memory, and records it to the index.
+     *
+     * @param entry the stat data returned by the index
+     */
+    protected static void digest_working_file(WorkingTreeIndex.Entry entry) {
+        File file = new File(g_fida.file.getParentFile(), entry.path);
+        try {
+            g_index.update(entry, Digest.create(
+                WorkingTreeIndex.DIGEST_ALGO, file));
+        } catch(Exception ex) {
+            throw new RuntimeException(String.format(
+                "%s: cannot calculate digest; %s\n",
+                entry.path, ex.getMessage()), ex);
+        } // try-catch
+    } // digest_working_file()
+
+    /**
+     * Parses a working file. If the contents have already been read,
+     * they are parsed from memory; otherwise the file is read.
+     *
+     * @param path the path relative to the repository base directory
+     * @param data the contents of the file, or {@code null}
+     * @return the parsed document
+     */
+    protected static Document parse_working_file(String path, byte[] data) {
+        // The String path is a relative path to the repo basedir
+        File source = new File(g_fida.file.getParentFile(), path);
+        try {
+            if (data == null) {
+                data = XMLFileHelper.read_file(source);
+            }
+            // Attempt parsing the XML document. This may throw.
+            return XMLFileHelper.deserialize_document(data, source);
+        } catch(Exception ex) {
+            // Bubble up the message
+            throw new RuntimeException(ex.getMessage(), ex);
+        } // try-catch
+    } // parse_working_file()
+
     //=========================================================================
     // Remove files
     //=========================================================================
@@ -991,15 +1271,21 @@ public class XidClient
                     "%s: File disappeared", file.getPath()));
             } // if
 
-            // Calculate the digest
-            Digest curdigest = null;
-            try {
-                curdigest = Digest.create("md5", file);
-            } catch(Exception ex) {
-                throw new RuntimeException(String.format(
-                    "%s: cannot calculate digest; %s\n",
-                    ff.path, ex.getMessage()), ex);
-            } // try-catch
+            // Get the digest; uses the index when the file is unmodified.
+            // Otherwise the file is read once, and the very same bytes
+            // are both digested and parsed.
+            WorkingTreeIndex.Entry entry = g_index.probe(
+                g_fida.file.getParentFile(), ff.path);
+            byte[] data = null;
+            if (entry.digest == null) {
+                if (g_fida.state.streaming) {
+                    // Streaming mode never loads whole files
+                    digest_working_file(entry);
+                } else {
+                    data = read_working_file(entry);
+                }
+            }
+            Digest curdigest = entry.digest;
 
             if (curdigest.equals(ff.digest)) {
                 System.out.printf("Unmodified %s\n", ff.path);
@@ -1022,8 +1308,15 @@ public class XidClient
 
             // Re-calcualte the digest AFTER the file has been modified!!
             newff.digest = null;
+
+            // Parse the contents already read; commit_files() uses this
+            if (g_fida.state.streaming == false) {
+                newff.doc = parse_working_file(ff.path, data);
+            }
         } // for: each file
 
+        display_index_counters();
+
         // COMMIT FILES
         //==============
 
@@ -1101,6 +1394,196 @@ public class XidClient
         // Rewrite the updated files
     } // add_files()
 
+    //=========================================================================
+    // Bulk import
+    //=========================================================================
+
+    /**
+     * Starts tracking all XML files under a directory. The files are
+     * parsed by a separate thread and ingested one at a time, so that
+     * only a bounded number of documents is in memory at once. The import
+     * is split into commits of the given number of files or nodes;
+     * zero means no limit. An interrupted import can be restarted;
+     * the files already committed are tracked and will be skipped.
+     */
+    public static void import_files(
+        List<String> args,
+        int batch_files,
+        int batch_nodes
+    ) {
+        if (g_fida.state.streaming) {
+            throw new RuntimeException(
+                "Error: import cannot be combined with -stream");
+        }
+
+        File basedir = g_fida.file.getParentFile();
+        File journal = BulkImport.get_journal_file(g_fida.file);
+
+        // Complete or discard a batch left by an interrupted import.
+        // The revision number was already increased after reading.
+        List<String> recovered = BulkImport.recover(
+            basedir, journal, g_fida.item_xid.rev-1);
+        if (recovered != null) {
+            for (String path : recovered) {
+                // Force recalculation; the files were just replaced
+                g_index.remove(path);
+            }
+        } // if
+
+        // The files already tracked are skipped, and so are the repository
+        // and the cache of rebuilt files.
+        Set<String> exclude = new HashSet<String>();
+        exclude.add(g_fida.file.getName());
+        exclude.add(RenderedFileCache.get_cache_dir(g_fida.file).getName());
+        for (Fida.File ff : g_fida.state.tree) {
+            exclude.add(ff.path);
+        }
+
+        File dir = (args.size() > 0) ? new File(args.get(0)) : basedir;
+        List<String> paths = BulkImport.walk(basedir, dir, exclude);
+        System.out.printf("Importing %d files\n", paths.size());
+        if (paths.size() == 0) {
+            return;
+        }
+
+        // The highest revision must be known before any ingestion
+        if (g_fida.state.allow_unknowns) {
+            for (String path : paths) {
+                StreamingIngest.prescan(new File(basedir, path));
+            }
+        } // if
+
+        // Set update options
+        UpdateLogic.g_opt_unrev_unknowns = g_fida.state.unrev_unknowns;
+        UpdateLogic.g_opt_ingest_unknowns = g_fida.state.allow_unknowns;
+
+        BlockingQueue<BulkImport.Parsed> queue
+            = new ArrayBlockingQueue<BulkImport.Parsed>(
+                BulkImport.DEFAULT_QUEUE_SIZE);
+        BulkImport.Parser parser = new BulkImport.Parser(
+            basedir, paths, queue);
+        BulkImport.Meter meter = new BulkImport.Meter();
+
+        FidaRepository db = new FidaRepository(g_fida);
+        Fida.Commit next_commit = null;
+
+        parser.start();
+        try {
+            while (true) {
+                // Blocks until the parser has the next one ready
+                BulkImport.Parsed item = queue.take();
+                if (item.end) {
+                    break;
+                }
+                if (item.error != null) {
+                    throw new RuntimeException(String.format(
+                        "%s: %s", item.path, item.error.getMessage()),
+                        item.error);
+                } // if: parse failed
+
+                if (next_commit == null) {
+                    next_commit = allocate_commit();
+                }
+
+                Fida.File ff = new Fida.File();
+                ff.item_xid = generate_xid("file");
+                ff.path = item.path;
+                ff.action = Fida.ACTION_FILE_ADDED;
+                ff.doc = item.doc;
+                next_commit.layout.add(ff);
+                ff.parent_commit = next_commit;
+
+                int nodes_before = next_commit.nodes.size();
+                preprocess(ff.doc.getRootElement(), db);
+                ingest_file(db, ff);
+                meter.tick(1, next_commit.nodes.size() - nodes_before);
+
+                if (((batch_files > 0)
+                    && (next_commit.layout.size() >= batch_files))
+                    || ((batch_nodes > 0)
+                    && (next_commit.nodes.size() >= batch_nodes)))
+                {
+                    commit_batch(next_commit);
+                    next_commit = null;
+                } // if: batch full
+            } // while
+
+            if (next_commit != null) {
+                commit_batch(next_commit);
+            }
+        } catch(InterruptedException ex) {
+            throw new RuntimeException("Import interrupted", ex);
+        } finally {
+            // Release the parser if it is blocked on a full queue
+            parser.interrupt();
+        } // try-catch-finally
+
+        meter.report("Imported");
+    } // import_files()
+
+    /**
+     * Commits a batch of imported files. The rewritten files are first
+     * written to temporary files and recorded to the import journal.
+     * Once the repository is written, the temporary files replace
+     * the originals and the journal is removed.
+     */
+    protected static void commit_batch(Fida.Commit next_commit) {
+        close_commit(next_commit);
+        if (g_fida.state.modified == false) {
+            g_fida.next_commit = null;
+            return;
+        }
+
+        File basedir = g_fida.file.getParentFile();
+        List<String> paths = new LinkedList<String>();
+
+        for (Fida.File ff : next_commit.layout) {
+            File tmp = BulkImport.get_temp_file(new File(basedir, ff.path));
+            try {
+                ff.digest = XMLFileHelper.serialize_document_verbatim(
+                    ff.doc, FileHelper.newSyncedOutputStream(tmp),
+                    WorkingTreeIndex.DIGEST_ALGO);
+            } catch(Exception ex) {
+                throw new RuntimeException(String.format(
+                    "%s: cannot write; %s", tmp.getPath(), ex.getMessage()),
+                    ex);
+            } // try-catch
+            paths.add(ff.path);
+        } // for: each file in the batch
+
+        File journal = BulkImport.get_journal_file(g_fida.file);
+        BulkImport.write_journal(journal, g_fida.item_xid.rev, paths);
+
+        // This is the commit point of the batch
+        write_fida_repository();
+
+        for (Fida.File ff : next_commit.layout) {
+            File file = new File(basedir, ff.path);
+            try {
+                FileHelper.replaceFile(BulkImport.get_temp_file(file), file);
+            } catch(Exception ex) {
+                throw new RuntimeException(String.format(
+                    "%s: cannot replace; %s", file.getPath(), ex.getMessage()),
+                    ex);
+            } // try-catch
+            g_index.record(basedir, ff.path, ff.digest);
+
+            // The document is not needed anymore
+            ff.doc = null;
+            g_fida.state.tree.add(ff);
+        } // for: each file in the batch
+
+        g_index.write();
+        journal.delete();
+
+        g_fida.state.modified = false;
+        g_fida.next_commit = null;
+        System.out.printf("Committed revision %d\n", g_fida.item_xid.rev);
+
+        // The next batch gets the next revision
+        g_fida.item_xid.rev++;
+    } // commit_batch()
+
     //=========================================================================
     // commit_files() - this is used by "add", "update" and "remove"
     //=========================================================================
@@ -1131,22 +1614,25 @@ public class XidClient
 
             System.out.printf("Processing file %s\n", ff.path);
 
-            // Attempt to read the XML document
-            Document doc = null;
-            try {
-                // TODO:
-                // Read file's XML encoding directive
-                // and put into into Fida.File object.
-
-                // The String ff.path is a relative path to the repo basedir
-                File source = new File(g_fida.file.getParentFile(), ff.path);
-                // Attempt reading the XML document. This may throw.
-                doc = XMLFileHelper.deserialize_document(source);
+            if (g_fida.state.streaming) {
+                // The file is preprocessed while it is ingested.
+                // However, the highest revision must be known beforehand.
+                if (g_fida.state.allow_unknowns) {
+                    StreamingIngest.prescan(
+                        new File(g_fida.file.getParentFile(), ff.path));
+                }
+                continue;
+            } // if: streaming
 
-            } catch(Exception ex) {
-                // Bubble up the message
-                throw new RuntimeException(ex.getMessage(), ex);
-            } // try-catch
+            // Attempt to read the XML document, unless the caller
+            // has already parsed it while calculating the digest.
+            // TODO:
+            // Read file's XML encoding directive
+            // and put into into Fida.File object.
+            Document doc = ff.doc;
+            if (doc == null) {
+                doc = parse_working_file(ff.path, null);
+            }
 
             // If this point is reached, the file is a well-formed XML doc.
             // We might as well record it already to the Fida.File object.
@@ -1183,48 +1669,91 @@ public class XidClient
                 continue;
             } // if: file removed
 
-            // Pick the parsed file to a local variable for convenience,
-            // and also pick the root element to a local var for convenience.
-            Document doc = ff.doc;
-            Element root = doc.getRootElement();
+            ingest_file(db, ff);
+        } // for: each ff
 
-            // Data structure for the manifestation details
-            Map<Element, List<Stack<Xid>>> manifestations_map
-                = new LinkedHashMap<Element, List<Stack<Xid>>>();
+        close_commit(next_commit);
+    } // process_commit_files()
 
-            // Process the XML document; this method call will do the horse
-            // work for revision control
-            UpdateLogic.ingest(db, root, manifestations_map, null);
+    /**
+     * Ingests a single preprocessed file into the next commit.
+     * Sets the file's root xid and manifestation.
+     */
+    protected static void ingest_file(
+        FidaRepository db,
+        Fida.File ff
+    ) {
+        if (g_fida.state.streaming) {
+            // Parse and ingest one element at a time
+            ff.stream = new StreamingIngest(db,
+                new File(g_fida.file.getParentFile(), ff.path));
+            ff.stream.ingest();
 
-            // Get the root xid. An XML document root MUST have a xid,
-            // or otherwise it is an error. The xid must be discovered
-            // AFTER the population() call, because it may change
-            // the xid's revision (or even name)
-            ff.root_xid = XidIdentification.get_xid(root);
+            ff.root_xid = ff.stream.root_xid;
             if (ff.root_xid == null) {
                 throw new RuntimeException(String.format(
                     "%s: the root element must have a xid!", ff.path));
             } // if: no root xid
+            ff.manifestation = ManifestationTrie.intern(
+                ManifestationTrie.build(ff.stream.manifestation));
+            return;
+        } // if: streaming
+
+        // Pick the parsed file to a local variable for convenience,
+        // and also pick the root element to a local var for convenience.
+        Document doc = ff.doc;
+        Element root = doc.getRootElement();
+
+        // Data structure for the manifestation details
+        Map<Element, List<Stack<Xid>>> manifestations_map
+            = new LinkedHashMap<Element, List<Stack<Xid>>>();
+
+        // Process the XML document; this method call will do the horse
+        // work for revision control
+        UpdateLogic.ingest(db, root, manifestations_map, null);
+
+        // Get the root xid. An XML document root MUST have a xid,
+        // or otherwise it is an error. The xid must be discovered
+        // AFTER the population() call, because it may change
+        // the xid's revision (or even name)
+        ff.root_xid = XidIdentification.get_xid(root);
+        if (ff.root_xid == null) {
+            throw new RuntimeException(String.format(
+                "%s: the root element must have a xid!", ff.path));
+        } // if: no root xid
 
-            // If the file has specific manifestation details, record them
-            // to the Fida.File object. If there is none map.get() returns
-            // null, and consequently ff.manifestation is set to null too.
-            ff.manifestation = manifestations_map.get(null);
-
-            // Remove the following comment to see how the file looks
-            // after the population procedure. The xid revs should have
-            // been filled with proper values.
-            //XPathDebugger.debug(doc);
-        } // for: each ff
-
+        // If the file has specific manifestation details, record them
+        // to the Fida.File object. If there is none map.get() returns
+        // null, and consequently ff.manifestation is set to null too.
+        ff.manifestation = ManifestationTrie.intern(
+            ManifestationTrie.build(manifestations_map.get(null)));
 
+        // Remove the following comment to see how the file looks
+        // after the population procedure. The xid revs should have
+        // been filled with proper values.
+        //XPathDebugger.debug(doc);
+    } // ingest_file()
 
+    /**
+     * Validates the references of the next commit, and if it contains
+     * anything, adds it to the repository.
+     */
+    protected static void close_commit(Fida.Commit next_commit) {
+        close_commit(g_fida, next_commit);
+    } // close_commit()
 
+    /**
+     * Same as above, but for the given repository.
+     */
+    public static void close_commit(
+        Fida.Repository fida,
+        Fida.Commit next_commit
+    ) {
         // Check all ref_xid values and make sure that their targets exists.
         //====================================================================
         // All possible ids should be known by now, so unknown targets
         // are not allowed anymore.
-        validate_ref_xids(next_commit);
+        validate_ref_xids(fida, next_commit);
 
 
 
@@ -1242,14 +1771,12 @@ public class XidClient
 
         // The commit set is proper. It can be added to the repository
         // for serialization
-        g_fida.commits.add(next_commit);
+        fida.commits.add(next_commit);
         // Make the newest commit the head commit
-        g_fida.state.head = next_commit;
+        fida.state.head = next_commit;
         // Mark the repository modified
-        g_fida.state.modified = true;
-
-
-    } // process_commit_files()
+        fida.state.modified = true;
+    } // close_commit()
 
     //=========================================================================
     // Preprocess element recursively
@@ -1263,6 +1790,17 @@ public class XidClient
         Element elem,
         AbstractRepository db
     ) {
+        preprocess(elem, db, g_fida);
+    } // preprocess()
+
+    /**
+     * Same as above, but the options are taken from the given repository.
+     */
+    public static void preprocess(
+        Element elem,
+        AbstractRepository db,
+        Fida.Repository fida
+    ) {
 
         // Depth-first recursion
         for (Object obj : elem.getContent()) {
@@ -1271,9 +1809,32 @@ public class XidClient
             } // if: not Element
 
             Element child = (Element) obj;
-            preprocess(child, db);
+            preprocess(child, db, fida);
         } // for
 
+        preprocess_element(elem, db, fida);
+    } // preprocess()
+
+    /**
+     * Preprocesses a single element; the children are not visited.
+     * This is used directly by the streaming ingest, which sees
+     * the elements bottom-up one at a time.
+     */
+    public static void preprocess_element(
+        Element elem,
+        AbstractRepository db
+    ) {
+        preprocess_element(elem, db, g_fida);
+    } // preprocess_element()
+
+    /**
+     * Same as above, but the options are taken from the given repository.
+     */
+    public static void preprocess_element(
+        Element elem,
+        AbstractRepository db,
+        Fida.Repository fida
+    ) {
 
         // 0. preprocess the ref attributes
         for (Object obj : elem.getAttributes()) {
@@ -1299,7 +1860,7 @@ public class XidClient
             }
             else if (base.rev == Xid.REV_MISSING) {
                 // Ignore silently unless "-autoref" has been enabled
-                if (g_fida.state.autoref == true) {
+                if (fida.state.autoref == true) {
                     Fida.Node latest = db.get_latest_leaser(base.id);
                     if (latest != null) {
                         // Replace the base xid
@@ -1360,12 +1921,12 @@ public class XidClient
         // BEFORE repository/tracked files are updated. Otherwise the
         // new xid's could possible receive inconsistent revision numbers.
         // way to ingest unknown revisions!
-        if (g_fida.state.allow_unknowns) {
-            update_repository_revision(xid);
+        if (fida.state.allow_unknowns) {
+            update_repository_revision(fida, xid);
             // Scan for the highest revspec?
             //update_repository_revspec(xid);
         } // if
-    } // preprocess()
+    } // preprocess_element()
 
     //=========================================================================
     // Display tree
@@ -1382,6 +1943,93 @@ public class XidClient
             tree.size(), g_fida.item_xid.rev-1);
     } // display_tree()
 
+    //=========================================================================
+    // Display payload sharing statistics
+    //=========================================================================
+
+    /**
+     * Compares the optimized code paths with their references on the
+     * files of the current tree; see {@link SelfTest}.
+     */
+    public static void self_test(int threads) {
+        Fida.Commit next_commit = read_tree(g_fida, null);
+        FidaRepository db = new FidaRepository(g_fida);
+        SelfTest test = new SelfTest(db, next_commit, threads);
+        if (test.run() == false) {
+            throw new RuntimeException(String.format(
+                "Self-test failed: %d of %d checks differ",
+                test.failures, test.checks));
+        }
+    } // self_test()
+
+    public static void display_stats() {
+        SubtreeTable table = g_fida.state.subtrees;
+        long occurrences = table.get_occurrences();
+        int distinct = table.size();
+        long unshared = table.get_unshared_size();
+        long shared = table.get_shared_size();
+
+        System.out.printf("Payloads:          %d\n", table.get_payloads());
+        System.out.printf("Subtrees:          %d, of which %d distinct\n",
+            occurrences, distinct);
+        System.out.printf("Sharing ratio:     %.2f\n",
+            distinct > 0 ? (double) occurrences / distinct : 1.0);
+        System.out.printf("Payload heap:      %d bytes unshared, %d bytes shared\n",
+            unshared, shared);
+        System.out.printf("Heap saved:        %d bytes (%.1f%%)\n",
+            unshared - shared,
+            unshared > 0 ? 100.0 * (unshared - shared) / unshared : 0.0);
+    } // display_stats()
+
+    //=========================================================================
+    // Set how the payloads are stored in the repository file
+    //=========================================================================
+
+    public static void set_repository_storage(List<String> args) {
+        if (args.size() == 0) {
+            int interval = g_fida.state.keyframe_interval;
+            if (interval > 0) {
+                System.out.printf("Repository storage: delta, keyframe every %d revisions\n",
+                    interval);
+            } else {
+                System.out.printf("Repository storage: full\n");
+            }
+            return;
+        }
+
+        String mode = args.get(0);
+        int interval;
+        if (mode.equals("full")) {
+            interval = 0;
+        }
+        else if (mode.equals("delta")) {
+            interval = DeltaStorage.DEFAULT_INTERVAL;
+            if (args.size() > 1) {
+                try {
+                    interval = Integer.parseInt(args.get(1));
+                } catch(Exception ex) {
+                    throw new RuntimeException(String.format(
+                        "Unable to convert into an integer: %s", args.get(1)));
+                } // try-catch
+                if (interval < 1) {
+                    throw new RuntimeException(String.format(
+                        "The keyframe interval has to be positive!"));
+                }
+            } // if
+        }
+        else {
+            throw new RuntimeException(String.format(
+                "Unknown storage mode: %s", mode));
+        } // if-else
+
+        g_fida.state.keyframe_interval = interval;
+
+        // MARK THE REPOSITORY AS MODIFIED!
+        g_fida.state.modified = true;
+
+        System.out.printf("Repository storage set: %s\n", mode);
+    } // set_repository_storage
+
     //=========================================================================
     // Display status
     //=========================================================================
@@ -1398,15 +2046,9 @@ public class XidClient
                 // File has disappeared
                 status = "!!";
             } else {
-                // Calculate the digest
-                Digest curdigest = null;
-                try {
-                    curdigest = Digest.create("md5", file);
-                } catch(Exception ex) {
-                    throw new RuntimeException(String.format(
-                        "%s: cannot calculate digest; %s\n",
-                        ff.path, ex.getMessage()), ex);
-                } // try-catch
+                // Get the digest; uses the index when the file is unmodified
+                Digest curdigest = g_index.get_digest(
+                    g_fida.file.getParentFile(), ff.path);
 
                 if (curdigest.equals(ff.digest)) {
                     status = "OK";
@@ -1420,8 +2062,41 @@ public class XidClient
 
         } // for: each currently tracked file
         System.out.printf("Current revision %d\n", g_fida.item_xid.rev-1);
+        display_index_counters();
     } // display_status()
 
+    //=========================================================================
+    // Refresh the working tree index
+    //=========================================================================
+
+    public static void refresh_index() {
+        // Forget all recorded stat data
+        g_index.clear();
+
+        List<Fida.File> tree = g_fida.state.tree;
+        for (Fida.File ff : tree) {
+            File file = new File(g_fida.file.getParentFile(), ff.path);
+            if ((file.isFile() == false) || (file.exists() == false)) {
+                System.out.printf("Missing %s\n", ff.path);
+                continue;
+            } // if
+
+            Digest curdigest = g_index.get_digest(
+                g_fida.file.getParentFile(), ff.path);
+
+            if (curdigest.equals(ff.digest) == false) {
+                System.out.printf("Modified %s\n", ff.path);
+            }
+        } // for: each currently tracked file
+
+        display_index_counters();
+    } // refresh_index()
+
+    protected static void display_index_counters() {
+        System.out.printf("Digests: %d hashed, %d skipped\n",
+            g_index.hashed, g_index.skipped);
+    } // display_index_counters()
+
 
     //=========================================================================
     // Get file information
@@ -2077,15 +2752,90 @@ public class XidClient
         String filename,
         int bubble
     ) {
-        List<Stack<Xid>> manifestation = ff.manifestation;
+        FidaRepository db = new FidaRepository(g_fida);
+        File file = new File(filename);
+
+        write_manifestation(db, ff, file, bubble,
+            g_fida.state.streaming, g_render_cache, g_file_cache);
+
+        System.out.printf("Created: %s\n", file.getPath());
+    } // build_manifestation()
+
+    /**
+     * Rebuilds a file record into a file, or copies it from
+     * the on-disk cache if it is there. A rebuilt file is stored
+     * into the on-disk cache.
+     *
+     * @param file_cache the on-disk cache, or {@code null}
+     * @return {@code true} if the file was copied from the cache
+     */
+    public static boolean write_manifestation(
+        AbstractRepository db,
+        Fida.File ff,
+        File file,
+        int bubble,
+        boolean streaming,
+        RenderCache cache,
+        RenderedFileCache file_cache
+    ) {
+        if (file_cache == null) {
+            write_manifestation(db, ff, file, bubble, streaming, cache);
+            return false;
+        }
+
+        String key = RenderedFileCache.make_key(ff, bubble);
+        if (file_cache.get(key, file)) {
+            return true;
+        }
+        write_manifestation(db, ff, file, bubble, streaming, cache);
+        file_cache.put(key, file);
+        return false;
+    } // write_manifestation()
+
+    /**
+     * Rebuilds a file record into a file. This only reads
+     * the repository, and it can be called from several threads
+     * at once, provided that each has a render cache of its own.
+     *
+     * @param db the repository
+     * @param ff the file record
+     * @param file the file to write
+     * @param bubble how the namespace declarations are bubbled
+     * @param streaming write without a denormalized copy in memory
+     * @param cache the render cache, or {@code null}
+     */
+    public static void write_manifestation(
+        AbstractRepository db,
+        Fida.File ff,
+        File file,
+        int bubble,
+        boolean streaming,
+        RenderCache cache
+    ) {
+        ManifestationTrie manifestation = ff.manifestation;
         Element root = null;
 
-        root = resolve_payload_xid(ff.root_xid);
+        Fida.Node node = db.get_node(ff.root_xid);
+        if (node == null) {
+            throw new RuntimeException(String.format(
+                "Cannot resolve payload xid=%s", XidString.serialize(ff.root_xid)));
+        }
+        root = node.get_payload_element();
 
         // Build
 
-        FidaRepository db = new FidaRepository(g_fida);
-        Element newroot = denormalize(db, root, manifestation, null);
+        if (streaming) {
+            // Write directly without a denormalized copy in memory
+            try {
+                StreamingDenormalizer sd = new StreamingDenormalizer(db, bubble);
+                sd.write(root, manifestation, file);
+            } catch(Exception ex) {
+                throw new RuntimeException(ex);
+            }
+            return;
+        } // if: streaming
+
+        Element newroot = denormalize(db, root, manifestation, null, cache);
 
         // ====================================================
         // Attempt to bubble the namespace declarations upwards
@@ -2101,13 +2851,134 @@ public class XidClient
         Document doc = new Document(newroot);
 
         try {
-            File file = new File(filename);
             XMLFileHelper.serialize_document_formatted(doc, file);
-            System.out.printf("Created: %s\n", file.getPath());
         } catch(Exception ex) {
             throw new RuntimeException(ex);
         }
-    } // build_manifestation()
+    } // write_manifestation()
+
+    /**
+     * Rebuilds all files of a revision into a directory.
+     * The files can be restricted to those under the given paths.
+     */
+    public static void checkout_files(
+        List<String> args,
+        int bubble,
+        int threads,
+        int cache_capacity
+    ) {
+        if (args.size() < 2) {
+            throw new RuntimeException(String.format(
+                "Incorrect number of arguments. Expected: <rev> <dir> [path]..."));
+        }
+
+        int rev = deserialize_revstring(args.get(0));
+        File target = new File(args.get(1));
+        List<String> filter = args.subList(2, args.size());
+
+        if (threads < 1) {
+            threads = 1;
+        }
+
+        List<Fida.File> files = Checkout.select(g_fida, rev, filter);
+        System.out.printf("Checking out %d files at revision %d\n",
+            files.size(), rev);
+        if (files.size() == 0) {
+            return;
+        }
+        if (threads > files.size()) {
+            threads = files.size();
+        }
+
+        FidaRepository db = new FidaRepository(g_fida);
+        Checkout checkout = new Checkout(
+            db, files, target, bubble, g_fida.state.streaming, g_file_cache);
+
+        long started = System.currentTimeMillis();
+        List<RenderCache> caches = checkout.run(threads, cache_capacity);
+        double secs = (System.currentTimeMillis() - started) / 1000.0;
+        if (secs <= 0.0) {
+            secs = 0.001;
+        }
+
+        // Collect the statistics of the workers' caches
+        if (g_render_cache != null) {
+            for (RenderCache cache : caches) {
+                g_render_cache.add_statistics(cache);
+            }
+        } // if
+
+        int done = checkout.done.get();
+        long bytes = checkout.bytes.get();
+        System.out.printf(
+            "Checked out %d files, %d bytes in %.1fs (%.1f files/s, %.1f bytes/s) with %d threads\n",
+            done, bytes, secs, done / secs, bytes / secs, threads);
+    } // checkout_files()
+
+    /**
+     * Reads xrefs or xids one per line from a file, or from stdin if
+     * no file or "-" is given, and writes the results as JSON lines.
+     */
+    public static void batch_resolve(
+        List<String> args,
+        int mode,
+        int bubble,
+        int threads,
+        int cache_capacity
+    ) {
+        if (args.size() > 1) {
+            throw new RuntimeException(String.format(
+                "Incorrect number of arguments. Expected: [file]"));
+        }
+
+        if (threads < 1) {
+            threads = 1;
+        }
+
+        FidaRepository db = new FidaRepository(g_fida);
+        BatchResolver batch = new BatchResolver(db, mode, bubble, System.out);
+
+        long started = System.currentTimeMillis();
+        BufferedReader reader = null;
+        List<RenderCache> caches = null;
+        try {
+            if ((args.size() == 0) || args.get(0).equals("-")) {
+                reader = new BufferedReader(
+                    new InputStreamReader(System.in, "UTF-8"));
+            } else {
+                reader = new BufferedReader(new InputStreamReader(
+                    new FileInputStream(args.get(0)), "UTF-8"));
+            }
+            caches = batch.run(reader, threads, cache_capacity);
+        } catch(IOException ex) {
+            throw new RuntimeException(String.format(
+                "Cannot read the input: %s", ex.getMessage()), ex);
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch(IOException ignored) {
+                }
+            }
+        } // try-catch-finally
+        double secs = (System.currentTimeMillis() - started) / 1000.0;
+        if (secs <= 0.0) {
+            secs = 0.001;
+        }
+
+        // Collect the statistics of the workers' caches
+        if (g_render_cache != null) {
+            for (RenderCache cache : caches) {
+                g_render_cache.add_statistics(cache);
+            }
+        } // if
+
+        // The summary goes to stderr to keep the output parseable.
+        int total = batch.ok + batch.failed;
+        System.err.printf(
+            "Processed %d lines (%d ok, %d failed) in %.1fs (%.1f lines/s) with %d threads\n",
+            total, batch.ok, batch.failed, secs, total / secs, threads);
+    } // batch_resolve()
 
     //=========================================================================
     // Denormalization of a payload XML element.
@@ -2118,180 +2989,274 @@ public class XidClient
     public static Element denormalize(
         AbstractRepository db,
         Element elem,
-        List<Stack<Xid>> manifestation,
+        ManifestationTrie manifestation,
         Map<Fida.Node, Fida.Node> migration
     ) {
-        Element rval = null;
-
-        // Create an initial copy
-        rval = new Element(elem.getName(), elem.getNamespace());
-
-        // Clone attributes
-        List attributes = elem.getAttributes();
-        for (Object obj : attributes) {
-            Attribute a_orig = (Attribute) obj;
-            Attribute a_copy = (Attribute) a_orig.clone();
-            rval.setAttribute(a_copy);
-        } // for: each attr
-
-        // Clone content
-        List content = elem.getContent();
-        for (Object obj : content) {
+        return denormalize(db, elem, manifestation, migration, g_render_cache);
+    } // denormalize()
 
-            if (obj instanceof Element) {
-                // This is a child element. It needs more careful inspection.
-                Element child = (Element) obj;
-                // A copy the child is made in normalize_child()
-                // and the copy is then added as a content to the current
-                // element. It does not matter whether the copy will be
-                // a referencing copy or a normalized copy.
+    /**
+     * Denormalizes an element. The expansions of the inclusions-by-xid
+     * are looked up from the given cache, and stored there, unless
+     * the cache is {@code null}.
+     */
+    public static Element denormalize(
+        AbstractRepository db,
+        Element elem,
+        ManifestationTrie manifestation,
+        Map<Fida.Node, Fida.Node> migration,
+        RenderCache cache
+    ) {
+        Denormalizer visitor = new Denormalizer(
+            db, manifestation, migration, cache);
+        ElementWalker.get_local().walk(elem, visitor);
+        return visitor.rval;
+    } // denormalize()
 
-                Element denormalized_child
-                    = denormalize_child(db, child, manifestation, migration);
+    /**
+     * Makes the denormalized copy. The walk descends into the payloads
+     * of the expanded inclusions-by-xid. The migration is applied only
+     * to the children of the denormalized element.
+     */
+    private static class Denormalizer extends ElementWalker.Visitor {
+
+        /**
+         * The state of an element being copied.
+         */
+        private static class Frame {
+            /**
+             * The copy, to which the copies of the content are added.
+             */
+            public Element copy;
+
+            /**
+             * The manifestation filtered for the content.
+             */
+            public ManifestationTrie manifestation;
+
+            /**
+             * Cache key of the expansion, if the child is an expansion.
+             */
+            public String key;
+
+            /**
+             * Whether the child is to be expanded or not.
+             */
+            public boolean expand;
+
+            /**
+             * The local information of the child, if any.
+             */
+            public String pid;
+        } // class Frame
+
+        private AbstractRepository db;
+        private ManifestationTrie manifestation;
+        private Map<Fida.Node, Fida.Node> migration;
+        private RenderCache cache;
+
+        /**
+         * The frames by depth; they are reused.
+         */
+        private List<Frame> frames;
+
+        /**
+         * The copy of the root element.
+         */
+        public Element rval;
+
+        public Denormalizer(
+            AbstractRepository db,
+            ManifestationTrie manifestation,
+            Map<Fida.Node, Fida.Node> migration,
+            RenderCache cache
+        ) {
+            this.db = db;
+            this.manifestation = manifestation;
+            this.migration = migration;
+            this.cache = cache;
+            frames = new ArrayList<Frame>();
+            rval = null;
+        } // ctor
 
-                rval.addContent(denormalized_child);
+        @Override
+        public Element enter(ElementWalker w, Element child) {
+            int depth = w.get_depth();
+            if (frames.size() == depth) {
+                frames.add(new Frame());
+            }
+            Frame frame = frames.get(depth);
+            frame.key = null;
+            frame.expand = true;
+            frame.pid = null;
+
+            if (depth == 0) {
+                // The element being denormalized itself
+                rval = copy(child);
+                frame.copy = rval;
+                frame.manifestation = manifestation;
+                return child;
             }
-            else {
-                // Either Text, Comment, CDATA or something similar.
-                // Just make an identical copy of it.
-                Content content_orig = (Content) obj;
-                Content content_copy = (Content) content_orig.clone();
-                rval.addContent(content_copy);
-            } // if-else: instance of Element
-        } // for: each content object
-
-        return rval;
-    } // denormalize()
 
-    @SuppressWarnings("unchecked")
-    private static Element denormalize_child(
-        AbstractRepository db,
-        Element child,
-        List<Stack<Xid>> manifestation,
-        Map<Fida.Node, Fida.Node> migration
-    ) {
-        // Return variable
-        Element rval = null;
+            Frame parent = frames.get(depth-1);
 
-        // Attempt to pick ref_xid, if any
-        //Xid xid = XidIdentification.get_ref_xid(child);
-        Xid ref_xid = get_ref_xid(child);
+            // Attempt to pick ref_xid, if any
+            Xid ref_xid = get_ref_xid(child);
 
-        // Get local information if any
-        String pid = PidIdentification.get_pid(child);
+            // Get local information if any
+            frame.pid = PidIdentification.get_pid(child);
 
-        // Filter the manifestation at the same time.
-        // Defaults to the one that was passed in.
-        List<Stack<Xid>> next_manifestation = manifestation;
+            // Filter the manifestation at the same time.
+            // Defaults to the one of the parent.
+            ManifestationTrie next_manifestation = parent.manifestation;
 
-        // Whether the child is to be expanded or not.
-        boolean expand = true;
+            // The cached expansion, if any
+            Element cached = null;
 
-        if (ref_xid != null) {
-            // Inclusion-by-xid.
-            // It must have a link_xid attribute
-            String value = child.getAttributeValue("link_xid");
+            if (ref_xid != null) {
+                // Inclusion-by-xid.
+                // It must have a link_xid attribute
+                String value = child.getAttributeValue("link_xid");
 
-            if (value == null) {
-                // No idea how to tell more precisely where we are.
-                throw new RuntimeException(String.format(
-                    "ref_xid element does not have a link_xid attribute"));
-            } // if
+                if (value == null) {
+                    // No idea how to tell more precisely where we are.
+                    throw new RuntimeException(String.format(
+                        "ref_xid element does not have a link_xid attribute"));
+                } // if
 
-            // Pick the link xid
-            Xid link_xid = XidString.deserialize(value);
-            // Strip out those entries from the manifestation which do not
-            // have this as the top.
-
-            if (manifestation != null) {
-                // TODO:
-                // Separate filtering procedure somewhere else.
-                next_manifestation = new LinkedList<Stack<Xid>>();
-                for (Stack<Xid> unexpand : manifestation) {
-                    if (unexpand.peek().equals(link_xid) == false) {
-                        // Filter out
-                        continue;
-                    } // if
+                // Pick the link xid
+                Xid link_xid = XidString.deserialize(value);
+                // Descend to the unexpand paths which go through this link.
 
-                    // Copy...
-                    Stack<Xid> copy = (Stack<Xid>) unexpand.clone();
-                    // ..and pop
-                    copy.pop();
+                if (next_manifestation != null) {
+                    next_manifestation = next_manifestation.descend(link_xid);
 
-                    // If became an empty stack, then this is exactly
+                    // If a path ends here, then this is exactly
                     // the link_xid that should not be expanded
-                    if (copy.empty() == true) {
-                        expand = false;
+                    if (next_manifestation.is_unexpanded()) {
+                        frame.expand = false;
                         System.out.printf("Not expanding: %s\n", XidString.serialize(link_xid));
-                        //next_manifestation = null;
-                        //break;
-                    } else {
-                        // If link_xids were left into the unexpand guide,
-                        // then add it to the filter result
-                        next_manifestation.add(copy);
-                    } // if-else
-                } // for: each unexpand
-            } // if: there is a manifestation
+                    }
+                } // if: there is a manifestation
 
-            // Make the expansion only if the it was decided to do.
+                // Make the expansion only if the it was decided to do.
 
-            if (expand == true) {
-                // Jump to a different child.
-                // First, get the administrative node of the target xid
-                Fida.Node target_node = db.get_node(ref_xid);
+                if (frame.expand == true) {
+                    // Jump to a different child.
+                    // First, get the administrative node of the target xid
+                    Fida.Node target_node = db.get_node(ref_xid);
 
-                // Verify that the target xid was found
-                if (target_node == null) {
-                    throw new RuntimeException(String.format(
-                        "Cannot resolve payload xid=%s", XidString.serialize(ref_xid)));
-                }
+                    // Verify that the target xid was found
+                    if (target_node == null) {
+                        throw new RuntimeException(String.format(
+                            "Cannot resolve payload xid=%s", XidString.serialize(ref_xid)));
+                    }
 
-                // 1. Apply manifestation mapping
-                // TODO: Apply manifestation mapping here
-                // 2. Apply migration mapping
-                if ((migration != null) && (target_node.next.size() > 0)) {
-                    // Can be migrated. See if this administrative node
-                    // has already been migrated
-                    Fida.Node mig_node = migration.get(target_node);
-
-                    if (mig_node == null) {
-                        // Not yet migrated. Seek the newest one
-                        mig_node = target_node;
-                        while (mig_node.next.size() > 0) {
-                            mig_node = mig_node.next.get(0);
-                        } // while: has next
-                        // record the redirection
-                        migration.put(target_node, mig_node);
+                    // 1. Apply manifestation mapping
+                    // TODO: Apply manifestation mapping here
+                    // 2. Apply migration mapping
+                    if ((depth == 1) && (migration != null)
+                        && (target_node.next.size() > 0))
+                    {
+                        // Can be migrated. See if this administrative node
+                        // has already been migrated
+                        Fida.Node mig_node = migration.get(target_node);
+
+                        if (mig_node == null) {
+                            // Not yet migrated. Seek the newest one
+                            mig_node = target_node;
+                            while (mig_node.next.size() > 0) {
+                                mig_node = mig_node.next.get(0);
+                            } // while: has next
+                            // record the redirection
+                            migration.put(target_node, mig_node);
+                        }
+                        // Re-target
+                        target_node = mig_node;
+                    } // if: migration is to be applied
+
+                    // Assign the payload element as the next child
+                    child = target_node.get_payload_element();
+
+                    // The expansion depends only on the payload and
+                    // the filtered manifestation.
+                    if (cache != null) {
+                        frame.key = RenderCache.make_key(
+                            target_node.payload_xid, next_manifestation);
+                        cached = cache.get(frame.key);
                     }
-                    // Re-target
-                    target_node = mig_node;
-                } // if: migration is to be applied
+                } // if: the inclusion-by-xid is going to be expanded
+            } // if: inclusion-by-xid
+
+            frame.manifestation = next_manifestation;
+            if (cached != null) {
+                // The content is not walked
+                frame.copy = cached;
+                child = null;
+            } else {
+                frame.copy = copy(child);
+            }
 
-                // Assign the payload element as the next child
-                child = target_node.payload_element;
-                /*
-                System.out.printf("dereferencing %s\n",
-                    XidString.serialize(target_node.payload_xid));
-                */
-            } // if: the inclusion-by-xid is going to be expanded
-        } // if: inclusion-by-xid
+            // The copy is added to the parent's copy when it is complete.
+            return child;
+        } // enter()
 
-        rval = denormalize(db, child, next_manifestation, null);
+        @Override
+        public void content(ElementWalker w, Content c) {
+            // Either Text, Comment, CDATA or something similar.
+            // Just make an identical copy of it.
+            frames.get(w.get_depth()).copy.addContent((Content) c.clone());
+        } // content()
 
-        if (expand == false) {
-            // Strip out the link_xid information from the created copy
-            rval.removeAttribute("link_xid");
-        }
+        @Override
+        public void leave(ElementWalker w, Element child) {
+            int depth = w.get_depth();
+            Frame frame = frames.get(depth);
+            Element copy = frame.copy;
+            frame.copy = null;
+            frame.manifestation = null;
+            if (depth == 0) {
+                return;
+            }
 
-        // Add any local information
-        if (pid != null) {
-            // TODO: The pid should be PREPENDED
-            PidIdentification.set_pid(rval, pid);
+            if ((frame.key != null) && (w.get_source() != null)) {
+                // Not cached
+                cache.put(frame.key, copy);
+            }
 
-        }
+            if (frame.expand == false) {
+                // Strip out the link_xid information from the created copy
+                copy.removeAttribute("link_xid");
+            }
 
-        return rval;
-    } // denormalize_child()
+            // Add any local information
+            if (frame.pid != null) {
+                // TODO: The pid should be PREPENDED
+                PidIdentification.set_pid(copy, frame.pid);
+            }
+
+            // Adding an element is slower when the parent has ancestors.
+            frames.get(depth-1).copy.addContent(copy);
+        } // leave()
+
+        /**
+         * Creates a copy of the element with its attributes.
+         */
+        private static Element copy(Element elem) {
+            Element rval = new Element(elem.getName(), elem.getNamespace());
+
+            // Clone attributes
+            List attributes = elem.getAttributes();
+            for (Object obj : attributes) {
+                Attribute a_orig = (Attribute) obj;
+                Attribute a_copy = (Attribute) a_orig.clone();
+                rval.setAttribute(a_copy);
+            } // for: each attr
+
+            return rval;
+        } // copy()
+
+    } // class Denormalizer
 
     //=========================================================================
     // Migrate files: primary method (a proper graph implementation)
@@ -2319,55 +3284,69 @@ public class XidClient
                 continue;
             }
 
-            File file = new File(fidaRepo.file.getParent(), ff.path);
-            if ((file.isFile() == false) || (file.exists() == false)) {
-                // Abort
-                throw new RuntimeException(String.format(
-                    "%s: File disappeared", file.getPath()));
-            } // if
+            next_commit.layout.add(read_tree_file(fidaRepo, ff, true));
+        } // for: each file in the current tree
 
-            // Calculate the digest
-            Digest curdigest = null;
-            try {
-                curdigest = Digest.create("md5", file);
-            } catch(Exception ex) {
-                throw new RuntimeException(String.format(
-                    "%s: cannot calculate digest; %s\n",
-                    ff.path, ex.getMessage()), ex);
-            } // try-catch
+        return next_commit;
+    } // read_tree()
 
-            if (curdigest.equals(ff.digest) == false) {
-                throw new RuntimeException(String.format(
-                    "%s: Uncommited changes", ff.path));
-            } // if
+    /**
+     * Verifies that a tracked file has no uncommitted changes,
+     * and optionally parses it.
+     *
+     * @param fidaRepo the repository
+     * @param ff the tracked file
+     * @param parse whether the file is parsed
+     * @return a new file record for the path, with the parsed document
+     * or {@code null}
+     */
+    protected static Fida.File read_tree_file(
+        Fida.Repository fidaRepo,
+        Fida.File ff,
+        boolean parse
+    ) {
+        File file = new File(fidaRepo.file.getParent(), ff.path);
+        if ((file.isFile() == false) || (file.exists() == false)) {
+            // Abort
+            throw new RuntimeException(String.format(
+                "%s: File disappeared", file.getPath()));
+        } // if
 
-            Fida.File newff = new Fida.File();
-            next_commit.layout.add(newff);
+        // Get the digest; uses the index when the file is unmodified.
+        // Otherwise the file is read once, and the very same bytes
+        // are both digested and parsed.
+        WorkingTreeIndex.Entry entry = g_index.probe(
+            g_fida.file.getParentFile(), ff.path);
+        byte[] data = null;
+        if (entry.digest == null) {
+            data = read_working_file(entry);
+        }
+        Digest curdigest = entry.digest;
 
-            Document doc = null;
-            try {
-                // The String ff.path is a relative path to the repo basedir
-                File source = new File(fidaRepo.file.getParentFile(), ff.path);
-                // Attempt reading the XML document. This may throw.
-                doc = XMLFileHelper.deserialize_document(source);
+        if (curdigest.equals(ff.digest) == false) {
+            throw new RuntimeException(String.format(
+                "%s: Uncommited changes", ff.path));
+        } // if
 
-            } catch(Exception ex) {
-                // Bubble up the message
-                throw new RuntimeException(ex.getMessage(), ex);
-            } // try-catch
+        Fida.File newff = new Fida.File();
+        newff.path = ff.path;
+
+        if (parse) {
+            // Parse the contents; they were read already if the digest
+            // had to be calculated.
+            Document doc = parse_working_file(ff.path, data);
 
             // If this point is reached, the file is a well-formed XML doc.
             // We might as well record it already to the Fida.File object.
             newff.doc = doc;
-            newff.path = ff.path;
             // Preprocess (Should be done when the context-depend ids
             // are introduced)
             //Element root = doc.getRootElement();
             //preprocess(root);
-        } // for: each file in the current tree
+        } // if: parse
 
-        return next_commit;
-    } // read_tree()
+        return newff;
+    } // read_tree_file()
 
     //=========================================================================
     // Migration 1 (= inclusions only)
@@ -2461,7 +3440,7 @@ public class XidClient
                 } // if: no target rewrote yet.
                 node = target;
 
-                Element mig_elem = denormalize(db, node.payload_element, null, map);
+                Element mig_elem = denormalize(db, node.get_payload_element(), null, map);
                 // Replace mig_elem in-place with elem.
                 replace_inplace(elem, mig_elem);
             } // if: can be migrated
@@ -2565,6 +3544,8 @@ public class XidClient
         boolean list_flag,
         int migration_mode,
         boolean report,
+        boolean incremental,
+        boolean sparse,
         boolean writeout
     ) {
         // Pass options to MigrationLogic
@@ -2599,34 +3580,89 @@ public class XidClient
             paths = null;
         }
 
-        // Read all files in the current tree
-        Fida.Commit next_commit = read_tree(g_fida, paths);
+        if (incremental && (paths != null)) {
+            throw new RuntimeException(
+                "Incremental migration cannot be restricted to files");
+        }
+
+        if (sparse && incremental) {
+            throw new RuntimeException(
+                "Sparse migration cannot be incremental");
+        }
+
+        if (sparse && (paths == null)) {
+            throw new RuntimeException(
+                "Sparse migration needs the files to migrate");
+        }
 
         // Create a wrapper for g_fida
         FidaRepository db = new FidaRepository(g_fida);
 
-        // PHASE 1: BUILD A GRAPH
+        // Select the files to read, if incremental
+        ReferenceIndex refindex = null;
+        IncrementalMigration inc = null;
+        if (incremental) {
+            refindex = ReferenceIndex.read(g_fida.file);
+            inc = new IncrementalMigration(g_fida, db, refindex);
+            inc.select();
+        } else if (sparse) {
+            // Select the files the given files depend on
+            inc = new IncrementalMigration(g_fida, db, null);
+            inc.select_sparse(paths);
+        }
 
-        // The whole graph is stored into this map for retrieval by xid.
-        Map<Xid, GraphNode> graph = new HashMap<Xid, GraphNode>();
-        // Provides linking from file to its root element
-        Map<Fida.File, GraphNode> roots
-            = new LinkedHashMap<Fida.File, GraphNode>();
+        Fida.Commit next_commit = null;
+        MigrationGraph graph = null;
+        Map<Attribute, Xref> migmap = null;
+        while (true) {
+            if (inc == null) {
+                // Read all files in the current tree
+                next_commit = read_tree(g_fida, paths);
+            } else {
+                // Read the selected files. The messages are shown only
+                // if the migration needs not be redone.
+                XMLError.begin_capture();
+                next_commit = inc.read();
+            }
 
-        // First pass. Create a graph out of the commit
-        MigrationLogic.build_graph(db, next_commit, graph, roots);
+            // PHASE 1: BUILD A GRAPH
 
-        // PHASE 2: MIGRATE REFERENCES
+            // First pass. Create a graph out of the commit.
+            // The graph also links each file to its root node.
+            graph = MigrationGraph.build(db, next_commit);
 
-        // Map of migrations done
-        Map<Attribute, Xref> migmap = new LinkedHashMap<Attribute, Xref>();
+            // PHASE 2: MIGRATE REFERENCES
 
-        for (Map.Entry<Fida.File, GraphNode> entry : roots.entrySet()) {
-            GraphNode node = entry.getValue();
-            MigrationLogic.migrate_node(graph, db, migmap, node);
-        } // for each node
+            // Map of migrations done
+            migmap = new LinkedHashMap<Attribute, Xref>();
+
+            for (int node : graph.roots) {
+                if (node == MigrationGraph.NONE) {
+                    // The root element has no xid
+                    continue;
+                }
+                MigrationLogic.migrate_node(graph, db, migmap, node);
+            } // for each node
 
+            if (inc == null) {
+                break;
+            }
+
+            String messages = XMLError.end_capture();
+            if (inc.expand(graph) == false) {
+                XMLError.print(messages);
+                break;
+            }
+        } // while: files selected
 
+        if (inc != null) {
+            System.out.printf("Migrating %d of %d files; %d skipped\n",
+                inc.get_loaded_count(), inc.get_file_count(),
+                inc.get_file_count() - inc.get_loaded_count());
+        }
+        if (refindex != null) {
+            refindex.write();
+        }
         if (list_flag == true) {
             // TODO: Sort according to the file
             List<Map.Entry<Attribute, Xref>> entryList
@@ -2672,13 +3708,24 @@ public class XidClient
 
         // PHASE 3: WRITE OUT
 
+        // Only the documents having a migrated attribute are written.
+        Set<Document> modified = Collections.newSetFromMap(
+            new IdentityHashMap<Document, Boolean>());
+        for (Attribute a : migmap.keySet()) {
+            modified.add(a.getDocument());
+        }
+
         org.jdom.output.XMLOutputter xmlOutputter
             = new org.jdom.output.XMLOutputter();
 
+        File basedir = g_fida.file.getParentFile();
         for (Fida.File rewriteff : next_commit.layout) {
-            File f = new File(g_fida.file.getParent(), rewriteff.path);
-
             Document doc = rewriteff.doc;
+            if (modified.contains(doc) == false) {
+                continue;
+            }
+
+            File f = new File(basedir, rewriteff.path);
             try {
                 if (onscreen_flag == true) {
                     System.out.printf("=============================================================================\n");
@@ -2686,15 +3733,30 @@ public class XidClient
                     System.out.printf("=============================================================================\n");
                     xmlOutputter.output(doc, System.out);
                 } else {
-                    // write the changes to the files
-                    XMLFileHelper.serialize_document_verbatim(doc, f);
+                    // write the changes to the files. The digest is
+                    // calculated from the bytes while they are being
+                    // written, and the stat data is recorded, so that
+                    // the next update need not read the file.
+                    Digest digest = XMLFileHelper.serialize_document_atomic(
+                        doc, f, WorkingTreeIndex.DIGEST_ALGO);
+                    g_index.record(basedir, rewriteff.path, digest);
+                    if (refindex != null) {
+                        refindex.put(ReferenceIndex.summarize(
+                            rewriteff.path, digest, doc));
+                    }
                 } // if-else
+            } catch(RuntimeException ex) {
+                throw ex;
             } catch(Exception ex) {
                 throw new RuntimeException(ex);
             } // try-catch
         } // for
         if (onscreen_flag == false) {
-            System.out.printf("Files updated. Run \"fida update\"\n");;
+            if (refindex != null) {
+                refindex.write();
+            }
+            System.out.printf("%d files updated. Run \"fida update\"\n",
+                modified.size());
         }
     } // migrate_files2()
 
@@ -2704,7 +3766,8 @@ public class XidClient
 
     public static void list_refs(
         List<String> args,
-        int migration_mode
+        int migration_mode,
+        boolean sparse
     ) {
         // Pass options to MigrationLogic
         MigrationLogic.g_mode = migration_mode;
@@ -2775,9 +3838,24 @@ public class XidClient
             } // for: each arg
         } // if: has args
 
-        // Read all files in the current tree
-        Fida.Commit next_commit = read_tree(g_fida, null);
-
+        Fida.Commit next_commit = null;
+        if (sparse) {
+            if (set == null) {
+                throw new RuntimeException(
+                    "Sparse listing needs the xids to list");
+            }
+            // Read only the files referencing the xids
+            IncrementalMigration inc
+                = new IncrementalMigration(g_fida, db, null);
+            inc.select_refs(set);
+            next_commit = inc.read();
+            System.out.printf("Listing %d of %d files; %d skipped\n",
+                inc.get_loaded_count(), inc.get_file_count(),
+                inc.get_file_count() - inc.get_loaded_count());
+        } else {
+            // Read all files in the current tree
+            next_commit = read_tree(g_fida, null);
+        }
 
         // Build graph
         Map<Xid, GraphNode> graph = new HashMap<Xid, GraphNode>();
@@ -2994,27 +4072,37 @@ public class XidClient
     //=========================================================================
 
     public static void validate_ref_xids(Fida.Commit next_commit) {
+        validate_ref_xids(g_fida, next_commit);
+    }
+
+    public static void validate_ref_xids(
+        Fida.Repository fida,
+        Fida.Commit next_commit
+    ) {
         for (Fida.Node node : next_commit.nodes) {
-            Element elem = node.payload_element;
-            validate_ref_xids(elem);
+            Element elem = node.get_payload_element();
+            validate_ref_xids(fida, elem);
         }
     }
 
-    private static void validate_ref_xids(Element elem) {
+    private static void validate_ref_xids(
+        Fida.Repository fida,
+        Element elem
+    ) {
         // depth-first
         for (Object obj : elem.getContent()) {
             if ((obj instanceof Element) == false) {
                 continue;
             }
             Element c = (Element) obj;
-            validate_ref_xids(c);
+            validate_ref_xids(fida, c);
         }
 
         String refstring = elem.getAttributeValue("ref_xid");
 
         if (refstring != null) {
             Xid ref_xid = XidString.deserialize(refstring);
-            Fida.Node target_node = g_fida.state.externals.get(ref_xid);
+            Fida.Node target_node = fida.state.externals.get(ref_xid);
             if (target_node == null) {
                 throw new RuntimeException(String.format(
                     "Unresolved ref_xid=\"%s\"", XidString.serialize(ref_xid)));
@@ -3114,7 +4202,7 @@ public class XidClient
             throw new RuntimeException(String.format(
                 "Cannot resolve payload xid=%s", XidString.serialize(xid)));
         }
-        return node.payload_element;
+        return node.get_payload_element();
     } // resolve_payload_xid()
 
     /**
@@ -0,0 +1,766 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.util;
+
+// java core imports
+import java.util.List;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Arrays;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Attribute;
+import org.jdom.Namespace;
+import org.jdom.Content;
+import org.jdom.Text;
+import org.jdom.CDATA;
+import org.jdom.Comment;
+import org.jdom.ProcessingInstruction;
+import org.jdom.EntityRef;
+import org.jdom.JDOMFactory;
+import org.jdom.UncheckedJDOMFactory;
+
+/**
+ * An immutable, compact copy of an XML element. The whole tree is
+ * stored into three objects:
+ * <ul>
+ *   <li>the nodes in document order as an {@code int} array;
+ *   <li>the names and the namespaces used by the nodes. The names are
+ *       interned, so that all copies share them;
+ *   <li>the character data and the attribute values, concatenated
+ *       into a single string.
+ * </ul>
+ * There are no objects per node, no parent links and no content or
+ * attribute lists. A JDOM element is created with {@link #to_element()}
+ * when one is needed; the element is not verified again, since it was
+ * verified already when the copy was made.<p>
+ *
+ * An element is recorded as
+ * {@code ELEMENT name ns n (ns)* n (name ns type begin end)* n},
+ * where the first list is the additional namespace declarations,
+ * the second list is the attributes, and the last count is the number
+ * of the content nodes which follow. The other nodes are recorded as
+ * {@code kind begin end}, except that a processing instruction has
+ * the ranges of the target and the data, and an entity reference has
+ * the ranges of the name, the public id and the system id. A missing
+ * id has the begin -1.<p>
+ *
+ * The subtree of a child element may be stored as a separate copy,
+ * which is then recorded as {@code SUBTREE index}. Such copies are
+ * shared between elements through a {@link SubtreeTable}; see
+ * {@link #compact(Element, SubtreeTable)}. Two copies are equal when
+ * they have the same structure, so they can be used as keys.
+ */
+public class CompactElement
+{
+    // AUXILIARY CLASSES
+    //===================
+
+    /**
+     * Receives ranges of text.
+     */
+    public static interface RangeVisitor {
+        public void visit(CharSequence text, int begin, int end);
+    } // interface RangeVisitor
+
+    /**
+     * Records the nodes of an element while it is walked. If there is
+     * a table, the subtrees of the child elements are shared through it
+     * as they are left, that is, bottom-up.
+     */
+    private static class Builder extends ElementWalker.Visitor {
+        private int[] code;
+        private int size;
+        private List<Object> refs;
+        private Map<Object, Integer> ref_index;
+        private StringBuilder text;
+
+        private SubtreeTable table;
+        // Where the record of each open element begins
+        private int[] code_begin;
+        private int[] text_begin;
+        private int[] refs_begin;
+        // The estimated size of the replaced subtrees, less the references
+        private long replaced;
+
+        public Builder(SubtreeTable table) {
+            code = new int[64];
+            size = 0;
+            refs = new ArrayList<Object>();
+            ref_index = new IdentityHashMap<Object, Integer>();
+            text = new StringBuilder();
+            this.table = table;
+            if (table != null) {
+                code_begin = new int[16];
+                text_begin = new int[16];
+                refs_begin = new int[16];
+            }
+            replaced = 0;
+        } // ctor
+
+        @Override
+        public Element enter(ElementWalker w, Element elem) {
+            if (table != null) {
+                int depth = w.get_depth();
+                if (depth == code_begin.length) {
+                    code_begin = grow(code_begin);
+                    text_begin = grow(text_begin);
+                    refs_begin = grow(refs_begin);
+                }
+                code_begin[depth] = size;
+                text_begin[depth] = text.length();
+                refs_begin[depth] = refs.size();
+            } // if: sharing
+
+            emit(K_ELEMENT);
+            emit(ref(intern_name(elem.getName())));
+            emit(ref(elem.getNamespace()));
+
+            List<?> list = elem.getAdditionalNamespaces();
+            emit(list.size());
+            for (Object obj : list) {
+                emit(ref(obj));
+            }
+
+            list = elem.getAttributes();
+            emit(list.size());
+            for (Object obj : list) {
+                Attribute a = (Attribute) obj;
+                emit(ref(intern_name(a.getName())));
+                emit(ref(a.getNamespace()));
+                emit(a.getAttributeType());
+                emit_text(a.getValue());
+            }
+
+            emit(elem.getContentSize());
+            return elem;
+        } // enter()
+
+        @Override
+        public void leave(ElementWalker w, Element elem) {
+            int depth = w.get_depth();
+            if ((table != null) && (depth > 0)) {
+                collapse(code_begin[depth], text_begin[depth],
+                    refs_begin[depth]);
+            }
+        } // leave()
+
+        @Override
+        public void content(ElementWalker w, Content c) {
+            // CDATA is a subclass of Text
+            if (c instanceof CDATA) {
+                emit(K_CDATA);
+                emit_text(((CDATA) c).getText());
+            } else if (c instanceof Text) {
+                emit(K_TEXT);
+                emit_text(((Text) c).getText());
+            } else if (c instanceof Comment) {
+                emit(K_COMMENT);
+                emit_text(((Comment) c).getText());
+            } else if (c instanceof ProcessingInstruction) {
+                ProcessingInstruction pi = (ProcessingInstruction) c;
+                emit(K_PI);
+                emit_text(pi.getTarget());
+                emit_text(pi.getData());
+            } else if (c instanceof EntityRef) {
+                EntityRef ref = (EntityRef) c;
+                emit(K_ENTITYREF);
+                emit_text(ref.getName());
+                emit_text(ref.getPublicID());
+                emit_text(ref.getSystemID());
+            } else {
+                throw new RuntimeException(String.format(
+                    "Unexpected content: %s", c.getClass().getName()));
+            }
+        } // content()
+
+        public CompactElement build() {
+            int[] array = new int[size];
+            System.arraycopy(code, 0, array, 0, size);
+            return new CompactElement(
+                array, refs.toArray(), text.toString());
+        } // build()
+
+        private void emit(int value) {
+            if (size == code.length) {
+                code = grow(code);
+            }
+            code[size++] = value;
+        } // emit()
+
+        /**
+         * Replaces the subtree recorded since the given positions with
+         * a reference to its shared copy, if the subtree is large enough
+         * to be worth sharing.
+         */
+        private void collapse(int from, int text_from, int refs_from) {
+            int weight = 4*(size - from) + (text.length() - text_from);
+            if (weight < MIN_SHARED_SIZE) {
+                return;
+            }
+            // The reference below takes two ints
+            replaced += weight - 8;
+            CompactElement shared = table.intern(extract(from, text_from));
+
+            // Drop the subtree, and the names it added
+            size = from;
+            text.setLength(text_from);
+            for (int i = refs.size()-1; i >= refs_from; i--) {
+                ref_index.remove(refs.remove(i));
+            }
+
+            emit(K_SUBTREE);
+            emit(ref(shared));
+        } // collapse()
+
+        /**
+         * Copies the subtree recorded since the given positions into
+         * a copy of its own. The text ranges and the references are
+         * renumbered.
+         */
+        private CompactElement extract(int from, int text_from) {
+            int[] sub_code = new int[size - from];
+            List<Object> sub_refs = new ArrayList<Object>();
+            int pc = from;
+            int i = 0;
+            while (pc < size) {
+                int kind = code[pc++];
+                sub_code[i++] = kind;
+                int count = 0;
+                switch(kind) {
+                case K_ELEMENT:
+                    sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                    sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                    count = code[pc++];
+                    sub_code[i++] = count;
+                    for (int j = 0; j < count; j++) {
+                        sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                    }
+                    count = code[pc++];
+                    sub_code[i++] = count;
+                    for (int j = 0; j < count; j++) {
+                        sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                        sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                        sub_code[i++] = code[pc++];
+                        sub_code[i++] = rebase(code[pc++], text_from);
+                        sub_code[i++] = rebase(code[pc++], text_from);
+                    }
+                    sub_code[i++] = code[pc++];
+                    break;
+                case K_SUBTREE:
+                    sub_code[i++] = local_ref(sub_refs, code[pc++]);
+                    break;
+                default:
+                    // The rest are text ranges
+                    count = 2*ranges(kind);
+                    for (int j = 0; j < count; j++) {
+                        sub_code[i++] = rebase(code[pc++], text_from);
+                    }
+                    break;
+                } // switch
+            } // while
+            return new CompactElement(
+                sub_code, sub_refs.toArray(), text.substring(text_from));
+        } // extract()
+
+        /**
+         * Returns the index of a reference in the list of a subtree.
+         * The list is short, so it is searched linearly.
+         */
+        private int local_ref(List<Object> list, int index) {
+            Object obj = refs.get(index);
+            int len = list.size();
+            for (int i = 0; i < len; i++) {
+                if (list.get(i) == obj) {
+                    return i;
+                }
+            }
+            list.add(obj);
+            return len;
+        } // local_ref()
+
+        private static int rebase(int offset, int base) {
+            if (offset < 0) {
+                return offset;
+            }
+            return offset - base;
+        } // rebase()
+
+        /**
+         * Appends a string to the text, and emits its range.
+         */
+        private void emit_text(String s) {
+            if (s == null) {
+                emit(-1);
+                emit(-1);
+                return;
+            }
+            emit(text.length());
+            text.append(s);
+            emit(text.length());
+        } // emit_text()
+
+        /**
+         * Returns the index of a name or a namespace. Both are
+         * compared by identity; names are interned, and JDOM keeps
+         * a single instance of each namespace.
+         */
+        private int ref(Object obj) {
+            Integer rval = ref_index.get(obj);
+            if (rval == null) {
+                rval = Integer.valueOf(refs.size());
+                refs.add(obj);
+                ref_index.put(obj, rval);
+            }
+            return rval.intValue();
+        } // ref()
+    } // class Builder
+
+    // CONSTANTS
+    //===========
+
+    private static final int K_ELEMENT      = 0;
+    private static final int K_TEXT         = 1;
+    private static final int K_CDATA        = 2;
+    private static final int K_COMMENT      = 3;
+    private static final int K_PI           = 4;
+    private static final int K_ENTITYREF    = 5;
+    private static final int K_SUBTREE      = 6;
+
+    /**
+     * The estimated size in bytes below which a subtree is kept inline.
+     * A shared copy costs a few objects and an entry in the table.
+     */
+    public static final int MIN_SHARED_SIZE = 128;
+
+    // CLASS VARIABLES
+    //=================
+
+    /**
+     * The factory used for creating the JDOM elements.
+     */
+    private static final JDOMFactory g_factory = new UncheckedJDOMFactory();
+
+    /**
+     * The interned names.
+     */
+    private static final Map<String, String> g_names
+        = new HashMap<String, String>();
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The nodes in document order.
+     */
+    private final int[] code;
+
+    /**
+     * The names and the namespaces referred to by the nodes.
+     */
+    private final Object[] refs;
+
+    /**
+     * The character data and the attribute values.
+     */
+    private final String text;
+
+    /**
+     * The structural hash; zero until computed.
+     */
+    private int hash;
+
+    // CONSTRUCTORS
+    //==============
+
+    private CompactElement(int[] code, Object[] refs, String text) {
+        this.code = code;
+        this.refs = refs;
+        this.text = text;
+        this.hash = 0;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Creates a compact copy of an element and its content.
+     */
+    public static CompactElement compact(Element elem) {
+        return compact(elem, null);
+    } // compact()
+
+    /**
+     * Creates a compact copy of an element and its content, sharing
+     * the subtrees of the child elements through the given table.
+     * A subtree is shared if its estimated size is at least
+     * {@link #MIN_SHARED_SIZE}; smaller subtrees are kept inline.
+     * The subtrees are shared bottom-up, so a shared subtree refers
+     * to the shared copies of its own subtrees. The element itself
+     * is not shared.
+     *
+     * @param elem the element
+     * @param table the table of the shared subtrees, or {@code null}
+     * for a copy of its own
+     * @return the copy
+     */
+    public static CompactElement compact(Element elem, SubtreeTable table) {
+        Builder builder = new Builder(table);
+        ElementWalker.get_local().walk(elem, builder);
+        CompactElement rval = builder.build();
+        if (table != null) {
+            long size = rval.get_heap_size();
+            table.count_payload(size + builder.replaced, size);
+        }
+        return rval;
+    } // compact()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Creates an unparented JDOM element. The element is a new copy,
+     * which the caller may modify.
+     */
+    public Element to_element() {
+        Element rval = null;
+
+        // The open elements, and the number of content nodes
+        // each of them is still waiting for.
+        Element[] stack = new Element[16];
+        int[] remaining = new int[16];
+        int top = -1;
+
+        // The copies being read, when within a shared subtree,
+        // and where to continue in each.
+        CompactElement[] sources = new CompactElement[4];
+        int[] resume = new int[4];
+        int depth = 0;
+
+        CompactElement cur = this;
+        int[] code = cur.code;
+        Object[] refs = cur.refs;
+        String text = cur.text;
+
+        int pc = 0;
+        while (true) {
+            if (pc == code.length) {
+                if (depth == 0) {
+                    break;
+                }
+                // Continue after the subtree
+                depth--;
+                cur = sources[depth];
+                sources[depth] = null;
+                pc = resume[depth];
+                code = cur.code;
+                refs = cur.refs;
+                text = cur.text;
+                continue;
+            } // if: end of the copy
+
+            int kind = code[pc++];
+            Content c = null;
+            int count = 0;
+
+            switch(kind) {
+            case K_SUBTREE:
+                if (depth == sources.length) {
+                    sources = grow(sources);
+                    resume = grow(resume);
+                }
+                sources[depth] = cur;
+                resume[depth] = pc+1;
+                depth++;
+                cur = (CompactElement) refs[code[pc]];
+                code = cur.code;
+                refs = cur.refs;
+                text = cur.text;
+                pc = 0;
+                continue;
+            case K_ELEMENT:
+                Element elem = g_factory.element(
+                    (String) refs[code[pc]], (Namespace) refs[code[pc+1]]);
+                pc += 2;
+                count = code[pc++];
+                for (int i = 0; i < count; i++) {
+                    g_factory.addNamespaceDeclaration(
+                        elem, (Namespace) refs[code[pc++]]);
+                }
+                count = code[pc++];
+                for (int i = 0; i < count; i++) {
+                    Attribute a = g_factory.attribute(
+                        (String) refs[code[pc]],
+                        text.substring(code[pc+3], code[pc+4]),
+                        code[pc+2],
+                        (Namespace) refs[code[pc+1]]);
+                    g_factory.setAttribute(elem, a);
+                    pc += 5;
+                }
+                count = code[pc++];
+                c = elem;
+                break;
+            case K_TEXT:
+                c = g_factory.text(text.substring(code[pc], code[pc+1]));
+                pc += 2;
+                break;
+            case K_CDATA:
+                c = g_factory.cdata(text.substring(code[pc], code[pc+1]));
+                pc += 2;
+                break;
+            case K_COMMENT:
+                c = g_factory.comment(text.substring(code[pc], code[pc+1]));
+                pc += 2;
+                break;
+            case K_PI:
+                c = g_factory.processingInstruction(
+                    text.substring(code[pc], code[pc+1]),
+                    text.substring(code[pc+2], code[pc+3]));
+                pc += 4;
+                break;
+            case K_ENTITYREF:
+                c = g_factory.entityRef(
+                    text.substring(code[pc], code[pc+1]),
+                    get_string(text, code[pc+2], code[pc+3]),
+                    get_string(text, code[pc+4], code[pc+5]));
+                pc += 6;
+                break;
+            default:
+                throw new RuntimeException(String.format(
+                    "Unexpected node kind: %d", kind));
+            } // switch
+
+            if (top < 0) {
+                rval = (Element) c;
+            } else {
+                g_factory.addContent(stack[top], c);
+                remaining[top]--;
+            }
+
+            if (kind == K_ELEMENT) {
+                top++;
+                if (top == stack.length) {
+                    stack = grow(stack);
+                    remaining = grow(remaining);
+                }
+                stack[top] = (Element) c;
+                remaining[top] = count;
+            }
+
+            // Close the completed elements
+            while ((top >= 0) && (remaining[top] == 0)) {
+                stack[top] = null;
+                top--;
+            }
+        } // while
+
+        return rval;
+    } // to_element()
+
+    /**
+     * Returns the name of the element.
+     */
+    public String get_name() {
+        return (String) refs[code[1]];
+    } // get_name()
+
+    /**
+     * Calls the visitor for each value of the attributes having the
+     * given name and no namespace, in document order. The values are
+     * passed as ranges of the shared text, so no strings are created.
+     */
+    public void scan_attributes(String name, RangeVisitor visitor) {
+        CompactElement[] sources = new CompactElement[4];
+        int[] resume = new int[4];
+        int depth = 0;
+
+        CompactElement cur = this;
+        int pc = 0;
+        while (true) {
+            int[] code = cur.code;
+            if (pc == code.length) {
+                if (depth == 0) {
+                    break;
+                }
+                // Continue after the subtree
+                depth--;
+                cur = sources[depth];
+                sources[depth] = null;
+                pc = resume[depth];
+                continue;
+            } // if: end of the copy
+
+            int kind = code[pc++];
+            switch(kind) {
+            case K_ELEMENT:
+                pc += 2;
+                pc += code[pc] + 1;
+                int count = code[pc++];
+                for (int i = 0; i < count; i++) {
+                    if ((cur.refs[code[pc+1]] == Namespace.NO_NAMESPACE)
+                        && name.equals(cur.refs[code[pc]]))
+                    {
+                        visitor.visit(cur.text, code[pc+3], code[pc+4]);
+                    }
+                    pc += 5;
+                }
+                // The content count
+                pc++;
+                break;
+            case K_SUBTREE:
+                if (depth == sources.length) {
+                    sources = grow(sources);
+                    resume = grow(resume);
+                }
+                sources[depth] = cur;
+                resume[depth] = pc+1;
+                depth++;
+                cur = (CompactElement) cur.refs[code[pc]];
+                pc = 0;
+                break;
+            default:
+                pc += 2*ranges(kind);
+                break;
+            } // switch
+        } // while
+    } // scan_attributes()
+
+    /**
+     * Returns an estimate of the heap used by the copy in bytes,
+     * not counting the shared names, namespaces and subtrees.
+     */
+    public long get_heap_size() {
+        // Headers, fields and array lengths; the text is assumed
+        // to have one byte per character.
+        return 24 + (16 + 4L*code.length) + (16 + 4L*refs.length)
+            + (24 + 16 + text.length());
+    } // get_heap_size()
+
+    /**
+     * Returns the structural hash. Names and namespaces are hashed
+     * by their values, and the shared subtrees by their structure.
+     */
+    @Override
+    public int hashCode() {
+        int h = hash;
+        if (h == 0) {
+            h = Arrays.hashCode(code);
+            for (Object obj : refs) {
+                if (obj instanceof Namespace) {
+                    Namespace ns = (Namespace) obj;
+                    h = 31*h + ns.getPrefix().hashCode();
+                    h = 31*h + ns.getURI().hashCode();
+                } else {
+                    h = 31*h + obj.hashCode();
+                }
+            }
+            h = 31*h + text.hashCode();
+            hash = h;
+        }
+        return h;
+    } // hashCode()
+
+    /**
+     * Returns {@code true} if the other copy has the same structure.
+     * The names, the namespaces and the shared subtrees are compared
+     * by identity, since they are all canonical.
+     */
+    @Override
+    public boolean equals(Object obj) {
+        if (obj == this) {
+            return true;
+        }
+        if ((obj instanceof CompactElement) == false) {
+            return false;
+        }
+        CompactElement other = (CompactElement) obj;
+        if ((hashCode() != other.hashCode())
+            || (refs.length != other.refs.length))
+        {
+            return false;
+        }
+        for (int i = 0; i < refs.length; i++) {
+            if (refs[i] != other.refs[i]) {
+                return false;
+            }
+        }
+        return Arrays.equals(code, other.code) && text.equals(other.text);
+    } // equals()
+
+    // HELPER METHODS
+    //================
+
+    /**
+     * Returns the number of text ranges recorded for a node kind
+     * other than an element or a subtree.
+     */
+    private static int ranges(int kind) {
+        switch(kind) {
+        case K_TEXT:
+        case K_CDATA:
+        case K_COMMENT:
+            return 1;
+        case K_PI:
+            return 2;
+        case K_ENTITYREF:
+            return 3;
+        default:
+            break;
+        } // switch
+        throw new RuntimeException(String.format(
+            "Unexpected node kind: %d", kind));
+    } // ranges()
+
+    private static String get_string(String text, int begin, int end) {
+        if (begin < 0) {
+            return null;
+        }
+        return text.substring(begin, end);
+    } // get_string()
+
+    private static CompactElement[] grow(CompactElement[] array) {
+        CompactElement[] rval = new CompactElement[array.length * 2];
+        System.arraycopy(array, 0, rval, 0, array.length);
+        return rval;
+    } // grow()
+
+    private static Element[] grow(Element[] array) {
+        Element[] rval = new Element[array.length * 2];
+        System.arraycopy(array, 0, rval, 0, array.length);
+        return rval;
+    } // grow()
+
+    private static int[] grow(int[] array) {
+        int[] rval = new int[array.length * 2];
+        System.arraycopy(array, 0, rval, 0, array.length);
+        return rval;
+    } // grow()
+
+    private static String intern_name(String name) {
+        synchronized(g_names) {
+            String rval = g_names.get(name);
+            if (rval == null) {
+                rval = name;
+                g_names.put(rval, rval);
+            }
+            return rval;
+        } // synchronized
+    } // intern_name()
+
+} // class CompactElement
@@ -414,6 +414,45 @@ public class Digest
         return new Digest(algo_name, value);
     } // create()
 
+    /**
+     * Calculates the digest value of an in-memory buffer with the specified
+     * algorithm. This allows a file which has already been read into
+     * memory to be digested without reading it again.
+     *
+     * @param algo_name the name of the algorithm
+     * @param data the buffer containing the contents
+     *
+     * @return byte array containing the digest value
+     *
+     * @throws NoSuchAlgorithmException if the specified algorithm name
+     * is not known.
+     */
+    public static byte[] calculate(String algo_name, byte[] data)
+        throws NoSuchAlgorithmException
+    {
+        // May throw if there is no such algorithm
+        MessageDigest md = MessageDigest.getInstance(algo_name);
+
+        return md.digest(data);
+    } // calculate()
+
+    /**
+     * Creates {@code Digest} objects with initial values calculated
+     * from an in-memory buffer with a specified algorithm.
+     *
+     * @param algo_name the digest algorithm's name
+     * @param data the buffer containing the contents
+     *
+     * @return the resulting Digest object
+     *
+     * @throws NoSuchAlgorithmException See above.
+     */
+    public static Digest create(String algo_name, byte[] data)
+        throws NoSuchAlgorithmException
+    {
+        return new Digest(algo_name, calculate(algo_name, data));
+    } // create()
+
 
 } // class Digest
 
@@ -0,0 +1,341 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.util;
+
+// java core imports
+import java.util.List;
+// jdom imports
+import org.jdom.Element;
+import org.jdom.Content;
+
+/**
+ * Walks an element tree depth-first using an explicit stack, so that
+ * the depth of the tree is not limited by the call stack. The walk is
+ * driven by a {@link Visitor}, which is told when an element is entered
+ * and left, and which can redirect or prune the walk.<p>
+ *
+ * Each element on the stack has a frame holding a value for the visitor,
+ * see {@link #set_value(Object)} and {@link #get_parent_value()}. This
+ * replaces the arguments and the return values of a recursive walk.
+ * The stack is kept between walks, so a walker should be reused;
+ * see {@link #get_local()}. A walker is not thread-safe.
+ */
+public class ElementWalker
+{
+    // AUXILIARY CLASSES
+    //===================
+
+    /**
+     * The callbacks of a walk. The default implementations walk
+     * the whole tree and do nothing else.
+     */
+    public static abstract class Visitor {
+
+        /**
+         * Called when an element is entered, before its content.
+         *
+         * @param w the walker; the frame of the element is on the top
+         * @param elem the element
+         * @return the element whose content is walked next. Normally
+         * this is {@code elem} itself, but it may be another element,
+         * such as the payload of an inclusion-by-xid. If {@code null},
+         * the content is not walked.
+         */
+        public Element enter(ElementWalker w, Element elem) {
+            return elem;
+        } // enter()
+
+        /**
+         * Called for each content of a walked element which is not
+         * an element, in document order with the child elements.
+         */
+        public void content(ElementWalker w, Content c) {
+        } // content()
+
+        /**
+         * Called when an element is left. This is after its content,
+         * or immediately after {@link #enter} if the content was not
+         * walked, in which case {@link ElementWalker#get_source()}
+         * returns {@code null}.
+         */
+        public void leave(ElementWalker w, Element elem) {
+        } // leave()
+
+    } // class Visitor
+
+    // CONSTANTS
+    //===========
+
+    private static final int INITIAL_CAPACITY = 32;
+
+    // CLASS VARIABLES
+    //=================
+
+    /**
+     * Per-thread walkers.
+     */
+    private static final ThreadLocal<ElementWalker> g_local
+        = new ThreadLocal<ElementWalker>();
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The entered elements.
+     */
+    private Element[] elems;
+
+    /**
+     * The elements whose content is walked; {@code null} if not walked.
+     */
+    private Element[] sources;
+
+    /**
+     * The content lists of the sources.
+     */
+    private List<?>[] contents;
+
+    /**
+     * The index of the next content in each list.
+     */
+    private int[] index;
+
+    /**
+     * The values of the visitor.
+     */
+    private Object[] values;
+
+    /**
+     * The index of the top frame, or -1 if the stack is empty.
+     */
+    private int top;
+
+    /**
+     * The greatest index used since the stack was last cleared.
+     */
+    private int used;
+
+    /**
+     * Set when the walk is to be stopped.
+     */
+    private boolean stopped;
+
+    /**
+     * Set during a walk.
+     */
+    private boolean busy;
+
+    // CONSTRUCTORS
+    //==============
+
+    public ElementWalker() {
+        elems = new Element[INITIAL_CAPACITY];
+        sources = new Element[INITIAL_CAPACITY];
+        contents = new List<?>[INITIAL_CAPACITY];
+        index = new int[INITIAL_CAPACITY];
+        values = new Object[INITIAL_CAPACITY];
+        top = -1;
+        used = -1;
+        stopped = false;
+        busy = false;
+    } // ctor
+
+    // CLASS METHODS
+    //===============
+
+    /**
+     * Returns the thread's walker. A new walker is returned, if the
+     * thread's walker is in the middle of a walk.
+     */
+    public static ElementWalker get_local() {
+        ElementWalker rval = g_local.get();
+        if (rval == null) {
+            rval = new ElementWalker();
+            g_local.set(rval);
+        } else if (rval.busy) {
+            rval = new ElementWalker();
+        }
+        return rval;
+    } // get_local()
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Walks the tree under an element. The element itself is entered
+     * and left as well.
+     *
+     * @param root the element where the walk starts
+     * @param visitor the callbacks
+     */
+    public void walk(Element root, Visitor visitor) {
+        if (busy) {
+            throw new RuntimeException(String.format(
+                "The walker is already walking"));
+        }
+        busy = true;
+        stopped = false;
+        try {
+            push(root, visitor);
+            while ((top >= 0) && (stopped == false)) {
+                List<?> list = contents[top];
+                if ((list == null) || (index[top] == list.size())) {
+                    visitor.leave(this, elems[top]);
+                    pop();
+                    continue;
+                }
+                Object obj = list.get(index[top]++);
+                if (obj instanceof Element) {
+                    push((Element) obj, visitor);
+                } else {
+                    visitor.content(this, (Content) obj);
+                }
+            } // while
+        } finally {
+            clear();
+            busy = false;
+        } // try-finally
+    } // walk()
+
+    /**
+     * Stops the walk. The elements on the stack are not left.
+     */
+    public void stop() {
+        stopped = true;
+    } // stop()
+
+    /**
+     * Returns the depth of the top frame. The root is at depth 0.
+     */
+    public int get_depth() {
+        return top;
+    } // get_depth()
+
+    /**
+     * Returns the element whose content is walked in the top frame,
+     * or {@code null} if it is not walked.
+     */
+    public Element get_source() {
+        return sources[top];
+    } // get_source()
+
+    /**
+     * Returns the value of the top frame.
+     */
+    public Object get_value() {
+        return values[top];
+    } // get_value()
+
+    /**
+     * Sets the value of the top frame.
+     */
+    public void set_value(Object value) {
+        values[top] = value;
+    } // set_value()
+
+    /**
+     * Returns the value of the parent frame, or {@code null} at the root.
+     */
+    public Object get_parent_value() {
+        if (top == 0) {
+            return null;
+        }
+        return values[top-1];
+    } // get_parent_value()
+
+    /**
+     * Sets the value of the parent frame. Does nothing at the root.
+     */
+    public void set_parent_value(Object value) {
+        if (top == 0) {
+            return;
+        }
+        values[top-1] = value;
+    } // set_parent_value()
+
+    // HELPER METHODS
+    //================
+
+    private void push(Element elem, Visitor visitor) {
+        top++;
+        if (top == elems.length) {
+            grow();
+        }
+        if (top > used) {
+            used = top;
+        }
+        elems[top] = elem;
+        sources[top] = null;
+        contents[top] = null;
+        index[top] = 0;
+        values[top] = null;
+
+        Element source = visitor.enter(this, elem);
+        if (stopped) {
+            return;
+        }
+        if (source != null) {
+            sources[top] = source;
+            contents[top] = source.getContent();
+        } else {
+            // Not walked; leave immediately
+            visitor.leave(this, elem);
+            pop();
+        }
+    } // push()
+
+    private void pop() {
+        // The references are dropped in clear(); the frame is
+        // overwritten by the next push.
+        top--;
+    } // pop()
+
+    private void grow() {
+        int capacity = elems.length * 2;
+        Element[] new_elems = new Element[capacity];
+        Element[] new_sources = new Element[capacity];
+        List<?>[] new_contents = new List<?>[capacity];
+        int[] new_index = new int[capacity];
+        Object[] new_values = new Object[capacity];
+        System.arraycopy(elems, 0, new_elems, 0, elems.length);
+        System.arraycopy(sources, 0, new_sources, 0, sources.length);
+        System.arraycopy(contents, 0, new_contents, 0, contents.length);
+        System.arraycopy(index, 0, new_index, 0, index.length);
+        System.arraycopy(values, 0, new_values, 0, values.length);
+        elems = new_elems;
+        sources = new_sources;
+        contents = new_contents;
+        index = new_index;
+        values = new_values;
+    } // grow()
+
+    /**
+     * Drops the references held by the stack, so that a reused walker
+     * does not keep the walked trees alive.
+     */
+    private void clear() {
+        for (int i = 0; i <= used; i++) {
+            elems[i] = null;
+            sources[i] = null;
+            contents[i] = null;
+            values[i] = null;
+        }
+        top = -1;
+        used = -1;
+    } // clear()
+
+} // class ElementWalker
@@ -18,7 +18,16 @@ package xmlsnippets.util;
 
 // java core imports
 import java.io.File;
+import java.io.OutputStream;
+import java.io.FileOutputStream;
+import java.io.FileNotFoundException;
 import java.io.IOException;
+// java nio imports
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.AtomicMoveNotSupportedException;
 
 /**
  * Some helper methods for working with Java File objects.
@@ -157,4 +166,85 @@ public class FileHelper {
         return null; // no matching file and no more praent dirs.
     } // discoverFileByAscending()
 
+    /**
+     * Opens a file for writing. Closing the stream forces the written
+     * bytes to the storage device before the file is closed, so that
+     * a temporary copy is complete before it replaces anything.
+     *
+     * @param file the file to write
+     * @return the output stream
+     *
+     * @throws FileNotFoundException If the file cannot be opened.
+     */
+    public static OutputStream newSyncedOutputStream(File file)
+        throws FileNotFoundException
+    {
+        return new FileOutputStream(file) {
+            private boolean closed = false;
+
+            @Override
+            public void close() throws IOException {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                try {
+                    getFD().sync();
+                } finally {
+                    super.close();
+                } // try-finally
+            } // close()
+        }; // new FileOutputStream()
+    } // newSyncedOutputStream()
+
+    /**
+     * Moves a file over another file, replacing it. The move is atomic
+     * if the file system supports it; this is used to replace a file
+     * with a completely written temporary copy. The directory is then
+     * forced to the storage device too, where that is possible, so that
+     * the move itself survives a crash.
+     *
+     * @param source the file to move
+     * @param target the file to replace
+     *
+     * @throws IOException If the move fails.
+     */
+    public static void replaceFile(File source, File target)
+        throws IOException
+    {
+        try {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch(AtomicMoveNotSupportedException ex) {
+            Files.move(source.toPath(), target.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+        } // try-catch
+        syncDirectory(target.getAbsoluteFile().getParentFile());
+    } // replaceFile()
+
+    /**
+     * Forces the entries of a directory to the storage device. Not every
+     * platform can open a directory; there this does nothing.
+     */
+    private static void syncDirectory(File dir) {
+        if (dir == null) {
+            return;
+        }
+        FileChannel channel = null;
+        try {
+            channel = FileChannel.open(dir.toPath(), StandardOpenOption.READ);
+            channel.force(true);
+        } catch(IOException ex) {
+            // Not supported
+        } finally {
+            if (channel != null) {
+                try {
+                    channel.close();
+                } catch(IOException ignored) {
+                }
+            }
+        } // try-catch-finally
+    } // syncDirectory()
+
 } // FileHelper
\ No newline at end of file
@@ -18,10 +18,13 @@ package xmlsnippets.util;
 
 // java core imports
 import java.util.Map;
+import java.util.HashMap;
 import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.ArrayList;
 import java.util.LinkedList;
 import java.util.Set;
+import java.util.Collection;
 // jdom imports
 import org.jdom.Element;
 import org.jdom.Namespace;
@@ -107,40 +110,15 @@ public class NamespacesBubbler {
             map.put(c, rval);
         } // for
 
-        // Create a set containing all different namespaces in the children
-        List<Namespace> set = new LinkedList<Namespace>();
+        // Create a table containing all different namespaces in the children
+        NamespaceTable set = new NamespaceTable();
 
-        for (Map.Entry<Element, List<Namespace>> entry
-            : map.entrySet())
-        {
-            for (Namespace a : entry.getValue()) {
-                // Pick these into local variables for convenience
-                // and to avoid frequently calling the member methods..
-                String uri = a.getURI();
-                String prefix = a.getPrefix();
-
-                boolean already = false;
-
-                for (Namespace b : set) {
-                    boolean uri_equal = uri.equals(b.getURI());
-                    boolean prefix_equal = prefix.equals(b.getPrefix());
-
-                    if (uri_equal & prefix_equal) {
-                        // already included
-                        already = true;
-                        break;
-                    }
-                } // for: all total
-
-                if (already == false) {
-                    set.add(a);
-                } // if: not already
+        for (List<Namespace> list : map.values()) {
+            for (Namespace a : list) {
+                set.add(a);
             } // for each ns
         } // for
 
-        // The list "set" contains now all namespaces present in all
-        // children. Next the conflicting ones need to be singled out.
-
         // Return namespaces for this element
         List<Namespace> pset = new LinkedList<Namespace>();
         Namespace pns = element.getNamespace();
@@ -154,60 +132,22 @@ public class NamespacesBubbler {
 
         // The list "pset" contains now all namespaces present
         // in the parent element itself.
+        NamespaceTable ptable = new NamespaceTable(pset);
 
-        List<Namespace> set2 = new LinkedList<Namespace>();
-
-        for (Namespace ns1 : set) {
-            String uri = ns1.getURI();
-            String prefix = ns1.getPrefix();
-
-            boolean conflicting = false;
-            for (Namespace ns2 : set) {
-                if (ns1 == ns2) {
-                    continue;
-                }
-                boolean uri_eq = uri.equals(ns2.getURI());
-                boolean p_eq = prefix.equals(ns2.getPrefix());
-
-                if (p_eq != uri_eq) {
-                    // Conflict. Drop both ns1 and ns2.
-                    set2.add(ns1);
-                    conflicting = true;
-                    // The ns2 will come..
-                    break;
-                } // if
-            } // for
+        // Single out the namespaces which can be propagated upwards
+        // without conflicts. A namespace conflicts, if some other
+        // namespace in the children or in the parent element has either
+        // the same prefix or the same URI, but not both.
+        NamespaceTable bubble = new NamespaceTable();
 
-            if (conflicting) {
+        for (Namespace ns1 : set.get_namespaces()) {
+            if (set.contains_similar(ns1) || ptable.contains_similar(ns1)) {
+                // Conflict. It cannot be propagated more upwards.
                 continue;
             }
-
-            // Make sure that ns1 does not conflict with the parent either
-            for (Namespace ns2 : pset) {
-                if (ns1 == ns2) {
-                    continue;
-                }
-                boolean uri_eq = uri.equals(ns2.getURI());
-                boolean p_eq = prefix.equals(ns2.getPrefix());
-
-                if (p_eq != uri_eq) {
-                    // Conflict. Drop both ns1 only; it cannot be
-                    // propagated more upwards.
-                    set2.add(ns1);
-                    conflicting = true;
-                    break;
-                } // if
-            }
+            bubble.add(ns1);
         } // for
 
-        // the list "set2" is now a list of all conflicting nodes
-        // in the children
-        set.removeAll(set2);
-        // At this point:
-        //      set:  a list of all namespaces which can be propagated
-        //            upwards without conflicts.
-        //      set2: a list of all namespaces which are conflicting
-
         for (Map.Entry<Element, List<Namespace>> entry
             : map.entrySet())
         {
@@ -216,22 +156,9 @@ public class NamespacesBubbler {
             Element child = entry.getKey();
 
             for (Namespace ns : list) {
-                // ------- Find if ns belongs in set
-                boolean contains = false;
-                String uri = ns.getURI();
-                String p = ns.getPrefix();
-                for (Namespace x : set) {
-                    boolean uri_eq = uri.equals(x.getURI());
-                    boolean p_eq = p.equals(x.getPrefix());
-                    if (p_eq && uri_eq) {
-                        contains = true;
-                        break;
-                    }
-                } // for
-                // if "ns" is contained in "set",
+                // if "ns" is contained in "bubble",
                 // it can be removed from the child
-
-                if (contains) {
+                if (bubble.contains_same(ns)) {
                     // Namespace "ns" can be propagated
                     child.removeNamespaceDeclaration(ns);
                 } // if: contains
@@ -241,20 +168,8 @@ public class NamespacesBubbler {
         // Add all not in pset to the parent
         List<Namespace> rval = new LinkedList<Namespace>();
 
-        for (Namespace ns : set) {
-            String uri = ns.getURI();
-            String p = ns.getPrefix();
-            boolean contains = false;
-            for (Namespace x : pset) {
-                boolean uri_eq = uri.equals(x.getURI());
-                boolean p_eq = p.equals(x.getPrefix());
-                if (p_eq && uri_eq) {
-                    contains = true;
-                    break;
-                }
-            } // for
-
-            if (!contains) {
+        for (Namespace ns : bubble.get_namespaces()) {
+            if (ptable.contains_same(ns) == false) {
                 element.addNamespaceDeclaration(ns);
                 rval.add(ns);
             }
@@ -302,6 +217,119 @@ public class NamespacesBubbler {
         } // ctor
     } // class Results
 
+    /**
+     * A set of namespaces where both the prefix and the URI are significant.
+     * Since {@code Namespace.equals()} accounts only for the URI, the
+     * namespaces are hashed by the prefix and the URI together. The number
+     * of namespaces with each prefix and with each URI is kept too, so that
+     * both {@link #contains_same(Namespace)} and
+     * {@link #contains_similar(Namespace)} take a constant time. These
+     * replace the linear {@link NamespacesBubbler#contains_same_ns} and
+     * {@link NamespacesBubbler#contains_similar_ns} on large sets.<p>
+     *
+     * The namespaces are kept in the order they were added.
+     */
+    public static class NamespaceTable {
+
+        // MEMBER VARIABLES
+        //==================
+
+        /**
+         * The namespaces by prefix and URI.
+         */
+        private Map<String, Namespace> pairs;
+
+        /**
+         * The number of namespaces with each prefix.
+         */
+        private Map<String, Integer> prefixes;
+
+        /**
+         * The number of namespaces with each URI.
+         */
+        private Map<String, Integer> uris;
+
+        // CONSTRUCTORS
+        //==============
+
+        public NamespaceTable() {
+            pairs = new LinkedHashMap<String, Namespace>();
+            prefixes = new HashMap<String, Integer>();
+            uris = new HashMap<String, Integer>();
+        } // ctor
+
+        public NamespaceTable(List<Namespace> list) {
+            this();
+            for (Namespace ns : list) {
+                add(ns);
+            }
+        } // ctor
+
+        // OTHER METHODS
+        //===============
+
+        /**
+         * Adds the namespace unless the same one is already there.
+         *
+         * @return {@code true} if the namespace was added.
+         */
+        public boolean add(Namespace ns) {
+            String key = get_key(ns);
+            if (pairs.containsKey(key)) {
+                return false;
+            }
+            pairs.put(key, ns);
+            increment(prefixes, ns.getPrefix());
+            increment(uris, ns.getURI());
+            return true;
+        } // add()
+
+        /**
+         * The same as {@link NamespacesBubbler#contains_same_ns}.
+         */
+        public boolean contains_same(Namespace ns) {
+            return pairs.containsKey(get_key(ns));
+        } // contains_same()
+
+        /**
+         * The same as {@link NamespacesBubbler#contains_similar_ns}.
+         */
+        public boolean contains_similar(Namespace ns) {
+            // The namespace itself is not similar to itself.
+            int same = contains_same(ns) ? 1 : 0;
+            return (get_count(prefixes, ns.getPrefix()) > same)
+                || (get_count(uris, ns.getURI()) > same);
+        } // contains_similar()
+
+        /**
+         * Returns the namespaces in the order they were added.
+         */
+        public Collection<Namespace> get_namespaces() {
+            return pairs.values();
+        } // get_namespaces()
+
+        public int size() {
+            return pairs.size();
+        } // size()
+
+        // HELPER METHODS
+        //================
+
+        private static String get_key(Namespace ns) {
+            // A prefix cannot contain a colon.
+            return ns.getPrefix() + ":" + ns.getURI();
+        } // get_key()
+
+        private static void increment(Map<String, Integer> map, String s) {
+            map.put(s, get_count(map, s) + 1);
+        } // increment()
+
+        private static int get_count(Map<String, Integer> map, String s) {
+            Integer count = map.get(s);
+            return (count != null) ? count.intValue() : 0;
+        } // get_count()
+    } // class NamespaceTable
+
 
     /**
      * Provided for convenience.
@@ -328,56 +356,75 @@ public class NamespacesBubbler {
         Element element,
         List<Namespace> list
     ) {
+        if (list == null) {
+            list = new LinkedList<Namespace>();
+        }
 
-        // Breadth-first
+        NamespaceTable table = new NamespaceTable(list);
+        collect_namespaces(element, table, null);
 
-        List<Namespace> pset = new LinkedList<Namespace>();
+        // Append the new ones
+        int i = 0;
+        for (Namespace ns : table.get_namespaces()) {
+            if (i >= list.size()) {
+                list.add(ns);
+            }
+            i++;
+        } // for
+
+        return list;
+    } // collect_namespaces()
 
-        // First: collect all namespaces present in the current element
+    /**
+     * Collects the namespaces into a table. Optionally, the elements
+     * which may have namespace declarations to remove are collected too,
+     * so that the removal need not walk the whole tree again.
+     *
+     * @param element the element from which the namespaces are recursively
+     * collected.
+     * @param table the collected namespaces
+     * @param declaring the elements having a prefixed namespace or
+     * additional namespaces, or {@code null}
+     */
+    private static void collect_namespaces(
+        Element element,
+        NamespaceTable table,
+        List<Element> declaring
+    ) {
+        // Breadth-first
+        boolean declares = false;
 
         // The namespace of the XML element itself, or null if none.
         Namespace pns = element.getNamespace();
         if (pns != null) {
-            pset.add(pns);
+            // Ignore default namespaces.
+            if (pns.getPrefix().equals("") == false) {
+                table.add(pns);
+                declares = true;
+            }
         }
 
         // The additional namespace declarations present in this XML element.
         for (Object obj : element.getAdditionalNamespaces()) {
-            pset.add((Namespace) obj);
+            Namespace ns = (Namespace) obj;
+            // Ignore default namespaces.
+            if (ns.getPrefix().equals("") == false) {
+                table.add(ns);
+            }
+            declares = true;
         } // for
 
-        // Second: insert all those namespaces into the master list
-        // which aren't already there.
-
-        if (list == null) {
-            list = new LinkedList<Namespace>();
+        if (declares && (declaring != null)) {
+            declaring.add(element);
         }
 
-        for (Namespace ns : pset) {
-            // Ignore default namespaces.
-            if (ns.getPrefix().equals("")) {
-                continue;
-            } // if: default ns
-
-            // If the exactly same ns is already in the return list,
-            // do nothing.
-            if (contains_same_ns(list, ns)) {
-                continue;
-            } // if: already there
-
-            // Otherwise, good to add
-            list.add(ns);
-        } // for: each ns defined in the current elemenet
-
-        // Then pass the list to all children to populate
+        // Then pass the table to all children to populate
         for (Object obj : element.getContent()) {
             if ((obj instanceof Element) == false) {
                 continue;
             } // if
-            list = collect_namespaces((Element) obj, list);
+            collect_namespaces((Element) obj, table, declaring);
         } // for: each child
-
-        return list;
     } // collect_namespaces()
 
     /**
@@ -395,22 +442,29 @@ public class NamespacesBubbler {
         // The return variable
         NamespacesBubbler.Results rval = new NamespacesBubbler.Results();
 
-        // Collect all namespaces
-        List<Namespace> all = collect_namespaces(element, null);
+        // Collect all namespaces, and the elements declaring them.
+        NamespaceTable all = new NamespaceTable();
+        List<Element> declaring = new ArrayList<Element>();
+        collect_namespaces(element, all, declaring);
 
         // Partition the namespaces
-        for (Namespace ns : all) {
+        NamespaceTable bubble = new NamespaceTable();
+        for (Namespace ns : all.get_namespaces()) {
             // Not equal but similar ones are put into conflict category,
             // and others into bubble.
-            if (contains_similar_ns(all, ns)) {
+            if (all.contains_similar(ns)) {
                 rval.conflict.add(ns);
             } else {
                 rval.bubble.add(ns);
+                bubble.add(ns);
             } // if-else
         } // for: each namespace
 
-        // Now bubble those that can be bubbled.
-        remove_namespaces(element, rval.bubble);
+        // Now bubble those that can be bubbled. Only the elements
+        // declaring namespaces can have something to remove.
+        for (Element e : declaring) {
+            remove_declarations(e, bubble);
+        } // for
 
         // And populate the current element..
         for (Namespace ns : rval.bubble) {
@@ -431,36 +485,60 @@ public class NamespacesBubbler {
     public static void remove_namespaces(
         Element element,
         List<Namespace> list
+    ) {
+        remove_namespaces(element, new NamespaceTable(list));
+    } // remove_namespaces()
+
+    private static void remove_namespaces(
+        Element element,
+        NamespaceTable table
     ) {
         // Depth first
         for (Object obj : element.getContent()) {
             if ((obj instanceof Element) == false) {
                 continue;
             }
-            remove_namespaces((Element) obj, list);
+            remove_namespaces((Element) obj, table);
         } // for
 
+        remove_declarations(element, table);
+    } // remove_namespaces()
+
+    /**
+     * Removes the specified namespaces from a single element.
+     */
+    private static void remove_declarations(
+        Element element,
+        NamespaceTable table
+    ) {
         // Remove all specified namespaces. Done in a manner which is
         // independent of the referential equivalence. Also, this is independent
         // of the Namespace objects equivalence, which accounts only for URI.
 
         Namespace pns = element.getNamespace();
         if (pns != null) {
-            if (contains_same_ns(list, pns)) {
+            if (table.contains_same(pns)) {
                 element.removeNamespaceDeclaration(pns);
             }
         } // if
 
-        List<Namespace> del = new LinkedList<Namespace>();
+        List<Namespace> del = null;
         for (Object obj : element.getAdditionalNamespaces()) {
             Namespace ns = (Namespace) obj;
-            if (contains_same_ns(list, ns)) {
+            if (table.contains_same(ns)) {
                 // Schedule for deletion; cannot delete immedately,
                 // because it would be concurrent modification
+                if (del == null) {
+                    del = new LinkedList<Namespace>();
+                }
                 del.add(ns);
             }
         } // for
 
+        if (del == null) {
+            return;
+        }
+
         // Execute deletion
         for (Namespace ns : del) {
             // from jdom's javadoc: "If the declaration is not present,
@@ -468,7 +546,7 @@ public class NamespacesBubbler {
             element.removeNamespaceDeclaration(ns);
         } // for
 
-    } // remove_namespaces()
+    } // remove_declarations()
 
     /**
      * Returns true if the set contains exactly the same {@code Namespace}.
@@ -479,7 +557,7 @@ public class NamespacesBubbler {
      * Otherwise {@code false} is returned.
      *
      */
-    private static boolean contains_same_ns(
+    public static boolean contains_same_ns(
         List<Namespace> set,
         Namespace ns
     ) {
@@ -516,7 +594,7 @@ public class NamespacesBubbler {
      * Otherwise {@code false} is returned.
      *
      */
-    private static boolean contains_similar_ns(
+    public static boolean contains_similar_ns(
         List<Namespace> set,
         Namespace ns
     ) {
@@ -0,0 +1,155 @@
+//*******************************{begin:header}******************************//
+//               fida - https://code.google.com/p/xml-snippets/
+//***************************************************************************//
+//
+//      fida: an XML Revision Tracking and Version Control Software.
+//
+//      Copyright (C) 2012-2014 Jani Hautamaki <jani.hautamaki@hotmail.com>
+//
+//      Licensed under the terms of GNU General Public License v3.
+//
+//      You should have received a copy of the GNU General Public License v3
+//      along with this program as the file LICENSE.txt; if not, please see
+//      http://www.gnu.org/licenses/gpl-3.0.html
+//
+//********************************{end:header}*******************************//
+
+package xmlsnippets.util;
+
+// java core imports
+import java.util.Map;
+import java.util.HashMap;
+
+/**
+ * A hash-consing table of compact subtrees. Structurally equal subtrees
+ * are replaced by a single shared copy, which makes the unchanged parts
+ * of the successive revisions of a payload share their memory. The table
+ * also counts how much is shared.<p>
+ *
+ * The table is thread-safe.
+ */
+public class SubtreeTable
+{
+    // CONSTANTS
+    //===========
+
+    /**
+     * The estimated size of a table entry in bytes.
+     */
+    private static final int ENTRY_SIZE = 48;
+
+    // MEMBER VARIABLES
+    //==================
+
+    /**
+     * The shared copies, each mapped to itself.
+     */
+    private Map<CompactElement, CompactElement> table;
+
+    /**
+     * Number of payloads compacted.
+     */
+    private int payloads;
+
+    /**
+     * Number of subtrees looked up, including the duplicates.
+     */
+    private long occurrences;
+
+    /**
+     * The estimated heap of the payloads had they not been shared.
+     */
+    private long unshared_size;
+
+    /**
+     * The estimated heap of the shared payloads, not counting
+     * the shared subtrees.
+     */
+    private long payload_size;
+
+    /**
+     * The estimated heap of the shared subtrees.
+     */
+    private long subtree_size;
+
+    // CONSTRUCTORS
+    //==============
+
+    public SubtreeTable() {
+        table = new HashMap<CompactElement, CompactElement>();
+        payloads = 0;
+        occurrences = 0;
+        unshared_size = 0;
+        payload_size = 0;
+        subtree_size = 0;
+    } // ctor
+
+    // OTHER METHODS
+    //===============
+
+    /**
+     * Records the estimated sizes of a payload. See
+     * {@link CompactElement#compact(org.jdom.Element, SubtreeTable)}.
+     *
+     * @param unshared_size the size had the subtrees not been shared
+     * @param size the size, not counting the shared subtrees
+     */
+    public synchronized void count_payload(long unshared_size, long size) {
+        payloads++;
+        this.unshared_size += unshared_size;
+        payload_size += size;
+    } // count_payload()
+
+    /**
+     * Returns the shared copy equal to the subtree. The subtree
+     * becomes the shared copy, if there is none yet.
+     */
+    public synchronized CompactElement intern(CompactElement subtree) {
+        occurrences++;
+        CompactElement rval = table.get(subtree);
+        if (rval == null) {
+            rval = subtree;
+            table.put(rval, rval);
+            subtree_size += rval.get_heap_size() + ENTRY_SIZE;
+        }
+        return rval;
+    } // intern()
+
+    /**
+     * Returns the number of shared subtrees.
+     */
+    public synchronized int size() {
+        return table.size();
+    } // size()
+
+    /**
+     * Returns the number of payloads compacted.
+     */
+    public synchronized int get_payloads() {
+        return payloads;
+    } // get_payloads()
+
+    /**
+     * Returns the number of subtrees looked up, including duplicates.
+     */
+    public synchronized long get_occurrences() {
+        return occurrences;
+    } // get_occurrences()
+
+    /**
+     * Returns the estimated heap of the payloads had they not been
+     * shared, in bytes.
+     */
+    public synchronized long get_unshared_size() {
+        return unshared_size;
+    } // get_unshared_size()
+
+    /**
+     * Returns the estimated heap of the shared payloads, including
+     * the shared subtrees and the table, in bytes.
+     */
+    public synchronized long get_shared_size() {
+        return payload_size + subtree_size;
+    } // get_shared_size()
+
+} // class SubtreeTable
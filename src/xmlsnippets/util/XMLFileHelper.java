@@ -18,39 +18,117 @@ package xmlsnippets.util;
 
 // jdom imports
 import org.jdom.Document;
+import org.jdom.Element;
 import org.jdom.JDOMException;
 import org.jdom.input.SAXBuilder;
+import org.xml.sax.InputSource;
+import org.xml.sax.XMLReader;
 import org.jdom.output.XMLOutputter;
 import org.jdom.output.Format;
 // java core imports
 import java.io.File;
 import java.io.OutputStreamWriter;
 import java.io.FileOutputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.FileNotFoundException;
 import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.DigestOutputStream;
+import java.security.NoSuchAlgorithmException;
 
 public class XMLFileHelper
 {
+    // AUXILIARY CLASSES
+    //===================
+
+    /**
+     * A {@code SAXBuilder} which reuses its parser, but which does not
+     * keep the last document alive. The reused parser would otherwise
+     * hold the content handler, and the handler the document, until
+     * the next parse. All {@code build()} variants delegate to
+     * {@link #build(InputSource)}.
+     */
+    private static class ReusingSAXBuilder extends SAXBuilder {
+        private XMLReader parser = null;
+
+        @Override
+        protected XMLReader createParser()
+            throws JDOMException
+        {
+            parser = super.createParser();
+            return parser;
+        } // createParser()
+
+        @Override
+        public Document build(InputSource in)
+            throws JDOMException, IOException
+        {
+            try {
+                return super.build(in);
+            } finally {
+                release();
+            }
+        } // build()
+
+        /**
+         * Drops the handlers from the parser. They are set again
+         * when the parser is configured for the next parse.
+         */
+        private void release() {
+            if (parser == null) {
+                return;
+            }
+            parser.setContentHandler(null);
+            parser.setDTDHandler(null);
+            try {
+                parser.setProperty(
+                    "http://xml.org/sax/properties/lexical-handler", null);
+                parser.setProperty(
+                    "http://xml.org/sax/properties/declaration-handler", null);
+            } catch(Exception ex) {
+                // Not supported by the parser; nothing is kept then
+            } // try-catch
+        } // release()
+    } // class ReusingSAXBuilder
+
+    // CONSTANTS
+    //===========
+
+    /**
+     * Suffix of the temporary file used by an atomic write.
+     */
+    public static final String TEMP_SUFFIX = ".tmp";
 
     // CLASS VARIABLES
     //=================
 
+    // The parser and the outputters are not thread-safe. Each thread
+    // gets its own instances, so that independent repositories can be
+    // read and written concurrently.
+
     /**
-     * Singleton SAXBuilder object for verbatim parse
+     * Per-thread SAXBuilder object for verbatim parse
      */
-    private static SAXBuilder g_saxbuilder = null;
+    private static final ThreadLocal<SAXBuilder> g_saxbuilder
+        = new ThreadLocal<SAXBuilder>();
 
     /**
-     * Singleton XMLOutputter object for the normalized and indented
+     * Per-thread XMLOutputter object for the normalized and indented
      * output
      */
-    private static XMLOutputter g_formatting_xmloutputter = null;
+    private static final ThreadLocal<XMLOutputter> g_formatting_xmloutputter
+        = new ThreadLocal<XMLOutputter>();
 
     /**
-     * Singleton XMLOutputter object for the verbatim output
+     * Per-thread XMLOutputter object for the verbatim output
      */
-    private static XMLOutputter g_verbatim_xmloutputter = null;
+    private static final ThreadLocal<XMLOutputter> g_verbatim_xmloutputter
+        = new ThreadLocal<XMLOutputter>();
 
     // CONSTRUCTORS
     //==============
@@ -70,7 +148,7 @@ public class XMLFileHelper
      * @return the configured {@code SAXBuilder} object.
      */
     private static SAXBuilder new_saxbuilder() {
-        SAXBuilder saxbuilder = new SAXBuilder();
+        SAXBuilder saxbuilder = new ReusingSAXBuilder();
 
         // No validation; gives a speedup.
         saxbuilder.setFeature("http://xml.org/sax/features/validation", false);
@@ -88,17 +166,19 @@ public class XMLFileHelper
     } // new_saxbuilder()
 
     /**
-     * Returns the common {@code SAXBuilder} used to parse all input
+     * Returns the thread's {@code SAXBuilder} used to parse all input
      * documents. The instance is created and initialized, if neccessary.
      *
-     * @return the singleton {@code SAXBuilder}
+     * @return the thread's {@code SAXBuilder}
      */
     private static SAXBuilder get_saxbuilder() {
-        if (g_saxbuilder == null) {
+        SAXBuilder rval = g_saxbuilder.get();
+        if (rval == null) {
             // Instantiate
-            g_saxbuilder = new_saxbuilder();
+            rval = new_saxbuilder();
+            g_saxbuilder.set(rval);
         } // if
-        return g_saxbuilder;
+        return rval;
     } // get_saxbuilder()
 
     /**
@@ -108,6 +188,18 @@ public class XMLFileHelper
      * @return the configured {@code XMLOutputter} object.
      */
     private static XMLOutputter new_formatting_xmloutputter() {
+        // Instantiate with the configured Format object fmt
+        return new XMLOutputter(new_formatting_format());
+    } // new_formatting_xmloutputter();
+
+    /**
+     * Creates the {@code Format} used by the indenting and normalizing
+     * output. Writers which produce the same output without an
+     * {@code XMLOutputter} use this too.
+     *
+     * @return a new configured {@code Format} object.
+     */
+    public static Format new_formatting_format() {
         // Returns a new Format object that performs no whitespace changes,
         // uses the UTF-8 encoding, doesn't expand empty elements, includes
         // the declaration and encoding, and uses the default entity escape
@@ -118,10 +210,8 @@ public class XMLFileHelper
         // Left and right trim whitespaces plus normalize
         // any consequetive internal whitepaces to a single whitespace.
         fmt.setTextMode(Format.TextMode.NORMALIZE);
-
-        // Instantiate with the configured Format object fmt
-        return new XMLOutputter(fmt);
-    } // new_formatting_xmloutputter();
+        return fmt;
+    } // new_formatting_format()
 
     /**
      * Instantiates and configures a {@code XMLOutputter} object
@@ -130,40 +220,53 @@ public class XMLFileHelper
      * @return the configured {@code XMLOutputter} object.
      */
     private static XMLOutputter new_verbatim_xmloutputter() {
+        // Instantiate with the configured Format object fmt
+        return new XMLOutputter(new_verbatim_format());
+    } // new_verbatim_xmloutputter();
+
+    /**
+     * Creates the {@code Format} used by the verbatim output. Writers
+     * which produce the same output without an {@code XMLOutputter}
+     * use this too.
+     *
+     * @return a new configured {@code Format} object.
+     */
+    public static Format new_verbatim_format() {
         // Returns a new Format object that performs no whitespace changes,
         // uses the UTF-8 encoding, doesn't expand empty elements, includes
         // the declaration and encoding, and uses the default entity escape
         // strategy.
-        Format fmt = Format.getRawFormat();
-
-        // Instantiate with the configured Format object fmt
-        return new XMLOutputter(fmt);
-    } // new_verbatim_xmloutputter();
+        return Format.getRawFormat();
+    } // new_verbatim_format()
 
     /**
-     * Returns the singleton verbatim {@code XMLOutputter} object.
+     * Returns the thread's verbatim {@code XMLOutputter} object.
      *
      * @return the verbatim {@code XMLOutputter}.
      */
     private static XMLOutputter get_verbatim_xmloutputter() {
-        if (g_verbatim_xmloutputter == null) {
+        XMLOutputter rval = g_verbatim_xmloutputter.get();
+        if (rval == null) {
             // Instantiate
-            g_verbatim_xmloutputter = new_verbatim_xmloutputter();
+            rval = new_verbatim_xmloutputter();
+            g_verbatim_xmloutputter.set(rval);
         } // if
-        return g_verbatim_xmloutputter;
+        return rval;
     } // get_verbatim_xmloutputter()
 
     /**
-     * Returns the singleton indenting and normalizing {@code XMLOutputter}
+     * Returns the thread's indenting and normalizing {@code XMLOutputter}
      * object.
      *
      * @return the indenting and normalizing {@code XMLOutputter}.
      */
     private static XMLOutputter get_formatting_xmloutputter() {
-        if (g_formatting_xmloutputter == null) {
-            g_formatting_xmloutputter = new_formatting_xmloutputter();
+        XMLOutputter rval = g_formatting_xmloutputter.get();
+        if (rval == null) {
+            rval = new_formatting_xmloutputter();
+            g_formatting_xmloutputter.set(rval);
         } // if
-        return g_formatting_xmloutputter;
+        return rval;
     } // get_formatting_xmloutputter()
 
     /**
@@ -214,6 +317,113 @@ public class XMLFileHelper
         return doc;
     } // deserialize_document()
 
+    /**
+     * Parses an in-memory copy of a computer file into JDOM's
+     * {@code Document} object. The file is used only as the system id
+     * for resolving relative URIs; it is not read again.
+     *
+     * @param data the contents of the file
+     * @param file the file the contents were read from
+     * @return the parsed JDOM {@code Document} object.
+     */
+    public static Document deserialize_document(
+        byte[] data,
+        File file
+    )
+        throws JDOMException, IOException
+    {
+        SAXBuilder saxbuilder = get_saxbuilder();
+
+        InputStream is = new ByteArrayInputStream(data);
+        return saxbuilder.build(is, file.toURI().toString());
+    } // deserialize_document()
+
+    /**
+     * Parses a byte stream into JDOM's {@code Document} object.
+     * The stream is not closed.
+     *
+     * @param is the input stream
+     * @param system_id the system id for resolving relative URIs,
+     * or {@code null}
+     * @return the parsed JDOM {@code Document} object.
+     */
+    public static Document deserialize_document(
+        InputStream is,
+        String system_id
+    )
+        throws JDOMException, IOException
+    {
+        SAXBuilder saxbuilder = get_saxbuilder();
+        if (system_id == null) {
+            return saxbuilder.build(is);
+        }
+        return saxbuilder.build(is, system_id);
+    } // deserialize_document()
+
+    /**
+     * Parses a character stream into JDOM's {@code Document} object.
+     * The stream is not closed.
+     *
+     * @param reader the input stream
+     * @param system_id the system id for resolving relative URIs,
+     * or {@code null}
+     * @return the parsed JDOM {@code Document} object.
+     */
+    public static Document deserialize_document(
+        Reader reader,
+        String system_id
+    )
+        throws JDOMException, IOException
+    {
+        SAXBuilder saxbuilder = get_saxbuilder();
+        if (system_id == null) {
+            return saxbuilder.build(reader);
+        }
+        return saxbuilder.build(reader, system_id);
+    } // deserialize_document()
+
+    /**
+     * Reads the whole contents of a computer file into memory.
+     * The contents can then be both digested and parsed without
+     * reading the file twice.
+     *
+     * @param file the input file
+     * @return the contents of the file
+     */
+    public static byte[] read_file(
+        File file
+    )
+        throws FileNotFoundException, IOException
+    {
+        long length = file.length();
+        if (length > Integer.MAX_VALUE) {
+            throw new IOException(String.format(
+                "%s: file too large", file.getPath()));
+        }
+
+        byte[] rval = new byte[(int) length];
+        FileInputStream fis = new FileInputStream(file);
+        try {
+            int offset = 0;
+            while (offset < rval.length) {
+                int nread = fis.read(rval, offset, rval.length-offset);
+                if (nread == -1) {
+                    throw new IOException(String.format(
+                        "%s: file truncated while reading", file.getPath()));
+                }
+                offset += nread;
+            } // while
+            if (fis.read() != -1) {
+                throw new IOException(String.format(
+                    "%s: file grew while reading", file.getPath()));
+            }
+        } finally {
+            fis.close();
+        } // try-finally
+
+        return rval;
+    } // read_file()
+
     /**
      * Serializes the given XML document into a file without modifying the XML
      * data contents.
@@ -234,6 +444,133 @@ public class XMLFileHelper
         writer.close();
     } // serialize_document_verbatim()
 
+    /**
+     * Serializes the given XML document into a file without modifying the
+     * XML data contents, and calculates the digest of the written bytes
+     * while writing (digest-on-write). The file need not be read back
+     * to obtain its digest.
+     *
+     * @param doc the document to be serialized
+     * @param file the output file
+     * @param algo_name the digest algorithm's name
+     * @return the digest of the written file
+     */
+    public static Digest serialize_document_verbatim(
+        Document doc,
+        File file,
+        String algo_name
+    )
+        throws FileNotFoundException, UnsupportedEncodingException,
+            IOException, NoSuchAlgorithmException
+    {
+        return serialize_document_verbatim(
+            doc, new FileOutputStream(file), algo_name);
+    } // serialize_document_verbatim()
+
+    /**
+     * Serializes the given XML document into a stream without modifying
+     * the XML data contents, and calculates the digest of the written
+     * bytes while writing. The stream is closed.
+     *
+     * @param doc the document to be serialized
+     * @param os the output stream
+     * @param algo_name the digest algorithm's name
+     * @return the digest of the written bytes
+     */
+    public static Digest serialize_document_verbatim(
+        Document doc,
+        OutputStream os,
+        String algo_name
+    )
+        throws UnsupportedEncodingException, IOException,
+            NoSuchAlgorithmException
+    {
+        XMLOutputter xmloutputter = get_verbatim_xmloutputter();
+
+        MessageDigest md = MessageDigest.getInstance(algo_name);
+        DigestOutputStream dos = new DigestOutputStream(os, md);
+
+        OutputStreamWriter writer = new OutputStreamWriter(
+            dos, xmloutputter.getFormat().getEncoding());
+        try {
+            xmloutputter.output(doc, writer);
+        } finally {
+            writer.close();
+        } // try-finally
+
+        return new Digest(algo_name, md.digest());
+    } // serialize_document_verbatim()
+
+    /**
+     * Same as {@link #serialize_document_verbatim(Document, File, String)},
+     * but the document is first written into a temporary file next to
+     * the output file, which is forced to the disk and then moved over
+     * the output file. Either the old or the new contents are left,
+     * never a partial file.
+     *
+     * @param doc the document to be serialized
+     * @param file the output file
+     * @param algo_name the digest algorithm's name
+     * @return the digest of the written file
+     */
+    public static Digest serialize_document_atomic(
+        Document doc,
+        File file,
+        String algo_name
+    )
+        throws FileNotFoundException, UnsupportedEncodingException,
+            IOException, NoSuchAlgorithmException
+    {
+        File tmp = new File(file.getPath() + TEMP_SUFFIX);
+        Digest rval = null;
+        try {
+            rval = serialize_document_verbatim(
+                doc, FileHelper.newSyncedOutputStream(tmp), algo_name);
+            FileHelper.replaceFile(tmp, file);
+        } finally {
+            // Does nothing if the file was moved.
+            tmp.delete();
+        } // try-finally
+        return rval;
+    } // serialize_document_atomic()
+
+    /**
+     * Calculates the digest the given XML document would have if it were
+     * serialized verbatim. Nothing is written anywhere.
+     *
+     * @param doc the document
+     * @param algo_name the digest algorithm's name
+     * @return the digest of the verbatim serialization
+     */
+    public static Digest digest_document_verbatim(
+        Document doc,
+        String algo_name
+    )
+        throws UnsupportedEncodingException, IOException,
+            NoSuchAlgorithmException
+    {
+        OutputStream sink = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        }; // new OutputStream()
+        return serialize_document_verbatim(doc, sink, algo_name);
+    } // digest_document_verbatim()
+
+    /**
+     * Serializes an element into a string without modifying the XML
+     * data contents.
+     *
+     * @param elem the element to be serialized
+     * @return the serialized element
+     */
+    public static String serialize_element_verbatim(Element elem) {
+        return get_verbatim_xmloutputter().outputString(elem);
+    } // serialize_element_verbatim()
+
     /**
      * Serializes the given XML document into a file with a proper indentation,
      * whitespace trimming and normalization.
@@ -254,4 +591,39 @@ public class XMLFileHelper
         writer.close();
     } // serialize_document_formatted()
 
+    /**
+     * Same as {@link #serialize_document_formatted(Document, File)},
+     * but the document is first written into a temporary file next to
+     * the output file, which is forced to the disk and then moved over
+     * the output file. Either the old or the new contents are left,
+     * never a partial file.
+     *
+     * @param doc the document to be serialized
+     * @param file the output file
+     */
+    public static void serialize_document_formatted_atomic(
+        Document doc,
+        File file
+    )
+        throws FileNotFoundException, UnsupportedEncodingException, IOException
+    {
+        XMLOutputter xmloutputter = get_formatting_xmloutputter();
+
+        File tmp = new File(file.getPath() + TEMP_SUFFIX);
+        try {
+            OutputStreamWriter writer = new OutputStreamWriter(
+                FileHelper.newSyncedOutputStream(tmp),
+                xmloutputter.getFormat().getEncoding());
+            try {
+                xmloutputter.output(doc, writer);
+            } finally {
+                writer.close();
+            } // try-finally
+            FileHelper.replaceFile(tmp, file);
+        } finally {
+            // Does nothing if the file was moved.
+            tmp.delete();
+        } // try-finally
+    } // serialize_document_formatted_atomic()
+
 } // class XMLHelper